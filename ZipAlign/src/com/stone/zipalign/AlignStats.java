@@ -0,0 +1,364 @@
+package com.brooke.zipalign;
+
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Where the time goes in an align or check: per phase, the time spent,
+ * bytes read and written, I/O calls, seeks and bytes allocated, plus
+ * latency histograms of the per-entry phases bucketed by entry size.
+ * Written out as JSON by toJson(), for "zipalign -stats <file>".
+ *
+ * Collecting costs a little per entry, so nothing is collected unless a
+ * ZipFile (or ZipAligner call) is given an AlignStats.  One instance can
+ * be shared by any number of threads.
+ *
+ * Work is timed in spans:
+ *
+ *   AlignStats.Span span = stats.begin(AlignStats.Phase.CD_FLUSH);
+ *   ...
+ *   span.end();
+ *
+ * Spans nest, and each records only its own time and allocations, not
+ * those of the spans inside it, so the phases add up to (at most) the
+ * total.  I/O is counted by a wrapper around the archive channels and
+ * charged to the innermost span on the calling thread, or to OTHER if
+ * there is none.  Allocations are per thread, and only counted on JVMs
+ * that can report them; elsewhere they are -1.
+ */
+public final class AlignStats {
+
+	public enum Phase {
+		EOCD_SEARCH("eocd_search"),     // finding and reading the EOCD (and Zip64 EOCD)
+		CD_PARSE("cd_parse"),           // reading the central directory
+		LFH_READ("lfh_read"),           // reading the local file headers
+		COPY("copy"),                   // writing each entry, less any recompression
+		PAD("pad"),                     // working out each stored entry's padding
+		RECOMPRESS("recompress"),       // inflating and deflating each entry with Zopfli
+		CD_FLUSH("cd_flush"),           // writing the central directory and EOCD
+		VERIFY("verify"),               // checking entries after (or instead of) aligning
+		OTHER("other");                 // I/O outside any span
+
+		private final String mJsonName;
+
+		Phase(String jsonName) {
+			mJsonName = jsonName;
+		}
+	}
+
+	/* counters per phase */
+	private static final int kCalls = 0;
+	private static final int kNanos = 1;
+	private static final int kBytesRead = 2;
+	private static final int kBytesWritten = 3;
+	private static final int kIOCalls = 4;
+	private static final int kSeeks = 5;
+	private static final int kAllocated = 6;
+	private static final int kNumCounters = 7;
+	private static final String[] kCounterNames = { "calls", "nanos", "bytesRead",
+			"bytesWritten", "ioCalls", "seeks", "allocatedBytes" };
+
+	/*
+	 * Entry sizes (uncompressed) go in buckets by powers of 4 from 1K:
+	 * [0, 1K), [1K, 4K), ... [64M, inf).  Latencies go in buckets by
+	 * powers of 2 microseconds: [0, 1us), [1us, 2us), ... [2^30us, inf).
+	 */
+	private static final int kNumSizeBuckets = 10;
+	private static final int kNumLatencyBuckets = 32;
+
+	private static final int kNumPhases = Phase.values().length;
+
+	private static final com.sun.management.ThreadMXBean kThreads = threadBean();
+
+	private final long mStartNanos = System.nanoTime();
+	private final AtomicLongArray mCounters = new AtomicLongArray(kNumPhases * kNumCounters);
+	private final AtomicLongArray mSizeNanos = new AtomicLongArray(kNumPhases * kNumSizeBuckets);
+	private final AtomicLongArray mLatencies =
+			new AtomicLongArray(kNumPhases * kNumSizeBuckets * kNumLatencyBuckets);
+	private final AtomicLongArray mPadding = new AtomicLongArray(2);    // entries, bytes
+	private final ThreadLocal<Span> mCurrent = new ThreadLocal<Span>();
+
+	/*
+	 * Some work in progress on one thread.  Not thread-safe: a span is
+	 * ended by the thread that began it.
+	 */
+	public static final class Span {
+		private final AlignStats mStats;
+		private final Phase mPhase;
+		private final Span mParent;
+		private final long mStart;
+		private final long mStartAllocated;
+		private long mChildNanos;
+		private long mChildAllocated;
+
+		private Span(AlignStats stats, Phase phase, Span parent) {
+			mStats = stats;
+			mPhase = phase;
+			mParent = parent;
+			mStartAllocated = allocatedBytes();
+			mStart = System.nanoTime();
+		}
+
+		public void end() {
+			end(-1);
+		}
+
+		/*
+		 * End a span that handled one entry of "entrySize" uncompressed
+		 * bytes, adding it to the latency histogram of its phase.
+		 */
+		public void end(long entrySize) {
+			long nanos = System.nanoTime() - mStart;
+			long allocated = mStartAllocated < 0 ? -1 : allocatedBytes() - mStartAllocated;
+			mStats.record(mPhase, nanos - mChildNanos,
+					allocated < 0 ? -1 : allocated - mChildAllocated, entrySize);
+
+			mStats.mCurrent.set(mParent);
+			if (mParent != null) {
+				mParent.mChildNanos += nanos;
+				mParent.mChildAllocated += Math.max(0, allocated);
+			}
+		}
+
+		/*
+		 * End this span and begin one for "phase" in its place.
+		 */
+		public Span next(Phase phase) {
+			end();
+			return mStats.begin(phase);
+		}
+	}
+
+	public AlignStats() {
+	}
+
+	public Span begin(Phase phase) {
+		Span span = new Span(this, phase, mCurrent.get());
+		mCurrent.set(span);
+		return span;
+	}
+
+	/*
+	 * Note "padding" bytes added to a stored entry.
+	 */
+	void countPadding(int padding) {
+		if (padding > 0) {
+			mPadding.incrementAndGet(0);
+			mPadding.addAndGet(1, padding);
+			add(Phase.PAD, kBytesWritten, padding);
+		}
+	}
+
+	/*
+	 * Wrap an archive channel so its I/O is counted.
+	 */
+	FileChannel wrap(FileChannel fc) {
+		return new StatsChannel(fc, this);
+	}
+
+	/* called by StatsChannel */
+	void countIO(long bytesRead, long bytesWritten, boolean seek) {
+		Span span = mCurrent.get();
+		Phase phase = span != null ? span.mPhase : Phase.OTHER;
+		add(phase, kIOCalls, 1);
+		if (bytesRead > 0) {
+			add(phase, kBytesRead, bytesRead);
+		}
+		if (bytesWritten > 0) {
+			add(phase, kBytesWritten, bytesWritten);
+		}
+		if (seek) {
+			add(phase, kSeeks, 1);
+		}
+	}
+
+	private void record(Phase phase, long nanos, long allocated, long entrySize) {
+		add(phase, kCalls, 1);
+		add(phase, kNanos, nanos);
+		if (allocated >= 0) {
+			add(phase, kAllocated, allocated);
+		}
+		if (entrySize >= 0) {
+			int sizeBucket = sizeBucket(entrySize);
+			mSizeNanos.addAndGet(phase.ordinal() * kNumSizeBuckets + sizeBucket, nanos);
+			mLatencies.incrementAndGet((phase.ordinal() * kNumSizeBuckets + sizeBucket)
+					* kNumLatencyBuckets + latencyBucket(nanos));
+		}
+	}
+
+	private void add(Phase phase, int counter, long value) {
+		mCounters.addAndGet(phase.ordinal() * kNumCounters + counter, value);
+	}
+
+	private long get(Phase phase, int counter) {
+		if (counter == kAllocated && kThreads == null) {
+			return -1;
+		}
+		return mCounters.get(phase.ordinal() * kNumCounters + counter);
+	}
+
+	private static int sizeBucket(long size) {
+		int bucket = 0;
+		for (long limit = 1024; bucket < kNumSizeBuckets - 1 && size >= limit; limit <<= 2) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	private static int latencyBucket(long nanos) {
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);    // 0 for < 1us
+		return Math.min(bucket, kNumLatencyBuckets - 1);
+	}
+
+	private static long sizeBucketMin(int bucket) {
+		return bucket == 0 ? 0 : 1024L << (2 * (bucket - 1));
+	}
+
+	private static long allocatedBytes() {
+		if (kThreads == null) {
+			return -1;
+		}
+		return kThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+				if (threads.isThreadAllocatedMemorySupported()) {
+					threads.setThreadAllocatedMemoryEnabled(true);
+					return threads;
+				}
+			}
+		} catch (LinkageError e) {
+			/* not a HotSpot-style JVM */
+		} catch (UnsupportedOperationException e) {
+			/* as above */
+		}
+		return null;
+	}
+
+	/*
+	 * Everything collected so far, as a JSON object:
+	 *
+	 *   { "input": ..., "output": ..., "ok": true, "elapsedNanos": ...,
+	 *     "paddedEntries": ..., "paddingBytes": ...,
+	 *     "phases": { "copy": { "calls": ..., "nanos": ..., ... }, ... },
+	 *     "histograms": { "copy": [ { "minSize": 0, "maxSize": 1023,
+	 *         "count": ..., "nanos": ..., "latencyMicros": { "<1": ..., "<2": ... } },
+	 *         ... ], ... } }
+	 *
+	 * "output" is null for a check.  Phases that saw nothing, and empty
+	 * buckets, are left out.
+	 */
+	public String toJson(String input, String output, boolean ok) {
+		StringBuilder sb = new StringBuilder(4096);
+		sb.append("{\n");
+		sb.append("  \"input\": ").append(quote(input)).append(",\n");
+		sb.append("  \"output\": ").append(quote(output)).append(",\n");
+		sb.append("  \"ok\": ").append(ok).append(",\n");
+		sb.append("  \"elapsedNanos\": ").append(System.nanoTime() - mStartNanos).append(",\n");
+		sb.append("  \"paddedEntries\": ").append(mPadding.get(0)).append(",\n");
+		sb.append("  \"paddingBytes\": ").append(mPadding.get(1)).append(",\n");
+
+		sb.append("  \"phases\": {");
+		String sep = "\n";
+		for (Phase phase : Phase.values()) {
+			if (isEmpty(phase)) {
+				continue;
+			}
+			sb.append(sep).append("    ").append(quote(phase.mJsonName)).append(": {");
+			for (int c = 0; c < kNumCounters; c++) {
+				sb.append(c == 0 ? " " : ", ").append(quote(kCounterNames[c])).append(": ")
+						.append(get(phase, c));
+			}
+			sb.append(" }");
+			sep = ",\n";
+		}
+		sb.append("\n  },\n");
+
+		sb.append("  \"histograms\": {");
+		sep = "\n";
+		for (Phase phase : Phase.values()) {
+			if (!hasHistogram(phase)) {
+				continue;
+			}
+			sb.append(sep).append("    ").append(quote(phase.mJsonName)).append(": [");
+			String bucketSep = "\n";
+			for (int s = 0; s < kNumSizeBuckets; s++) {
+				int base = (phase.ordinal() * kNumSizeBuckets + s) * kNumLatencyBuckets;
+				long count = 0;
+				for (int l = 0; l < kNumLatencyBuckets; l++) {
+					count += mLatencies.get(base + l);
+				}
+				if (count == 0) {
+					continue;
+				}
+				sb.append(bucketSep).append("      { \"minSize\": ").append(sizeBucketMin(s))
+						.append(", \"maxSize\": ")
+						.append(s == kNumSizeBuckets - 1 ? "null" : String.valueOf(sizeBucketMin(s + 1) - 1))
+						.append(", \"count\": ").append(count)
+						.append(", \"nanos\": ").append(mSizeNanos.get(phase.ordinal() * kNumSizeBuckets + s))
+						.append(", \"latencyMicros\": {");
+				String latencySep = " ";
+				for (int l = 0; l < kNumLatencyBuckets; l++) {
+					long n = mLatencies.get(base + l);
+					if (n == 0) {
+						continue;
+					}
+					sb.append(latencySep).append(quote(l == kNumLatencyBuckets - 1 ? "inf" : "<" + (1L << l)))
+							.append(": ").append(n);
+					latencySep = ", ";
+				}
+				sb.append(" } }");
+				bucketSep = ",\n";
+			}
+			sb.append("\n    ]");
+			sep = ",\n";
+		}
+		sb.append("\n  }\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private boolean isEmpty(Phase phase) {
+		for (int c = 0; c < kNumCounters; c++) {
+			if (mCounters.get(phase.ordinal() * kNumCounters + c) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean hasHistogram(Phase phase) {
+		int base = phase.ordinal() * kNumSizeBuckets * kNumLatencyBuckets;
+		for (int i = 0; i < kNumSizeBuckets * kNumLatencyBuckets; i++) {
+			if (mLatencies.get(base + i) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String quote(String s) {
+		if (s == null) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
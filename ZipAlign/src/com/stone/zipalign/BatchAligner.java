@@ -0,0 +1,367 @@
+package com.brooke.zipalign;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/*
+ * Align many archives in one run, from a manifest or a glob:
+ *
+ *   zipalign -batch splits.txt -z -threads 2
+ *   zipalign -glob 'out/**.apk' -outdir aligned -align 4 -p
+ *
+ * A manifest has one archive per line, "<infile> <outfile> <align>"
+ * followed by any zipalign flags for that archive alone; blank lines and
+ * lines starting with '#' are skipped.  Flags on the command line apply
+ * to every archive, but a line's own flags (and alignment) win.
+ *
+ * Several archives are in flight at once, each on a thread of its own.
+ * Those threads mostly wait on I/O; the CPU work -- parallel copies and
+ * Zopfli -- goes to one pool the size of the machine, shared by every
+ * archive, so a batch of small archives and a batch of big ones both
+ * keep all the cores busy without oversubscribing them.  Each archive is
+ * handled just as a single run would handle it, "-v" and "-stats" and
+ * all; what that prints comes out in one piece when the archive is done,
+ * each line led by the archive's name.  A summary follows at the end.
+ */
+final class BatchAligner {
+
+	static final String kManifestOpt = "batch";
+	static final String kGlobOpt = "glob";
+	private static final String kOutDirOpt = "outdir";
+	private static final String kJobsOpt = "jobs";
+	private static final String kReportOpt = "report";
+
+	private static final Charset kUTF8 = Charset.forName("UTF-8");
+
+	/*
+	 * One archive: its command line and, once done, what happened.
+	 */
+	private static final class Job {
+		final String mLabel;              // infile, for the report
+		final String[] mArgs;
+		String mStatus;
+		int mNumEntries;
+		long mOutputSize;
+		long mElapsedMillis;
+
+		Job(String label, String[] args) {
+			mLabel = label;
+			mArgs = args;
+		}
+
+		boolean isOk() {
+			return mStatus.equals(ZipAligner.Status.OK.name());
+		}
+	}
+
+	private final List<Job> mJobs;
+	private final int mNumJobs;
+	private final Path mReport;           // null for none
+
+	private BatchAligner(List<Job> jobs, int numJobs, Path report) {
+		mJobs = jobs;
+		mNumJobs = numJobs;
+		mReport = report;
+	}
+
+	/*
+	 * Build a batch from a command line.  Returns null (having said why
+	 * on stderr, if it isn't a usage mistake) if there's nothing to run.
+	 */
+	static BatchAligner parse(String[] args) {
+		String manifest = null;
+		String glob = null;
+		String outDir = null;
+		String report = null;
+		int numJobs = Runtime.getRuntime().availableProcessors() * 2;
+		List<String> common = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++) {
+			String opt = args[i].startsWith("-") ? args[i].substring(1) : "";
+			boolean ours = opt.equals(kManifestOpt) || opt.equals(kGlobOpt)
+					|| opt.equals(kOutDirOpt) || opt.equals(kJobsOpt) || opt.equals(kReportOpt);
+			if (!ours) {
+				common.add(args[i]);
+				continue;
+			}
+			if (++i == args.length) {
+				return null;
+			}
+			if (opt.equals(kManifestOpt)) {
+				manifest = args[i];
+			} else if (opt.equals(kGlobOpt)) {
+				glob = args[i];
+			} else if (opt.equals(kOutDirOpt)) {
+				outDir = args[i];
+			} else if (opt.equals(kReportOpt)) {
+				report = args[i];
+			} else {
+				try {
+					numJobs = Integer.valueOf(args[i]);
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				if (numJobs < 1) {
+					return null;
+				}
+			}
+		}
+		if ((manifest == null) == (glob == null) || (glob != null) != (outDir != null)) {
+			return null;
+		}
+
+		List<Job> jobs;
+		try {
+			jobs = manifest != null ? readManifest(Paths.get(manifest), common)
+					: expandGlob(glob, Paths.get(outDir), common);
+		} catch (IOException e) {
+			System.err.println("zipalign: unable to list archives: " + e);
+			return null;
+		}
+		if (jobs == null) {
+			return null;
+		}
+		return new BatchAligner(jobs, numJobs, report != null ? Paths.get(report) : null);
+	}
+
+	private static List<Job> readManifest(Path manifest, List<String> common) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		int lineNum = 0;
+		for (String line : Files.readAllLines(manifest, kUTF8)) {
+			lineNum++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			if (fields.length < 3) {
+				System.err.println(manifest + ":" + lineNum + ": expected <infile> <outfile> <align>");
+				return null;
+			}
+			List<String> args = new ArrayList<String>();
+			args.addAll(Arrays.asList("-infile", fields[0], "-outfile", fields[1], "-align", fields[2]));
+			args.addAll(Arrays.asList(fields).subList(3, fields.length));
+			args.addAll(common);
+			jobs.add(new Job(fields[0], args.toArray(new String[args.size()])));
+		}
+		return jobs;
+	}
+
+	/*
+	 * Everything matching "pattern", in a stable order.  The walk starts
+	 * at the longest leading part of the pattern without wildcards, and
+	 * each output keeps its path relative to there.
+	 */
+	private static List<Job> expandGlob(String pattern, final Path outDir, final List<String> common)
+			throws IOException {
+		Path base = Paths.get(pattern).toAbsolutePath();
+		while (base != null && base.toString().matches(".*[*?\\[{].*")) {
+			base = base.getParent();
+		}
+		if (base == null || !Files.isDirectory(base)) {
+			base = Paths.get("").toAbsolutePath();
+		}
+		final Path root = base;
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+				"glob:" + Paths.get(pattern).toAbsolutePath());
+
+		final List<Path> found = new ArrayList<Path>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && matcher.matches(file)) {
+					found.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(found);
+
+		List<Job> jobs = new ArrayList<Job>(found.size());
+		for (Path in : found) {
+			Path out = outDir.resolve(root.relativize(in).toString());
+			Path parent = out.toAbsolutePath().getParent();
+			if (parent != null) {
+				Files.createDirectories(parent);
+			}
+			List<String> args = new ArrayList<String>();
+			args.addAll(Arrays.asList("-infile", in.toString(), "-outfile", out.toString()));
+			args.addAll(common);
+			jobs.add(new Job(in.toString(), args.toArray(new String[args.size()])));
+		}
+		return jobs;
+	}
+
+	/*
+	 * Align everything and print the summary.  Returns true if every
+	 * archive was aligned and verified.
+	 */
+	boolean run() {
+		long start = System.nanoTime();
+		int numCpus = Runtime.getRuntime().availableProcessors();
+		ExecutorService cpuPool = Executors.newFixedThreadPool(numCpus,
+				ZipAligner.daemonThreads("zipalign-cpu-"));
+		ForkJoinPool verifyPool = new ForkJoinPool(numCpus);
+		Semaphore zopfliSlots = new Semaphore(numCpus);
+		ExecutorService archivePool = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(mNumJobs, mJobs.size())),
+				ZipAligner.daemonThreads("zipalign-archive-"));
+		final Map<ZipAlignOptions, ZipAligner> aligners = new HashMap<ZipAlignOptions, ZipAligner>();
+
+		try {
+			/* parse everything up front, so a typo doesn't surface halfway through */
+			final ZipAlign.Invocation[] invocations = new ZipAlign.Invocation[mJobs.size()];
+			final ZipAligner[] jobAligners = new ZipAligner[mJobs.size()];
+			for (int i = 0; i < invocations.length; i++) {
+				Job job = mJobs.get(i);
+				invocations[i] = ZipAlign.Invocation.parse(job.mArgs);
+				if (invocations[i] == null) {
+					System.err.println("zipalign: bad arguments for '" + job.mLabel + "': "
+							+ Arrays.toString(job.mArgs));
+					return false;
+				}
+				ZipAlignOptions options = invocations[i].getOptions();
+				ZipAligner aligner = aligners.get(options);
+				if (aligner == null) {
+					aligner = new ZipAligner(options, cpuPool, verifyPool, zopfliSlots);
+					aligners.put(options, aligner);
+				}
+				jobAligners[i] = aligner;
+			}
+
+			List<Future<?>> results = new ArrayList<Future<?>>(mJobs.size());
+			for (int i = 0; i < invocations.length; i++) {
+				final Job job = mJobs.get(i);
+				final ZipAlign.Invocation invocation = invocations[i];
+				final ZipAligner aligner = jobAligners[i];
+				results.add(archivePool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						runJob(job, invocation, aligner);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			System.err.println("zipalign: batch failed");
+			e.getCause().printStackTrace();
+			return false;
+		} finally {
+			archivePool.shutdown();
+			for (ZipAligner aligner : aligners.values()) {
+				aligner.close();
+			}
+			cpuPool.shutdown();
+			verifyPool.shutdown();
+		}
+
+		return report((System.nanoTime() - start) / 1000000);
+	}
+
+	/*
+	 * Run one archive as Invocation.run() would on its own, with the
+	 * output held back until it's done so archives don't interleave.
+	 */
+	private static void runJob(Job job, ZipAlign.Invocation invocation, ZipAligner aligner) {
+		long start = System.nanoTime();
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(captured, true);
+		try {
+			boolean ok = invocation.run(aligner, out, out);
+			ZipAligner.Result result = invocation.getResult();
+			ZipVerifier.Report report = invocation.getReport();
+			if (ok) {
+				job.mStatus = ZipAligner.Status.OK.name();
+			} else if (result != null && !result.isOk()) {
+				job.mStatus = result.getStatus().name();
+			} else {
+				job.mStatus = ZipAligner.Status.VERIFY_FAILED.name();
+			}
+			if (result != null) {
+				job.mNumEntries = result.getNumEntries();
+				job.mOutputSize = result.getOutputSize();
+			} else if (report != null) {
+				job.mNumEntries = report.getResults().size();
+			}
+		} catch (RuntimeException e) {
+			/* the rest of the batch carries on */
+			out.println("zipalign: failed on '" + job.mLabel + "'");
+			e.printStackTrace(out);
+			job.mStatus = "ERROR";
+		}
+		job.mElapsedMillis = (System.nanoTime() - start) / 1000000;
+
+		out.flush();
+		String text = captured.toString();
+		if (!text.isEmpty()) {
+			StringBuilder labelled = new StringBuilder();
+			for (String line : text.split("\\r?\\n")) {
+				labelled.append(job.mLabel).append(": ").append(line).append(System.lineSeparator());
+			}
+			System.out.print(labelled);
+		}
+	}
+
+	/*
+	 * Print the summary, and write it to the report file if asked.
+	 */
+	private boolean report(long elapsedMillis) {
+		List<String> lines = new ArrayList<String>(mJobs.size() + 2);
+		int numOk = 0;
+		long totalSize = 0;
+		for (Job job : mJobs) {
+			lines.add(String.format("%-14s %8d %12d %8d ms  %s", job.mStatus, job.mNumEntries,
+					job.mOutputSize, job.mElapsedMillis, job.mLabel));
+			if (job.isOk()) {
+				numOk++;
+			}
+			totalSize += job.mOutputSize;
+		}
+		lines.add(String.format("Aligned %d of %d archives (%d bytes) in %d ms", numOk,
+				mJobs.size(), totalSize, elapsedMillis));
+
+		for (String line : lines) {
+			System.out.println(line);
+		}
+
+		boolean ok = numOk == mJobs.size();
+		if (mReport != null) {
+			try {
+				Files.write(mReport, lines, kUTF8);
+			} catch (IOException e) {
+				System.err.println("zipalign: unable to write report '" + mReport + "': " + e);
+				ok = false;
+			}
+		}
+		return ok;
+	}
+}
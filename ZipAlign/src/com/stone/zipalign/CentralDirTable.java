@@ -0,0 +1,467 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * The central directory of an archive, stored column by column.
+ *
+ * Every fixed CDE field lives in its own primitive array indexed by entry
+ * number ("row"), sizes and offsets are widened to long, and the
+ * variable-length name / extra / comment fields of all entries are packed
+ * back to back in one byte arena.  The few LFH fields we care about get
+ * their own columns, with the LFH extra bytes in a second arena.
+ *
+ * ZipEntry is a view over one row; nothing here allocates per entry, so a
+ * directory of millions of entries is a few dozen arrays.
+ *
+ * LFHs are not read when the directory is parsed.  The first caller that
+ * needs one (the data offset depends on the LFH name and extra lengths)
+ * triggers a single sweep that reads every LFH in ascending file order.
+ */
+final class CentralDirTable {
+
+	private static final int kMinRows = 16;
+
+	/* read-ahead window for the LFH sweep; holds any single LFH */
+	private static final int kSweepWindow = 1024 * 1024;
+
+	/* mFlags bits */
+	static final byte kFlagDeleted = 0x01;
+	static final byte kFlagLFHLoaded = 0x02;
+	static final byte kFlagLocalZip64 = 0x04; // LFH has a Zip64 extra block
+	static final byte kFlagCentralZip64 = 0x08; // CDE had a Zip64 extra block
+
+	int mCount;
+
+	/* fixed CDE fields */
+	short[] mVersionMadeBy;
+	short[] mVersionToExtract;
+	short[] mGPBitFlag;
+	short[] mCompressionMethod;
+	short[] mLastModFileTime;
+	short[] mLastModFileDate;
+	int[] mCRC32;
+	long[] mCompressedSize;
+	long[] mUncompressedSize;
+	short[] mDiskNumberStart;
+	short[] mInternalAttrs;
+	int[] mExternalAttrs;
+	long[] mLocalHeaderRelOffset;
+
+	/* variable CDE fields: name, extra and comment, contiguous in mVarArena */
+	int[] mVarOffset;
+	char[] mFileNameLength;
+	char[] mExtraFieldLength;
+	char[] mFileCommentLength;
+	byte[] mVarArena;
+	int mVarUsed;
+
+	/* LFH fields that may differ from the CDE */
+	short[] mLFHGPBitFlag;
+	char[] mLFHFileNameLength;
+	char[] mLFHExtraFieldLength;
+	int[] mLFHExtraOffset;
+	byte[] mLFHArena;
+	int mLFHUsed;
+
+	byte[] mFlags;
+
+	/* where unloaded LFHs come from; null once they are all in */
+	private FileChannel mSource;
+	private volatile boolean mLocalHeadersLoaded = true;
+
+	/*
+	 * "expectedRows" and "expectedVarBytes" are sizing hints (e.g. from the
+	 * EOCD); the table grows as needed.
+	 */
+	CentralDirTable(int expectedRows, int expectedVarBytes) {
+		int rows = Math.max(expectedRows, kMinRows);
+
+		mVersionMadeBy = new short[rows];
+		mVersionToExtract = new short[rows];
+		mGPBitFlag = new short[rows];
+		mCompressionMethod = new short[rows];
+		mLastModFileTime = new short[rows];
+		mLastModFileDate = new short[rows];
+		mCRC32 = new int[rows];
+		mCompressedSize = new long[rows];
+		mUncompressedSize = new long[rows];
+		mDiskNumberStart = new short[rows];
+		mInternalAttrs = new short[rows];
+		mExternalAttrs = new int[rows];
+		mLocalHeaderRelOffset = new long[rows];
+
+		mVarOffset = new int[rows];
+		mFileNameLength = new char[rows];
+		mExtraFieldLength = new char[rows];
+		mFileCommentLength = new char[rows];
+		mVarArena = new byte[Math.max(expectedVarBytes, kMinRows)];
+
+		mLFHGPBitFlag = new short[rows];
+		mLFHFileNameLength = new char[rows];
+		mLFHExtraFieldLength = new char[rows];
+		mLFHExtraOffset = new int[rows];
+		mLFHArena = new byte[kMinRows];
+
+		mFlags = new byte[rows];
+	}
+
+	/*
+	 * Reserve a new row at the end and return its number.  All of its
+	 * columns are zero.
+	 */
+	int appendRow() {
+		if (mCount == mFlags.length) {
+			grow(mCount * 2);
+		}
+		return mCount++;
+	}
+
+	/*
+	 * Reserve "len" bytes at the end of the variable-field arena and
+	 * return their offset.
+	 */
+	int allocVar(int len) {
+		if (mVarUsed + len > mVarArena.length) {
+			mVarArena = Arrays.copyOf(mVarArena, Math.max(mVarArena.length * 2, mVarUsed + len));
+		}
+		int offset = mVarUsed;
+		mVarUsed += len;
+		return offset;
+	}
+
+	/*
+	 * Reserve "len" bytes at the end of the LFH extra arena and return
+	 * their offset.
+	 */
+	int allocLFHExtra(int len) {
+		if (mLFHUsed + len > mLFHArena.length) {
+			mLFHArena = Arrays.copyOf(mLFHArena, Math.max(mLFHArena.length * 2, mLFHUsed + len));
+		}
+		int offset = mLFHUsed;
+		mLFHUsed += len;
+		return offset;
+	}
+
+	int getFileNameOffset(int row) {
+		return mVarOffset[row];
+	}
+
+	int getExtraFieldOffset(int row) {
+		return mVarOffset[row] + mFileNameLength[row];
+	}
+
+	int getFileCommentOffset(int row) {
+		return mVarOffset[row] + mFileNameLength[row] + mExtraFieldLength[row];
+	}
+
+	boolean hasFlag(int row, byte flag) {
+		return (mFlags[row] & flag) != 0;
+	}
+
+	void setFlag(int row, byte flag) {
+		mFlags[row] |= flag;
+	}
+
+	/*
+	 * Note that the LFHs of the rows read so far are still on disk, in
+	 * "fc", and should be fetched on first use.
+	 */
+	void deferLocalHeaders(FileChannel fc) {
+		mSource = fc;
+		mLocalHeadersLoaded = false;
+	}
+
+	/*
+	 * Make sure every row's LFH fields are present, reading them now if
+	 * they were deferred.  Safe to call from several threads.
+	 */
+	boolean ensureLocalHeaders() {
+		if (mLocalHeadersLoaded) {
+			return true;
+		}
+		synchronized (this) {
+			if (!mLocalHeadersLoaded) {
+				if (!loadLocalHeaders()) {
+					return false;
+				}
+				mSource = null;
+				mLocalHeadersLoaded = true;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Read every outstanding LFH in a single forward pass over the file.
+	 *
+	 * Rows are visited in order of LFH offset (which for most archives is
+	 * already directory order, so the sort is skipped), and the file is
+	 * read through a window: LFHs that sit close together -- the common
+	 * case of many small entries -- come out of one read, and large entries
+	 * just move the window forward.  The channel position is not used.
+	 */
+	private boolean loadLocalHeaders() {
+		int count = mCount;
+		Integer[] order = fileOrder();
+
+		ReadWindow window = new ReadWindow(mSource, kSweepWindow);
+
+		try {
+			for (int i = 0; i < count; i++) {
+				int row = order != null ? order[i] : i;
+				if (hasFlag(row, kFlagLFHLoaded)) {
+					continue;
+				}
+
+				long offset = mLocalHeaderRelOffset[row];
+				ByteBuffer buf = window.at(offset, LocalFileHeader.kMaxLFHLen);
+				if (!HeaderCodec.decodeLocal(buf, this, row)) {
+					System.err.println("LFH read failed at " + offset);
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Error reading local file headers!");
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * The rows in ascending order of LFH offset, or null if that is
+	 * already directory order, as it is for most archives.
+	 */
+	Integer[] fileOrder() {
+		int count = mCount;
+		for (int i = 1; i < count; i++) {
+			if (mLocalHeaderRelOffset[i] < mLocalHeaderRelOffset[i - 1]) {
+				Integer[] order = new Integer[count];
+				for (int j = 0; j < count; j++) {
+					order[j] = j;
+				}
+				Arrays.sort(order, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						long oa = mLocalHeaderRelOffset[a];
+						long ob = mLocalHeaderRelOffset[b];
+						return oa < ob ? -1 : (oa == ob ? 0 : 1);
+					}
+				});
+				return order;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Drop the rows marked deleted.  The rest keep their order and slide
+	 * down, a run of rows at a time; arena bytes of dropped rows are just
+	 * left behind.  Row numbers change, so ZipEntry views of this table
+	 * made earlier are no longer valid.  Returns the number dropped.
+	 */
+	int removeDeleted() {
+		int count = mCount;
+		Object[] columns = columns();
+		int out = 0;
+		int row = 0;
+		while (row < count) {
+			if (hasFlag(row, kFlagDeleted)) {
+				row++;
+				continue;
+			}
+			int start = row;
+			while (row < count && !hasFlag(row, kFlagDeleted)) {
+				row++;
+			}
+			if (start != out) {
+				for (Object column : columns) {
+					System.arraycopy(column, start, column, out, row - start);
+				}
+			}
+			out += row - start;
+		}
+
+		/* appendRow() hands out zeroed rows */
+		int dropped = count - out;
+		if (dropped > 0) {
+			for (Object column : columns) {
+				Object zeros = Array.newInstance(column.getClass().getComponentType(), dropped);
+				System.arraycopy(zeros, 0, column, out, dropped);
+			}
+		}
+		mCount = out;
+		return dropped;
+	}
+
+	/*
+	 * Take back the last row, e.g. when adding its entry failed, so the
+	 * table again matches the archive.  Its arena bytes are given back too
+	 * if nothing was allocated after them.
+	 */
+	void removeLastRow() {
+		int row = mCount - 1;
+		int varLen = mFileNameLength[row] + mExtraFieldLength[row] + mFileCommentLength[row];
+		if (mVarOffset[row] + varLen == mVarUsed) {
+			mVarUsed = mVarOffset[row];
+		}
+		int lfhExtraLen = mLFHExtraFieldLength[row];
+		if (lfhExtraLen > 0 && mLFHExtraOffset[row] + lfhExtraLen == mLFHUsed) {
+			mLFHUsed = mLFHExtraOffset[row];
+		}
+
+		/* appendRow() hands out zeroed rows */
+		for (Object column : columns()) {
+			Object zero = Array.newInstance(column.getClass().getComponentType(), 1);
+			System.arraycopy(zero, 0, column, row, 1);
+		}
+		mCount = row;
+	}
+
+	/* every per-row column */
+	private Object[] columns() {
+		return new Object[] {
+			mVersionMadeBy, mVersionToExtract, mGPBitFlag, mCompressionMethod,
+			mLastModFileTime, mLastModFileDate, mCRC32, mCompressedSize, mUncompressedSize,
+			mDiskNumberStart, mInternalAttrs, mExternalAttrs, mLocalHeaderRelOffset,
+			mVarOffset, mFileNameLength, mExtraFieldLength, mFileCommentLength,
+			mLFHGPBitFlag, mLFHFileNameLength, mLFHExtraFieldLength, mLFHExtraOffset,
+			mFlags
+		};
+	}
+
+	/*
+	 * Append a copy of a row from another table, the way
+	 * ZipEntry::initFromExternal() copied one entry into a new archive:
+	 * the CDE is carried over as-is, the LFH is rebuilt from the CDE, and
+	 * the LFH "extra" field, which is independent, is copied separately
+	 * with "padding" zero bytes added to the end of it.
+	 *
+	 * Returns the new row, or -1 if the source LFH can't be read or the
+	 * padding would overflow the extra field.
+	 */
+	int appendExternal(CentralDirTable src, int srcRow, int padding) {
+		if (!src.ensureLocalHeaders()) {
+			return -1;
+		}
+
+		int lfhExtraLen = src.mLFHExtraFieldLength[srcRow] + padding;
+		if (lfhExtraLen > 0xffff) {
+			System.err.println("padding " + padding + " overflows extra field");
+			return -1;
+		}
+
+		int row = appendRow();
+
+		mVersionMadeBy[row] = src.mVersionMadeBy[srcRow];
+		mVersionToExtract[row] = src.mVersionToExtract[srcRow];
+		mGPBitFlag[row] = src.mGPBitFlag[srcRow];
+		mCompressionMethod[row] = src.mCompressionMethod[srcRow];
+		mLastModFileTime[row] = src.mLastModFileTime[srcRow];
+		mLastModFileDate[row] = src.mLastModFileDate[srcRow];
+		mCRC32[row] = src.mCRC32[srcRow];
+		mCompressedSize[row] = src.mCompressedSize[srcRow];
+		mUncompressedSize[row] = src.mUncompressedSize[srcRow];
+		mDiskNumberStart[row] = src.mDiskNumberStart[srcRow];
+		mInternalAttrs[row] = src.mInternalAttrs[srcRow];
+		mExternalAttrs[row] = src.mExternalAttrs[srcRow];
+		mLocalHeaderRelOffset[row] = src.mLocalHeaderRelOffset[srcRow];
+
+		mFileNameLength[row] = src.mFileNameLength[srcRow];
+		mExtraFieldLength[row] = src.mExtraFieldLength[srcRow];
+		mFileCommentLength[row] = src.mFileCommentLength[srcRow];
+		int varLen = mFileNameLength[row] + mExtraFieldLength[row] + mFileCommentLength[row];
+		mVarOffset[row] = allocVar(varLen);
+		System.arraycopy(src.mVarArena, src.mVarOffset[srcRow], mVarArena, mVarOffset[row], varLen);
+
+		/* construct the LFH from the CDE */
+		mLFHGPBitFlag[row] = mGPBitFlag[row];
+		mLFHFileNameLength[row] = mFileNameLength[row];
+
+		/* the LFH "extra" field is independent; new bytes are zero */
+		mLFHExtraFieldLength[row] = (char) lfhExtraLen;
+		if (lfhExtraLen > 0) {
+			int offset = allocLFHExtra(lfhExtraLen);
+			System.arraycopy(src.mLFHArena, src.mLFHExtraOffset[srcRow], mLFHArena, offset,
+					src.mLFHExtraFieldLength[srcRow]);
+			mLFHExtraOffset[row] = offset;
+		}
+		setFlag(row, kFlagLFHLoaded);
+		if (src.hasFlag(srcRow, kFlagLocalZip64)) {
+			setFlag(row, kFlagLocalZip64);
+		}
+		if (src.hasFlag(srcRow, kFlagCentralZip64)) {
+			setFlag(row, kFlagCentralZip64);
+		}
+
+		return row;
+	}
+
+	/*
+	 * Build a standalone CentralDirEntry for one row, e.g. for dump() or
+	 * for comparing against the LFH.
+	 */
+	CentralDirEntry toCentralDirEntry(int row) {
+		CentralDirEntry cde = new CentralDirEntry();
+		cde.mVersionMadeBy = mVersionMadeBy[row];
+		cde.mVersionToExtract = mVersionToExtract[row];
+		cde.mGPBitFlag = mGPBitFlag[row];
+		cde.mCompressionMethod = mCompressionMethod[row];
+		cde.mLastModFileTime = mLastModFileTime[row];
+		cde.mLastModFileDate = mLastModFileDate[row];
+		cde.mCRC32 = mCRC32[row];
+		cde.mCompressedSize = mCompressedSize[row];
+		cde.mUncompressedSize = mUncompressedSize[row];
+		cde.mFileNameLength = (short) mFileNameLength[row];
+		cde.mExtraFieldLength = (short) mExtraFieldLength[row];
+		cde.mFileCommentLength = (short) mFileCommentLength[row];
+		cde.mDiskNumberStart = mDiskNumberStart[row];
+		cde.mInternalAttrs = mInternalAttrs[row];
+		cde.mExternalAttrs = mExternalAttrs[row];
+		cde.mLocalHeaderRelOffset = mLocalHeaderRelOffset[row];
+		cde.mFileName = copyVar(getFileNameOffset(row), mFileNameLength[row]);
+		cde.mExtraField = copyVar(getExtraFieldOffset(row), mExtraFieldLength[row]);
+		cde.mFileComment = copyVar(getFileCommentOffset(row), mFileCommentLength[row]);
+		return cde;
+	}
+
+	private byte[] copyVar(int offset, int len) {
+		return len == 0 ? null : Arrays.copyOfRange(mVarArena, offset, offset + len);
+	}
+
+	private void grow(int rows) {
+		rows = Math.max(rows, kMinRows);
+
+		mVersionMadeBy = Arrays.copyOf(mVersionMadeBy, rows);
+		mVersionToExtract = Arrays.copyOf(mVersionToExtract, rows);
+		mGPBitFlag = Arrays.copyOf(mGPBitFlag, rows);
+		mCompressionMethod = Arrays.copyOf(mCompressionMethod, rows);
+		mLastModFileTime = Arrays.copyOf(mLastModFileTime, rows);
+		mLastModFileDate = Arrays.copyOf(mLastModFileDate, rows);
+		mCRC32 = Arrays.copyOf(mCRC32, rows);
+		mCompressedSize = Arrays.copyOf(mCompressedSize, rows);
+		mUncompressedSize = Arrays.copyOf(mUncompressedSize, rows);
+		mDiskNumberStart = Arrays.copyOf(mDiskNumberStart, rows);
+		mInternalAttrs = Arrays.copyOf(mInternalAttrs, rows);
+		mExternalAttrs = Arrays.copyOf(mExternalAttrs, rows);
+		mLocalHeaderRelOffset = Arrays.copyOf(mLocalHeaderRelOffset, rows);
+
+		mVarOffset = Arrays.copyOf(mVarOffset, rows);
+		mFileNameLength = Arrays.copyOf(mFileNameLength, rows);
+		mExtraFieldLength = Arrays.copyOf(mExtraFieldLength, rows);
+		mFileCommentLength = Arrays.copyOf(mFileCommentLength, rows);
+
+		mLFHGPBitFlag = Arrays.copyOf(mLFHGPBitFlag, rows);
+		mLFHFileNameLength = Arrays.copyOf(mLFHFileNameLength, rows);
+		mLFHExtraFieldLength = Arrays.copyOf(mLFHExtraFieldLength, rows);
+		mLFHExtraOffset = Arrays.copyOf(mLFHExtraOffset, rows);
+
+		mFlags = Arrays.copyOf(mFlags, rows);
+	}
+}
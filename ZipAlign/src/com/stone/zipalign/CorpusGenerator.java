@@ -0,0 +1,358 @@
+package com.brooke.zipalign;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/*
+ * Make synthetic archives for benchmarks and scale tests, written with
+ * our own ZipFile.  Everything -- names, sizes, contents, which entries
+ * are stored, which have extras -- follows from the seed, so the same
+ * settings always give a byte-identical archive (given the same zlib for
+ * the deflated entries).
+ *
+ *   new CorpusGenerator().setSeed(7).setNumEntries(100000)
+ *           .setStoredShare(0.2).setSharedLibShare(0.05).generate("big.zip");
+ *
+ * Entry sizes are log-normal around a median, clamped to [min, max].
+ * Deflated entries hold text-like data that compresses about as well as
+ * resources do; stored entries and .so files hold binary data, part
+ * random and part zero runs.  Shared libs are always stored, as they
+ * must be to be page aligned.  "Large" entries, spread evenly through
+ * the archive, take an archive past Zip64 limits without needing
+ * millions of ordinary ones.  Data is generated as it's written, so
+ * even multi-gigabyte entries need no memory to speak of.
+ */
+public final class CorpusGenerator {
+
+	private static final long kMix = 0x9e3779b97f4a7c15L;
+	private static final long kBaseTime = 1420070400000L; // 2015-01-01 UTC
+	private static final int kDeflateLevel = 6;
+	private static final int kAlignmentExtraId = 0xd935; // Android's zipalign padding block
+
+	private static final String[] kWords = { "android", "resource", "layout", "string",
+			"drawable", "value", "class", "method", "field", "package", "manifest", "activity",
+			"intent", "view", "text", "width", "height", "color", "style", "theme" };
+	private static final String[] kStoredExts = { ".png", ".arsc", ".ogg", ".webp" };
+	private static final String[] kDeflatedExts = { ".xml", ".dex", ".txt", ".json" };
+
+	private long mSeed = 1;
+	private int mNumEntries = 1000;
+	private long mMinSize = 0;
+	private long mMedianSize = 4096;
+	private long mMaxSize = 1024 * 1024;
+	private double mSizeSpread = 1.5;       // sigma of the log-normal
+	private double mStoredShare = 0.3;
+	private double mSharedLibShare = 0.05;
+	private double mDataDescriptorShare = 0;
+	private double mExtraShare = 0;
+	private int mMaxExtraLen = 64;
+	private int mMaxCommentLen = 0;
+	private int mArchiveCommentLen = 0;
+	private int mNumLarge = 0;
+	private long mLargeSize = 5L * 1024 * 1024 * 1024;
+
+	public CorpusGenerator setSeed(long seed) {
+		mSeed = seed;
+		return this;
+	}
+
+	public CorpusGenerator setNumEntries(int numEntries) {
+		mNumEntries = numEntries;
+		return this;
+	}
+
+	/* entry sizes: log-normal around "median" with sigma "spread", within [min, max] */
+	public CorpusGenerator setSizes(long min, long median, long max, double spread) {
+		mMinSize = min;
+		mMedianSize = median;
+		mMaxSize = max;
+		mSizeSpread = spread;
+		return this;
+	}
+
+	/* share of the entries that aren't .so files that are stored */
+	public CorpusGenerator setStoredShare(double share) {
+		mStoredShare = share;
+		return this;
+	}
+
+	/* share of all entries that are stored .so files */
+	public CorpusGenerator setSharedLibShare(double share) {
+		mSharedLibShare = share;
+		return this;
+	}
+
+	/* share of entries followed by a data descriptor */
+	public CorpusGenerator setDataDescriptorShare(double share) {
+		mDataDescriptorShare = share;
+		return this;
+	}
+
+	/* share of entries with an extra field, of up to "maxLen" bytes */
+	public CorpusGenerator setExtraShare(double share, int maxLen) {
+		mExtraShare = share;
+		mMaxExtraLen = maxLen;
+		return this;
+	}
+
+	/* every entry gets a comment of 0 to "maxLen" bytes */
+	public CorpusGenerator setMaxCommentLen(int maxLen) {
+		mMaxCommentLen = maxLen;
+		return this;
+	}
+
+	public CorpusGenerator setArchiveCommentLen(int len) {
+		mArchiveCommentLen = len;
+		return this;
+	}
+
+	/* "count" of the entries are "size" bytes instead, whatever the distribution */
+	public CorpusGenerator setLargeEntries(int count, long size) {
+		mNumLarge = count;
+		mLargeSize = size;
+		return this;
+	}
+
+	/*
+	 * Write the archive to "outFileName", replacing anything there.
+	 * Returns false on failure, or if the settings make no sense.
+	 */
+	public boolean generate(String outFileName) {
+		if (mNumEntries < 0 || mMinSize < 0 || mMinSize > mMaxSize || mNumLarge > mNumEntries
+				|| mMaxExtraLen < 6 || mMaxExtraLen > 0xffff || mMaxCommentLen > 0xffff
+				|| mArchiveCommentLen > EndOfCentralDir.kMaxCommentLen) {
+			System.err.println("bad corpus settings");
+			return false;
+		}
+
+		ZipFile zout = new ZipFile();
+		if (!zout.open(outFileName, ZipFile.kOpenReadWrite, ZipFile.kOpenCreate, ZipFile.kOpenTruncate)) {
+			System.err.println("Unable to open '" + outFileName + "' as zip archive");
+			return false;
+		}
+
+		for (int i = 0; i < mNumEntries; i++) {
+			/* each entry draws from its own stream, so it doesn't depend on the others */
+			Random rnd = new Random(mSeed * kMix + i);
+			boolean sharedLib = rnd.nextDouble() < mSharedLibShare;
+			boolean stored = sharedLib || rnd.nextDouble() < mStoredShare;
+			boolean large = mNumLarge > 0
+					&& (long) i * mNumLarge / mNumEntries != (long) (i + 1) * mNumLarge / mNumEntries;
+			long size = large ? mLargeSize : drawSize(rnd);
+			boolean dataDescriptor = rnd.nextDouble() < mDataDescriptorShare;
+			byte[] extra = rnd.nextDouble() < mExtraShare ? makeExtra(rnd, sharedLib) : null;
+			byte[] comment = mMaxCommentLen > 0 ? makeText(rnd, rnd.nextInt(mMaxCommentLen + 1)) : null;
+
+			String name;
+			if (sharedLib) {
+				name = "lib/arm64-v8a/lib" + i + ".so";
+			} else {
+				String[] exts = stored ? kStoredExts : kDeflatedExts;
+				name = "res/d" + (i % 97) + "/f" + i + exts[rnd.nextInt(exts.length)];
+			}
+
+			InputStream data = new SyntheticStream(rnd.nextLong(), size, !stored);
+			ZipEntry entry = zout.addStream(name, data, size,
+					stored ? ZipEntry.kCompressStored : ZipEntry.kCompressDeflated, kDeflateLevel,
+					kBaseTime + i * 2000L, extra, comment, dataDescriptor);
+			if (entry == null) {
+				zout.close();
+				return false;
+			}
+		}
+
+		if (mArchiveCommentLen > 0) {
+			zout.setComment(makeText(new Random(mSeed), mArchiveCommentLen));
+		}
+		if (!zout.close()) {
+			System.err.println("failed writing central directory of '" + outFileName + "'");
+			return false;
+		}
+		return true;
+	}
+
+	private long drawSize(Random rnd) {
+		double size = mMedianSize * Math.exp(mSizeSpread * rnd.nextGaussian());
+		return Math.max(mMinSize, Math.min(mMaxSize, Math.round(size)));
+	}
+
+	/*
+	 * A well-formed extra field: one alignment block, as Android's
+	 * zipalign writes, padded out to a random length.
+	 */
+	private byte[] makeExtra(Random rnd, boolean sharedLib) {
+		int len = 6 + rnd.nextInt(mMaxExtraLen - 5);
+		byte[] extra = new byte[len];
+		int alignment = sharedLib ? 4096 : 4;
+		extra[0] = (byte) kAlignmentExtraId;
+		extra[1] = (byte) (kAlignmentExtraId >> 8);
+		extra[2] = (byte) (len - 4);
+		extra[3] = (byte) ((len - 4) >> 8);
+		extra[4] = (byte) alignment;
+		extra[5] = (byte) (alignment >> 8);
+		return extra;
+	}
+
+	/* printable, so it can't be mistaken for a signature */
+	private static byte[] makeText(Random rnd, int len) {
+		StringBuilder sb = new StringBuilder(len + 16);
+		while (sb.length() < len) {
+			sb.append(kWords[rnd.nextInt(kWords.length)]).append(' ');
+		}
+		sb.setLength(len);
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/*
+	 * "length" bytes of text-like or binary data from a seed.  Data is
+	 * made a block at a time, whatever the callers ask for, so the bytes
+	 * don't depend on how they are read.
+	 */
+	private static final class SyntheticStream extends InputStream {
+		private static final int kBlockLen = 64 * 1024;
+
+		private final Random mRandom;
+		private final boolean mText;
+		private final byte[] mBlock;
+		private long mRemaining;    // not yet made
+		private int mPosn;
+		private int mLimit;
+
+		SyntheticStream(long seed, long length, boolean text) {
+			mRandom = new Random(seed);
+			mText = text;
+			mBlock = new byte[(int) Math.min(kBlockLen, Math.max(1, length))];
+			mRemaining = length;
+		}
+
+		@Override
+		public int read() {
+			if (mPosn == mLimit && !fill()) {
+				return -1;
+			}
+			return mBlock[mPosn++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (mPosn == mLimit && !fill()) {
+				return -1;
+			}
+			int count = Math.min(len, mLimit - mPosn);
+			System.arraycopy(mBlock, mPosn, b, off, count);
+			mPosn += count;
+			return count;
+		}
+
+		private boolean fill() {
+			if (mRemaining == 0) {
+				return false;
+			}
+			mLimit = (int) Math.min(mBlock.length, mRemaining);
+			mRemaining -= mLimit;
+			mPosn = 0;
+
+			if (mText) {
+				int i = 0;
+				while (i < mLimit) {
+					String word = kWords[mRandom.nextInt(kWords.length)];
+					for (int j = 0; j < word.length() && i < mLimit; j++) {
+						mBlock[i++] = (byte) word.charAt(j);
+					}
+					if (i < mLimit) {
+						mBlock[i++] = (byte) (mRandom.nextInt(8) == 0 ? '\n' : ' ');
+					}
+				}
+			} else {
+				/* random, with runs of zeros like code and data sections have */
+				mRandom.nextBytes(mBlock);
+				for (int i = 0; i < mLimit; i += 1024) {
+					if (mRandom.nextBoolean()) {
+						int run = Math.min(mLimit - i, 1 + mRandom.nextInt(1024));
+						for (int j = 0; j < run; j++) {
+							mBlock[i + j] = 0;
+						}
+					}
+				}
+			}
+			return true;
+		}
+	}
+
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption("out", true, "the archive to write");
+		options.addOption("seed", true, "random seed");
+		options.addOption("entries", true, "number of entries");
+		options.addOption("min", true, "smallest entry size");
+		options.addOption("median", true, "median entry size");
+		options.addOption("max", true, "largest entry size");
+		options.addOption("spread", true, "sigma of the log-normal size distribution");
+		options.addOption("stored", true, "share of non-.so entries stored");
+		options.addOption("so", true, "share of entries that are stored .so files");
+		options.addOption("dd", true, "share of entries with a data descriptor");
+		options.addOption("extra", true, "share of entries with an extra field");
+		options.addOption("extramax", true, "longest extra field");
+		options.addOption("comment", true, "longest entry comment");
+		options.addOption("acomment", true, "archive comment length");
+		options.addOption("large", true, "number of large entries");
+		options.addOption("largesize", true, "size of each large entry");
+
+		CorpusGenerator gen = new CorpusGenerator();
+		String outFileName;
+		try {
+			CommandLine cmd = new DefaultParser().parse(options, args);
+			outFileName = cmd.getOptionValue("out");
+			if (outFileName == null) {
+				usage();
+				System.exit(2);
+			}
+			gen.setSeed(Long.valueOf(cmd.getOptionValue("seed", "1")))
+					.setNumEntries(Integer.valueOf(cmd.getOptionValue("entries", "1000")))
+					.setSizes(Long.valueOf(cmd.getOptionValue("min", "0")),
+							Long.valueOf(cmd.getOptionValue("median", "4096")),
+							Long.valueOf(cmd.getOptionValue("max", "1048576")),
+							Double.valueOf(cmd.getOptionValue("spread", "1.5")))
+					.setStoredShare(Double.valueOf(cmd.getOptionValue("stored", "0.3")))
+					.setSharedLibShare(Double.valueOf(cmd.getOptionValue("so", "0.05")))
+					.setDataDescriptorShare(Double.valueOf(cmd.getOptionValue("dd", "0")))
+					.setExtraShare(Double.valueOf(cmd.getOptionValue("extra", "0")),
+							Integer.valueOf(cmd.getOptionValue("extramax", "64")))
+					.setMaxCommentLen(Integer.valueOf(cmd.getOptionValue("comment", "0")))
+					.setArchiveCommentLen(Integer.valueOf(cmd.getOptionValue("acomment", "0")))
+					.setLargeEntries(Integer.valueOf(cmd.getOptionValue("large", "0")),
+							Long.valueOf(cmd.getOptionValue("largesize", "5368709120")));
+		} catch (ParseException e) {
+			usage();
+			System.exit(2);
+			return;
+		} catch (NumberFormatException e) {
+			usage();
+			System.exit(2);
+			return;
+		}
+
+		if (!gen.generate(outFileName)) {
+			System.exit(1);
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Synthetic archive generator");
+		System.out.println("Usage: CorpusGenerator -out <file.zip> [-seed <n>] [-entries <n>]");
+		System.out.println("         [-min <bytes>] [-median <bytes>] [-max <bytes>] [-spread <sigma>]");
+		System.out.println("         [-stored <share>] [-so <share>] [-dd <share>] [-extra <share>] [-extramax <bytes>]");
+		System.out.println("         [-comment <bytes>] [-acomment <bytes>] [-large <n> [-largesize <bytes>]]");
+		System.out.println();
+		System.out.println("  Shares are fractions from 0 to 1.  The same settings always give the same archive.");
+	}
+}
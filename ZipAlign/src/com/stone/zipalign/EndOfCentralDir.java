@@ -1,120 +1,158 @@
 package com.brooke.zipalign;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 public class EndOfCentralDir {
 	
-	short mDiskNumber;
-	short mDiskWithCentralDir;
-	short mNumEntries;
-	short mTotalNumEntries;
-	private int mCentralDirSize;
-	int mCentralDirOffset;
-	private int mCommentLen;
-	private String mComment = null;
+	/*
+	 * Held at full width; the 16- and 32-bit EOCD fields are only the
+	 * encoding, and values that don't fit go in the Zip64 record.
+	 */
+	int mDiskNumber;
+	int mDiskWithCentralDir;
+	long mNumEntries;
+	long mTotalNumEntries;
+	long mCentralDirSize;
+	long mCentralDirOffset;
+	int mCommentLen;
+	byte[] mComment = null;
+	long mZip64EOCDOffset = -1; // where the Zip64 EOCD record is; -1 if there isn't one
 	
 	static final int kSignature = 0x06054b50;
 	static final int kEOCDLen = 22;
 	static final int kMaxCommentLen = 65535; // longest possible in ushort
 	static final int kMaxEOCDSearch = kMaxCommentLen + kEOCDLen;
-    
+
+	static final int kZip64LocatorSignature = 0x07064b50;
+	static final int kZip64LocatorLen = 20; // sits immediately before the EOCD
+	static final int kZip64Signature = 0x06064b50;
+	static final int kZip64EOCDLen = 56; // excl. the (unused) extensible data
+
+	/* largest values the plain EOCD can hold; these also mean "see Zip64" */
+	static final long kMaxEntries = 0xffff;
+	static final long kMaxOffset = 0xffffffffL;
+
+	/* SWAR constants: one bit or byte per 8-bit lane of a long */
+	private static final long kLaneOnes = 0x0101010101010101L;
+	private static final long kLaneHighs = 0x8080808080808080L;
+	private static final long kLaneSigByte = 0x5050505050505050L; // 'P', first byte of kSignature
+
 	/*
-	 * Read the end-of-central-dir fields.
+	 * Find the last EOCD signature in the first "len" bytes of "buf", which
+	 * must be in little-endian order.  Returns the index of the signature,
+	 * or -1 if there isn't one.
 	 *
-	 * "buf" should be positioned at the EOCD signature, and should contain
-	 * the entire EOCD area including the comment.
+	 * Rather than testing one byte at a time, this pulls in eight bytes at
+	 * once and uses the usual "has a zero byte" trick on (word ^ 'PPPPPPPP')
+	 * to flag every lane that might hold a 'P'.  Lanes above a real match
+	 * can be flagged spuriously by the borrow, so each candidate is checked
+	 * against the full signature, highest lane first, which keeps the
+	 * backwards search order of the original byte loop.
 	 */
-	public boolean readBuf(byte[] buf, int len) {
-	    /* don't allow re-use */
-	    assert(mComment == null);
+	static int findSignature(ByteBuffer buf, int len) {
+		int last = len - 4; // last index a signature could start at
+		int word = last - 7;
 
-	    if (len < kEOCDLen) {
-	        /* looks like ZIP file got truncated */
-	        System.err.println(" Zip EOCD: expected >= " + kEOCDLen + " bytes, found " + len);
-	        return false;
-	    }
+		for (; word >= 0; word -= 8) {
+			long v = buf.getLong(word) ^ kLaneSigByte;
+			long hits = (v - kLaneOnes) & ~v & kLaneHighs;
+			while (hits != 0) {
+				int lane = (63 - Long.numberOfLeadingZeros(hits)) >>> 3;
+				if (buf.getInt(word + lane) == kSignature) {
+					return word + lane;
+				}
+				hits &= ~(0x80L << (lane << 3));
+			}
+		}
 
-	    byte[] sig = Arrays.copyOfRange(buf, 0, 4);
-	    // TODO is this right?
-	    if (Integer.decode(new String(sig)) != kSignature) {
-	    	System.err.println("Whoops: didn't find expected signature");
-	        return false;
-	    }
+		/* the few bytes at the very start that don't fill a word */
+		for (int i = Math.min(word + 7, last); i >= 0; i--) {
+			if (buf.get(i) == 0x50 && buf.getInt(i) == kSignature) {
+				return i;
+			}
+		}
+		return -1;
+	}
 
-	    byte[] diskNum = Arrays.copyOfRange(buf, 4, 6);
-	    mDiskNumber = Short.decode(new String(diskNum));
-	    
-	    byte[] diskWithCentralDir = Arrays.copyOfRange(buf, 6, 8);
-	    mDiskWithCentralDir = Short.decode(new String(diskWithCentralDir));
-	    
-	    byte[] numEntries = Arrays.copyOfRange(buf, 8, 10);
-	    mNumEntries = Short.decode(new String(numEntries));
-	    
-	    byte[] totalNumEntries = Arrays.copyOfRange(buf, 10, 12);
-	    mTotalNumEntries = Short.decode(new String(totalNumEntries));
-	    
-	    byte[] centralDirSize = Arrays.copyOfRange(buf, 12, 16);
-	    mCentralDirSize = Integer.decode(new String(centralDirSize));
-	    
-	    byte[] centralDirOffset = Arrays.copyOfRange(buf, 16, 20);
-	    mCentralDirOffset = Integer.decode(new String(centralDirOffset));
-	    
-	    byte[] commentLen = Arrays.copyOfRange(buf, 20, 22);
-	    mCommentLen = Short.decode(new String(commentLen));
+	/*
+	 * Look for a Zip64 end-of-central-dir locator just ahead of the EOCD.
+	 *
+	 * "buf" holds the 20 bytes that precede the EOCD, in little-endian
+	 * order.  If they are a locator, remember where the Zip64 EOCD record
+	 * lives and return true.
+	 */
+	boolean readZip64Locator(ByteBuffer buf) {
+		int start = buf.position();
+		if (buf.remaining() < kZip64LocatorLen || buf.getInt(start) != kZip64LocatorSignature) {
+			return false;
+		}
 
-	    // TODO: validate mCentralDirOffset
+		/* +4: disk with the Zip64 EOCD, +8: its offset, +16: total disks */
+		mZip64EOCDOffset = buf.getLong(start + 8);
+		return true;
+	}
 
-	    if (mCommentLen > 0) {
-	        if (kEOCDLen + mCommentLen > len) {
-	            System.err.println("EOCD(" + kEOCDLen + ") + comment(" + mCommentLen + ") exceeds len (" + len);
-	            return false;
-	        }
-	        
-	        byte[] comment = Arrays.copyOfRange(buf, kEOCDLen, (int) (kEOCDLen + mCommentLen));
-	        mComment = new String(comment);
+	/*
+	 * Does the EOCD defer to a Zip64 record?  Any field at its maximum
+	 * value means "look in the Zip64 EOCD instead".  Also true when
+	 * writing, for values that won't fit.
+	 */
+	boolean needsZip64() {
+		return mNumEntries >= kMaxEntries || mTotalNumEntries >= kMaxEntries
+				|| mCentralDirSize >= kMaxOffset || mCentralDirOffset >= kMaxOffset;
+	}
+    
+	/*
+	 * Read the end-of-central-dir fields from a little-endian buffer.
+	 *
+	 * "buf" should be positioned at the EOCD signature, and its limit
+	 * should be the end of the file, so the remaining bytes cover the
+	 * entire EOCD area including the comment.
+	 */
+	public boolean readBuf(ByteBuffer buf) {
+	    /* don't allow re-use */
+	    assert(mComment == null);
+
+	    int start = buf.position();
+	    if (!HeaderCodec.decode(buf, this)) {
+	    	return false;
 	    }
+	    buf.position(start);
 
+	    // TODO: validate mCentralDirOffset
 	    return true;
 	}
 
+	/*
+	 * Size in bytes of the central directory, as recorded in the EOCD.
+	 */
+	long getCentralDirSize() {
+		return mCentralDirSize;
+	}
+
 	/*
 	 * Write an end-of-central-directory section.
+	 *
+	 * The record is encoded into "buf" (see HeaderCodec.allocate()) and
+	 * written at the channel's current position, "posn".  If any value is
+	 * too big for the EOCD, a Zip64 EOCD record and locator go first.
 	 */
-	public boolean write(File fp) throws IOException {
-	    ByteArrayOutputStream baos = new ByteArrayOutputStream(22);
-	    ObjectOutputStream oos = new ObjectOutputStream(baos);
-	    FileOutputStream fos = new FileOutputStream(fp);
-	    
-	    try {
-		    oos.writeInt(kSignature);
-		    oos.writeShort(mDiskNumber);
-		    oos.writeShort(mDiskWithCentralDir);
-		    oos.writeShort(mNumEntries);
-		    oos.writeShort(mTotalNumEntries);
-		    oos.writeInt(mCentralDirSize);
-		    oos.writeInt(mCentralDirOffset);
-		    oos.writeShort(mCommentLen);
-		    oos.flush();
-		    
-		    fos.write(baos.toByteArray());
-		    fos.flush();
-		    
-		    if (mCommentLen > 0) {
-		        assert(mComment != null);
-		        fos.write(mComment.getBytes());
-		    }
-		    
-		    return true;
-	    } finally {
-	    	fos.close();
-	    	oos.close();
-	    	baos.close();
+	public boolean write(WritableByteChannel out, ByteBuffer buf, long posn) throws IOException {
+	    mZip64EOCDOffset = needsZip64() ? posn : -1;
+
+	    buf.clear();
+	    if (mZip64EOCDOffset >= 0) {
+	    	HeaderCodec.encodeZip64(buf, this);
+	    }
+	    HeaderCodec.encode(buf, this);
+	    buf.flip();
+
+	    while (buf.hasRemaining()) {
+	    	out.write(buf);
 	    }
+	    return true;
 	}
 
 	/*
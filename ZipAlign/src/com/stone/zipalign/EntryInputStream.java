@@ -0,0 +1,164 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/*
+ * The uncompressed data of one entry, read straight from the archive.
+ *
+ * Only a small raw buffer is held, however large the entry.  Reads are
+ * positional, so several streams (on several threads) may share the
+ * archive's channel.  The CRC and length are checked as the data goes
+ * by; reaching the end of a damaged entry throws a ZipException rather
+ * than returning -1.
+ */
+final class EntryInputStream extends InputStream {
+
+	private static final int kReadBufSize = 64 * 1024;
+
+	private final FileChannel mChannel;
+	private final String mName;
+	private final Inflater mInflater; // null if stored
+	private final byte[] mRaw;
+	private final CRC32 mCRC = new CRC32();
+	private final int mExpectedCRC;
+	private final long mExpectedLen;
+
+	private long mPosn;               // next raw byte in the file
+	private long mRawRemaining;
+	private long mCount;              // uncompressed bytes returned
+	private boolean mEOF;
+	private boolean mClosed;
+
+	EntryInputStream(FileChannel fc, ZipEntry entry, long dataOffset) {
+		mChannel = fc;
+		mName = entry.getFileName();
+		mInflater = entry.isCompressed() ? new Inflater(true) : null;
+		mRaw = new byte[(int) Math.min(kReadBufSize, Math.max(1, entry.getCompressedLen()))];
+		mExpectedCRC = entry.getCRC32();
+		mExpectedLen = entry.getUncompressedLen();
+		mPosn = dataOffset;
+		mRawRemaining = entry.getCompressedLen();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		int count = read(one, 0, 1);
+		return count < 0 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (mClosed) {
+			throw new IOException("stream closed");
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (mEOF) {
+			return -1;
+		}
+
+		int count = mInflater == null ? readStored(b, off, len) : readDeflated(b, off, len);
+		if (count < 0) {
+			finish();
+			return -1;
+		}
+		mCRC.update(b, off, count);
+		mCount += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		/* everything has to go through the CRC, so no shortcuts */
+		byte[] scratch = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int count = read(scratch, 0, (int) Math.min(n - skipped, scratch.length));
+			if (count < 0) {
+				break;
+			}
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	@Override
+	public void close() {
+		if (!mClosed) {
+			mClosed = true;
+			if (mInflater != null) {
+				mInflater.end();
+			}
+		}
+	}
+
+	private int readStored(byte[] b, int off, int len) throws IOException {
+		if (mRawRemaining == 0) {
+			return -1;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(b, off, (int) Math.min(len, mRawRemaining));
+		int count = mChannel.read(bb, mPosn);
+		if (count <= 0) {
+			throw new ZipException("'" + mName + "' truncated at " + mPosn);
+		}
+		mPosn += count;
+		mRawRemaining -= count;
+		return count;
+	}
+
+	private int readDeflated(byte[] b, int off, int len) throws IOException {
+		try {
+			while (true) {
+				int count = mInflater.inflate(b, off, len);
+				if (count > 0) {
+					return count;
+				}
+				if (mInflater.finished()) {
+					return -1;
+				}
+				if (mInflater.needsDictionary()) {
+					throw new ZipException("'" + mName + "' wants a preset dictionary");
+				}
+				if (mInflater.needsInput()) {
+					fill();
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException("'" + mName + "': " + e.getMessage());
+		}
+	}
+
+	private void fill() throws IOException {
+		if (mRawRemaining == 0) {
+			throw new ZipException("'" + mName + "' deflate stream runs past its data");
+		}
+		ByteBuffer bb = ByteBuffer.wrap(mRaw, 0, (int) Math.min(mRaw.length, mRawRemaining));
+		int count = mChannel.read(bb, mPosn);
+		if (count <= 0) {
+			throw new ZipException("'" + mName + "' truncated at " + mPosn);
+		}
+		mPosn += count;
+		mRawRemaining -= count;
+		mInflater.setInput(mRaw, 0, count);
+	}
+
+	private void finish() throws ZipException {
+		mEOF = true;
+		if (mCount != mExpectedLen) {
+			throw new ZipException("'" + mName + "' is " + mCount + " bytes, expected "
+					+ mExpectedLen);
+		}
+		if ((int) mCRC.getValue() != mExpectedCRC) {
+			throw new ZipException("'" + mName + "' CRC mismatch");
+		}
+	}
+}
@@ -0,0 +1,571 @@
+package com.brooke.zipalign;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Encode and decode the fixed-layout Zip records (LFH, CDE, EOCD) to and
+ * from a caller-supplied buffer, in Zip (little-endian) byte order.  CDEs
+ * and outgoing LFHs go to and from rows of a CentralDirTable.
+ *
+ * Field offsets follow ZipEntry::LocalFileHeader::write(),
+ * ZipEntry::CentralDirEntry::write() and EndOfCentralDir::write() in the
+ * original C++.  Nothing here allocates except the copies of the
+ * variable-length fields made when decoding; callers are expected to keep
+ * one buffer of kMaxRecordLen bytes around and reuse it for every header.
+ *
+ * Sizes and offsets too big for their 32-bit fields go in a Zip64 "extra"
+ * block, which is made up here as records are encoded.  Decoded CDEs have
+ * theirs folded into the table columns and removed; LFH extra fields are
+ * kept as they are, since the data offset depends on their length, and a
+ * Zip64 block in one is replaced with a fresh one when it is re-encoded.
+ */
+final class HeaderCodec {
+
+	static final int kZip64ExtraId = 0x0001;
+	static final int kZip64Version = 45; // "version needed" for Zip64 records
+	private static final int kLocalZip64Len = 4 + 2 * 8; // both sizes, always
+	private static final int kMaxCentralZip64Len = 4 + 3 * 8; // sizes and offset
+
+	/* largest record: a CDE with a full-size name, extra field and comment */
+	static final int kMaxRecordLen = CentralDirEntry.kCDELen + 3 * 0xffff + kMaxCentralZip64Len;
+
+	private HeaderCodec() {
+	}
+
+	/*
+	 * Allocate a scratch buffer big enough for any single record.
+	 */
+	static ByteBuffer allocate() {
+		return ByteBuffer.allocate(kMaxRecordLen).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/*
+	 * Number of bytes the encoded EOCD occupies, including the comment.
+	 */
+	static int encodedLength(EndOfCentralDir eocd) {
+		int len = EndOfCentralDir.kEOCDLen + eocd.mCommentLen;
+		if (eocd.needsZip64()) {
+			len += EndOfCentralDir.kZip64EOCDLen + EndOfCentralDir.kZip64LocatorLen;
+		}
+		return len;
+	}
+
+	/*
+	 * Number of bytes the LFH of a table row occupies, including variable
+	 * fields.
+	 */
+	static int encodedLocalLength(CentralDirTable table, int row) {
+		return LocalFileHeader.kLFHLen + table.mLFHFileNameLength[row]
+				+ localExtraLength(table, row);
+	}
+
+	/*
+	 * Number of bytes the LFH of a row will occupy once copied with
+	 * ZipFile.add() and no padding: the name comes from the CDE, and a
+	 * Zip64 block may be added or swapped.  Compare with the source LFH
+	 * to see how far the copy moves what follows it.
+	 */
+	static int copiedLocalLength(CentralDirTable table, int row) {
+		return LocalFileHeader.kLFHLen + table.mFileNameLength[row]
+				+ localExtraLength(table, row);
+	}
+
+	/*
+	 * Number of bytes the CDE of a table row occupies, including variable
+	 * fields.
+	 */
+	static int encodedCentralLength(CentralDirTable table, int row) {
+		return CentralDirEntry.kCDELen + table.mFileNameLength[row]
+				+ table.mExtraFieldLength[row] + centralZip64Length(table, row)
+				+ table.mFileCommentLength[row];
+	}
+
+	/*
+	 * Does the LFH of a row need a Zip64 block?  It does if either size
+	 * won't fit, and keeps one it already had, so a copied LFH stays the
+	 * same length (the data descriptor size depends on it, too).
+	 */
+	static boolean needsLocalZip64(CentralDirTable table, int row) {
+		return table.mCompressedSize[row] >= EndOfCentralDir.kMaxOffset
+				|| table.mUncompressedSize[row] >= EndOfCentralDir.kMaxOffset
+				|| table.hasFlag(row, CentralDirTable.kFlagLocalZip64);
+	}
+
+	/*
+	 * Length of the LFH extra field as encoded: the stored bytes, with any
+	 * Zip64 block swapped for a new one.
+	 */
+	private static int localExtraLength(CentralDirTable table, int row) {
+		int len = table.mLFHExtraFieldLength[row];
+		int old = findExtra(table.mLFHArena, table.mLFHExtraOffset[row], len, kZip64ExtraId);
+		if (old >= 0) {
+			len -= 4 + getU16(table.mLFHArena, old + 2);
+		}
+		return needsLocalZip64(table, row) ? len + kLocalZip64Len : len;
+	}
+
+	/*
+	 * Length of the Zip64 block a row's CDE needs: one 8-byte value for
+	 * each of the sizes and LFH offset that won't fit, or 0 for none.
+	 */
+	private static int centralZip64Length(CentralDirTable table, int row) {
+		int len = 0;
+		if (table.mUncompressedSize[row] >= EndOfCentralDir.kMaxOffset)
+			len += 8;
+		if (table.mCompressedSize[row] >= EndOfCentralDir.kMaxOffset)
+			len += 8;
+		if (table.mLocalHeaderRelOffset[row] >= EndOfCentralDir.kMaxOffset)
+			len += 8;
+		return len == 0 ? 0 : len + 4;
+	}
+
+	/*
+	 * Append the local file header of a table row at the buffer's
+	 * position.  As with ZipEntry::copyCDEtoLFH(), every field except the
+	 * "extra" field comes from the CDE.
+	 */
+	static void encodeLocal(ByteBuffer buf, CentralDirTable table, int row) {
+		boolean zip64 = needsLocalZip64(table, row);
+		int extraOffset = table.mLFHExtraOffset[row];
+		int extraLen = table.mLFHExtraFieldLength[row];
+		int old = findExtra(table.mLFHArena, extraOffset, extraLen, kZip64ExtraId);
+		int oldLen = old < 0 ? 0 : 4 + getU16(table.mLFHArena, old + 2);
+
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(LocalFileHeader.kSignature);
+		buf.putShort(versionToExtract(table, row));
+		buf.putShort(table.mLFHGPBitFlag[row]);
+		buf.putShort(table.mCompressionMethod[row]);
+		buf.putShort(table.mLastModFileTime[row]);
+		buf.putShort(table.mLastModFileDate[row]);
+		buf.putInt(table.mCRC32[row]);
+		buf.putInt(zip64 ? -1 : (int) table.mCompressedSize[row]);
+		buf.putInt(zip64 ? -1 : (int) table.mUncompressedSize[row]);
+		buf.putShort((short) table.mLFHFileNameLength[row]);
+		buf.putShort((short) localExtraLength(table, row));
+
+		buf.put(table.mVarArena, table.getFileNameOffset(row), table.mLFHFileNameLength[row]);
+		if (zip64) {
+			buf.putShort((short) kZip64ExtraId);
+			buf.putShort((short) (kLocalZip64Len - 4));
+			buf.putLong(table.mUncompressedSize[row]);
+			buf.putLong(table.mCompressedSize[row]);
+		}
+		if (old < 0) {
+			buf.put(table.mLFHArena, extraOffset, extraLen);
+		} else {
+			buf.put(table.mLFHArena, extraOffset, old - extraOffset);
+			buf.put(table.mLFHArena, old + oldLen, extraOffset + extraLen - old - oldLen);
+		}
+	}
+
+	/*
+	 * Append the central dir entry of a table row at the buffer's
+	 * position.
+	 */
+	static void encodeCentral(ByteBuffer buf, CentralDirTable table, int row) {
+		long compLen = table.mCompressedSize[row];
+		long uncompLen = table.mUncompressedSize[row];
+		long lfhOffset = table.mLocalHeaderRelOffset[row];
+		int zip64Len = centralZip64Length(table, row);
+
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(CentralDirEntry.kSignature);
+		buf.putShort(table.mVersionMadeBy[row]);
+		buf.putShort(versionToExtract(table, row));
+		buf.putShort(table.mGPBitFlag[row]);
+		buf.putShort(table.mCompressionMethod[row]);
+		buf.putShort(table.mLastModFileTime[row]);
+		buf.putShort(table.mLastModFileDate[row]);
+		buf.putInt(table.mCRC32[row]);
+		buf.putInt(compLen >= EndOfCentralDir.kMaxOffset ? -1 : (int) compLen);
+		buf.putInt(uncompLen >= EndOfCentralDir.kMaxOffset ? -1 : (int) uncompLen);
+		buf.putShort((short) table.mFileNameLength[row]);
+		buf.putShort((short) (table.mExtraFieldLength[row] + zip64Len));
+		buf.putShort((short) table.mFileCommentLength[row]);
+		buf.putShort(table.mDiskNumberStart[row]);
+		buf.putShort(table.mInternalAttrs[row]);
+		buf.putInt(table.mExternalAttrs[row]);
+		buf.putInt(lfhOffset >= EndOfCentralDir.kMaxOffset ? -1 : (int) lfhOffset);
+
+		/* name, extra and comment are stored back to back; Zip64 leads the extra */
+		buf.put(table.mVarArena, table.mVarOffset[row], table.mFileNameLength[row]);
+		if (zip64Len > 0) {
+			buf.putShort((short) kZip64ExtraId);
+			buf.putShort((short) (zip64Len - 4));
+			if (uncompLen >= EndOfCentralDir.kMaxOffset)
+				buf.putLong(uncompLen);
+			if (compLen >= EndOfCentralDir.kMaxOffset)
+				buf.putLong(compLen);
+			if (lfhOffset >= EndOfCentralDir.kMaxOffset)
+				buf.putLong(lfhOffset);
+		}
+		buf.put(table.mVarArena, table.getExtraFieldOffset(row),
+				table.mExtraFieldLength[row] + table.mFileCommentLength[row]);
+	}
+
+	/*
+	 * "Version needed to extract" for both headers of a row.  As with
+	 * ZipEntry::copyCDEtoLFH(), the LFH gets the CDE's value, so it is
+	 * only raised to 4.5 when the CDE itself needs Zip64; an LFH that just
+	 * kept an old Zip64 block keeps the version it came with.
+	 */
+	private static short versionToExtract(CentralDirTable table, int row) {
+		short version = table.mVersionToExtract[row];
+		boolean zip64 = centralZip64Length(table, row) > 0;
+		return zip64 && (version & 0xffff) < kZip64Version ? (short) kZip64Version : version;
+	}
+
+	/*
+	 * Append an end-of-central-directory record at the buffer's position.
+	 * Values too big for it are written as all ones, meaning "see the
+	 * Zip64 record".
+	 */
+	static void encode(ByteBuffer buf, EndOfCentralDir eocd) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(EndOfCentralDir.kSignature);
+		buf.putShort((short) eocd.mDiskNumber);
+		buf.putShort((short) eocd.mDiskWithCentralDir);
+		buf.putShort((short) Math.min(eocd.mNumEntries, EndOfCentralDir.kMaxEntries));
+		buf.putShort((short) Math.min(eocd.mTotalNumEntries, EndOfCentralDir.kMaxEntries));
+		buf.putInt((int) Math.min(eocd.mCentralDirSize, EndOfCentralDir.kMaxOffset));
+		buf.putInt((int) Math.min(eocd.mCentralDirOffset, EndOfCentralDir.kMaxOffset));
+		buf.putShort((short) eocd.mCommentLen);
+
+		putVariable(buf, eocd.mComment, eocd.mCommentLen);
+	}
+
+	/*
+	 * Append a Zip64 end-of-central-directory record, and the locator
+	 * that points at it, at the buffer's position.  The record goes at
+	 * eocd.mZip64EOCDOffset.
+	 */
+	static void encodeZip64(ByteBuffer buf, EndOfCentralDir eocd) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(EndOfCentralDir.kZip64Signature);
+		buf.putLong(EndOfCentralDir.kZip64EOCDLen - 12); // size of the rest
+		buf.putShort((short) kZip64Version);           // version made by
+		buf.putShort((short) kZip64Version);           // version needed
+		buf.putInt(eocd.mDiskNumber);
+		buf.putInt(eocd.mDiskWithCentralDir);
+		buf.putLong(eocd.mNumEntries);
+		buf.putLong(eocd.mTotalNumEntries);
+		buf.putLong(eocd.mCentralDirSize);
+		buf.putLong(eocd.mCentralDirOffset);
+
+		buf.putInt(EndOfCentralDir.kZip64LocatorSignature);
+		buf.putInt(eocd.mDiskWithCentralDir);
+		buf.putLong(eocd.mZip64EOCDOffset);
+		buf.putInt(1);                                 // total number of disks
+	}
+
+	/*
+	 * Decode a local file header starting at the buffer's position.
+	 *
+	 * On success the position is left at the first byte after the extra
+	 * field, i.e. the start of the file data.
+	 */
+	static boolean decode(ByteBuffer buf, LocalFileHeader lfh) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		int start = buf.position();
+		if (buf.remaining() < LocalFileHeader.kLFHLen) {
+			System.err.println("Local file header truncated at " + start);
+			return false;
+		}
+		if (buf.getInt(start) != LocalFileHeader.kSignature) {
+			System.err.println("Whoops: didn't find expected signature");
+			return false;
+		}
+
+		lfh.mVersionToExtract = buf.getShort(start + 0x04);
+		lfh.mGPBitFlag = buf.getShort(start + 0x06);
+		lfh.mCompressionMethod = buf.getShort(start + 0x08);
+		lfh.mLastModFileTime = buf.getShort(start + 0x0a);
+		lfh.mLastModFileDate = buf.getShort(start + 0x0c);
+		lfh.mCRC32 = buf.getInt(start + 0x0e);
+		lfh.mCompressedSize = buf.getInt(start + 0x12) & 0xffffffffL;
+		lfh.mUncompressedSize = buf.getInt(start + 0x16) & 0xffffffffL;
+		lfh.mFileNameLength = buf.getShort(start + 0x1a);
+		lfh.mExtraFieldLength = buf.getShort(start + 0x1c);
+
+		if (buf.remaining() < LocalFileHeader.kLFHLen + (lfh.mFileNameLength & 0xffff)
+				+ (lfh.mExtraFieldLength & 0xffff)) {
+			System.err.println("Local file header variable fields run past end");
+			return false;
+		}
+		buf.position(start + LocalFileHeader.kLFHLen);
+
+		lfh.mFileName = getVariable(buf, lfh.mFileNameLength);
+		lfh.mExtraField = getVariable(buf, lfh.mExtraFieldLength);
+
+		/* an LFH Zip64 block holds both sizes, whichever overflowed */
+		if (lfh.mExtraField != null && (lfh.mCompressedSize == EndOfCentralDir.kMaxOffset
+				|| lfh.mUncompressedSize == EndOfCentralDir.kMaxOffset)) {
+			int block = findExtra(lfh.mExtraField, 0, lfh.mExtraField.length, kZip64ExtraId);
+			if (block >= 0 && getU16(lfh.mExtraField, block + 2) >= 16) {
+				ByteBuffer extra = ByteBuffer.wrap(lfh.mExtraField).order(ByteOrder.LITTLE_ENDIAN);
+				lfh.mUncompressedSize = extra.getLong(block + 4);
+				lfh.mCompressedSize = extra.getLong(block + 12);
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Decode the local file header starting at the buffer's position into
+	 * the LFH columns of "row".  Only the fields that may differ from the
+	 * CDE are kept; the extra field goes into the table's LFH arena.
+	 *
+	 * On success the position is left at the start of the file data.
+	 */
+	static boolean decodeLocal(ByteBuffer buf, CentralDirTable table, int row) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		int start = buf.position();
+		if (buf.remaining() < LocalFileHeader.kLFHLen) {
+			System.err.println("Local file header truncated at " + start);
+			return false;
+		}
+		if (buf.getInt(start) != LocalFileHeader.kSignature) {
+			System.err.println("Whoops: didn't find expected signature");
+			return false;
+		}
+
+		int nameLen = buf.getShort(start + 0x1a) & 0xffff;
+		int extraLen = buf.getShort(start + 0x1c) & 0xffff;
+		if (buf.remaining() < LocalFileHeader.kLFHLen + nameLen + extraLen) {
+			System.err.println("Local file header variable fields run past end");
+			return false;
+		}
+
+		table.mLFHGPBitFlag[row] = buf.getShort(start + 0x06);
+		table.mLFHFileNameLength[row] = (char) nameLen;
+		table.mLFHExtraFieldLength[row] = (char) extraLen;
+
+		buf.position(start + LocalFileHeader.kLFHLen + nameLen);
+		if (extraLen > 0) {
+			int offset = table.allocLFHExtra(extraLen);
+			buf.get(table.mLFHArena, offset, extraLen);
+			table.mLFHExtraOffset[row] = offset;
+			if (findExtra(table.mLFHArena, offset, extraLen, kZip64ExtraId) >= 0) {
+				table.setFlag(row, CentralDirTable.kFlagLocalZip64);
+			}
+		}
+		table.setFlag(row, CentralDirTable.kFlagLFHLoaded);
+		return true;
+	}
+
+	/*
+	 * Decode a central dir entry starting at the buffer's position into a
+	 * new row of "table".  The fixed fields go straight into the columns
+	 * and the variable fields into the table's arena, so nothing is
+	 * allocated per entry.
+	 *
+	 * On success the position is left on the signature of the next entry
+	 * (or of the EOCD) and the new row is returned; on failure, -1.
+	 */
+	static int decodeCentral(ByteBuffer buf, CentralDirTable table) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		int start = buf.position();
+		if (buf.remaining() < CentralDirEntry.kCDELen) {
+			System.err.println("Central dir entry truncated at " + start);
+			return -1;
+		}
+		if (buf.getInt(start) != CentralDirEntry.kSignature) {
+			System.err.println("Whoops: didn't find expected signature");
+			return -1;
+		}
+
+		int nameLen = buf.getShort(start + 0x1c) & 0xffff;
+		int extraLen = buf.getShort(start + 0x1e) & 0xffff;
+		int commentLen = buf.getShort(start + 0x20) & 0xffff;
+		int varLen = nameLen + extraLen + commentLen;
+		if (buf.remaining() < CentralDirEntry.kCDELen + varLen) {
+			System.err.println("Central dir entry variable fields run past end");
+			return -1;
+		}
+
+		int row = table.appendRow();
+		table.mVersionMadeBy[row] = buf.getShort(start + 0x04);
+		table.mVersionToExtract[row] = buf.getShort(start + 0x06);
+		table.mGPBitFlag[row] = buf.getShort(start + 0x08);
+		table.mCompressionMethod[row] = buf.getShort(start + 0x0a);
+		table.mLastModFileTime[row] = buf.getShort(start + 0x0c);
+		table.mLastModFileDate[row] = buf.getShort(start + 0x0e);
+		table.mCRC32[row] = buf.getInt(start + 0x10);
+		table.mCompressedSize[row] = buf.getInt(start + 0x14) & 0xffffffffL;
+		table.mUncompressedSize[row] = buf.getInt(start + 0x18) & 0xffffffffL;
+		table.mFileNameLength[row] = (char) nameLen;
+		table.mExtraFieldLength[row] = (char) extraLen;
+		table.mFileCommentLength[row] = (char) commentLen;
+		table.mDiskNumberStart[row] = buf.getShort(start + 0x22);
+		table.mInternalAttrs[row] = buf.getShort(start + 0x24);
+		table.mExternalAttrs[row] = buf.getInt(start + 0x26);
+		table.mLocalHeaderRelOffset[row] = buf.getInt(start + 0x2a) & 0xffffffffL;
+
+		int offset = table.allocVar(varLen);
+		table.mVarOffset[row] = offset;
+		buf.position(start + CentralDirEntry.kCDELen);
+		buf.get(table.mVarArena, offset, varLen);
+
+		if (table.mCompressedSize[row] == EndOfCentralDir.kMaxOffset
+				|| table.mUncompressedSize[row] == EndOfCentralDir.kMaxOffset
+				|| table.mLocalHeaderRelOffset[row] == EndOfCentralDir.kMaxOffset) {
+			if (!foldCentralZip64(table, row)) {
+				return -1;
+			}
+		}
+		return row;
+	}
+
+	/*
+	 * Take the real sizes and LFH offset of a row from its Zip64 extra
+	 * block, then cut the block out of the arena; encodeCentral() writes
+	 * a new one if it is still needed.  The block holds only the values
+	 * whose CDE fields are all ones, in a fixed order.
+	 */
+	private static boolean foldCentralZip64(CentralDirTable table, int row) {
+		byte[] arena = table.mVarArena;
+		int extraOffset = table.getExtraFieldOffset(row);
+		int block = findExtra(arena, extraOffset, table.mExtraFieldLength[row], kZip64ExtraId);
+		if (block < 0) {
+			return true;        // no block; take the fields at face value
+		}
+		int blockLen = 4 + getU16(arena, block + 2);
+		table.setFlag(row, CentralDirTable.kFlagCentralZip64);
+		ByteBuffer values = ByteBuffer.wrap(arena, block + 4, blockLen - 4).order(ByteOrder.LITTLE_ENDIAN);
+
+		try {
+			if (table.mUncompressedSize[row] == EndOfCentralDir.kMaxOffset)
+				table.mUncompressedSize[row] = values.getLong();
+			if (table.mCompressedSize[row] == EndOfCentralDir.kMaxOffset)
+				table.mCompressedSize[row] = values.getLong();
+			if (table.mLocalHeaderRelOffset[row] == EndOfCentralDir.kMaxOffset)
+				table.mLocalHeaderRelOffset[row] = values.getLong();
+		} catch (BufferUnderflowException e) {
+			System.err.println("Zip64 extra field too short");
+			return false;
+		}
+		if (table.mUncompressedSize[row] < 0 || table.mCompressedSize[row] < 0
+				|| table.mLocalHeaderRelOffset[row] < 0) {
+			System.err.println("Zip64 extra field out of range");
+			return false;
+		}
+
+		/* the row was the last allocated, so its bytes end the arena */
+		int end = table.mVarOffset[row] + table.mFileNameLength[row]
+				+ table.mExtraFieldLength[row] + table.mFileCommentLength[row];
+		System.arraycopy(arena, block + blockLen, arena, block, end - block - blockLen);
+		table.mExtraFieldLength[row] = (char) (table.mExtraFieldLength[row] - blockLen);
+		table.mVarUsed -= blockLen;
+		return true;
+	}
+
+	/*
+	 * Find the extra field block with header ID "id" in b[off, off + len).
+	 * Returns the offset of its header, or -1.  The walk stops at the
+	 * first block that runs past the end, e.g. alignment padding.
+	 */
+	static int findExtra(byte[] b, int off, int len, int id) {
+		int end = off + len;
+		while (off + 4 <= end) {
+			int blockLen = getU16(b, off + 2);
+			if (off + 4 + blockLen > end) {
+				break;
+			}
+			if (getU16(b, off) == id) {
+				return off;
+			}
+			off += 4 + blockLen;
+		}
+		return -1;
+	}
+
+	private static int getU16(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+	}
+
+	/*
+	 * Decode an end-of-central-dir record starting at the buffer's
+	 * position.  The buffer's limit must bound the comment.
+	 */
+	static boolean decode(ByteBuffer buf, EndOfCentralDir eocd) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		int start = buf.position();
+		int len = buf.remaining();
+		if (len < EndOfCentralDir.kEOCDLen) {
+			/* looks like ZIP file got truncated */
+			System.err.println(" Zip EOCD: expected >= " + EndOfCentralDir.kEOCDLen + " bytes, found " + len);
+			return false;
+		}
+		if (buf.getInt(start) != EndOfCentralDir.kSignature) {
+			System.err.println("Whoops: didn't find expected signature");
+			return false;
+		}
+
+		eocd.mDiskNumber = buf.getShort(start + 4) & 0xffff;
+		eocd.mDiskWithCentralDir = buf.getShort(start + 6) & 0xffff;
+		eocd.mNumEntries = buf.getShort(start + 8) & 0xffff;
+		eocd.mTotalNumEntries = buf.getShort(start + 10) & 0xffff;
+		eocd.mCentralDirSize = buf.getInt(start + 12) & 0xffffffffL;
+		eocd.mCentralDirOffset = buf.getInt(start + 16) & 0xffffffffL;
+		eocd.mCommentLen = buf.getShort(start + 20) & 0xffff;
+
+		if (EndOfCentralDir.kEOCDLen + eocd.mCommentLen > len) {
+			System.err.println("EOCD(" + EndOfCentralDir.kEOCDLen + ") + comment(" + eocd.mCommentLen + ") exceeds len (" + len + ")");
+			return false;
+		}
+		buf.position(start + EndOfCentralDir.kEOCDLen);
+		eocd.mComment = getVariable(buf, eocd.mCommentLen);
+		return true;
+	}
+
+	/*
+	 * Decode a Zip64 end-of-central-dir record starting at the buffer's
+	 * position, replacing the values from the plain EOCD.
+	 */
+	static boolean decodeZip64(ByteBuffer buf, EndOfCentralDir eocd) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		int start = buf.position();
+		if (buf.remaining() < EndOfCentralDir.kZip64EOCDLen) {
+			System.err.println("Zip64 EOCD truncated");
+			return false;
+		}
+		if (buf.getInt(start) != EndOfCentralDir.kZip64Signature) {
+			System.err.println("Whoops: didn't find expected Zip64 EOCD signature");
+			return false;
+		}
+
+		eocd.mDiskNumber = buf.getInt(start + 16);
+		eocd.mDiskWithCentralDir = buf.getInt(start + 20);
+		eocd.mNumEntries = buf.getLong(start + 24);
+		eocd.mTotalNumEntries = buf.getLong(start + 32);
+		eocd.mCentralDirSize = buf.getLong(start + 40);
+		eocd.mCentralDirOffset = buf.getLong(start + 48);
+		if (eocd.mNumEntries < 0 || eocd.mTotalNumEntries < 0
+				|| eocd.mCentralDirSize < 0 || eocd.mCentralDirOffset < 0) {
+			System.err.println("Zip64 EOCD values out of range");
+			return false;
+		}
+		return true;
+	}
+
+	private static void putVariable(ByteBuffer buf, byte[] field, int len) {
+		len &= 0xffff;
+		if (len > 0) {
+			assert(field != null && field.length >= len);
+			buf.put(field, 0, len);
+		}
+	}
+
+	private static byte[] getVariable(ByteBuffer buf, int len) {
+		len &= 0xffff;
+		if (len == 0) {
+			return null;
+		}
+		byte[] field = new byte[len];
+		buf.get(field);
+		return field;
+	}
+}
@@ -0,0 +1,694 @@
+package com.brooke.zipalign;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * Aligns an archive in place, without a second copy of it.
+ *
+ * The new layout is worked out from the central directory exactly as
+ * copyAndAlign() would lay out a new file, so the result is the same
+ * bytes.  Stored entries only ever gain padding, so every entry ends up
+ * at or past where it started; moving them from the last to the first,
+ * each from its end backwards (the branch of filemove() the original
+ * never wrote), never overwrites anything not yet moved.  Entries ahead
+ * of the first one that needs padding aren't touched, and runs of
+ * entries that shift by the same amount with unchanged headers move as
+ * one.
+ *
+ * Before the archive is touched, the whole plan -- every move, every
+ * new LFH, the new central directory -- goes into a journal next to it
+ * (<archive>.zipalign-journal), and progress is recorded there as the
+ * moves go.  A run that is interrupted leaves the archive unreadable,
+ * but the next in-place run on it finds the journal and finishes the
+ * job; nothing else should touch the archive in between.  The journal
+ * holds a fingerprint of the archive it was made for -- its length, and
+ * CRCs of bytes that stay put until they are moved -- and one that
+ * doesn't match what is there now is discarded.  It also holds the
+ * alignment options: the archive may be part way to that layout, so a
+ * run with other options (or -z) is refused, rather than finishing the
+ * old plan or starting a new one over it.  Where a chunk being moved
+ * overlaps its own source, its bytes are saved in the journal before
+ * they are overwritten, so redoing it is always safe.
+ *
+ * Recompression changes sizes, and may move entries toward the start,
+ * so it can't be done this way.
+ */
+final class InPlaceAligner {
+
+	static final String kJournalSuffix = ".zipalign-journal";
+
+	private static final int kMagic = 0x5a414a33;         // "ZAJ3"
+	private static final int kChunkLen = 1024 * 1024;     // bytes moved per journal record
+	private static final int kWindowLen = 256 * 1024;     // reads the old LFHs
+	private static final int kSampleLen = 4096;           // fingerprinted bytes of each move
+	private static final int kSlotHeaderLen = 8 + 4 + 8 + 4;
+	private static final int kSlotLen = kSlotHeaderLen + kChunkLen + 4;
+
+	private static final byte kOpMove = 0;     // "len" bytes from "src" to "dst"
+	private static final byte kOpWrite = 1;    // "data" at "dst"
+
+	/* one step of the plan */
+	private static final class Op {
+		byte mType;
+		long mSrc;
+		long mDst;
+		long mLen;
+		byte[] mData;
+		int mSampleCrc;         // of the first kSampleLen bytes moved
+	}
+
+	private final String mFileName;
+	private final Path mJournalPath;
+	private final List<Op> mOps = new ArrayList<Op>();
+	private long mFinalSize;
+	private long mOrigSize;
+	private int mPrefixLen;         // untouched bytes at the start that are fingerprinted
+	private int mPrefixCrc;
+	private int mNumEntries;
+	private int mAlignment;
+	private boolean mPageAlignSharedLibs;
+	private String mConflict;       // why the journal's plan can't be resumed
+	private long mHeaderLen;        // journal bytes ahead of the progress slots
+	private boolean mResumed;       // the plan came from the journal
+	private AlignStats mStats;      // phase times and archive I/O, if set
+
+	/* where to pick up, from the journal */
+	private int mStartOp;
+	private long mStartDone;
+	private byte[] mInFlight;
+	private long mSeq;
+
+	InPlaceAligner(String fileName) {
+		mFileName = fileName;
+		mJournalPath = Paths.get(fileName + kJournalSuffix);
+	}
+
+	int getNumEntries() { return mNumEntries; }
+
+	/*
+	 * Time the planning and the moves, and count their archive I/O, in
+	 * "stats" (or not, if it's null).
+	 */
+	void setStats(AlignStats stats) {
+		mStats = stats;
+	}
+
+	/*
+	 * Why the journal resume() found can't be carried out with the
+	 * options it was given, or null if it can.
+	 */
+	String getConflict() { return mConflict; }
+
+	/*
+	 * Pick up the plan an interrupted run left in the journal.  Returns
+	 * false if there is none; a journal whose plan was never finished is
+	 * dropped, since the archive wasn't touched, and so is one made for
+	 * some other archive than the one there now.
+	 *
+	 * A plan made with other options than "alignment" and
+	 * "pageAlignSharedLibs" is kept, but can't be run: this returns true
+	 * and getConflict() says what the options were, and with them, the
+	 * plan can still be finished.
+	 */
+	boolean resume(int alignment, boolean pageAlignSharedLibs) {
+	    if (!Files.exists(mJournalPath)) {
+	        return false;
+	    }
+	    if (!loadJournal()) {
+	        discardJournal();
+	        return false;
+	    }
+	    String mismatch = checkArchive();
+	    if (mismatch != null) {
+	        System.err.println("zipalign: " + mJournalPath + " doesn't belong to '" + mFileName
+	                + "' (" + mismatch + "); discarding it");
+	        discardJournal();
+	        return false;
+	    }
+	    if (alignment != mAlignment || pageAlignSharedLibs != mPageAlignSharedLibs) {
+	        mConflict = "it was started with -align " + mAlignment
+	                + (mPageAlignSharedLibs ? " -p" : "") + "; run again with those options to finish it";
+	    }
+	    mResumed = true;
+	    return true;
+	}
+
+	private void discardJournal() {
+	    mOps.clear();
+	    mSeq = 0;
+	    mStartOp = 0;
+	    mStartDone = 0;
+	    mInFlight = null;
+	    try {
+	        Files.deleteIfExists(mJournalPath);
+	    } catch (IOException e) {
+	        System.err.println("Unable to remove " + mJournalPath + ": " + e.getMessage());
+	    }
+	}
+
+	/*
+	 * Does the archive look like the one the journal was made for, part
+	 * way through being aligned?  Bytes ahead of the first one the plan
+	 * writes never change, and nor do the sources of moves that haven't
+	 * started: everything written so far lies above them.  Returns null
+	 * if so, or what doesn't match.
+	 */
+	private String checkArchive() {
+	    FileChannel fc = null;
+	    try {
+	        fc = FileChannel.open(Paths.get(mFileName));
+	        long size = fc.size();
+	        long maxSize = mOrigSize;
+	        for (Op op : mOps) {
+	            maxSize = Math.max(maxSize, op.mDst + op.mLen);
+	        }
+	        if (mSeq == 0 ? size != mOrigSize
+	                : size != mFinalSize && (size < mOrigSize || size > maxSize)) {
+	            return "length is " + size + ", was " + mOrigSize;
+	        }
+
+	        ByteBuffer buf = ByteBuffer.allocate(Math.max(mPrefixLen, kSampleLen));
+	        if (crcOf(fc, 0, mPrefixLen, buf) != mPrefixCrc) {
+	            return "start of the file differs";
+	        }
+	        for (int i = mSeq == 0 ? 0 : mStartOp + 1; i < mOps.size(); i++) {
+	            Op op = mOps.get(i);
+	            if (op.mType == kOpMove) {
+	                if (crcOf(fc, op.mSrc, (int) Math.min(kSampleLen, op.mLen), buf) != op.mSampleCrc) {
+	                    return "data at " + op.mSrc + " differs";
+	                }
+	                break;
+	            }
+	        }
+	        return null;
+	    } catch (IOException e) {
+	        return "unable to read it: " + e.getMessage();
+	    } finally {
+	        if (fc != null) {
+	            try {
+	                fc.close();
+	            } catch (IOException e) {
+	                /* only read */
+	            }
+	        }
+	    }
+	}
+
+	/*
+	 * CRC of "len" bytes at "posn", read through "buf".
+	 */
+	private static int crcOf(FileChannel fc, long posn, int len, ByteBuffer buf)
+	    throws IOException {
+	    buf.clear();
+	    buf.limit(len);
+	    while (buf.hasRemaining()) {
+	        if (fc.read(buf, posn + buf.position()) < 0) {
+	            throw new IOException("read of " + len + " bytes at " + posn + " hit EOF");
+	        }
+	    }
+	    CRC32 crc = new CRC32();
+	    crc.update(buf.array(), 0, len);
+	    return (int) crc.getValue();
+	}
+
+	/*
+	 * Work out the moves that align the archive.  Nothing is written.
+	 * Returns null on success, or why the archive can't be aligned in
+	 * place.
+	 */
+	String plan(int alignment, boolean pageAlignSharedLibs) {
+	    mAlignment = alignment;
+	    mPageAlignSharedLibs = pageAlignSharedLibs;
+	    ZipFile zin = new ZipFile();
+	    zin.setStats(mStats);
+	    if (!zin.open(mFileName, ZipFile.kOpenReadOnly) || !loadLocalHeaders(zin)) {
+	        zin.close();
+	        return "unable to open '" + mFileName + "' as zip archive";
+	    }
+	    ZipFile zplan = new ZipFile();
+	    zplan.setStats(mStats);
+	    if (!zplan.open(mFileName, ZipFile.kOpenReadWrite) || !zplan.discardEntries()) {
+	        zin.close();
+	        zplan.abandon();
+	        return "unable to open '" + mFileName + "' for writing";
+	    }
+
+	    /* the layout, the moves and the fingerprint all count as working out padding */
+	    AlignStats.Span span = mStats != null ? mStats.begin(AlignStats.Phase.PAD) : null;
+	    try {
+	        return plan(zin, zplan, alignment, pageAlignSharedLibs);
+	    } finally {
+	        if (span != null) {
+	            span.end();
+	        }
+	        zin.close();
+	        zplan.abandon();
+	    }
+	}
+
+	private boolean loadLocalHeaders(ZipFile zin) {
+	    AlignStats.Span span = mStats != null ? mStats.begin(AlignStats.Phase.LFH_READ) : null;
+	    boolean loaded = zin.loadLocalHeaders();
+	    if (span != null) {
+	        span.end();
+	    }
+	    return loaded;
+	}
+
+	private String plan(ZipFile zin, ZipFile zplan, int alignment, boolean pageAlignSharedLibs) {
+	    mNumEntries = zin.getNumEntries();
+	    ZipEntry[] oldEntries = new ZipEntry[mNumEntries];
+	    ZipEntry[] newEntries = new ZipEntry[mNumEntries];
+	    long bias = 0;
+	    long prevEnd = 0;
+
+	    /* the same arithmetic as copyAndAlign() */
+	    for (int i = 0; i < mNumEntries; i++) {
+	        int padding = 0;
+	        ZipEntry entry = zin.getEntryByIndex(i);
+	        if (entry == null) {
+	            return "unable to retrieve entry " + i;
+	        }
+	        bias += ZipAligner.headerGrowth(entry);
+	        if (!entry.isCompressed()) {
+	            int alignTo = ZipAligner.getAlignment(pageAlignSharedLibs, alignment, entry);
+	            long newOffset = entry.getFileOffset() + bias;
+	            padding = (int) ((alignTo - (newOffset % alignTo)) % alignTo);
+	        }
+	        ZipEntry newEntry = zplan.reserve(zin, entry, padding);
+	        if (newEntry == null) {
+	            return "unable to lay out '" + entry.getFileName() + "'";
+	        }
+	        bias += padding;
+	        if (mStats != null) {
+	            mStats.countPadding(padding);
+	        }
+
+	        /* back to front only works if nothing moves toward the start */
+	        if (entry.getLFHOffset() < prevEnd
+	                || newEntry.getLFHOffset() < entry.getLFHOffset()
+	                || ZipAligner.newDataOffset(newEntry) < entry.getFileOffset()) {
+	            return "'" + entry.getFileName() + "' would move toward the start of the file";
+	        }
+	        prevEnd = entry.getFileOffset() + entry.getRawDataLen();
+	        oldEntries[i] = entry;
+	        newEntries[i] = newEntry;
+	    }
+
+	    byte[] centralDir = zplan.encodeCentralDir();
+	    if (centralDir == null) {
+	        return "unable to encode the central directory";
+	    }
+
+	    /*
+	     * Last entry first.  An entry whose LFH is unchanged moves with
+	     * its data, and joins the move above it if both shift the same;
+	     * otherwise its data moves and the new LFH is written after it.
+	     */
+	    ReadWindow window = new ReadWindow(zin.getChannel(), kWindowLen);
+	    ByteBuffer headerBuf = HeaderCodec.allocate();
+	    Op run = null;
+	    for (int i = mNumEntries - 1; i >= 0; i--) {
+	        ZipEntry entry = oldEntries[i];
+	        ZipEntry newEntry = newEntries[i];
+	        boolean sameHeader = zplan.sameLocalHeader(newEntry, entry, window, headerBuf);
+	        long start = sameHeader ? entry.getLFHOffset() : entry.getFileOffset();
+	        long end = entry.getFileOffset() + entry.getRawDataLen();
+	        long shift = ZipAligner.newDataOffset(newEntry) - entry.getFileOffset();
+
+	        if (shift == 0) {
+	            run = null;
+	        } else if (run != null && run.mSrc == end && run.mDst - run.mSrc == shift) {
+	            run.mSrc = start;
+	            run.mDst = start + shift;
+	            run.mLen += end - start;
+	        } else {
+	            run = new Op();
+	            run.mType = kOpMove;
+	            run.mSrc = start;
+	            run.mDst = start + shift;
+	            run.mLen = end - start;
+	            mOps.add(run);
+	        }
+
+	        if (!sameHeader) {
+	            headerBuf.clear();
+	            HeaderCodec.encodeLocal(headerBuf, newEntry.mTable, newEntry.mRow);
+	            headerBuf.flip();
+	            Op write = new Op();
+	            write.mType = kOpWrite;
+	            write.mDst = newEntry.getLFHOffset();
+	            write.mData = new byte[headerBuf.remaining()];
+	            headerBuf.get(write.mData);
+	            mOps.add(write);
+	            run = null;
+	        }
+	    }
+
+	    long cdOffset = newEntries.length > 0
+	            ? ZipAligner.newDataOffset(newEntries[mNumEntries - 1])
+	                    + newEntries[mNumEntries - 1].getRawDataLen()
+	            : 0;
+	    Op cd = new Op();
+	    cd.mType = kOpWrite;
+	    cd.mDst = cdOffset;
+	    cd.mData = centralDir;
+	    mOps.add(cd);
+	    mFinalSize = cdOffset + centralDir.length;
+
+	    /* fingerprint the archive, so the journal can't be replayed over another */
+	    long firstTouched = cdOffset;
+	    for (Op op : mOps) {
+	        firstTouched = Math.min(firstTouched, op.mType == kOpMove ? op.mSrc : op.mDst);
+	    }
+	    mPrefixLen = (int) Math.min(firstTouched, kChunkLen);
+	    FileChannel fc = zin.getChannel();
+	    try {
+	        mOrigSize = fc.size();
+	        ByteBuffer buf = ByteBuffer.allocate(Math.max(mPrefixLen, kSampleLen));
+	        mPrefixCrc = crcOf(fc, 0, mPrefixLen, buf);
+	        for (Op op : mOps) {
+	            if (op.mType == kOpMove) {
+	                op.mSampleCrc = crcOf(fc, op.mSrc, (int) Math.min(kSampleLen, op.mLen), buf);
+	            }
+	        }
+	    } catch (IOException e) {
+	        return "unable to read it: " + e.getMessage();
+	    }
+	    return null;
+	}
+
+	/*
+	 * Carry out the plan from plan() or resume().  The journal is removed
+	 * once the archive is whole again; until then, an interrupted run can
+	 * be resumed.
+	 */
+	boolean run() {
+	    if (mConflict != null) {
+	        System.err.println("zipalign: not resuming '" + mFileName + "': " + mConflict);
+	        return false;
+	    }
+	    RandomAccessFile journal = null;
+	    RandomAccessFile archive = null;
+	    try {
+	        journal = new RandomAccessFile(mJournalPath.toFile(), "rw");
+	        if (!mResumed) {
+	            writeJournal(journal.getChannel());
+	        }
+	        archive = new RandomAccessFile(mFileName, "rw");
+	        FileChannel fc = mStats != null ? mStats.wrap(archive.getChannel()) : archive.getChannel();
+	        if (!execute(fc, journal.getChannel())) {
+	            return false;
+	        }
+	    } catch (IOException e) {
+	        System.err.println("Error aligning '" + mFileName + "' in place: " + e.getMessage());
+	        return false;
+	    } finally {
+	        close(archive);
+	        close(journal);
+	    }
+
+	    try {
+	        Files.delete(mJournalPath);
+	    } catch (IOException e) {
+	        /* the archive is fine; a journal left behind would be replayed, harmlessly */
+	        System.err.println("Unable to remove " + mJournalPath + ": " + e.getMessage());
+	    }
+	    return true;
+	}
+
+	/*
+	 * Archive writes are forced to disk before every journal record, and
+	 * each record is forced before the chunk it describes is written, so
+	 * the latest record on disk never claims more than has been done.
+	 */
+	private boolean execute(FileChannel archive, FileChannel journal) throws IOException {
+	    ByteBuffer buf = ByteBuffer.allocateDirect(kChunkLen);
+	    ByteBuffer slot = ByteBuffer.allocate(kSlotLen);
+
+	    AlignStats.Span span = mStats != null ? mStats.begin(AlignStats.Phase.COPY) : null;
+	    try {
+	        for (int i = mStartOp; i < mOps.size(); i++) {
+	            Op op = mOps.get(i);
+	            if (span != null && i == mOps.size() - 1) {
+	                /* the last op writes the central directory */
+	                span = span.next(AlignStats.Phase.CD_FLUSH);
+	            }
+	            if (op.mType == kOpWrite) {
+	                /* idempotent, and only over bytes nothing later reads */
+	                writeFully(archive, ByteBuffer.wrap(op.mData), op.mDst);
+	                continue;
+	            }
+
+	            long done = 0;
+	            if (i == mStartOp) {
+	                done = mStartDone;
+	                if (mInFlight != null) {
+	                    /* the chunk that may have been half written, from its saved copy */
+	                    writeFully(archive, ByteBuffer.wrap(mInFlight),
+	                            op.mDst + op.mLen - done - mInFlight.length);
+	                    done += mInFlight.length;
+	                }
+	            }
+
+	            long shift = op.mDst - op.mSrc;
+	            while (done < op.mLen) {
+	                int len = (int) Math.min(kChunkLen, op.mLen - done);
+	                long off = op.mLen - done - len;
+	                archive.force(false);
+	                if (shift < len) {
+	                    /* this chunk overwrites its own source; keep a copy */
+	                    if (!readChunk(archive, buf, op.mSrc + off, len)) {
+	                        return false;
+	                    }
+	                    record(journal, slot, i, done, buf);
+	                    writeFully(archive, buf, op.mDst + off);
+	                } else {
+	                    record(journal, slot, i, done, null);
+	                    if (!ZipFile.filemove(archive, op.mDst + off, op.mSrc + off, len, buf)) {
+	                        return false;
+	                    }
+	                }
+	                done += len;
+	            }
+
+	            /* past this op; it must never be redone from its clobbered source */
+	            archive.force(false);
+	            record(journal, slot, i + 1, 0, null);
+	        }
+
+	        archive.truncate(mFinalSize);
+	        archive.force(true);
+	        return true;
+	    } finally {
+	        if (span != null) {
+	            span.end();
+	        }
+	    }
+	}
+
+	private static void writeFully(FileChannel fc, ByteBuffer buf, long posn) throws IOException {
+	    while (buf.hasRemaining()) {
+	        posn += fc.write(buf, posn);
+	    }
+	}
+
+	private static boolean readChunk(FileChannel fc, ByteBuffer buf, long posn, int len)
+	    throws IOException {
+	    buf.clear();
+	    buf.limit(len);
+	    while (buf.hasRemaining()) {
+	        if (fc.read(buf, posn + buf.position()) < 0) {
+	            System.err.println("read of " + len + " bytes at " + posn + " hit EOF");
+	            return false;
+	        }
+	    }
+	    buf.flip();
+	    return true;
+	}
+
+	/*
+	 * Journal layout: the plan, then its CRC, then two progress slots
+	 * written in turn, so a torn write only ever loses the newest one.
+	 *
+	 *   plan:  magic, alignment, page align flag, final size, original
+	 *          size, #entries, prefix length, prefix CRC, #ops, then per
+	 *          op: type, src, dst, len, then len bytes of data for a
+	 *          write, or the sample CRC for a move
+	 *   slot:  seq, op, done, #saved, saved bytes, CRC of all that
+	 *
+	 * A slot says: ops before "op" are done, and so are the last "done"
+	 * bytes of it; the chunk below those may be half moved, and if it
+	 * overlapped its source, "saved" is what it should hold.
+	 */
+	private void writeJournal(FileChannel journal) throws IOException {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(bytes);
+	    out.writeInt(kMagic);
+	    out.writeInt(mAlignment);
+	    out.writeBoolean(mPageAlignSharedLibs);
+	    out.writeLong(mFinalSize);
+	    out.writeLong(mOrigSize);
+	    out.writeInt(mNumEntries);
+	    out.writeInt(mPrefixLen);
+	    out.writeInt(mPrefixCrc);
+	    out.writeInt(mOps.size());
+	    for (Op op : mOps) {
+	        out.writeByte(op.mType);
+	        out.writeLong(op.mSrc);
+	        out.writeLong(op.mDst);
+	        if (op.mType == kOpWrite) {
+	            out.writeLong(op.mData.length);
+	            out.write(op.mData);
+	        } else {
+	            out.writeLong(op.mLen);
+	            out.writeInt(op.mSampleCrc);
+	        }
+	    }
+	    CRC32 crc = new CRC32();
+	    crc.update(bytes.toByteArray());
+	    out.writeInt((int) crc.getValue());
+	    out.flush();
+
+	    journal.truncate(0);
+	    ByteBuffer plan = ByteBuffer.wrap(bytes.toByteArray());
+	    long posn = 0;
+	    while (plan.hasRemaining()) {
+	        posn += journal.write(plan, posn);
+	    }
+	    mHeaderLen = posn;
+	    journal.force(true);
+	}
+
+	private void record(FileChannel journal, ByteBuffer slot, int op, long done, ByteBuffer saved)
+	    throws IOException {
+	    slot.clear();
+	    slot.putLong(++mSeq);
+	    slot.putInt(op);
+	    slot.putLong(done);
+	    if (saved != null) {
+	        slot.putInt(saved.remaining());
+	        slot.put(saved.duplicate());
+	    } else {
+	        slot.putInt(0);
+	    }
+	    CRC32 crc = new CRC32();
+	    crc.update(slot.array(), 0, slot.position());
+	    slot.putInt((int) crc.getValue());
+	    slot.flip();
+
+	    long posn = mHeaderLen + (mSeq & 1) * kSlotLen;
+	    while (slot.hasRemaining()) {
+	        posn += journal.write(slot, posn);
+	    }
+	    journal.force(false);
+	}
+
+	/*
+	 * Read back the plan and the latest good progress slot.  Returns
+	 * false if the plan doesn't check out.
+	 */
+	private boolean loadJournal() {
+	    byte[] journal;
+	    try {
+	        journal = Files.readAllBytes(mJournalPath);
+	    } catch (IOException e) {
+	        System.err.println("Unable to read " + mJournalPath + ": " + e.getMessage());
+	        return false;
+	    }
+
+	    ByteBuffer in = ByteBuffer.wrap(journal);
+	    try {
+	        if (in.getInt() != kMagic) {
+	            return false;
+	        }
+	        mAlignment = in.getInt();
+	        mPageAlignSharedLibs = in.get() != 0;
+	        mFinalSize = in.getLong();
+	        mOrigSize = in.getLong();
+	        mNumEntries = in.getInt();
+	        mPrefixLen = in.getInt();
+	        mPrefixCrc = in.getInt();
+	        if (mPrefixLen < 0 || mPrefixLen > kChunkLen) {
+	            return false;
+	        }
+	        int numOps = in.getInt();
+	        for (int i = 0; i < numOps; i++) {
+	            Op op = new Op();
+	            op.mType = in.get();
+	            op.mSrc = in.getLong();
+	            op.mDst = in.getLong();
+	            op.mLen = in.getLong();
+	            if (op.mType == kOpWrite) {
+	                op.mData = new byte[(int) op.mLen];
+	                in.get(op.mData);
+	            } else {
+	                op.mSampleCrc = in.getInt();
+	            }
+	            mOps.add(op);
+	        }
+	        CRC32 crc = new CRC32();
+	        crc.update(journal, 0, in.position());
+	        if (in.getInt() != (int) crc.getValue()) {
+	            throw new IllegalArgumentException();
+	        }
+	    } catch (RuntimeException e) {
+	        /* torn or truncated plan */
+	        return false;
+	    }
+	    mHeaderLen = in.position();
+
+	    /* no good slot means no op was started */
+	    for (int s = 0; s < 2; s++) {
+	        int base = (int) mHeaderLen + s * kSlotLen;
+	        if (base + kSlotHeaderLen + 4 > journal.length) {
+	            continue;
+	        }
+	        ByteBuffer slot = ByteBuffer.wrap(journal, base, journal.length - base).slice();
+	        long seq = slot.getLong();
+	        int op = slot.getInt();
+	        long done = slot.getLong();
+	        int savedLen = slot.getInt();
+	        if (savedLen < 0 || savedLen > kChunkLen
+	                || kSlotHeaderLen + savedLen + 4 > slot.capacity()) {
+	            continue;
+	        }
+	        CRC32 crc = new CRC32();
+	        crc.update(journal, base, kSlotHeaderLen + savedLen);
+	        slot.position(kSlotHeaderLen + savedLen);
+	        if (slot.getInt() != (int) crc.getValue() || seq <= mSeq) {
+	            continue;
+	        }
+	        mSeq = seq;
+	        mStartOp = op;
+	        mStartDone = done;
+	        mInFlight = null;
+	        if (savedLen > 0) {
+	            mInFlight = new byte[savedLen];
+	            System.arraycopy(journal, base + kSlotHeaderLen, mInFlight, 0, savedLen);
+	        }
+	    }
+	    return true;
+	}
+
+	private static void close(RandomAccessFile file) {
+	    if (file != null) {
+	        try {
+	            file.close();
+	        } catch (IOException e) {
+	            /* nothing more to lose */
+	        }
+	    }
+	}
+}
@@ -0,0 +1,183 @@
+package com.brooke.zipalign;
+
+/*
+ * Open-addressing hash index from raw file-name bytes to entry index.
+ *
+ * This replaces the "stupid linear string-compare search" in the C++
+ * ZipFile::getEntryByName().  Slots are plain ints (entry index + 1, so
+ * that 0 means empty) with the name hash kept alongside; names are never
+ * turned into Strings.  As in the original, deleted entries are not
+ * found, and if a name appears more than once the last entry wins.
+ */
+final class NameIndex {
+
+	private static final int kMinCapacity = 16;
+
+	private final CentralDirTable mTable;
+	private int[] mSlots;
+	private int[] mHashes;
+	private int mCount;
+	private boolean mHasDuplicates;
+
+	/*
+	 * Index every live row of "table".  The table is kept by reference and
+	 * must be the owning ZipFile's table.
+	 */
+	NameIndex(CentralDirTable table) {
+		mTable = table;
+
+		int capacity = kMinCapacity;
+		while (capacity < table.mCount * 2) {
+			capacity <<= 1;
+		}
+		mSlots = new int[capacity];
+		mHashes = new int[capacity];
+
+		int count = table.mCount;
+		for (int i = 0; i < count; i++) {
+			if (!table.hasFlag(i, CentralDirTable.kFlagDeleted)) {
+				insert(i);
+			}
+		}
+	}
+
+	/*
+	 * Return the index of the live entry named "name", or -1.
+	 */
+	int find(byte[] name) {
+		int hash = hash(name, 0, name.length);
+		int mask = mSlots.length - 1;
+
+		for (int slot = hash & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+			if (mHashes[slot] == hash && nameEquals(mSlots[slot] - 1, name, 0, name.length)) {
+				return mSlots[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Note that row "idx" was just appended to the table.
+	 */
+	void add(int idx) {
+		if ((mCount + 1) * 2 > mSlots.length) {
+			grow();
+		}
+		insert(idx);
+	}
+
+	/*
+	 * Note that row "idx" was marked deleted.
+	 *
+	 * Returns false if the index can no longer be kept accurate cheaply
+	 * (an older entry with the same name might have to take its place),
+	 * in which case the caller should drop it and rebuild on demand.
+	 */
+	boolean remove(int idx) {
+		int hash = hash(mTable.mVarArena, mTable.getFileNameOffset(idx), mTable.mFileNameLength[idx]);
+		int mask = mSlots.length - 1;
+
+		int slot = hash & mask;
+		for (; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+			if (mSlots[slot] - 1 == idx) {
+				break;
+			}
+		}
+		if (mSlots[slot] == 0) {
+			return true;      // shadowed by a later entry; not indexed
+		}
+		if (mHasDuplicates) {
+			return false;
+		}
+
+		/*
+		 * Backward-shift deletion: pull later members of the probe run
+		 * into the hole so lookups never stop early.
+		 */
+		int hole = slot;
+		for (int next = (hole + 1) & mask; mSlots[next] != 0; next = (next + 1) & mask) {
+			int home = mHashes[next] & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				mSlots[hole] = mSlots[next];
+				mHashes[hole] = mHashes[next];
+				hole = next;
+			}
+		}
+		mSlots[hole] = 0;
+		mHashes[hole] = 0;
+		mCount--;
+		return true;
+	}
+
+	private void insert(int idx) {
+		byte[] arena = mTable.mVarArena;
+		int offset = mTable.getFileNameOffset(idx);
+		int len = mTable.mFileNameLength[idx];
+		int hash = hash(arena, offset, len);
+		int mask = mSlots.length - 1;
+
+		int slot = hash & mask;
+		for (; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+			if (mHashes[slot] == hash && nameEquals(mSlots[slot] - 1, arena, offset, len)) {
+				/* same name again: the later entry wins */
+				mSlots[slot] = idx + 1;
+				mHasDuplicates = true;
+				return;
+			}
+		}
+		mSlots[slot] = idx + 1;
+		mHashes[slot] = hash;
+		mCount++;
+	}
+
+	private void grow() {
+		int[] oldSlots = mSlots;
+		int[] oldHashes = mHashes;
+		mSlots = new int[oldSlots.length * 2];
+		mHashes = new int[oldSlots.length * 2];
+
+		int mask = mSlots.length - 1;
+		for (int i = 0; i < oldSlots.length; i++) {
+			if (oldSlots[i] != 0) {
+				int slot = oldHashes[i] & mask;
+				while (mSlots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				mSlots[slot] = oldSlots[i];
+				mHashes[slot] = oldHashes[i];
+			}
+		}
+	}
+
+	/*
+	 * Compare the name of row "idx" with name[offset..offset+len).
+	 */
+	private boolean nameEquals(int idx, byte[] name, int offset, int len) {
+		if (mTable.mFileNameLength[idx] != len) {
+			return false;
+		}
+		byte[] arena = mTable.mVarArena;
+		int other = mTable.getFileNameOffset(idx);
+		for (int i = 0; i < len; i++) {
+			if (arena[other + i] != name[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * FNV-1a over the name bytes, with a final avalanche so the low bits
+	 * (which pick the slot) depend on every byte.
+	 */
+	private static int hash(byte[] name, int offset, int len) {
+		int h = 0x811c9dc5;
+		for (int i = offset; i < offset + len; i++) {
+			h = (h ^ (name[i] & 0xff)) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+}
@@ -0,0 +1,312 @@
+package com.brooke.zipalign;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Serve align and check requests over stdin and stdout as a persistent
+ * worker, so one JVM -- JIT, thread pools, deflaters, caches and all --
+ * lasts a whole build instead of starting up once per archive.
+ *
+ * The protocol is Bazel's (Gradle workers can speak it too): every
+ * message is a protocol buffer preceded by its length as a varint.  Only
+ * the fields used here are looked at:
+ *
+ *   message WorkRequest {
+ *     repeated string arguments = 1;
+ *     int32 request_id = 3;
+ *     bool cancel = 4;
+ *   }
+ *   message WorkResponse {
+ *     int32 exit_code = 1;
+ *     string output = 2;
+ *     int32 request_id = 3;
+ *   }
+ *
+ * The arguments of a request are a zipalign command line; the exit code
+ * is what zipalign would have exited with, and the output what it would
+ * have printed.  A request with id 0 is answered before the next one is
+ * read.  Any other id is handled on a thread of its own and answered
+ * when done, so several can be in flight at once ("multiplex" workers).
+ * Requests with equal options share a ZipAligner, and with it its pools.
+ *
+ * Cancellation isn't supported: a cancel request is ignored, and the
+ * request it names runs to completion and is answered as usual.
+ */
+final class PersistentWorker {
+
+	static final String kFlag = "--persistent_worker";
+
+	private static final int kMaxMessageLen = 16 * 1024 * 1024;
+	private static final Charset kUTF8 = Charset.forName("UTF-8");
+
+	/* protobuf wire types */
+	private static final int kWireVarint = 0;
+	private static final int kWireFixed64 = 1;
+	private static final int kWireLen = 2;
+	private static final int kWireFixed32 = 5;
+
+	/* WorkRequest fields */
+	private static final int kReqArguments = 1;
+	private static final int kReqId = 3;
+	private static final int kReqCancel = 4;
+
+	/* WorkResponse fields */
+	private static final int kRespExitCode = 1;
+	private static final int kRespOutput = 2;
+	private static final int kRespId = 3;
+
+	private static final class Request {
+		final List<String> mArgs = new ArrayList<String>();
+		int mId;
+		boolean mCancel;
+	}
+
+	private final DataInputStream mIn;
+	private final OutputStream mOut;      // guarded by itself
+	private final ExecutorService mPool =
+			Executors.newCachedThreadPool(ZipAligner.daemonThreads("zipalign-request-"));
+	private final ConcurrentHashMap<ZipAlignOptions, ZipAligner> mAligners =
+			new ConcurrentHashMap<ZipAlignOptions, ZipAligner>();
+
+	PersistentWorker(InputStream in, OutputStream out) {
+		mIn = new DataInputStream(in);
+		mOut = out;
+	}
+
+	/*
+	 * Serve requests until stdin is closed, then wait for the ones still
+	 * running.  Returns the exit code for the worker process.
+	 */
+	int run() {
+		/* the protocol owns stdout; anything else printed goes to stderr */
+		System.setOut(System.err);
+
+		int status = 0;
+		try {
+			while (true) {
+				final Request request = readRequest();
+				if (request == null) {
+					break;
+				}
+				if (request.mCancel) {
+					continue;
+				}
+				if (request.mId == 0) {
+					handle(request);
+				} else {
+					mPool.execute(new Runnable() {
+						@Override
+						public void run() {
+							handle(request);
+						}
+					});
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("persistent worker: " + e.getMessage());
+			status = 1;
+		} finally {
+			mPool.shutdown();
+			try {
+				mPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for (ZipAligner aligner : mAligners.values()) {
+				aligner.close();
+			}
+		}
+		return status;
+	}
+
+	/*
+	 * Run one request and send its response.
+	 */
+	private void handle(Request request) {
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(captured, true);
+		int exitCode;
+		try {
+			String[] args = request.mArgs.toArray(new String[request.mArgs.size()]);
+			ZipAlign.Invocation invocation = ZipAlign.Invocation.parse(args);
+			if (invocation == null) {
+				out.println("zipalign: bad arguments " + Arrays.toString(args));
+				exitCode = 2;
+			} else {
+				exitCode = invocation.run(alignerFor(invocation.getOptions()), out, out) ? 0 : 1;
+			}
+		} catch (RuntimeException e) {
+			/* one bad request mustn't take the worker down with it */
+			e.printStackTrace(out);
+			exitCode = 1;
+		}
+		out.flush();
+
+		try {
+			writeResponse(request.mId, exitCode, captured.toString());
+		} catch (IOException e) {
+			System.err.println("persistent worker: unable to respond to request "
+					+ request.mId + ": " + e.getMessage());
+		}
+	}
+
+	private ZipAligner alignerFor(ZipAlignOptions options) {
+		ZipAligner aligner = mAligners.get(options);
+		if (aligner == null) {
+			/* pools are made on first use, so losing the race costs nothing */
+			ZipAligner fresh = new ZipAligner(options);
+			aligner = mAligners.putIfAbsent(options, fresh);
+			if (aligner == null) {
+				aligner = fresh;
+			}
+		}
+		return aligner;
+	}
+
+	/*
+	 * Read the next request.  Returns null at the end of the input.
+	 */
+	private Request readRequest() throws IOException {
+		int first = mIn.read();
+		if (first < 0) {
+			return null;
+		}
+		long len = readVarint(mIn, first);
+		if (len < 0 || len > kMaxMessageLen) {
+			throw new IOException("bad request length " + len);
+		}
+		byte[] msg = new byte[(int) len];
+		mIn.readFully(msg);
+
+		Request request = new Request();
+		int[] posn = { 0 };
+		while (posn[0] < msg.length) {
+			long tag = readVarint(msg, posn);
+			int field = (int) (tag >>> 3);
+			int wireType = (int) (tag & 7);
+			if (field == kReqArguments && wireType == kWireLen) {
+				int argLen = (int) readVarint(msg, posn);
+				checkRoom(msg, posn[0], argLen);
+				request.mArgs.add(new String(msg, posn[0], argLen, kUTF8));
+				posn[0] += argLen;
+			} else if (field == kReqId && wireType == kWireVarint) {
+				request.mId = (int) readVarint(msg, posn);
+			} else if (field == kReqCancel && wireType == kWireVarint) {
+				request.mCancel = readVarint(msg, posn) != 0;
+			} else {
+				skipField(msg, posn, wireType);
+			}
+		}
+		return request;
+	}
+
+	private void writeResponse(int id, int exitCode, String output) throws IOException {
+		ByteArrayOutputStream msg = new ByteArrayOutputStream();
+		if (exitCode != 0) {
+			writeVarint(msg, kRespExitCode << 3 | kWireVarint);
+			writeVarint(msg, exitCode);
+		}
+		if (!output.isEmpty()) {
+			byte[] bytes = output.getBytes(kUTF8);
+			writeVarint(msg, kRespOutput << 3 | kWireLen);
+			writeVarint(msg, bytes.length);
+			msg.write(bytes);
+		}
+		if (id != 0) {
+			writeVarint(msg, kRespId << 3 | kWireVarint);
+			writeVarint(msg, id);
+		}
+
+		ByteArrayOutputStream framed = new ByteArrayOutputStream(msg.size() + 5);
+		writeVarint(framed, msg.size());
+		msg.writeTo(framed);
+		synchronized (mOut) {
+			framed.writeTo(mOut);
+			mOut.flush();
+		}
+	}
+
+	/*
+	 * Varints are little-endian groups of 7 bits, high bit set on all but
+	 * the last byte.  Negative int32s are sign-extended to 10 bytes.
+	 */
+	private static long readVarint(InputStream in, int first) throws IOException {
+		long value = first & 0x7f;
+		int b = first;
+		for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+			if (shift >= 64) {
+				throw new IOException("varint too long");
+			}
+			b = in.read();
+			if (b < 0) {
+				throw new EOFException("stdin closed inside a request");
+			}
+			value |= (long) (b & 0x7f) << shift;
+		}
+		return value;
+	}
+
+	private static long readVarint(byte[] buf, int[] posn) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			checkRoom(buf, posn[0], 1);
+			int b = buf[posn[0]++];
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("varint too long");
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static void skipField(byte[] buf, int[] posn, int wireType) throws IOException {
+		switch (wireType) {
+			case kWireVarint:
+				readVarint(buf, posn);
+				break;
+			case kWireFixed64:
+				checkRoom(buf, posn[0], 8);
+				posn[0] += 8;
+				break;
+			case kWireLen:
+				int len = (int) readVarint(buf, posn);
+				checkRoom(buf, posn[0], len);
+				posn[0] += len;
+				break;
+			case kWireFixed32:
+				checkRoom(buf, posn[0], 4);
+				posn[0] += 4;
+				break;
+			default:
+				throw new IOException("bad wire type " + wireType);
+		}
+	}
+
+	private static void checkRoom(byte[] buf, int posn, int len) throws IOException {
+		if (len < 0 || posn + len > buf.length) {
+			throw new IOException("truncated request");
+		}
+	}
+}
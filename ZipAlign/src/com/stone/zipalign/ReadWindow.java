@@ -0,0 +1,65 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/*
+ * A sliding read-ahead buffer over a file, for walking headers in
+ * ascending offset order.
+ *
+ * Headers that sit close together come out of one positional read; a
+ * request outside the current window just refills it at the new offset.
+ * Once the window reaches the end of the file, requests that run past
+ * it are served short rather than read again.
+ * The channel position is never used, so several windows may share a
+ * channel across threads.
+ */
+final class ReadWindow {
+
+	private final FileChannel mChannel;
+	private final ByteBuffer mBuf;
+	private long mStart;
+	private boolean mAtEOF;         // the window ends where the file does
+
+	ReadWindow(FileChannel fc, int size) {
+		this(fc, ByteBuffer.allocate(size));
+	}
+
+	/*
+	 * A window that reads into "buf", all of its capacity, e.g. a slice
+	 * of a buffer the caller reuses.
+	 */
+	ReadWindow(FileChannel fc, ByteBuffer buf) {
+		mChannel = fc;
+		mBuf = buf.order(ByteOrder.LITTLE_ENDIAN);
+		mBuf.limit(0);
+	}
+
+	/*
+	 * Return the window positioned on file offset "offset", with at least
+	 * "len" bytes from there on unless the file ends first.  "len" must
+	 * not exceed the window size.
+	 */
+	ByteBuffer at(long offset, int len) throws IOException {
+		assert(len <= mBuf.capacity());
+
+		long end = mStart + mBuf.limit();
+		if (offset < mStart || offset > end || (offset + len > end && !mAtEOF)) {
+			mBuf.clear();
+			mAtEOF = false;
+			while (mBuf.hasRemaining()) {
+				if (mChannel.read(mBuf, offset + mBuf.position()) < 0) {
+					mAtEOF = true;
+					break;
+				}
+			}
+			mBuf.flip();
+			mStart = offset;
+		}
+
+		mBuf.position((int) (offset - mStart));
+		return mBuf;
+	}
+}
@@ -0,0 +1,365 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/*
+ * On-disk cache of Zopfli output, keyed by what went in: the CRC-32,
+ * length and SHA-256 of the uncompressed data, plus the Zopfli options.
+ * Identical entries in the next build are then a lookup instead of a
+ * recompression.
+ *
+ * Each result is one file in the cache directory.  Files are written
+ * under a temporary name unique to the writer, synced and renamed into
+ * place, so a crash leaves either the whole file or none of it, and
+ * several processes can share the directory.  Temporaries old enough
+ * that no writer can still be at them are swept up when the cache is
+ * opened.  Every file repeats its key and carries a CRC of its data,
+ * and one that doesn't check out is deleted and treated as a miss.
+ *
+ * The cache is held to a byte limit, least recently used first out.
+ * Recency is the file modification time, which hits refresh, so it
+ * survives from run to run.  Instances are thread-safe.
+ */
+public class RecompressCache {
+
+	private static final int kMagic = 0x3143415a; // "ZAC1"
+	private static final String kSuffix = ".z";
+	private static final String kTempSuffix = ".tmp";
+	/* a temporary this old was left by a crash, not a writer still going */
+	private static final long kStaleTempMillis = 60 * 60 * 1000;
+	private static final int kHashLen = 32;
+
+	/* magic, options (3), CRC-32, length, SHA-256, data length, data CRC */
+	private static final int kHeaderLen = 4 + 4 + 1 + 4 + 4 + 8 + kHashLen + 4 + 4;
+
+	private final Path mDir;
+	private final long mMaxBytes;
+
+	/* file name -> size, eldest first; guarded by this */
+	private final LinkedHashMap<String, Long> mIndex = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long mTotalBytes;
+
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+
+	private RecompressCache(Path dir, long maxBytes) {
+		mDir = dir;
+		mMaxBytes = maxBytes;
+	}
+
+	/*
+	 * Open (creating if need be) the cache in directory "dirName", limited
+	 * to "maxBytes".  Returns null if the directory can't be used.
+	 */
+	public static RecompressCache open(String dirName, long maxBytes) {
+		RecompressCache cache = new RecompressCache(Paths.get(dirName), maxBytes);
+		try {
+			Files.createDirectories(cache.mDir);
+			cache.scan();
+		} catch (IOException e) {
+			System.err.println("Unable to open recompress cache '" + dirName + "'");
+			e.printStackTrace();
+			return null;
+		}
+		return cache;
+	}
+
+	/*
+	 * Content key for some uncompressed data under "options".
+	 */
+	static final class Key {
+		final int mCRC32;
+		final long mLength;
+		final byte[] mHash;
+		final int mNumIterations;
+		final boolean mBlockSplitting;
+		final int mBlockSplittingMax;
+
+		Key(int crc32, byte[] data, ZopfliOptions options) {
+			mCRC32 = crc32;
+			mLength = data.length;
+			mHash = sha256(data);
+			mNumIterations = options.getNumIterations();
+			mBlockSplitting = options.getBlockSplitting();
+			mBlockSplittingMax = options.getBlockSplittingMax();
+		}
+
+		String fileName() {
+			StringBuilder sb = new StringBuilder(kHashLen * 2 + 48);
+			for (byte b : mHash) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			sb.append('-').append(Integer.toHexString(mCRC32));
+			sb.append('-').append(mLength);
+			sb.append("-i").append(mNumIterations);
+			sb.append(mBlockSplitting ? "s" : "n").append(mBlockSplittingMax);
+			return sb.append(kSuffix).toString();
+		}
+
+		void encode(ByteBuffer buf) {
+			buf.putInt(mNumIterations);
+			buf.put((byte) (mBlockSplitting ? 1 : 0));
+			buf.putInt(mBlockSplittingMax);
+			buf.putInt(mCRC32);
+			buf.putLong(mLength);
+			buf.put(mHash);
+		}
+
+		boolean matches(ByteBuffer buf) {
+			if (buf.getInt() != mNumIterations || buf.get() != (mBlockSplitting ? 1 : 0)
+					|| buf.getInt() != mBlockSplittingMax || buf.getInt() != mCRC32
+					|| buf.getLong() != mLength) {
+				return false;
+			}
+			for (int i = 0; i < kHashLen; i++) {
+				if (buf.get() != mHash[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Return the cached deflate stream for "key", or null on a miss.
+	 */
+	byte[] get(Key key) {
+		String name = key.fileName();
+		synchronized (this) {
+			if (!mIndex.containsKey(name)) {
+				mMisses.incrementAndGet();
+				return null;
+			}
+			mIndex.get(name);       // most recently used now
+		}
+
+		Path path = mDir.resolve(name);
+		byte[] data = null;
+		try {
+			data = read(path, key);
+			if (data != null) {
+				Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+			}
+		} catch (IOException e) {
+			/* evicted by someone else, or damaged; either way a miss */
+		}
+
+		if (data == null) {
+			System.err.println("Dropping bad recompress cache file '" + name + "'");
+			forget(name);
+			mMisses.incrementAndGet();
+			return null;
+		}
+		mHits.incrementAndGet();
+		return data;
+	}
+
+	/*
+	 * Store "data", the deflate stream for "key".  Failures are reported
+	 * but otherwise harmless; the cache is only an optimization.
+	 */
+	void put(Key key, byte[] data) {
+		String name = key.fileName();
+		Path path = mDir.resolve(name);
+		Path temp = null;
+
+		ByteBuffer header = ByteBuffer.allocate(kHeaderLen).order(ByteOrder.LITTLE_ENDIAN);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		header.putInt(kMagic);
+		key.encode(header);
+		header.putInt(data.length);
+		header.putInt((int) crc.getValue());
+		header.flip();
+
+		try {
+			temp = Files.createTempFile(mDir, name + ".", kTempSuffix);
+			FileChannel fc = FileChannel.open(temp, StandardOpenOption.WRITE);
+			try {
+				ByteBuffer body = ByteBuffer.wrap(data);
+				while (header.hasRemaining() || body.hasRemaining()) {
+					fc.write(new ByteBuffer[] { header, body });
+				}
+				fc.force(true);
+			} finally {
+				fc.close();
+			}
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Unable to write recompress cache file '" + name + "'");
+			try {
+				if (temp != null) {
+					Files.deleteIfExists(temp);
+				}
+			} catch (IOException e2) {
+				/* swept up on a later open */
+			}
+			return;
+		}
+
+		List<String> evicted = new ArrayList<String>();
+		synchronized (this) {
+			Long old = mIndex.put(name, (long) (kHeaderLen + data.length));
+			mTotalBytes += kHeaderLen + data.length - (old != null ? old : 0);
+			Iterator<Map.Entry<String, Long>> it = mIndex.entrySet().iterator();
+			while (mTotalBytes > mMaxBytes && it.hasNext()) {
+				Map.Entry<String, Long> eldest = it.next();
+				if (eldest.getKey().equals(name)) {
+					continue;
+				}
+				mTotalBytes -= eldest.getValue();
+				evicted.add(eldest.getKey());
+				it.remove();
+			}
+		}
+		for (String victim : evicted) {
+			try {
+				Files.deleteIfExists(mDir.resolve(victim));
+			} catch (IOException e) {
+				System.err.println("Unable to evict recompress cache file '" + victim + "'");
+			}
+		}
+	}
+
+	public long getHits() {
+		return mHits.get();
+	}
+
+	public long getMisses() {
+		return mMisses.get();
+	}
+
+	public synchronized long getTotalBytes() {
+		return mTotalBytes;
+	}
+
+	/*
+	 * Read a cache file, returning its data if the header agrees with
+	 * "key" and the data with its CRC.
+	 */
+	private static byte[] read(Path path, Key key) throws IOException {
+		FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = fc.size();
+			if (size < kHeaderLen || size > Integer.MAX_VALUE) {
+				return null;
+			}
+			ByteBuffer buf = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+			while (buf.hasRemaining()) {
+				if (fc.read(buf) < 0) {
+					return null;
+				}
+			}
+			buf.flip();
+
+			if (buf.getInt() != kMagic || !key.matches(buf)) {
+				return null;
+			}
+			int len = buf.getInt();
+			int dataCRC = buf.getInt();
+			if (len != buf.remaining()) {
+				return null;
+			}
+			byte[] data = new byte[len];
+			buf.get(data);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			return (int) crc.getValue() == dataCRC ? data : null;
+		} finally {
+			fc.close();
+		}
+	}
+
+	private void forget(String name) {
+		synchronized (this) {
+			Long size = mIndex.remove(name);
+			if (size != null) {
+				mTotalBytes -= size;
+			}
+		}
+		try {
+			Files.deleteIfExists(mDir.resolve(name));
+		} catch (IOException e) {
+			/* nothing more to do */
+		}
+	}
+
+	/*
+	 * Build the index from the directory, oldest first, deleting any
+	 * temporaries a crashed writer left behind, then trim to size.
+	 * Younger temporaries may belong to another process still writing.
+	 */
+	private void scan() throws IOException {
+		long staleBefore = System.currentTimeMillis() - kStaleTempMillis;
+		final List<Path> files = new ArrayList<Path>();
+		final Map<Path, Long> times = new LinkedHashMap<Path, Long>();
+		DirectoryStream<Path> dir = Files.newDirectoryStream(mDir);
+		try {
+			for (Path p : dir) {
+				String name = p.getFileName().toString();
+				if (name.endsWith(kTempSuffix)) {
+					if (Files.getLastModifiedTime(p).toMillis() < staleBefore) {
+						Files.deleteIfExists(p);
+					}
+				} else if (name.endsWith(kSuffix)) {
+					files.add(p);
+					times.put(p, Files.getLastModifiedTime(p).toMillis());
+				}
+			}
+		} finally {
+			dir.close();
+		}
+
+		Collections.sort(files, new Comparator<Path>() {
+			@Override
+			public int compare(Path a, Path b) {
+				long ta = times.get(a);
+				long tb = times.get(b);
+				return ta < tb ? -1 : (ta == tb ? 0 : 1);
+			}
+		});
+		for (Path p : files) {
+			long size = Files.size(p);
+			mIndex.put(p.getFileName().toString(), size);
+			mTotalBytes += size;
+		}
+
+		Iterator<Map.Entry<String, Long>> it = mIndex.entrySet().iterator();
+		while (mTotalBytes > mMaxBytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			mTotalBytes -= eldest.getValue();
+			Files.deleteIfExists(mDir.resolve(eldest.getKey()));
+			it.remove();
+		}
+	}
+
+	private static byte[] sha256(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 unavailable", e);   // required of every JRE
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package com.brooke.zipalign;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/*
+ * Recompress the deflated entries of an archive on a pool of threads,
+ * for a writer that consumes them in entry order.
+ *
+ * Workers take entries largest first, so the long Zopfli runs start
+ * early and the small ones fill in around them.  Each job is charged
+ * against a memory budget while it runs (input, uncompressed data and
+ * deflater scratch) and while its output waits to be taken; workers
+ * stall when the budget is spent.
+ *
+ * take() never waits on a job nobody has started: if the entry the
+ * writer needs next is still queued, the writer runs it itself.  That
+ * keeps the pipeline moving even when finished-but-untaken output fills
+ * the whole budget.  With "slots", shared by pipelines on one pool, each
+ * run holds a permit, the writer's included, so the pipelines together
+ * never run more than that many at once.
+ */
+final class RecompressPipeline {
+
+	/* deflater scratch per input byte, roughly (match cache, costs, stores) */
+	private static final int kScratchPerByte = 16;
+
+	private static final int kQueued = 0;
+	private static final int kRunning = 1;
+	private static final int kDone = 2;
+
+	/*
+	 * One deflated entry.  State changes and results are guarded by the
+	 * job itself.
+	 */
+	private static final class Job {
+		final ZipEntry mEntry;
+		final long mRunCost;
+		int mState = kQueued;
+		byte[] mData;       // null on failure, once done
+		long mHeld;         // budget charged to this job
+
+		Job(ZipEntry entry) {
+			mEntry = entry;
+			mRunCost = entry.getCompressedLen()
+					+ entry.getUncompressedLen() * (1 + kScratchPerByte);
+		}
+
+		synchronized boolean claim() {
+			if (mState != kQueued) {
+				return false;
+			}
+			mState = kRunning;
+			return true;
+		}
+
+		synchronized void finish(byte[] data) {
+			mData = data;
+			mState = kDone;
+			notifyAll();
+		}
+
+		synchronized void await() throws InterruptedException {
+			while (mState != kDone) {
+				wait();
+			}
+		}
+	}
+
+	private final ZipFile mZin;
+	private final int mNumThreads;
+	private final long mMemoryBudget;
+
+	private Job[] mJobs;        // by entry index; null for stored entries
+	private Job[] mOrder;       // deflated entries, largest first
+	private int mNext;          // next of mOrder for a worker; guarded by this
+	private long mInUse;        // guarded by this
+	private volatile boolean mStopped;
+	private final ExecutorService mPool;
+	private final ThreadLocal<ZopfliDeflater> mDeflaters;
+	private final Semaphore mSlots;     // null for no limit
+	private CountDownLatch mWorkers;
+
+	/*
+	 * "pool" runs the workers and "deflaters" supplies each thread's
+	 * deflater; both belong to the caller and outlive the pipeline, as
+	 * does "slots", if it isn't null.
+	 */
+	RecompressPipeline(ZipFile zin, ExecutorService pool, int numThreads, long memoryBudget,
+			ThreadLocal<ZopfliDeflater> deflaters, Semaphore slots) {
+		mZin = zin;
+		mPool = pool;
+		mNumThreads = numThreads;
+		mMemoryBudget = memoryBudget;
+		mDeflaters = deflaters;
+		mSlots = slots;
+	}
+
+	/*
+	 * Queue every deflated entry and start the workers.  Returns false if
+	 * the archive can't be read.
+	 */
+	boolean start() {
+		if (!mZin.loadLocalHeaders()) {
+			return false;
+		}
+
+		int numEntries = mZin.getNumEntries();
+		mJobs = new Job[numEntries];
+		int numJobs = 0;
+		for (int i = 0; i < numEntries; i++) {
+			ZipEntry entry = mZin.getEntryByIndex(i);
+			if (handles(entry)) {
+				mJobs[i] = new Job(entry);
+				numJobs++;
+			}
+		}
+
+		mOrder = new Job[numJobs];
+		int n = 0;
+		for (Job job : mJobs) {
+			if (job != null) {
+				mOrder[n++] = job;
+			}
+		}
+		Arrays.sort(mOrder, new Comparator<Job>() {
+			@Override
+			public int compare(Job a, Job b) {
+				long la = a.mEntry.getUncompressedLen();
+				long lb = b.mEntry.getUncompressedLen();
+				return la > lb ? -1 : (la == lb ? 0 : 1);
+			}
+		});
+
+		mWorkers = new CountDownLatch(mNumThreads);
+		for (int t = 0; t < mNumThreads; t++) {
+			mPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						work();
+					} finally {
+						mWorkers.countDown();
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	/*
+	 * True if entry "index" goes through the pipeline.  Entries too big to
+	 * recompress in memory don't; they are streamed by the writer with
+	 * ZipFile.addRecompress().
+	 */
+	boolean handles(int index) {
+		return mJobs[index] != null;
+	}
+
+	private static boolean handles(ZipEntry entry) {
+		return entry.isCompressed()
+				&& entry.getUncompressedLen() <= ZipFile.kMaxInMemoryRecompress;
+	}
+
+	/*
+	 * Return the recompressed data for entry "index", waiting for it or
+	 * producing it on this thread as needed.  Returns null if the entry
+	 * isn't deflated or couldn't be recompressed.
+	 */
+	byte[] take(int index) {
+		Job job = mJobs[index];
+		if (job == null) {
+			return null;
+		}
+
+		if (job.claim()) {
+			/* no worker got to it; the writer can't wait, so over-commit */
+			synchronized (this) {
+				mInUse += job.mRunCost;
+			}
+			job.mHeld = job.mRunCost;
+			execute(job);
+		} else {
+			try {
+				job.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+		/* done, and only the writer looks at it from here on */
+		byte[] data = job.mData;
+		job.mData = null;
+		release(job.mHeld);
+		job.mHeld = 0;
+		return data;
+	}
+
+	/*
+	 * Stop the workers and wait for them to let go of the archive;
+	 * anything not yet started is dropped.  Workers aren't interrupted:
+	 * that would close the archive's channel under them.
+	 */
+	void stop() {
+		mStopped = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		if (mWorkers == null) {
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				mWorkers.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void work() {
+		while (!mStopped) {
+			Job job;
+			synchronized (this) {
+				if (mNext == mOrder.length) {
+					return;
+				}
+				job = mOrder[mNext++];
+
+				/* a job bigger than the whole budget runs alone */
+				while (!mStopped && mInUse > 0 && mInUse + job.mRunCost > mMemoryBudget) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (mStopped || !job.claim()) {
+					continue;
+				}
+				mInUse += job.mRunCost;
+			}
+			job.mHeld = job.mRunCost;
+			execute(job);
+		}
+	}
+
+	/*
+	 * Recompress a claimed job, then trade its run charge for what the
+	 * output holds until take().
+	 */
+	private void execute(Job job) {
+		byte[] data = null;
+		if (mSlots != null) {
+			mSlots.acquireUninterruptibly();
+		}
+		try {
+			data = mZin.recompress(job.mEntry, mDeflaters.get());
+		} catch (OutOfMemoryError e) {
+			System.err.println("out of memory recompressing '" + job.mEntry.getFileName() + "'");
+		} finally {
+			if (mSlots != null) {
+				mSlots.release();
+			}
+			long held = data != null ? data.length : 0;
+			release(job.mHeld - held);
+			job.mHeld = held;
+			job.finish(data);
+		}
+	}
+
+	private synchronized void release(long bytes) {
+		if (bytes != 0) {
+			mInUse -= bytes;
+			notifyAll();
+		}
+	}
+}
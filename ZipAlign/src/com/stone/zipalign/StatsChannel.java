@@ -0,0 +1,153 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * A FileChannel that counts the I/O done through it into an AlignStats.
+ * Every read, write, transfer, map and truncate is one I/O call; setting
+ * the position is a seek.  Bytes mapped count as read when the mapping
+ * is made, whether or not they are touched.
+ *
+ * Transfers between two wrapped channels are done on the channels
+ * underneath, so the kernel still copies the bytes itself.
+ */
+final class StatsChannel extends FileChannel {
+
+	private final FileChannel mChannel;
+	private final AlignStats mStats;
+
+	StatsChannel(FileChannel channel, AlignStats stats) {
+		mChannel = channel;
+		mStats = stats;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		int count = mChannel.read(dst);
+		mStats.countIO(count, 0, false);
+		return count;
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		long count = mChannel.read(dsts, offset, length);
+		mStats.countIO(count, 0, false);
+		return count;
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		int count = mChannel.read(dst, position);
+		mStats.countIO(count, 0, false);
+		return count;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int count = mChannel.write(src);
+		mStats.countIO(0, count, false);
+		return count;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long count = mChannel.write(srcs, offset, length);
+		mStats.countIO(0, count, false);
+		return count;
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		int count = mChannel.write(src, position);
+		mStats.countIO(0, count, false);
+		return count;
+	}
+
+	@Override
+	public long position() throws IOException {
+		return mChannel.position();
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		mChannel.position(newPosition);
+		mStats.countIO(0, 0, true);
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return mChannel.size();
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		mChannel.truncate(size);
+		mStats.countIO(0, 0, false);
+		return this;
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		mChannel.force(metaData);
+		mStats.countIO(0, 0, false);
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target)
+			throws IOException {
+		WritableByteChannel dst = target;
+		if (target instanceof StatsChannel) {
+			dst = ((StatsChannel) target).mChannel;
+		}
+		long moved = mChannel.transferTo(position, count, dst);
+		mStats.countIO(moved, 0, false);
+		if (target instanceof StatsChannel) {
+			((StatsChannel) target).mStats.countIO(0, moved, false);
+		}
+		return moved;
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count)
+			throws IOException {
+		ReadableByteChannel from = src;
+		if (src instanceof StatsChannel) {
+			from = ((StatsChannel) src).mChannel;
+		}
+		long moved = mChannel.transferFrom(from, position, count);
+		mStats.countIO(0, moved, false);
+		if (src instanceof StatsChannel) {
+			((StatsChannel) src).mStats.countIO(moved, 0, false);
+		}
+		return moved;
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		MappedByteBuffer buf = mChannel.map(mode, position, size);
+		mStats.countIO(size, 0, false);
+		return buf;
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		return mChannel.lock(position, size, shared);
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		return mChannel.tryLock(position, size, shared);
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		mChannel.close();
+	}
+}
@@ -1,90 +1,244 @@
 package com.brooke.zipalign;
 
-import java.nio.file.FileSystems;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Paths;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 
 public class ZipAlign {
 
-	private static final int kPageAlignment = 4096;
+	private static final long kDefaultZopfliMemory = ZipAlignOptions.kDefaultZopfliMemory; // for parallel -z
+	private static final long kDefaultZopfliCacheMax = ZipAlignOptions.kDefaultZopfliCacheMax; // for -zcache
 	
 	public static void main(String[] args) {
-		boolean wantUsage = false;
-	    boolean check = false;
-	    boolean force = false;
-	    boolean verbose = false;
-	    boolean zopfli = false;
-	    boolean pageAlignSharedLibs = false;
-	    int result = 1;
-	    int alignment;
+	    for (String arg : args) {
+	        if (arg.equals(PersistentWorker.kFlag)) {
+	            System.exit(new PersistentWorker(System.in, System.out).run());
+	        }
+	        if (arg.equals("-" + BatchAligner.kManifestOpt) || arg.equals("-" + BatchAligner.kGlobOpt)) {
+	            BatchAligner batch = BatchAligner.parse(args);
+	            if (batch == null) {
+	                bail(true);
+	            }
+	            System.exit(batch.run() ? 0 : 1);
+	        }
+	    }
 
 	    if (args.length < 4) {
 	        bail(true);
 	    }
-	    
-	    CommandLineParser parser = new DefaultParser();
-	    CommandLine cmd = parser.parse(getOptions(), args);
-	    
-	    if (cmd.hasOption('c')) {
-	    	check = true;
-	    }
-	    if (cmd.hasOption('f')) {
-	    	force = true;
-	    }
-	    if (cmd.hasOption('v')) {
-	    	verbose = true;
-	    }
-	    if (cmd.hasOption('z')) {
-	    	zopfli = true;
-	    }
-	    if (cmd.hasOption('p')) {
-	    	pageAlignSharedLibs = true;
-	    }
 
-	    if (!cmd.hasOption("align")) {
-	    	bail(true);
-	    }
-	    if (!cmd.hasOption("infile")) {
-	    	bail(true);
-	    }
-	    if(!check && !cmd.hasOption("outfile")) {
-	    	bail(true);
+	    Invocation invocation = Invocation.parse(args);
+	    if (invocation == null) {
+	        bail(true);
 	    }
 
+	    ZipAligner aligner = new ZipAligner(invocation.getOptions());
+	    boolean ok;
 	    try {
-	    	alignment = Integer.valueOf(cmd.getOptionValue("align"));
-	    } catch (Exception e) {
-	    	bail(true);
+	        ok = invocation.run(aligner, System.out, null);
+	    } finally {
+	        aligner.close();
 	    }
-
-	    String inFileName = cmd.getOptionValue("infile");
-	    
-	    if (check) {
-	        /* check existing archive for correct alignment */
-	        if (!verify(inFileName, alignment, verbose, pageAlignSharedLibs)) {
-	        	System.exit(1);
-	        }
-	    } else {
-	        /* create the new archive */
-	    	String outFileName = cmd.getOptionValue("outfile");
-	    	
-	        if (!process(inFileName, outFileName, alignment, force, zopfli, pageAlignSharedLibs) {
-	        	System.exit(1);
-	        }
-
-	        /* trust, but verify */
-	        if (result == 0) {
-	            if (!verify(outFileName, alignment, verbose, pageAlignSharedLibs)) {
-	            	System.exit(1);
-	            }
-	        }
+	    if (!ok) {
+	        System.exit(1);
 	    }
 	}
 
+	/*
+	 * One parsed command line: what to do, to which files, with which
+	 * options.  Shared by main() and the persistent worker, which gets a
+	 * command line with every request.
+	 */
+	static final class Invocation {
+		private boolean mCheck;
+		private boolean mVerbose;
+		private String mInFileName;
+		private String mOutFileName;
+		private String mStatsFileName;    // null for no stats
+		private String mPrevFileName;     // null unless aligning incrementally
+		private ZipAlignOptions mOptions;
+		private ZipAligner.Result mResult;    // of run()'s align, if it got that far
+		private ZipVerifier.Report mReport;   // of run()'s check, if it got that far
+
+		private Invocation() {
+		}
+
+		ZipAlignOptions getOptions() { return mOptions; }
+		boolean isCheck() { return mCheck; }
+		String getInFileName() { return mInFileName; }
+		/* null for a check */
+		String getOutFileName() { return mOutFileName; }
+		/* the previous output to reuse, or null for a full align */
+		String getPrevFileName() { return mPrevFileName; }
+		/* after run(): the align, or null for a check */
+		ZipAligner.Result getResult() { return mResult; }
+		/* after run(): the check of the archive, or null if it wasn't reached */
+		ZipVerifier.Report getReport() { return mReport; }
+
+		/*
+		 * Returns null if "args" isn't a valid command line.
+		 */
+		static Invocation parse(String[] args) {
+		    boolean force = false;
+		    boolean zopfli = false;
+		    boolean pageAlignSharedLibs = false;
+		    boolean checkHeaders = false;
+		    int alignment;
+		    int numThreads = 1;
+		    long zopfliMemory = kDefaultZopfliMemory;
+		    String zopfliCache = null;
+		    long zopfliCacheMax = kDefaultZopfliCacheMax;
+		    Invocation inv = new Invocation();
+
+		    CommandLine cmd;
+		    try {
+		        cmd = new DefaultParser().parse(ZipAlign.getOptions(), args);
+		    } catch (ParseException e) {
+		        return null;
+		    }
+
+		    if (cmd.hasOption('c')) {
+		    	inv.mCheck = true;
+		    }
+		    if (cmd.hasOption('f')) {
+		    	force = true;
+		    }
+		    if (cmd.hasOption('v')) {
+		    	inv.mVerbose = true;
+		    }
+		    if (cmd.hasOption('z')) {
+		    	zopfli = true;
+		    }
+		    if (cmd.hasOption('p')) {
+		    	pageAlignSharedLibs = true;
+		    }
+		    if (cmd.hasOption("headers")) {
+		    	checkHeaders = true;
+		    }
+
+		    if (!cmd.hasOption("align") || !cmd.hasOption("infile")) {
+		    	return null;
+		    }
+		    if (!inv.mCheck && !cmd.hasOption("outfile")) {
+		    	return null;
+		    }
+
+		    try {
+		    	alignment = Integer.valueOf(cmd.getOptionValue("align"));
+		    	if (cmd.hasOption("threads")) {
+		    		numThreads = Integer.valueOf(cmd.getOptionValue("threads"));
+		    	}
+		    	if (cmd.hasOption("zmem")) {
+		    		zopfliMemory = Long.valueOf(cmd.getOptionValue("zmem")) * 1024 * 1024;
+		    	}
+		    	if (cmd.hasOption("zcachemax")) {
+		    		zopfliCacheMax = Long.valueOf(cmd.getOptionValue("zcachemax")) * 1024 * 1024;
+		    	}
+		    } catch (NumberFormatException e) {
+		    	return null;
+		    }
+		    if (cmd.hasOption("zcache")) {
+		    	zopfliCache = cmd.getOptionValue("zcache");
+		    }
+		    if (cmd.hasOption("stats")) {
+		    	inv.mStatsFileName = cmd.getOptionValue("stats");
+		    }
+		    if (cmd.hasOption("incremental")) {
+		    	if (inv.mCheck) {
+		    		return null;
+		    	}
+		    	inv.mPrevFileName = cmd.getOptionValue("incremental");
+		    }
+
+		    inv.mInFileName = cmd.getOptionValue("infile");
+		    inv.mOutFileName = cmd.getOptionValue("outfile");
+
+		    ZipAlignOptions.Builder builder = new ZipAlignOptions.Builder()
+		            .setAlignment(alignment)
+		            .setPageAlignSharedLibs(pageAlignSharedLibs)
+		            .setForce(force)
+		            .setZopfli(zopfli)
+		            .setNumThreads(numThreads)
+		            .setZopfliMemory(zopfliMemory)
+		            .setZopfliCacheMax(zopfliCacheMax)
+		            .setCheckHeaders(checkHeaders);
+		    if (zopfliCache != null) {
+		    	builder.setZopfliCacheDir(Paths.get(zopfliCache));
+		    }
+		    try {
+		    	inv.mOptions = builder.build();
+		    } catch (IllegalArgumentException e) {
+		    	return null;
+		    }
+		    return inv;
+		}
+
+		/*
+		 * Check or align, as asked, with an aligner made from getOptions()
+		 * (or one equal to it).  Verdicts are printed to "out"; failures are
+		 * reported on stderr and, if it isn't null, "err" too.  What became
+		 * of the archive is left in getResult() and getReport().
+		 */
+		boolean run(ZipAligner aligner, PrintStream out, PrintStream err) {
+		    AlignStats stats = mStatsFileName != null ? new AlignStats() : null;
+		    boolean ok = run(aligner, out, err, stats);
+
+		    if (stats != null) {
+		        /* the archive is what matters; a lost report only gets a warning */
+		        String json = stats.toJson(mInFileName, mCheck ? null : mOutFileName, ok);
+		        try {
+		            Files.write(Paths.get(mStatsFileName), json.getBytes(StandardCharsets.UTF_8));
+		        } catch (IOException e) {
+		            String message = "zipalign: unable to write stats '" + mStatsFileName + "': " + e;
+		            System.err.println(message);
+		            if (err != null) {
+		                err.println(message);
+		            }
+		        }
+		    }
+		    return ok;
+		}
+
+		private boolean run(ZipAligner aligner, PrintStream out, PrintStream err, AlignStats stats) {
+		    if (mCheck) {
+		        /* check existing archive for correct alignment */
+		        mReport = verify(aligner, mInFileName, mVerbose, out, err, stats);
+		        return mReport.isOk();
+		    }
+
+		    /* create the new archive */
+		    ZipAligner.Result result;
+		    if (mPrevFileName != null) {
+		        result = aligner.alignIncremental(Paths.get(mInFileName), Paths.get(mPrevFileName),
+		                Paths.get(mOutFileName), stats);
+		    } else {
+		        result = aligner.align(Paths.get(mInFileName), Paths.get(mOutFileName), stats);
+		    }
+		    mResult = result;
+		    if (!result.isOk()) {
+		        if (err != null) {
+		            err.println(result.getMessage());
+		        }
+		        return false;
+		    }
+		    if (mPrevFileName != null && mVerbose) {
+		        out.println("Reused " + result.getNumReused() + " of " + result.getNumEntries()
+		                + " entries from " + mPrevFileName);
+		    }
+
+		    /* trust, but verify */
+		    mReport = verify(aligner, mOutFileName, mVerbose, out, err, stats);
+		    return mReport.isOk();
+		}
+	}
+
 	private static Options getOptions() {
 		Options options = new Options();
 		options.addOption("c", false, "check");
@@ -92,7 +246,16 @@ public class ZipAlign {
 		options.addOption("v", false, "verbose");
 		options.addOption("z", false, "zopfli");
 		options.addOption("p", false, "page align shared libs");
+		options.addOption("infile", true, "the input jar");
+		options.addOption("outfile", true, "the output jar");
 		options.addOption("align", true, "alignment in bytes, e.g. '4' provides 32-bit alignment");
+		options.addOption("threads", true, "number of threads writing, recompressing or checking entries");
+		options.addOption("headers", false, "with -c, check each LFH against its CDE");
+		options.addOption("zmem", true, "with -z and -threads, memory budget in MB for recompression");
+		options.addOption("zcache", true, "with -z, directory caching recompressed entries");
+		options.addOption("zcachemax", true, "with -zcache, cache size limit in MB");
+		options.addOption("stats", "stats", true, "write per-phase timings and I/O counts to a JSON file");
+		options.addOption("incremental", true, "reuse unchanged entries of this earlier output");
 		
 		return options;
 	}
@@ -106,186 +269,81 @@ public class ZipAlign {
 	
 	private static void usage() {
 	    System.out.println("Zip alignment utility");
-	    System.out.println("Usage: zipalign [-f] [-p] [-v] [-z] -align <align> -infile <infile.zip> -outfile <outfile.zip>");
-	    System.out.println("       zipalign -c [-v] -align <align> -infile <infile.zip>" );
+	    System.out.println("Usage: zipalign [-f] [-p] [-v] [-z] [-threads <n>] [-zmem <mb>] [-zcache <dir> [-zcachemax <mb>]] [-stats <file.json>] [-incremental <prev.zip>] -align <align> -infile <infile.zip> -outfile <outfile.zip>");
+	    System.out.println("       zipalign -c [-v] [-headers] [-threads <n>] [-stats <file.json>] -align <align> -infile <infile.zip>" );
+	    System.out.println("       zipalign -batch <manifest> [-jobs <n>] [-report <file>] [<flags>]");
+	    System.out.println("       zipalign -glob <pattern> -outdir <dir> -align <align> [-jobs <n>] [-report <file>] [<flags>]");
+	    System.out.println("       zipalign --persistent_worker");
 	    System.out.println();
 	    System.out.println("  -align: alignment in bytes, e.g. '4' provides 32-bit alignment");
 	    System.out.println("  -infile: the input jar");
-	    System.out.println("  -outfile: the output jar");
+	    System.out.println("  -outfile: the output jar; if it is infile.zip, that is aligned in place, and an interrupted run picks up where it stopped when run again");
+	    System.out.println("  -batch: align each archive in <manifest>, one '<infile> <outfile> <align> [<flags>]' per line");
+	    System.out.println("  -glob: align each archive matching <pattern> into -outdir, keeping paths below the pattern's fixed prefix");
+	    System.out.println("  -jobs: with -batch or -glob, archives in flight at once (default twice the CPUs)");
+	    System.out.println("  -report: with -batch or -glob, also write the summary to <file>");
 	    System.out.println("  -c: check alignment only (does not modify file)");
 	    System.out.println("  -f: overwrite existing outfile.zip");
+	    System.out.println("  -headers: with -c, also check each local header against the central dir");
+	    System.out.println("  -incremental: take unchanged entries from <prev.zip>, an earlier output made with the same flags; may be outfile.zip itself, which is then updated in place");
+	    System.out.println("  --persistent_worker: serve requests (each one of the command lines above) from stdin as a Bazel-style worker");
 	    System.out.println("  -p: page align stored shared object files");
+	    System.out.println("  -stats (or --stats): write the time, I/O and allocations of each phase, as JSON, to <file.json>");
+	    System.out.println("  -threads: write, recompress or check entries with <n> threads");
 	    System.out.println("  -v: verbose output");
 	    System.out.println("  -z: recompress using Zopfli");
+	    System.out.println("  -zmem: with -z and -threads, MB of memory recompression may use (default " + (kDefaultZopfliMemory >> 20) + ")");
+	    System.out.println("  -zcache: with -z, reuse recompressed entries saved in <dir> by earlier runs");
+	    System.out.println("  -zcachemax: with -zcache, MB the cache may hold (default " + (kDefaultZopfliCacheMax >> 20) + ")");
 	}
 	
 	/*
-	 * Verify the alignment of a zip archive.
+	 * Verify the alignment of a zip archive, printing the verdicts to "out".
+	 * An archive that can't be opened is reported to "err", if it isn't
+	 * null, as well as to stderr.
 	 */
-	private static boolean verify(String fileName, int alignment, boolean verbose,
-			boolean pageAlignSharedLibs) {
-		
-		ZipFile zipFile = new ZipFile();
-	    boolean foundBad = false;
+	private static ZipVerifier.Report verify(ZipAligner aligner, String fileName, boolean verbose,
+			PrintStream out, PrintStream err, AlignStats stats) {
 
 	    if (verbose)
-	        System.out.println("Verifying alignment of " + fileName + "(" + alignment + ")...");
+	        out.println("Verifying alignment of " + fileName + "("
+	                + aligner.getOptions().getAlignment() + ")...");
 
-	    if (!zipFile.open(fileName, ZipFile.kOpenReadOnly)) {
-	        System.err.println("Unable to open '" + fileName + "' for verification");
-	        return false;
-	    }
-
-	    int numEntries = zipFile.getNumEntries();
-	    ZipEntry entry;
-
-	    for (int i = 0; i < numEntries; i++) {
-	        entry = zipFile.getEntryByIndex(i);
-	        if (entry.isCompressed()) {
-	            /*if (verbose) {
-	                printf("%8ld %s (OK - compressed)\n",
-	                    (long) pEntry->getFileOffset(), pEntry->getFileName());
-	            }*/
-	        } else {
-	            long offset = entry.getFileOffset();
-	            int alignTo = getAlignment(pageAlignSharedLibs, alignment, entry);
-	            if ((offset % alignTo) != 0) {
-	                /*if (verbose) {
-	                    printf("%8ld %s (BAD - %ld)\n",
-	                        (long) offset, pEntry->getFileName(),
-	                        offset % alignTo);
-	                }*/
-	                foundBad = true;
-	            } else {
-	                /*if (verbose) {
-	                    printf("%8ld %s (OK)\n",
-	                        (long) offset, pEntry->getFileName());
-	                }*/
-	            }
+	    ZipVerifier.Report report = aligner.verify(Paths.get(fileName), stats);
+	    if (!report.isReadable()) {
+	        if (err != null) {
+	            err.println("Unable to open '" + fileName + "' for verification");
 	        }
+	        return report;
 	    }
 
-	    System.out.println("Verification " + (foundBad ? "FAILED" : "succesful"));
-
-	    return !foundBad;
-	}
-	
-	/*
-	 * Process a file.  We open the input and output files, failing if the
-	 * output file exists and "force" wasn't specified.
-	 */
-	private static boolean process(String inFileName, String outFileName,
-	    int alignment, boolean force, boolean zopfli, boolean pageAlignSharedLibs)
-	{
-	    ZipFile zin, zout;
-
-	    //printf("PROCESS: align=%d in='%s' out='%s' force=%d\n",
-	    //    alignment, inFileName, outFileName, force);
-
-	    /* this mode isn't supported -- do a trivial check */
-	    if (inFileName.equals(outFileName)) {
-	        System.err.println("Input and output can't be same file");
-	        return false;
-	    }
-
-	    /* don't overwrite existing unless given permission */
-	    if (!force && Files.exists(FileSystems.getDefault().getPath(outFileName))) {
-	    	System.err.println("Output file '" + outFileName + "' exists");
-	        return false;
-	    }
-
-	    if (!zin.open(inFileName, ZipFile.kOpenReadOnly)) {
-	    	System.err.println("Unable to open '" + inFileName + "' as zip archive");
-	        return false;
-	    }
-	    
-	    if (!zout.open(outFileName, ZipFile.kOpenReadWrite, ZipFile.kOpenCreate, ZipFile.kOpenTruncate)) {
-	    	System.err.println("Unable to open '" + outFileName + "' as zip archive");
-	        return false;
-	    }
-
-	    if (!copyAndAlign(zin, zout, alignment, zopfli, pageAlignSharedLibs)) {
-	    	System.err.println("zipalign: failed rewriting '" + inFileName + "' to '" + outFileName + "'");
-	    	return false;
-	    }
-	}
-	
-	private static int getAlignment(boolean pageAlignSharedLibs, int defaultAlignment,
-		    ZipEntry entry) {
-
-	    if (!pageAlignSharedLibs) {
-	        return defaultAlignment;
-	    }
-
-	    final String filename = entry.getFileName();
-	    int idx = filename.lastIndexOf('.');
-//	    const char* ext = strrchr(entry.getFileName(), '.');
-	    if (idx > -1) {
-	    	if (filename.subSequence(idx, filename.length()).equals(".so")) {
-	    		return kPageAlignment;
-	    	}
-	    }
-
-	    return defaultAlignment;
-	}
-	
-	/*
-	 * Copy all entries from "zin" to "zout", aligning as needed.
-	 */
-	private static boolean copyAndAlign(ZipFile zin, ZipFile zout, int alignment, boolean zopfli,
-	    boolean pageAlignSharedLibs) {
-	    int numEntries = zin.getNumEntries();
-	    ZipEntry entry;
-	    int bias = 0;
-//	    status_t status;
-
-	    for (int i = 0; i < numEntries; i++) {
-	        ZipEntry newEntry;
-	        int padding = 0;
-
-	        entry = zin.getEntryByIndex(i);
-	        if (entry == null) {
-	            System.err.println("ERROR: unable to retrieve entry " + i);
-	            return false;
-	        }
-
-	        if (entry.isCompressed()) {
-	            /* copy the entry without padding */
-	            //printf("--- %s: orig at %ld len=%ld (compressed)\n",
-	            //    pEntry->getFileName(), (long) pEntry->getFileOffset(),
-	            //    (long) pEntry->getUncompressedLen());
-
-	            if (zopfli) {
-	            	newEntry = zout.addRecompress(zin, entry);
-	                bias += newEntry.getCompressedLen() - entry.getCompressedLen();
-	            } else {
-	                status = zout.add(zin, entry, padding, &pNewEntry);
+	    if (verbose) {
+	        for (ZipVerifier.Result r : report.getResults()) {
+	            String verdict;
+	            switch (r.getStatus()) {
+	                case OK:
+	                    verdict = "OK";
+	                    break;
+	                case COMPRESSED:
+	                    verdict = "OK - compressed";
+	                    break;
+	                case BAD_ALIGNMENT:
+	                    verdict = "BAD - " + (r.getFileOffset() % r.getAlignment());
+	                    break;
+	                case HEADER_MISMATCH:
+	                    verdict = "BAD - header mismatch: " + r.getDetail();
+	                    break;
+	                default:
+	                    verdict = "BAD - unreadable";
+	                    break;
 	            }
-	        } else {
-	            int alignTo = getAlignment(pageAlignSharedLibs, alignment, entry);
-
-	            /*
-	             * Copy the entry, adjusting as required.  We assume that the
-	             * file position in the new file will be equal to the file
-	             * position in the original.
-	             */
-	            long newOffset = entry.getFileOffset() + bias;
-	            padding = (alignTo - (newOffset % alignTo)) % alignTo;
-
-	            //printf("--- %s: orig at %ld(+%d) len=%ld, adding pad=%d\n",
-	            //    pEntry->getFileName(), (long) pEntry->getFileOffset(),
-	            //    bias, (long) pEntry->getUncompressedLen(), padding);
-	            status = zout.add(zin, entry, padding, &pNewEntry);
+	            out.println(String.format("%8d %s (%s)", r.getFileOffset(),
+	                    r.getFileName(), verdict));
 	        }
-
-	        if (status != NO_ERROR)
-	            return 1;
-	        bias += padding;
-	        //printf(" added '%s' at %ld (pad=%d)\n",
-	        //    pNewEntry->getFileName(), (long) pNewEntry->getFileOffset(),
-	        //    padding);
 	    }
 
-	    return 0;
+	    out.println("Verification " + (report.isOk() ? "succesful" : "FAILED"));
+
+	    return report;
 	}
 }
@@ -0,0 +1,184 @@
+package com.brooke.zipalign;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/*
+ * How a ZipAligner aligns and checks archives.  Immutable; make one with
+ * a Builder:
+ *
+ *   ZipAlignOptions options = new ZipAlignOptions.Builder()
+ *           .setAlignment(4).setPageAlignSharedLibs(true).build();
+ *
+ * The defaults are those of the command line tool: 4-byte alignment, one
+ * thread, no recompression, and an existing output file is an error.
+ */
+public final class ZipAlignOptions {
+
+	static final long kDefaultZopfliMemory = 512L * 1024 * 1024;
+	static final long kDefaultZopfliCacheMax = 1024L * 1024 * 1024;
+
+	private final int mAlignment;
+	private final boolean mPageAlignSharedLibs;
+	private final boolean mForce;
+	private final boolean mZopfli;
+	private final int mNumThreads;
+	private final long mZopfliMemory;
+	private final Path mZopfliCacheDir;
+	private final long mZopfliCacheMax;
+	private final boolean mCheckHeaders;
+	private final boolean mVerifyOutput;
+
+	private ZipAlignOptions(Builder b) {
+		mAlignment = b.mAlignment;
+		mPageAlignSharedLibs = b.mPageAlignSharedLibs;
+		mForce = b.mForce;
+		mZopfli = b.mZopfli;
+		mNumThreads = b.mNumThreads;
+		mZopfliMemory = b.mZopfliMemory;
+		mZopfliCacheDir = b.mZopfliCacheDir;
+		mZopfliCacheMax = b.mZopfliCacheMax;
+		mCheckHeaders = b.mCheckHeaders;
+		mVerifyOutput = b.mVerifyOutput;
+	}
+
+	/* alignment in bytes of stored entries, e.g. 4 for 32-bit */
+	public int getAlignment() { return mAlignment; }
+	/* align stored .so files to 4096 instead */
+	public boolean getPageAlignSharedLibs() { return mPageAlignSharedLibs; }
+	/* overwrite an existing output file */
+	public boolean getForce() { return mForce; }
+	/* recompress deflated entries with Zopfli */
+	public boolean getZopfli() { return mZopfli; }
+	/* threads writing, recompressing or checking entries */
+	public int getNumThreads() { return mNumThreads; }
+	/* with Zopfli and several threads, bytes recompression may use */
+	public long getZopfliMemory() { return mZopfliMemory; }
+	/* with Zopfli, where recompressed entries are cached; null for none */
+	public Path getZopfliCacheDir() { return mZopfliCacheDir; }
+	/* bytes the Zopfli cache may hold */
+	public long getZopfliCacheMax() { return mZopfliCacheMax; }
+	/* when verifying, also check each LFH against its CDE */
+	public boolean getCheckHeaders() { return mCheckHeaders; }
+	/* verify each archive after aligning it */
+	public boolean getVerifyOutput() { return mVerifyOutput; }
+
+	/*
+	 * Equal options align identically, so they can share a ZipAligner.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ZipAlignOptions)) {
+			return false;
+		}
+		ZipAlignOptions other = (ZipAlignOptions) o;
+		return Arrays.equals(key(), other.key());
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(key());
+	}
+
+	private Object[] key() {
+		return new Object[] { mAlignment, mPageAlignSharedLibs, mForce, mZopfli, mNumThreads,
+				mZopfliMemory, mZopfliCacheDir, mZopfliCacheMax, mCheckHeaders, mVerifyOutput };
+	}
+
+	/*
+	 * Return a builder starting from these options.
+	 */
+	public Builder toBuilder() {
+		Builder b = new Builder();
+		b.mAlignment = mAlignment;
+		b.mPageAlignSharedLibs = mPageAlignSharedLibs;
+		b.mForce = mForce;
+		b.mZopfli = mZopfli;
+		b.mNumThreads = mNumThreads;
+		b.mZopfliMemory = mZopfliMemory;
+		b.mZopfliCacheDir = mZopfliCacheDir;
+		b.mZopfliCacheMax = mZopfliCacheMax;
+		b.mCheckHeaders = mCheckHeaders;
+		b.mVerifyOutput = mVerifyOutput;
+		return b;
+	}
+
+	public static final class Builder {
+		private int mAlignment = 4;
+		private boolean mPageAlignSharedLibs = false;
+		private boolean mForce = false;
+		private boolean mZopfli = false;
+		private int mNumThreads = 1;
+		private long mZopfliMemory = kDefaultZopfliMemory;
+		private Path mZopfliCacheDir = null;
+		private long mZopfliCacheMax = kDefaultZopfliCacheMax;
+		private boolean mCheckHeaders = false;
+		private boolean mVerifyOutput = false;
+
+		public Builder setAlignment(int alignment) {
+			mAlignment = alignment;
+			return this;
+		}
+
+		public Builder setPageAlignSharedLibs(boolean pageAlignSharedLibs) {
+			mPageAlignSharedLibs = pageAlignSharedLibs;
+			return this;
+		}
+
+		public Builder setForce(boolean force) {
+			mForce = force;
+			return this;
+		}
+
+		public Builder setZopfli(boolean zopfli) {
+			mZopfli = zopfli;
+			return this;
+		}
+
+		public Builder setNumThreads(int numThreads) {
+			mNumThreads = numThreads;
+			return this;
+		}
+
+		public Builder setZopfliMemory(long zopfliMemory) {
+			mZopfliMemory = zopfliMemory;
+			return this;
+		}
+
+		public Builder setZopfliCacheDir(Path zopfliCacheDir) {
+			mZopfliCacheDir = zopfliCacheDir;
+			return this;
+		}
+
+		public Builder setZopfliCacheMax(long zopfliCacheMax) {
+			mZopfliCacheMax = zopfliCacheMax;
+			return this;
+		}
+
+		public Builder setCheckHeaders(boolean checkHeaders) {
+			mCheckHeaders = checkHeaders;
+			return this;
+		}
+
+		public Builder setVerifyOutput(boolean verifyOutput) {
+			mVerifyOutput = verifyOutput;
+			return this;
+		}
+
+		/*
+		 * Throws IllegalArgumentException if a value is out of range.
+		 */
+		public ZipAlignOptions build() {
+			if (mAlignment < 1) {
+				throw new IllegalArgumentException("alignment must be at least 1: " + mAlignment);
+			}
+			if (mNumThreads < 1) {
+				throw new IllegalArgumentException("need at least 1 thread: " + mNumThreads);
+			}
+			if (mZopfliMemory <= 0 || mZopfliCacheMax <= 0) {
+				throw new IllegalArgumentException("Zopfli memory and cache limits must be positive");
+			}
+			return new ZipAlignOptions(this);
+		}
+	}
+}
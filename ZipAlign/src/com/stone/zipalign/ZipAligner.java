@@ -0,0 +1,933 @@
+package com.brooke.zipalign;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Aligns and verifies archives, for use from inside another program:
+ *
+ *   ZipAligner aligner = new ZipAligner(options);
+ *   ZipAligner.Result r = aligner.align(in, out);
+ *   ...
+ *   aligner.close();
+ *
+ * Nothing here exits or throws on a bad archive; every call returns a
+ * result saying what happened.  Failures are also reported on stderr, as
+ * everywhere else in the tool.
+ *
+ * An aligner keeps its thread pools, Zopfli deflaters, copy buffers and
+ * recompress cache from call to call, so aligning thousands of archives
+ * in one JVM pays for them once.  Any number of threads may use one
+ * aligner at once; close() it when done to stop the pools.
+ */
+public class ZipAligner implements Closeable {
+
+	private static final int kPageAlignment = 4096;
+	private static final int kCopyBufSize = 256 * 1024; // per-thread copy buffer
+	private static final int kPrevWindowLen = 256 * 1024; // reads LFHs of the previous output
+
+	/*
+	 * How an align() call ended.
+	 */
+	public enum Status {
+		OK,
+		SAME_FILE,          // input and output are the same file, and it can't be aligned in place
+		OUTPUT_EXISTS,      // output exists and "force" isn't set
+		OPEN_FAILED,        // input isn't a readable archive, or output can't be created
+		WRITE_FAILED,       // failed partway through; the output is incomplete
+		VERIFY_FAILED       // written, but didn't pass verification
+	}
+
+	/*
+	 * The outcome of one align() call.
+	 */
+	public static final class Result {
+		private final Status mStatus;
+		private final String mMessage;
+		private final int mNumEntries;
+		private final long mOutputSize;
+		private final long mElapsedMillis;
+		private final ZipVerifier.Report mReport;
+		private final int mNumReused;
+
+		Result(Status status, String message, int numEntries, long outputSize,
+				long elapsedMillis, ZipVerifier.Report report) {
+			this(status, message, numEntries, outputSize, elapsedMillis, report, 0);
+		}
+
+		Result(Status status, String message, int numEntries, long outputSize,
+				long elapsedMillis, ZipVerifier.Report report, int numReused) {
+			mStatus = status;
+			mMessage = message;
+			mNumEntries = numEntries;
+			mOutputSize = outputSize;
+			mElapsedMillis = elapsedMillis;
+			mReport = report;
+			mNumReused = numReused;
+		}
+
+		public Status getStatus() { return mStatus; }
+		/* what went wrong, or null on success */
+		public String getMessage() { return mMessage; }
+		/* entries in the input; 0 if it couldn't be read */
+		public int getNumEntries() { return mNumEntries; }
+		/* bytes written; 0 unless the output was finished */
+		public long getOutputSize() { return mOutputSize; }
+		public long getElapsedMillis() { return mElapsedMillis; }
+		/* verification of the output, if the options asked for it */
+		public ZipVerifier.Report getReport() { return mReport; }
+		/* entries alignIncremental() kept from the previous output; 0 for align() */
+		public int getNumReused() { return mNumReused; }
+
+		public boolean isOk() {
+			return mStatus == Status.OK;
+		}
+	}
+
+	private final ZipAlignOptions mOptions;
+
+	/* made on first use, then kept until close(); guarded by this */
+	private ExecutorService mPool;
+	private ForkJoinPool mVerifyPool;
+	private final boolean mOwnsPools;     // false if borrowed; close() leaves them be
+	private final Semaphore mZopfliSlots; // shared with other aligners; null if the pools are ours
+	private RecompressCache mCache;
+	private boolean mCacheOpened;
+	private boolean mClosed;
+
+	private final ThreadLocal<ZopfliDeflater> mDeflaters = new ThreadLocal<ZopfliDeflater>() {
+		@Override
+		protected ZopfliDeflater initialValue() {
+			return new ZopfliDeflater();
+		}
+	};
+	private final ThreadLocal<ByteBuffer> mHeaderBufs = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return HeaderCodec.allocate();
+		}
+	};
+	private final ThreadLocal<ByteBuffer> mCopyBufs = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(kCopyBufSize);
+		}
+	};
+
+	public ZipAligner(ZipAlignOptions options) {
+		mOptions = options;
+		mOwnsPools = true;
+		mZopfliSlots = null;
+	}
+
+	/*
+	 * An aligner that runs on the caller's pools instead of its own, so
+	 * several aligners can share the CPUs.  The caller shuts them down.
+	 * "pool" should have a thread per CPU, and "zopfliSlots" a permit per
+	 * CPU; every Zopfli run, whichever thread it is on, holds one, so
+	 * aligners working at once never run more than that between them.
+	 * Recompression always goes through the pool, whatever the thread
+	 * count.
+	 */
+	ZipAligner(ZipAlignOptions options, ExecutorService pool, ForkJoinPool verifyPool,
+			Semaphore zopfliSlots) {
+		mOptions = options;
+		mPool = pool;
+		mVerifyPool = verifyPool;
+		mOwnsPools = false;
+		mZopfliSlots = zopfliSlots;
+	}
+
+	public ZipAlignOptions getOptions() {
+		return mOptions;
+	}
+
+	/*
+	 * Copy the archive "in" to "out" with its stored entries aligned (and
+	 * deflated ones recompressed, if the options say so).  If "out" is
+	 * "in", it is aligned in place instead (see InPlaceAligner).
+	 */
+	public Result align(Path in, Path out) {
+	    return align(in, out, null);
+	}
+
+	/*
+	 * As above, timing each phase and counting its I/O in "stats", if it
+	 * isn't null.
+	 */
+	public Result align(Path in, Path out, AlignStats stats) {
+	    long start = System.nanoTime();
+	    String inFileName = in.toString();
+	    String outFileName = out.toString();
+
+	    if (sameFile(in, out)) {
+	        return alignInPlace(in, start, stats);
+	    }
+
+	    /* don't overwrite existing unless given permission */
+	    if (!mOptions.getForce() && Files.exists(out)) {
+	        return fail(Status.OUTPUT_EXISTS, "Output file '" + outFileName + "' exists", 0, start);
+	    }
+
+	    ZipFile zin = new ZipFile();
+	    zin.setStats(stats);
+	    if (!zin.open(inFileName, ZipFile.kOpenReadOnly)) {
+	        zin.close();
+	        return fail(Status.OPEN_FAILED, "Unable to open '" + inFileName + "' as zip archive", 0, start);
+	    }
+	    int numEntries = zin.getNumEntries();
+	    if (stats != null) {
+	        /* read the LFHs now, rather than in whichever phase first needs them */
+	        AlignStats.Span span = stats.begin(AlignStats.Phase.LFH_READ);
+	        zin.loadLocalHeaders();
+	        span.end();
+	    }
+
+	    ZipFile zout = new ZipFile();
+	    zout.setStats(stats);
+	    if (!zout.open(outFileName, ZipFile.kOpenReadWrite, ZipFile.kOpenCreate, ZipFile.kOpenTruncate)) {
+	        zin.close();
+	        zout.close();
+	        return fail(Status.OPEN_FAILED, "Unable to open '" + outFileName + "' as zip archive",
+	                numEntries, start);
+	    }
+
+	    boolean zopfli = mOptions.getZopfli();
+	    int numThreads = mOptions.getNumThreads();
+	    if (zopfli) {
+	        /* a cache we can't use just means recompressing everything */
+	        zin.setRecompressCache(getCache());
+	    }
+
+	    boolean copied;
+	    if (numThreads > 1 && !zopfli) {
+	        copied = copyAndAlignParallel(zin, zout, stats);
+	    } else if (zopfli && (numThreads > 1 || !mOwnsPools)) {
+	        /* Zopfli on the pool, written in order by copyAndAlign() */
+	        int numWorkers = mOwnsPools ? numThreads
+	                : Math.max(numThreads, Runtime.getRuntime().availableProcessors());
+	        RecompressPipeline pipeline = new RecompressPipeline(zin, getPool(), numWorkers,
+	                mOptions.getZopfliMemory(), mDeflaters, mZopfliSlots);
+	        try {
+	            copied = pipeline.start() && copyAndAlign(zin, zout, pipeline, stats);
+	        } finally {
+	            pipeline.stop();
+	        }
+	    } else {
+	        copied = copyAndAlign(zin, zout, null, stats);
+	    }
+	    zin.close();
+	    if (!copied) {
+	        zout.close();
+	        return fail(Status.WRITE_FAILED, "zipalign: failed rewriting '" + inFileName
+	                + "' to '" + outFileName + "'", numEntries, start);
+	    }
+	    if (!zout.close()) {
+	        return fail(Status.WRITE_FAILED, "zipalign: failed writing central directory of '"
+	                + outFileName + "'", numEntries, start);
+	    }
+
+	    long outputSize = out.toFile().length();
+	    ZipVerifier.Report report = null;
+	    if (mOptions.getVerifyOutput()) {
+	        report = verify(out, stats);
+	        if (!report.isOk()) {
+	            System.err.println("Verification of '" + outFileName + "' FAILED");
+	            return new Result(Status.VERIFY_FAILED, "Verification of '" + outFileName
+	                    + "' FAILED", numEntries, outputSize, elapsedMillis(start), report);
+	        }
+	    }
+	    return new Result(Status.OK, null, numEntries, outputSize, elapsedMillis(start), report);
+	}
+
+	/*
+	 * Align "path" without a second copy: finish an interrupted in-place
+	 * run on it if there was one, or else plan one and carry it out.
+	 */
+	private Result alignInPlace(Path path, long start, AlignStats stats) {
+	    String fileName = path.toString();
+	    InPlaceAligner inPlace = new InPlaceAligner(fileName);
+	    inPlace.setStats(stats);
+
+	    if (inPlace.resume(mOptions.getAlignment(), mOptions.getPageAlignSharedLibs())) {
+	        /* the archive is part way to the journal's layout; only that one will do */
+	        String conflict = mOptions.getZopfli()
+	                ? "it can't be recompressed in place; run again without -z to finish it"
+	                : inPlace.getConflict();
+	        if (conflict != null) {
+	            return fail(Status.SAME_FILE, "Can't align '" + fileName + "' in place: an interrupted "
+	                    + "alignment of it isn't finished, and " + conflict, inPlace.getNumEntries(), start);
+	        }
+	        System.err.println("zipalign: resuming interrupted alignment of '" + fileName + "'");
+	    } else {
+	        if (mOptions.getZopfli()) {
+	            return fail(Status.SAME_FILE, "Can't recompress '" + fileName + "' in place", 0, start);
+	        }
+	        String reason = inPlace.plan(mOptions.getAlignment(), mOptions.getPageAlignSharedLibs());
+	        if (reason != null) {
+	            return fail(Status.SAME_FILE, "Can't align '" + fileName + "' in place: " + reason,
+	                    inPlace.getNumEntries(), start);
+	        }
+	    }
+
+	    if (!inPlace.run()) {
+	        return fail(Status.WRITE_FAILED, "zipalign: aligning '" + fileName
+	                + "' in place failed; run again to resume", inPlace.getNumEntries(), start);
+	    }
+
+	    long outputSize = path.toFile().length();
+	    ZipVerifier.Report report = null;
+	    int numEntries = inPlace.getNumEntries();
+	    if (mOptions.getVerifyOutput()) {
+	        report = verify(path, stats);
+	        if (!report.isOk()) {
+	            System.err.println("Verification of '" + fileName + "' FAILED");
+	            return new Result(Status.VERIFY_FAILED, "Verification of '" + fileName
+	                    + "' FAILED", numEntries, outputSize, elapsedMillis(start), report);
+	        }
+	    }
+	    return new Result(Status.OK, null, numEntries, outputSize, elapsedMillis(start), report);
+	}
+
+	/*
+	 * Align "in" to "out" as align() would, reusing what it can of
+	 * "previous": an earlier output of an aligner with the same options,
+	 * made from an earlier version of "in".
+	 *
+	 * Entries are matched by name.  One whose method, CRC and sizes are
+	 * unchanged, and whose new LFH (padding and all) comes out identical
+	 * to the one already in "previous", is taken from there as it is;
+	 * everything else is written from "in".  The result is the same
+	 * archive align() makes, byte for byte.
+	 *
+	 * "out" may be "previous" itself, in which case the archive is
+	 * rewritten in place: reused entries that haven't moved aren't
+	 * touched at all, so an edit near the end of a big archive costs
+	 * about what the edit does.  (Anything after the first entry that
+	 * grew or shrank has moved, and is written again.)  Otherwise, each
+	 * run of reused entries is one bulk copy from "previous".
+	 *
+	 * With Zopfli, a deflated entry is reused only if "previous" kept its
+	 * original data; entries Zopfli did shrink are recompressed again
+	 * (use a recompress cache to make that cheap).  Work is sequential
+	 * whatever the thread count.  If "previous" doesn't exist yet, this
+	 * is just align().
+	 */
+	public Result alignIncremental(Path in, Path previous, Path out) {
+	    return alignIncremental(in, previous, out, null);
+	}
+
+	/*
+	 * As above, timing each phase and counting its I/O in "stats", if it
+	 * isn't null.
+	 */
+	public Result alignIncremental(Path in, Path previous, Path out, AlignStats stats) {
+	    if (!Files.exists(previous)) {
+	        return align(in, out, stats);
+	    }
+
+	    long start = System.nanoTime();
+	    String inFileName = in.toString();
+	    String prevFileName = previous.toString();
+	    String outFileName = out.toString();
+	    boolean inPlace = sameFile(previous, out);
+
+	    if (sameFile(in, out)) {
+	        return fail(Status.SAME_FILE, "Input and output can't be same file", 0, start);
+	    }
+	    /* rewriting the previous output is what was asked for */
+	    if (!inPlace && !mOptions.getForce() && Files.exists(out)) {
+	        return fail(Status.OUTPUT_EXISTS, "Output file '" + outFileName + "' exists", 0, start);
+	    }
+
+	    ZipFile zin = new ZipFile();
+	    zin.setStats(stats);
+	    if (!zin.open(inFileName, ZipFile.kOpenReadOnly)) {
+	        zin.close();
+	        return fail(Status.OPEN_FAILED, "Unable to open '" + inFileName + "' as zip archive", 0, start);
+	    }
+	    int numEntries = zin.getNumEntries();
+	    if (stats != null) {
+	        /* read the LFHs now, rather than in whichever phase first needs them */
+	        AlignStats.Span span = stats.begin(AlignStats.Phase.LFH_READ);
+	        zin.loadLocalHeaders();
+	        span.end();
+	    }
+
+	    /* everything wanted from here is read before "out" is opened */
+	    ZipFile zprev = new ZipFile();
+	    zprev.setStats(stats);
+	    if (!zprev.open(prevFileName, ZipFile.kOpenReadOnly) || !loadLocalHeaders(zprev, stats)) {
+	        zin.close();
+	        zprev.close();
+	        return fail(Status.OPEN_FAILED, "Unable to open '" + prevFileName + "' as zip archive",
+	                numEntries, start);
+	    }
+
+	    ZipFile zout = new ZipFile();
+	    zout.setStats(stats);
+	    boolean opened;
+	    if (inPlace) {
+	        opened = zout.open(outFileName, ZipFile.kOpenReadWrite) && zout.discardEntries();
+	    } else {
+	        opened = zout.open(outFileName, ZipFile.kOpenReadWrite, ZipFile.kOpenCreate,
+	                ZipFile.kOpenTruncate);
+	    }
+	    if (!opened) {
+	        zin.close();
+	        zprev.close();
+	        zout.close();
+	        return fail(Status.OPEN_FAILED, "Unable to open '" + outFileName + "' as zip archive",
+	                numEntries, start);
+	    }
+
+	    if (mOptions.getZopfli()) {
+	        zin.setRecompressCache(getCache());
+	    }
+
+	    int numReused = copyIncremental(zin, zprev, zout, inPlace, stats);
+	    zin.close();
+	    zprev.close();
+	    if (numReused < 0) {
+	        zout.close();
+	        return fail(Status.WRITE_FAILED, "zipalign: failed rewriting '" + inFileName
+	                + "' to '" + outFileName + "'", numEntries, start);
+	    }
+	    if (!zout.close()) {
+	        return fail(Status.WRITE_FAILED, "zipalign: failed writing central directory of '"
+	                + outFileName + "'", numEntries, start);
+	    }
+
+	    long outputSize = out.toFile().length();
+	    ZipVerifier.Report report = null;
+	    if (mOptions.getVerifyOutput()) {
+	        report = verify(out, stats);
+	        if (!report.isOk()) {
+	            System.err.println("Verification of '" + outFileName + "' FAILED");
+	            return new Result(Status.VERIFY_FAILED, "Verification of '" + outFileName
+	                    + "' FAILED", numEntries, outputSize, elapsedMillis(start), report,
+	                    numReused);
+	        }
+	    }
+	    return new Result(Status.OK, null, numEntries, outputSize, elapsedMillis(start), report,
+	            numReused);
+	}
+
+	/*
+	 * Check the alignment of every entry of "path" (and the headers, if
+	 * the options say so).  An archive that can't be opened gets a report
+	 * that isn't readable.
+	 */
+	public ZipVerifier.Report verify(Path path) {
+	    return verify(path, null);
+	}
+
+	/*
+	 * As above, timing the check and counting its I/O in "stats", if it
+	 * isn't null.
+	 */
+	public ZipVerifier.Report verify(Path path, AlignStats stats) {
+	    return new ZipVerifier(mOptions.getAlignment(), mOptions.getPageAlignSharedLibs(),
+	            mOptions.getCheckHeaders(), getVerifyPool()).verify(path.toString(), stats);
+	}
+
+	/*
+	 * Stop the pools, if they are ours.  The aligner can't be used
+	 * afterwards.
+	 */
+	@Override
+	public synchronized void close() {
+	    mClosed = true;
+	    if (!mOwnsPools) {
+	        return;
+	    }
+	    if (mPool != null) {
+	        mPool.shutdown();
+	        mPool = null;
+	    }
+	    if (mVerifyPool != null) {
+	        mVerifyPool.shutdown();
+	        mVerifyPool = null;
+	    }
+	}
+
+	private static Result fail(Status status, String message, int numEntries, long start) {
+	    System.err.println(message);
+	    return new Result(status, message, numEntries, 0, elapsedMillis(start), null);
+	}
+
+	private static boolean sameFile(Path a, Path b) {
+	    return a.toAbsolutePath().normalize().equals(b.toAbsolutePath().normalize());
+	}
+
+	private static long elapsedMillis(long start) {
+	    return (System.nanoTime() - start) / 1000000;
+	}
+
+	private synchronized ExecutorService getPool() {
+	    checkOpen();
+	    if (mPool == null) {
+	        mPool = Executors.newFixedThreadPool(mOptions.getNumThreads(), daemonThreads("zipalign-"));
+	    }
+	    return mPool;
+	}
+
+	private synchronized ForkJoinPool getVerifyPool() {
+	    checkOpen();
+	    if (mVerifyPool == null) {
+	        mVerifyPool = new ForkJoinPool(mOptions.getNumThreads());
+	    }
+	    return mVerifyPool;
+	}
+
+	private synchronized RecompressCache getCache() {
+	    if (!mCacheOpened && mOptions.getZopfliCacheDir() != null) {
+	        mCache = RecompressCache.open(mOptions.getZopfliCacheDir().toString(),
+	                mOptions.getZopfliCacheMax());
+	    }
+	    mCacheOpened = true;
+	    return mCache;
+	}
+
+	private void checkOpen() {
+	    if (mClosed) {
+	        throw new IllegalStateException("ZipAligner is closed");
+	    }
+	}
+
+	/*
+	 * Pool threads don't keep the JVM alive, in case the caller never
+	 * gets around to close().
+	 */
+	static ThreadFactory daemonThreads(final String prefix) {
+	    return new ThreadFactory() {
+	        private final AtomicInteger mSerial = new AtomicInteger();
+
+	        @Override
+	        public Thread newThread(Runnable r) {
+	            Thread t = new Thread(r, prefix + mSerial.incrementAndGet());
+	            t.setDaemon(true);
+	            return t;
+	        }
+	    };
+	}
+
+	/*
+	 * How much longer the LFH of "entry" gets when ZipFile.add() copies it
+	 * with no padding, e.g. when a Zip64 block has to be added.  Negative
+	 * if it gets shorter.  Everything after the entry moves by this much.
+	 */
+	static long headerGrowth(ZipEntry entry) {
+	    /* getFileOffset() loads the LFHs the new length depends on */
+	    long oldLen = entry.getFileOffset() - entry.getLFHOffset();
+	    return HeaderCodec.copiedLocalLength(entry.mTable, entry.mRow) - oldLen;
+	}
+
+	/*
+	 * Recompress "entry" into "zout" on this thread, holding a Zopfli slot
+	 * if the aligner shares them.
+	 */
+	private ZipEntry addRecompress(ZipFile zin, ZipFile zout, ZipEntry entry) {
+	    if (mZopfliSlots != null) {
+	        mZopfliSlots.acquireUninterruptibly();
+	    }
+	    try {
+	        return zout.addRecompress(zin, entry, mDeflaters.get());
+	    } finally {
+	        if (mZopfliSlots != null) {
+	            mZopfliSlots.release();
+	        }
+	    }
+	}
+
+	/*
+	 * Where the data of "newEntry", an entry added to an archive being
+	 * written, starts.  getFileOffset() goes by the LFH fields in the
+	 * table, which don't count a Zip64 block encodeLocal() adds.
+	 */
+	static long newDataOffset(ZipEntry newEntry) {
+	    return newEntry.getLFHOffset()
+	            + HeaderCodec.encodedLocalLength(newEntry.mTable, newEntry.mRow);
+	}
+
+	/*
+	 * How far the end of "newEntry" is from the end of "entry", the
+	 * original it was recompressed from: the bias for what follows.
+	 */
+	static long endShift(ZipEntry newEntry, ZipEntry entry) {
+	    return newDataOffset(newEntry) + newEntry.getRawDataLen()
+	            - entry.getFileOffset() - entry.getRawDataLen();
+	}
+
+	static int getAlignment(boolean pageAlignSharedLibs, int defaultAlignment,
+	    ZipEntry entry) {
+
+	    if (!pageAlignSharedLibs) {
+	        return defaultAlignment;
+	    }
+
+	    final String filename = entry.getFileName();
+	    int idx = filename.lastIndexOf('.');
+	    if (idx > -1) {
+	    	if (filename.subSequence(idx, filename.length()).equals(".so")) {
+	    		return kPageAlignment;
+	    	}
+	    }
+
+	    return defaultAlignment;
+	}
+
+	/* spans for per-entry work, if there are stats to keep */
+	private static AlignStats.Span begin(AlignStats stats, AlignStats.Phase phase) {
+	    return stats != null ? stats.begin(phase) : null;
+	}
+
+	private static void end(AlignStats.Span span, ZipEntry entry) {
+	    if (span != null) {
+	        span.end(entry.getUncompressedLen());
+	    }
+	}
+
+	/*
+	 * Copy all entries from "zin" to "zout", aligning as needed.  With
+	 * Zopfli, recompressed data comes from "pipeline" if there is one.
+	 */
+	private boolean copyAndAlign(ZipFile zin, ZipFile zout, RecompressPipeline pipeline,
+	    AlignStats stats) {
+	    int alignment = mOptions.getAlignment();
+	    boolean zopfli = mOptions.getZopfli();
+	    boolean pageAlignSharedLibs = mOptions.getPageAlignSharedLibs();
+	    int numEntries = zin.getNumEntries();
+	    ZipEntry entry;
+	    long bias = 0;
+
+	    for (int i = 0; i < numEntries; i++) {
+	        ZipEntry newEntry;
+	        int padding = 0;
+
+	        entry = zin.getEntryByIndex(i);
+	        if (entry == null) {
+	            System.err.println("ERROR: unable to retrieve entry " + i);
+	            return false;
+	        }
+	        Object event = ZipEvents.begin(ZipEvents.kEntry);
+
+	        if (entry.isCompressed()) {
+	            /* copy the entry without padding */
+	            //printf("--- %s: orig at %ld len=%ld (compressed)\n",
+	            //    pEntry->getFileName(), (long) pEntry->getFileOffset(),
+	            //    (long) pEntry->getUncompressedLen());
+
+	            if (zopfli) {
+	            	/* waiting on the pipeline isn't part of the copy */
+	            	byte[] compressed = null;
+	            	boolean piped = pipeline != null && pipeline.handles(i);
+	            	if (piped && (compressed = pipeline.take(i)) == null)
+	            		return false;
+
+	            	AlignStats.Span span = begin(stats, AlignStats.Phase.COPY);
+	            	if (piped) {
+	            		newEntry = zout.addRecompressed(zin, entry, compressed);
+	            	} else {
+	            		newEntry = addRecompress(zin, zout, entry);
+	            	}
+	            	end(span, entry);
+	            	if (newEntry == null)
+	            		return false;
+	                bias = endShift(newEntry, entry);
+	            } else {
+	                AlignStats.Span span = begin(stats, AlignStats.Phase.COPY);
+	                newEntry = zout.add(zin, entry, padding);
+	                end(span, entry);
+	                bias += headerGrowth(entry);
+	            }
+	        } else {
+	            AlignStats.Span span = begin(stats, AlignStats.Phase.PAD);
+	            int alignTo = getAlignment(pageAlignSharedLibs, alignment, entry);
+
+	            /*
+	             * Copy the entry, adjusting as required.  We assume that the
+	             * file position in the new file will be equal to the file
+	             * position in the original, give or take the LFH growing.
+	             */
+	            bias += headerGrowth(entry);
+	            long newOffset = entry.getFileOffset() + bias;
+	            padding = (int) ((alignTo - (newOffset % alignTo)) % alignTo);
+	            if (span != null) {
+	                stats.countPadding(padding);
+	                span = span.next(AlignStats.Phase.COPY);
+	            }
+
+	            //printf("--- %s: orig at %ld(+%d) len=%ld, adding pad=%d\n",
+	            //    pEntry->getFileName(), (long) pEntry->getFileOffset(),
+	            //    bias, (long) pEntry->getUncompressedLen(), padding);
+	            newEntry = zout.add(zin, entry, padding);
+	            end(span, entry);
+	        }
+
+	        if (newEntry == null)
+	            return false;
+	        bias += padding;
+	        if (event != null) {
+	            ZipEvents.endEntry(event, newEntry, padding);
+	        }
+	        //printf(" added '%s' at %ld (pad=%d)\n",
+	        //    pNewEntry->getFileName(), (long) pNewEntry->getFileOffset(),
+	        //    padding);
+	    }
+
+	    return true;
+	}
+
+	/*
+	 * Copy all entries from "zin" to "zout" on the pool.
+	 *
+	 * Stored data never changes size, so every output offset and padding
+	 * amount can be worked out from the central directory alone.  The
+	 * first pass lays out the whole archive with ZipFile.reserve(), using
+	 * the same arithmetic as copyAndAlign(), which makes the result
+	 * byte-identical to the sequential path.  The second pass hands out
+	 * contiguous runs of entries to the pool, which writes them with
+	 * positional I/O.
+	 */
+	private boolean copyAndAlignParallel(final ZipFile zin, final ZipFile zout,
+	    final AlignStats stats) {
+	    int alignment = mOptions.getAlignment();
+	    boolean pageAlignSharedLibs = mOptions.getPageAlignSharedLibs();
+	    int numThreads = mOptions.getNumThreads();
+	    final int numEntries = zin.getNumEntries();
+	    final ZipEntry[] newEntries = new ZipEntry[numEntries];
+	    final int[] paddings = new int[numEntries];
+	    long bias = 0;
+
+	    /* phase 1: plan */
+	    for (int i = 0; i < numEntries; i++) {
+	        int padding = 0;
+
+	        ZipEntry entry = zin.getEntryByIndex(i);
+	        if (entry == null) {
+	            System.err.println("ERROR: unable to retrieve entry " + i);
+	            return false;
+	        }
+
+	        bias += headerGrowth(entry);
+	        if (!entry.isCompressed()) {
+	            AlignStats.Span span = begin(stats, AlignStats.Phase.PAD);
+	            int alignTo = getAlignment(pageAlignSharedLibs, alignment, entry);
+	            long newOffset = entry.getFileOffset() + bias;
+	            padding = (int) ((alignTo - (newOffset % alignTo)) % alignTo);
+	            if (span != null) {
+	                stats.countPadding(padding);
+	                span.end();
+	            }
+	        }
+
+	        newEntries[i] = zout.reserve(zin, entry, padding);
+	        if (newEntries[i] == null)
+	            return false;
+	        paddings[i] = padding;
+	        bias += padding;
+	    }
+
+	    /* phase 2: write, a few runs per thread so the load evens out */
+	    final int numTasks = Math.min(numEntries, numThreads * 4);
+	    ExecutorService pool = getPool();
+	    List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(numTasks);
+	    try {
+	        for (int t = 0; t < numTasks; t++) {
+	            final int first = (int) ((long) numEntries * t / numTasks);
+	            final int last = (int) ((long) numEntries * (t + 1) / numTasks);
+	            results.add(pool.submit(new Callable<Boolean>() {
+	                @Override
+	                public Boolean call() {
+	                    ByteBuffer headerBuf = mHeaderBufs.get();
+	                    ByteBuffer copyBuf = mCopyBufs.get();
+	                    for (int i = first; i < last; i++) {
+	                        ZipEntry entry = zin.getEntryByIndex(i);
+	                        Object event = ZipEvents.begin(ZipEvents.kEntry);
+	                        AlignStats.Span span = begin(stats, AlignStats.Phase.COPY);
+	                        boolean written = zout.writeReserved(zin, entry, newEntries[i],
+	                                headerBuf, copyBuf);
+	                        end(span, entry);
+	                        if (!written) {
+	                            return false;
+	                        }
+	                        if (event != null) {
+	                            ZipEvents.endEntry(event, newEntries[i], paddings[i]);
+	                        }
+	                    }
+	                    return true;
+	                }
+	            }));
+	        }
+
+	        boolean ok = true;
+	        for (Future<Boolean> result : results) {
+	            ok &= result.get();
+	        }
+	        return ok;
+	    } catch (InterruptedException e) {
+	        Thread.currentThread().interrupt();
+	        return false;
+	    } catch (ExecutionException e) {
+	        System.err.println("ERROR: entry writer failed");
+	        e.getCause().printStackTrace();
+	        return false;
+	    } finally {
+	        /* the pool is shared; don't leave our runs behind on it */
+	        for (Future<Boolean> result : results) {
+	            result.cancel(false);
+	        }
+	    }
+	}
+
+	/*
+	 * Copy all entries from "zin" to "zout" as copyAndAlign() would, but
+	 * take the ones "zprev" already has right from there (see
+	 * alignIncremental()).  "zout" is laid out with reserve(), so where
+	 * each entry goes is known before anything is written.
+	 *
+	 * Returns the number of entries reused, or -1 on failure.
+	 */
+	private int copyIncremental(ZipFile zin, ZipFile zprev, ZipFile zout, boolean inPlace,
+	    AlignStats stats) {
+	    int alignment = mOptions.getAlignment();
+	    boolean zopfli = mOptions.getZopfli();
+	    boolean pageAlignSharedLibs = mOptions.getPageAlignSharedLibs();
+	    int numEntries = zin.getNumEntries();
+	    ByteBuffer headerBuf = mHeaderBufs.get();
+	    ByteBuffer copyBuf = mCopyBufs.get();
+	    ReadWindow window = new ReadWindow(zprev.getChannel(), kPrevWindowLen);
+	    int numReused = 0;
+	    long bias = 0;
+
+	    /* reused entries not yet copied, all contiguous in both files */
+	    long runSrc = 0;
+	    long runDst = 0;
+	    long runLen = 0;
+
+	    for (int i = 0; i < numEntries; i++) {
+	        int padding = 0;
+
+	        ZipEntry entry = zin.getEntryByIndex(i);
+	        if (entry == null) {
+	            System.err.println("ERROR: unable to retrieve entry " + i);
+	            return -1;
+	        }
+	        ZipEntry prev = zprev.getEntryByName(entry.getFileNameBytes());
+	        boolean sameData = prev != null && sameData(entry, prev);
+
+	        if (entry.isCompressed() && zopfli && !sameData) {
+	            AlignStats.Span span = begin(stats, AlignStats.Phase.COPY);
+	            ZipEntry newEntry = addRecompress(zin, zout, entry);
+	            end(span, entry);
+	            if (newEntry == null)
+	                return -1;
+	            bias = endShift(newEntry, entry);
+	            continue;
+	        }
+	        AlignStats.Span span = begin(stats, AlignStats.Phase.PAD);
+	        bias += headerGrowth(entry);
+	        if (!entry.isCompressed()) {
+	            int alignTo = getAlignment(pageAlignSharedLibs, alignment, entry);
+	            long newOffset = entry.getFileOffset() + bias;
+	            padding = (int) ((alignTo - (newOffset % alignTo)) % alignTo);
+	        }
+
+	        ZipEntry newEntry = zout.reserve(zin, entry, padding);
+	        if (span != null) {
+	            stats.countPadding(padding);
+	            span = span.next(AlignStats.Phase.COPY);
+	        }
+	        if (newEntry == null) {
+	            end(span, entry);
+	            return -1;
+	        }
+	        bias += padding;
+
+	        long srcPosn = sameData ? prev.getLFHOffset() : -1;
+	        long dstPosn = newEntry.getLFHOffset();
+	        if (!sameData || !zout.sameLocalHeader(newEntry, prev, window, headerBuf)
+	                || (inPlace && srcPosn != dstPosn)) {
+	            /*
+	             * In place, this only ever overwrites entries that are
+	             * written again anyway: everything left where it was lies
+	             * past the end of whatever moved in front of it.
+	             */
+	            boolean written = zout.writeReserved(zin, entry, newEntry, headerBuf, copyBuf);
+	            end(span, entry);
+	            if (!written)
+	                return -1;
+	            continue;
+	        }
+	        end(span, entry);
+
+	        numReused++;
+	        if (inPlace) {
+	            continue;           // already there
+	        }
+	        long len = prev.getFileOffset() - srcPosn + prev.getRawDataLen();
+	        if (runLen > 0 && runSrc + runLen == srcPosn && runDst + runLen == dstPosn) {
+	            runLen += len;
+	            continue;
+	        }
+	        if (runLen > 0 && !copyRun(zprev, zout, runSrc, runDst, runLen, stats))
+	            return -1;
+	        runSrc = srcPosn;
+	        runDst = dstPosn;
+	        runLen = len;
+	    }
+
+	    if (runLen > 0 && !copyRun(zprev, zout, runSrc, runDst, runLen, stats))
+	        return -1;
+	    return numReused;
+	}
+
+	private static boolean loadLocalHeaders(ZipFile zip, AlignStats stats) {
+	    AlignStats.Span span = begin(stats, AlignStats.Phase.LFH_READ);
+	    boolean loaded = zip.loadLocalHeaders();
+	    if (span != null) {
+	        span.end();
+	    }
+	    return loaded;
+	}
+
+	/*
+	 * Copy a run of reused entries from "zprev" to "zout", timed as a
+	 * copy.
+	 */
+	private static boolean copyRun(ZipFile zprev, ZipFile zout, long src, long dst, long len,
+	    AlignStats stats) {
+	    AlignStats.Span span = begin(stats, AlignStats.Phase.COPY);
+	    boolean copied = zout.copyRaw(zprev, src, dst, len);
+	    if (span != null) {
+	        span.end();
+	    }
+	    return copied;
+	}
+
+	/*
+	 * True if "a" and "b" hold the same data the same way, as far as the
+	 * central directory can tell.
+	 */
+	private static boolean sameData(ZipEntry a, ZipEntry b) {
+	    return a.getCompressionMethod() == b.getCompressionMethod()
+	            && a.getCRC32() == b.getCRC32()
+	            && a.getCompressedLen() == b.getCompressedLen()
+	            && a.getUncompressedLen() == b.getUncompressedLen()
+	            && a.getRawDataLen() == b.getRawDataLen();
+	}
+}
@@ -1,169 +1,248 @@
 package com.brooke.zipalign;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/*
+ * One entry in a Zip archive.
+ *
+ * The fields themselves live in the owning ZipFile's CentralDirTable; a
+ * ZipEntry is just a (table, row) handle, so they are cheap to create and
+ * two handles on the same row see the same data.
+ */
 public class ZipEntry {
-	
+
 	static final int kCompressStored = 0; // no compression
 	static final int kCompressDeflated = 8; // standard deflate
 
-	CentralDirEntry mCDE = new CentralDirEntry();
-	LocalFileHeader mLFH = new LocalFileHeader();
-	
-	/*
-	 * Initialize a new ZipEntry structure from a FILE* positioned at a
-	 * CentralDirectoryEntry.
-	 *
-	 * On exit, the file pointer will be at the start of the next CDE or
-	 * at the EOCD.
-	 */
-	public boolean initFromCDE(FileInputStream fis) throws IOException {
-	    long posn;
-//	    boolean hasDD;
-
-	    //ALOGV("initFromCDE ---\n");
-
-	    /* read the CDE */
-	    if (!mCDE.read(fis)) {
-	        System.err.println("mCDE.read failed");
-	        return false;
-	    }
-
-	    //mCDE.dump();
-
-	    /* using the info in the CDE, go load up the LFH */
-	    posn = fis.getChannel().position();
-	    if (fis.skip(mCDE.mLocalHeaderRelOffset) != mCDE.mLocalHeaderRelOffset) {
-	        System.err.println("local header seek failed: " + mCDE.mLocalHeaderRelOffset);
-	        return false;
-	    }
-
-	    if (!mLFH.read(fis)) {
-	        System.err.println("mLFH.read failed");
-	        return false;
-	    }
-
-	    ZipFile.setFilePointerPosition(fis, posn);
-
-	    //mLFH.dump();
-
-	    /*
-	     * Sanity-check the LFH.  Note that this will fail if the "kUsesDataDescr"
-	     * flag is set, because the LFH is incomplete.  (Not a problem, since we
-	     * prefer the CDE values.)
-	     */
-//	    if (!compareHeaders()) {
-//	        System.err.println("WARNING: header mismatch!");
-	        // keep going?
-//	    }
-
-	    /*
-	     * If the mVersionToExtract is greater than 20, we may have an
-	     * issue unpacking the record -- could be encrypted, compressed
-	     * with something we don't support, or use Zip64 extensions.  We
-	     * can defer worrying about that to when we're extracting data.
-	     */
-	    return true;
+	static final int kUsesDataDescr = 0x0008; // GPBitFlag: sizes/CRC follow the data
+	static final int kDataDescriptorLen = 16; // four 32-bit fields, incl. signature
+	static final int kZip64DataDescriptorLen = 24; // sizes are 64 bits with Zip64
+	static final int kDataDescriptorSignature = 0x08074b50;
+
+	static final int kDefaultVersion = 20; // need deflate, nothing much else
+	static final int kDefaultMadeBy = 0x0317; // 03=UNIX, 17=spec v2.3
+
+	final CentralDirTable mTable;
+	final int mRow;
+
+	ZipEntry(CentralDirTable table, int row) {
+		mTable = table;
+		mRow = row;
 	}
-	
+
 	public boolean isCompressed() {
-        return mCDE.mCompressionMethod != kCompressStored;
+        return mTable.mCompressionMethod[mRow] != kCompressStored;
     }
-	
+
+	/*
+	 * Return the compression method (kCompressStored, kCompressDeflated).
+	 */
+	public int getCompressionMethod() {
+		return mTable.mCompressionMethod[mRow] & 0xffff;
+	}
+
 	/*
      * Return the uncompressed length.
      */
-    public int getUncompressedLen() { 
-    	return mCDE.mUncompressedSize; 
+    public long getUncompressedLen() {
+    	return mTable.mUncompressedSize[mRow];
     }
-    
+
     /*
      * Return the compressed length.  For uncompressed data, this returns
      * the same thing as getUncompresesdLen().
      */
-    public int getCompressedLen() { 
-    	return mCDE.mCompressedSize; 
+    public long getCompressedLen() {
+    	return mTable.mCompressedSize[mRow];
+    }
+
+    /*
+     * Return the CRC-32 of the uncompressed data.
+     */
+    public int getCRC32() {
+    	return mTable.mCRC32[mRow];
+    }
+
+	/*
+     * Return the number of raw bytes that follow the LFH: the compressed
+     * data, plus the data descriptor if the entry has one.  The descriptor
+     * has 64-bit sizes if the entry is Zip64 anywhere: a size that won't
+     * fit in 32 bits, or a Zip64 block in either header.
+     *
+     * Reads the archive's LFHs if they aren't loaded yet; returns -1 if
+     * that fails.
+     */
+    long getRawDataLen() {
+        if (!mTable.ensureLocalHeaders())
+            return -1;
+        long len = getCompressedLen();
+        if ((mTable.mLFHGPBitFlag[mRow] & kUsesDataDescr) != 0) {
+            boolean zip64 = len >= EndOfCentralDir.kMaxOffset
+                    || getUncompressedLen() >= EndOfCentralDir.kMaxOffset
+                    || mTable.hasFlag(mRow, CentralDirTable.kFlagLocalZip64)
+                    || mTable.hasFlag(mRow, CentralDirTable.kFlagCentralZip64);
+            len += zip64 ? kZip64DataDescriptorLen : kDataDescriptorLen;
+        }
+        return len;
     }
 
 	/*
      * Return the absolute file offset of the start of the compressed or
      * uncompressed data.
+     *
+     * Reads the archive's LFHs if they aren't loaded yet; returns -1 if
+     * that fails.
      */
-    public int getFileOffset() {
-        return mCDE.mLocalHeaderRelOffset +
+    public long getFileOffset() {
+        if (!mTable.ensureLocalHeaders())
+            return -1;
+        return getLFHOffset() +
                 LocalFileHeader.kLFHLen +
-                mLFH.mFileNameLength +
-                mLFH.mExtraFieldLength;
+                mTable.mLFHFileNameLength[mRow] +
+                mTable.mLFHExtraFieldLength[mRow];
     }
-    
+
     /*
      * Return the archived file name.
      */
-    public String getFileName() { 
-    	return mCDE.mFileName; 
+    public String getFileName() {
+    	return new String(mTable.mVarArena, mTable.getFileNameOffset(mRow),
+    			mTable.mFileNameLength[mRow], StandardCharsets.UTF_8);
     }
-    
+
     /*
-     * Initialize a new entry, starting with the ZipEntry from a different
-     * archive.
-     *
-     * Initializes the CDE and the LFH.
+     * Return a copy of the raw file name bytes.
      */
-    boolean initFromExternal(ZipFile zipFile, ZipEntry entry) {
-        /*
-         * Copy everything in the CDE over, then fix up the hairy bits.
-         */
-        mCDE = entry.mCDE;
-
-        if (mCDE.mFileNameLength > 0) {
-            mCDE.mFileName = entry.mCDE.mFileName;
-        }
-        
-        if (mCDE.mFileCommentLength > 0) {
-            mCDE.mFileComment = entry.mCDE.mFileComment;
-        }
-        
-        if (mCDE.mExtraFieldLength > 0) {
-            /* TODO <BL> what if this is not a string?? */
-            mCDE.mExtraField = entry.mCDE.mExtraField;
-        }
+    byte[] getFileNameBytes() {
+    	int offset = mTable.getFileNameOffset(mRow);
+    	return Arrays.copyOfRange(mTable.mVarArena, offset, offset + mTable.mFileNameLength[mRow]);
+    }
 
-        /* construct the LFH from the CDE */
-        copyCDEtoLFH();
-
-        /*
-         * The LFH "extra" field is independent of the CDE "extra", so we
-         * handle it here.
-         */
-        assert(mLFH.mExtraField == null);
-        mLFH.mExtraFieldLength = entry.mLFH.mExtraFieldLength;
-        if (mLFH.mExtraFieldLength > 0) {
-            mLFH.mExtraField = entry.mLFH.mExtraField;
+    /*
+     * Has this entry been marked for deletion?
+     */
+    public boolean getDeleted() {
+        return mTable.hasFlag(mRow, CentralDirTable.kFlagDeleted);
+    }
+
+    /*
+     * Mark this entry for deletion; it is crunched out at flush() time.
+     */
+    void setDeleted() {
+        mTable.setFlag(mRow, CentralDirTable.kFlagDeleted);
+    }
+
+    /*
+     * Return the offset of the local file header.
+     */
+    public long getLFHOffset() {
+        return mTable.mLocalHeaderRelOffset[mRow];
+    }
+
+    /*
+     * Set the offset of the local file header.
+     */
+    void setLFHOffset(long offset) {
+        mTable.mLocalHeaderRelOffset[mRow] = offset;
+    }
+
+    /*
+     * Set the data sizes, CRC and compression method of an entry whose
+     * data has been rewritten.  The new sizes always go in the LFH, so
+     * any data descriptor is dropped.
+     */
+    void setDataInfo(long uncompLen, long compLen, int crc32, int compressionMethod) {
+        mTable.mCompressionMethod[mRow] = (short) compressionMethod;
+        mTable.mCRC32[mRow] = crc32;
+        mTable.mCompressedSize[mRow] = compLen;
+        mTable.mUncompressedSize[mRow] = uncompLen;
+        int flags = mTable.mGPBitFlag[mRow] & ~kUsesDataDescr;
+        if (compressionMethod == kCompressDeflated) {
+            flags |= 0x0002;      // indicates maximum compression used
         }
+        mTable.mGPBitFlag[mRow] = (short) flags;
+        mTable.mLFHGPBitFlag[mRow] = (short) flags;
+    }
 
-        return true;
+    /*
+     * Set the modification date and time from "when", in milliseconds
+     * since the epoch, as ZipEntry::setModWhen() did.  Unlike the C++
+     * version this goes by UTC rather than local time, so the same input
+     * makes the same archive on any machine.
+     */
+    void setModWhen(long when) {
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        /* round up to an even number of seconds */
+        cal.setTimeInMillis(((when / 1000 + 1) & ~1L) * 1000);
+
+        int year = Math.max(cal.get(Calendar.YEAR), 1980);
+        int zdate = (year - 1980) << 9 | (cal.get(Calendar.MONTH) + 1) << 5
+                | cal.get(Calendar.DAY_OF_MONTH);
+        int ztime = cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5
+                | cal.get(Calendar.SECOND) >> 1;
+
+        mTable.mLastModFileTime[mRow] = (short) ztime;
+        mTable.mLastModFileDate[mRow] = (short) zdate;
     }
-    
+
     /*
-     * Set the fields in the LFH equal to the corresponding fields in the CDE.
+     * Compare the CDE fields of this entry with a local file header read
+     * from the archive, as ZipEntry::compareHeaders() did.
      *
-     * This does not touch the LFH "extra" field.
+     * Returns null if they agree, or the name of the first field that
+     * doesn't.  The "extra" fields are not compared; the LFH one is used
+     * for padding.
+     */
+    String compareHeaders(LocalFileHeader lfh) {
+        if (mTable.mVersionToExtract[mRow] != lfh.mVersionToExtract)
+            return "VersionToExtract";
+        if (mTable.mGPBitFlag[mRow] != lfh.mGPBitFlag)
+            return "GPBitFlag";
+        if (mTable.mCompressionMethod[mRow] != lfh.mCompressionMethod)
+            return "CompressionMethod";
+        if (mTable.mLastModFileTime[mRow] != lfh.mLastModFileTime)
+            return "LastModFileTime";
+        if (mTable.mLastModFileDate[mRow] != lfh.mLastModFileDate)
+            return "LastModFileDate";
+        if (mTable.mCRC32[mRow] != lfh.mCRC32)
+            return "CRC32";
+        if (mTable.mCompressedSize[mRow] != lfh.mCompressedSize)
+            return "CompressedSize";
+        if (mTable.mUncompressedSize[mRow] != lfh.mUncompressedSize)
+            return "UncompressedSize";
+        if (mTable.mFileNameLength[mRow] != (lfh.mFileNameLength & 0xffff))
+            return "FileNameLength";
+
+        int offset = mTable.getFileNameOffset(mRow);
+        for (int i = 0; i < mTable.mFileNameLength[mRow]; i++) {
+            if (mTable.mVarArena[offset + i] != lfh.mFileName[i])
+                return "FileName";
+        }
+
+        return null;
+    }
+
+    /*
+     * Dump the contents of the central dir entry.
      */
-    private void copyCDEtoLFH() {
-        mLFH.mVersionToExtract  = mCDE.mVersionToExtract;
-        mLFH.mGPBitFlag         = mCDE.mGPBitFlag;
-        mLFH.mCompressionMethod = mCDE.mCompressionMethod;
-        mLFH.mLastModFileTime   = mCDE.mLastModFileTime;
-        mLFH.mLastModFileDate   = mCDE.mLastModFileDate;
-        mLFH.mCRC32             = mCDE.mCRC32;
-        mLFH.mCompressedSize    = mCDE.mCompressedSize;
-        mLFH.mUncompressedSize  = mCDE.mUncompressedSize;
-        mLFH.mFileNameLength    = mCDE.mFileNameLength;
-        // the "extra field" is independent
-        mLFH.mFileName = mCDE.mFileName;
+    void dump() {
+    	mTable.toCentralDirEntry(mRow).dump();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+    	if (!(o instanceof ZipEntry)) {
+    		return false;
+    	}
+    	ZipEntry other = (ZipEntry) o;
+    	return other.mTable == mTable && other.mRow == mRow;
+    }
+
+    @Override
+    public int hashCode() {
+    	return System.identityHashCode(mTable) * 31 + mRow;
     }
 }
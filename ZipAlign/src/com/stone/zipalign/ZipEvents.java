@@ -0,0 +1,89 @@
+package com.brooke.zipalign;
+
+/*
+ * Hooks for Java Flight Recorder events: one per entry copied, per
+ * entry recompressed and per entry inflated, and one each for loading
+ * and flushing a central directory.
+ *
+ * JFR's event API needs Java 11, and this tree builds for 7, so the
+ * events themselves live apart, in ZipAlignJfr (class JfrEvents).  If
+ * that is on the class path and the JVM has JFR, it is found here at
+ * startup; otherwise there is no sink and every hook is a test of a
+ * static final null, which the JIT folds away.  With the sink present,
+ * the events are still disabled until a recording turns them on (see
+ * ZipAlignJfr/zipalign.jfc), and a disabled event costs one call.
+ *
+ * Call sites bracket the work:
+ *
+ *   Object event = ZipEvents.begin(ZipEvents.kEntry);
+ *   ...
+ *   if (event != null)
+ *       ZipEvents.endEntry(event, entry, padding);
+ *
+ * begin() returns null when the event is off, so nothing is looked up or
+ * allocated for it.
+ */
+final class ZipEvents {
+
+	static final int kEntry = 0;        // copyAndAlign() of one entry
+	static final int kRecompress = 1;   // Zopfli recompression of one entry
+	static final int kInflate = 2;      // inflating one entry
+	static final int kDirectory = 3;    // loading or flushing a central directory
+
+	private static final String kSinkClass = "com.brooke.zipalign.JfrEvents";
+
+	/*
+	 * Implemented by JfrEvents.  "event" is whatever begin() returned.
+	 */
+	interface Sink {
+		/* returns null if events of "kind" aren't being recorded */
+		Object begin(int kind);
+		void endEntry(Object event, ZipEntry entry, int padding);
+		void endRecompress(Object event, ZipEntry entry, long newCompressedLen);
+		void endInflate(Object event, ZipEntry entry);
+		void endDirectory(Object event, String archive, boolean flush, int numEntries, long cdSize);
+	}
+
+	private static final Sink kSink = findSink();
+
+	private ZipEvents() {
+	}
+
+	static Object begin(int kind) {
+		return kSink != null ? kSink.begin(kind) : null;
+	}
+
+	static void endEntry(Object event, ZipEntry entry, int padding) {
+		kSink.endEntry(event, entry, padding);
+	}
+
+	/* "newCompressedLen" is -1 if recompression failed */
+	static void endRecompress(Object event, ZipEntry entry, long newCompressedLen) {
+		kSink.endRecompress(event, entry, newCompressedLen);
+	}
+
+	static void endInflate(Object event, ZipEntry entry) {
+		kSink.endInflate(event, entry);
+	}
+
+	static void endDirectory(Object event, String archive, boolean flush, int numEntries,
+			long cdSize) {
+		kSink.endDirectory(event, archive, flush, numEntries, cdSize);
+	}
+
+	private static Sink findSink() {
+		try {
+			return (Sink) Class.forName(kSinkClass).getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;                // ZipAlignJfr isn't on the class path
+		} catch (LinkageError e) {
+			return null;                // built for a newer JVM, or no JFR here
+		} catch (ReflectiveOperationException e) {
+			System.err.println("zipalign: unable to load JFR events: " + e);
+			return null;
+		} catch (RuntimeException e) {
+			System.err.println("zipalign: unable to load JFR events: " + e);
+			return null;
+		}
+	}
+}
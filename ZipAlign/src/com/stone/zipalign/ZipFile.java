@@ -1,16 +1,26 @@
 package com.brooke.zipalign;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
-import java.util.Arrays;
-import java.util.Vector;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.stone.ziputil.ZipUtils;
 
 public class ZipFile {
 
@@ -27,44 +37,135 @@ public class ZipFile {
 	public static final String FILE_OPEN_RW_CREATE = "w+b";	
 	
 	private File zipFile = null;
-	private FileInputStream fis = null;
+	private FileChannel mChannel = null;
 	private boolean needCDRewrite = false;
 	private EndOfCentralDir mEOCD = new EndOfCentralDir();
-	private Vector<ZipEntry> mEntries = new Vector<ZipEntry>();
+	private CentralDirTable mTable = new CentralDirTable(0, 0); // the central directory, by column
 	private boolean readOnly = false;
+	private ByteBuffer mHeaderBuf = HeaderCodec.allocate(); // scratch for header encode/decode
+	private NameIndex mNameIndex = null; // built on the first lookup by name
+	private ZopfliDeflater mZopfli = null; // for addRecompress(), made on first use
+	private Deflater mDeflater = null; // for addStream(), made on first use
+
+	/* entries bigger than this are recompressed as streams, not in memory */
+	static final long kMaxInMemoryRecompress = 64L * 1024 * 1024;
+	private static final int kStreamBufSize = 64 * 1024;
+	private static final int kCrunchBufSize = 8 * 1024 * 1024; // for crunchArchive()'s moves
+	private RecompressCache mRecompressCache = null; // for recompress(), if set
+	private AlignStats mStats = null; // I/O counts and phase times, if set
 	
-	public static void setFileInputStreamPosition(FileInputStream fis, long position) {
+	public static void setFileInputStreamPosition(FileInputStream fis, long position) throws IOException {
 		FileChannel fc = fis.getChannel();
 		fc.position(position);
 	}
 	
-	public static long getFileInputStreamPosition(FileInputStream fis) {
+	public static long getFileInputStreamPosition(FileInputStream fis) throws IOException {
 		return fis.getChannel().position();
 	}
 	
-	public static void setFileOutputStreamPosition(FileOutputStream fos, long position) {
+	public static void setFileOutputStreamPosition(FileOutputStream fos, long position) throws IOException {
 		FileChannel fc = fos.getChannel();
 		fc.position(position);
 	}
 	
-	public static long getFileOutputStreamPosition(FileOutputStream fos) {
+	public static long getFileOutputStreamPosition(FileOutputStream fos) throws IOException {
 		return fos.getChannel().position();
 	}
 	
+	/*
+	 * The channel the archive was opened on, for positional reads by
+	 * helpers that run alongside us (e.g. ZipVerifier).
+	 */
+	FileChannel getChannel() {
+		return mChannel;
+	}
+
+	/*
+	 * Look up, and save, recompress() results for this archive's entries
+	 * in "cache".  May be null.
+	 */
+	public void setRecompressCache(RecompressCache cache) {
+		mRecompressCache = cache;
+	}
+
+	/*
+	 * Count the I/O done on this archive, and time reading and writing
+	 * its directory, in "stats".  Must be called before open().
+	 */
+	public void setStats(AlignStats stats) {
+		assert(mChannel == null);
+		mStats = stats;
+	}
+
+	/*
+	 * Read the local file headers of every entry, if that hasn't happened
+	 * yet.  Anything that needs entry data offsets does this on its own,
+	 * but calling it up front reports a damaged archive early.
+	 */
+	public boolean loadLocalHeaders() {
+		return mTable.ensureLocalHeaders();
+	}
+
 	public int getNumEntries() { 
-		return mEntries.size(); 
+		return mTable.mCount;
 	}
 	
 	/*
 	 * Return the Nth entry in the archive.
 	 */
 	public ZipEntry getEntryByIndex(int idx) {
-	    if (idx < 0 || idx >= (int) mEntries.size())
+	    if (idx < 0 || idx >= mTable.mCount)
 	        return null;
 
-	    return mEntries.elementAt(idx);
+	    return new ZipEntry(mTable, idx);
 	}
 	
+	/*
+	 * Find an entry by name.  Deleted entries are skipped; if the name
+	 * appears more than once, the last entry is returned.
+	 */
+	public ZipEntry getEntryByName(String fileName) {
+	    return getEntryByName(fileName.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/*
+	 * Find an entry by its raw (UTF-8) name bytes.
+	 *
+	 * The first call builds a hash index over every name; after that,
+	 * lookups are constant-time and the index follows adds and removes.
+	 */
+	ZipEntry getEntryByName(byte[] fileName) {
+	    if (mNameIndex == null) {
+	        mNameIndex = new NameIndex(mTable);
+	    }
+
+	    int idx = mNameIndex.find(fileName);
+	    return idx < 0 ? null : new ZipEntry(mTable, idx);
+	}
+
+	/*
+	 * Mark an entry as deleted.
+	 *
+	 * We will eventually need to crunch the file down, but if several files
+	 * are being removed (perhaps as part of an "update" process) we can make
+	 * things considerably faster by deferring the removal to "flush" time.
+	 */
+	public boolean remove(ZipEntry entry) {
+	    /*
+	     * Should verify that entry is actually part of this archive, and
+	     * not some stray ZipEntry from a different file.
+	     */
+	    assert(entry.mTable == mTable);
+
+	    /* mark entry as deleted, and mark archive as dirty */
+	    entry.setDeleted();
+	    if (mNameIndex != null && !mNameIndex.remove(entry.mRow)) {
+	        mNameIndex = null;
+	    }
+	    needCDRewrite = true;
+	    return true;
+	}
+
 	/*
 	 * Open a file and parse its guts.
 	 */
@@ -131,9 +232,22 @@ public class ZipFile {
 	        openflags = FILE_OPEN_RO;
 	    }
 	    
-	    zipFile = new File(zipFileName, openflags);
-	    // TODO <BL> need to close this at some point?? (or ok if program just exits??)
-	    fis = new FileInputStream(zipFile);
+	    zipFile = new File(zipFileName);
+	    try {
+	    	/*
+	    	 * All positional I/O goes through one channel.  "w+b" is the only
+	    	 * mode that truncates; RandomAccessFile has no equivalent, so do
+	    	 * it by hand.
+	    	 */
+	    	RandomAccessFile raf = new RandomAccessFile(zipFile, readWrite ? "rw" : "r");
+	    	if (openflags.equals(FILE_OPEN_RW_CREATE)) {
+	    		raf.setLength(0);
+	    	}
+	    	mChannel = mStats != null ? mStats.wrap(raf.getChannel()) : raf.getChannel();
+	    } catch (IOException e) {
+	    	System.err.println("Unable to open " + zipFileName + ": " + e.getMessage());
+	    	return false;
+	    }
 
 	    if (!newArchive) {
 	        /*
@@ -176,7 +290,6 @@ public class ZipFile {
 	 * it though, so we're in pretty good company if this fails.
 	 */
 	private boolean readCentralDir() {
-	    byte[] buf = null;
 	    long fileLength;
 		long seekStart;
 	    long readAmount;
@@ -190,8 +303,6 @@ public class ZipFile {
 	        return false;
 	    }
 
-	    buf = new byte[EndOfCentralDir.kMaxEOCDSearch];
-
 	    if (fileLength > EndOfCentralDir.kMaxEOCDSearch) {
 	        seekStart = fileLength - EndOfCentralDir.kMaxEOCDSearch;
 	        readAmount = EndOfCentralDir.kMaxEOCDSearch;
@@ -200,497 +311,1314 @@ public class ZipFile {
 	        readAmount = fileLength;
 	    }
 
-	    /* read the last part of the file into the buffer */
+	    Object event = ZipEvents.begin(ZipEvents.kDirectory);
+	    AlignStats.Span span = mStats != null ? mStats.begin(AlignStats.Phase.EOCD_SEARCH) : null;
 	    try {
-	    	ZipFile.setFileInputStreamPosition(fis, seekStart);
-	    	
-		    if (fis.read(buf, 0, (int)readAmount) != readAmount) {
-		        System.err.println("short file? wanted " + readAmount);
-		        return false;
-		    }
-	
+	    	FileChannel fc = mChannel;
+
+	    	/*
+	    	 * Map the last part of the file rather than copying it into a
+	    	 * buffer.  All of the fixed-size fields are decoded straight out
+	    	 * of the mapping in ZIP (little-endian) byte order.
+	    	 */
+	    	MappedByteBuffer tail = fc.map(FileChannel.MapMode.READ_ONLY, seekStart, readAmount);
+	    	tail.order(ByteOrder.LITTLE_ENDIAN);
+
 		    /* find the end-of-central-dir magic */
-		    for (i = (int) (readAmount - 4); i >= 0; i--) {
-		        if (buf[i] == 0x50) {
-		        	byte[] sigBytes = Arrays.copyOfRange(buf, i, i+2);
-		    	    int sig = Integer.decode(new String(sigBytes));
-		        	if (sig == EndOfCentralDir.kSignature) {
-		        		//ALOGV("+++ Found EOCD at buf+%d\n", i);
-		        		break;
-		        	}
-		        }
-		    }
-		    
+		    i = EndOfCentralDir.findSignature(tail, (int) readAmount);
 		    if (i < 0) {
 		        System.err.println("EOCD not found, not Zip");
 		        return false;
 		    }
-	
+		    //ALOGV("+++ Found EOCD at buf+%d\n", i);
+
 		    /* extract eocd values */
-		    byte[] eocd = Arrays.copyOfRange(buf, i, (int) (readAmount - i)); 
-	//	    result = mEOCD.readBuf(buf + i, readAmount - i);
-	//	    if (result != NO_ERROR) {
-		        //ALOGD("Failure reading %ld bytes of EOCD values", readAmount - i);
-	//	        goto bail;
-	//	    }
+		    tail.position(i);
+		    if (!mEOCD.readBuf(tail)) {
+		    	System.err.println("Failure reading " + (readAmount - i) + " bytes of EOCD values");
+		    	return false;
+		    }
 		    //mEOCD.dump();
-	
+
+		    /*
+		     * A Zip64 archive has a locator right in front of the EOCD.  It
+		     * may fall just outside the mapped tail, so read it directly.
+		     */
+		    long eocdPosn = seekStart + i;
+		    if (eocdPosn >= EndOfCentralDir.kZip64LocatorLen) {
+		    	mHeaderBuf.clear();
+		    	mHeaderBuf.limit(EndOfCentralDir.kZip64LocatorLen);
+		    	fc.read(mHeaderBuf, eocdPosn - EndOfCentralDir.kZip64LocatorLen);
+		    	mHeaderBuf.flip();
+		    	mEOCD.readZip64Locator(mHeaderBuf);
+		    }
+		    if (mEOCD.mZip64EOCDOffset >= 0) {
+		    	/* the Zip64 record has the real values; it goes by them */
+		    	long zip64Posn = mEOCD.mZip64EOCDOffset;
+		    	if (zip64Posn + EndOfCentralDir.kZip64EOCDLen > eocdPosn) {
+		    		System.err.println("Zip64 EOCD offset " + zip64Posn + " out of range");
+		    		return false;
+		    	}
+		    	mHeaderBuf.clear();
+		    	mHeaderBuf.limit(EndOfCentralDir.kZip64EOCDLen);
+		    	while (mHeaderBuf.hasRemaining()) {
+		    		if (fc.read(mHeaderBuf, zip64Posn + mHeaderBuf.position()) < 0) {
+		    			break;
+		    		}
+		    	}
+		    	mHeaderBuf.flip();
+		    	if (!HeaderCodec.decodeZip64(mHeaderBuf, mEOCD)) {
+		    		return false;
+		    	}
+		    }
+
 		    if (mEOCD.mDiskNumber != 0 || mEOCD.mDiskWithCentralDir != 0 ||
 		        mEOCD.mNumEntries != mEOCD.mTotalNumEntries) {
 		        System.err.println("Archive spanning not supported");
 		        return false;
 		    }
-	
+
 		    /*
 		     * So far so good.  "mCentralDirSize" is the size in bytes of the
-		     * central directory, so we can just seek back that far to find it.
-		     * We can also seek forward mCentralDirOffset bytes from the
-		     * start of the file.
-		     *
-		     * We're not guaranteed to have the rest of the central dir in the
-		     * buffer, nor are we guaranteed that the central dir will have any
-		     * sort of convenient size.  We need to skip to the start of it and
-		     * read the header, then the other goodies.
-		     *
-		     * The only thing we really need right now is the file comment, which
-		     * we're hoping to preserve.
+		     * central directory, and mCentralDirOffset is where it starts, so
+		     * we can map exactly that region (plus the EOCD signature that
+		     * should follow it) and walk the entries in place.
 		     */
+		    if (span != null) {
+		    	span = span.next(AlignStats.Phase.CD_PARSE);
+		    }
+		    long cdOffset = mEOCD.mCentralDirOffset;
+		    long cdSize = mEOCD.getCentralDirSize();
+		    if (cdOffset + cdSize + 4 > fileLength) {
+		    	System.err.println("Central dir (" + cdOffset + "+" + cdSize + ") runs past EOF (" + fileLength + ")");
+		    	return false;
+		    }
+		    if (cdSize + 4 > Integer.MAX_VALUE || mEOCD.mTotalNumEntries > Integer.MAX_VALUE - 8) {
+		    	System.err.println("Central dir too large (" + mEOCD.mTotalNumEntries + " entries, " + cdSize + " bytes)");
+		    	return false;
+		    }
+
+		    MappedByteBuffer cd = fc.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize + 4);
+		    cd.order(ByteOrder.LITTLE_ENDIAN);
 
-		    ZipFile.setFileInputStreamPosition(fis, mEOCD.mCentralDirOffset);
-		    
 		    /*
-		     * Loop through and read the central dir entries.
+		     * Loop through and read the central dir entries straight into
+		     * the table.  The CD size bounds the variable fields, so the
+		     * arena is sized once up front.  The LFHs are left on disk
+		     * until something needs them; see CentralDirTable.
 		     */
 		    //ALOGV("Scanning %d entries...\n", mEOCD.mTotalNumEntries);
+		    int numEntries = (int) mEOCD.mTotalNumEntries;
+		    mTable = new CentralDirTable(numEntries,
+		            (int) Math.max(0, cdSize - (long) numEntries * CentralDirEntry.kCDELen));
 		    int entryIndex;
-		    for (entryIndex = 0; entryIndex < mEOCD.mTotalNumEntries; entryIndex++) {
-		        ZipEntry entry = new ZipEntry();
-	
-		        if (!entry.initFromCDE(fis)) {
-		            System.err.println("initFromCDE failed");
+		    for (entryIndex = 0; entryIndex < numEntries; entryIndex++) {
+		        if (HeaderCodec.decodeCentral(cd, mTable) < 0) {
+		            System.err.println("CDE read failed");
 		            return false;
 		        }
-	
-		        mEntries.add(entry);
 		    }
-	
+		    mTable.deferLocalHeaders(fc);
+
 		    /*
-		     * If all went well, we should now be back at the EOCD.
+		     * If all went well, we should now be back at the EOCD, or at
+		     * the Zip64 EOCD that precedes it.
 		     */
-	        byte[] checkBuf = new byte[4];
-	        if (fis.read(checkBuf) != 4) {
-	            System.err.println("EOCD check read failed");
-	            // TODO <BL> have to close fis! (What happens if I don't? Program is exiting, so...)
-	            return false;
-	        }
-	        
-	        if (Integer.decode(new String(checkBuf)) != EndOfCentralDir.kSignature) {
-	        	System.err.println("EOCD check read failed");
-	            // TODO <BL> have to close fis! (What happens if I don't? Program is exiting, so...)
-	            return false;
-	        }
+		    int nextSig = cd.remaining() < 4 ? 0 : cd.getInt(cd.position());
+		    if (nextSig != EndOfCentralDir.kSignature && nextSig != EndOfCentralDir.kZip64Signature) {
+		    	System.err.println("EOCD check read failed");
+		    	return false;
+		    }
 	        //ALOGV("+++ EOCD read check passed\n");
+	        if (event != null) {
+	            ZipEvents.endDirectory(event, zipFile.getPath(), false, numEntries, cdSize);
+	        }
 	        return true;
-		} catch (FileNotFoundException e) {
-	    	System.err.println("File not found: " + zipFile.getAbsolutePath());
-	    	return false;
 	    } catch (IOException e) {
 	    	System.err.println("Error reading central dir!");
 			e.printStackTrace();
 			return false;
+		} finally {
+			if (span != null) {
+				span.end();
+			}
 		}
 	}
 	
+	/*
+	 * Read the data of an entry and return it uncompressed, or null on
+	 * failure.  Entries must fit in a byte array.
+	 */
 	public byte[] uncompress(ZipEntry entry) {
-	    int unlen = entry.getUncompressedLen();
-	    int clen = entry.getCompressedLen();
-
-	    byte[] buf = new byte[unlen];
+	    long unlen = entry.getUncompressedLen();
+	    long clen = entry.getCompressedLen();
+	    long offset = entry.getFileOffset();
+	    if (offset < 0) {
+	        return null;
+	    }
+	    if (unlen > Integer.MAX_VALUE - 8 || clen > Integer.MAX_VALUE - 8) {
+	        System.err.println("'" + entry.getFileName() + "' is too large to uncompress");
+	        return null;
+	    }
 
-	    ZipFile.setFileInputStreamPosition(fis, entry.getFileOffset());
+	    byte[] buf = new byte[(int) unlen];
 
-	    switch (entry.mCDE.mCompressionMethod) {
-	        case ZipEntry.kCompressStored:
-	        	if (fis.read(buf) != unlen) {
-	                return null;
-	            }
-	            break;
-	        case ZipEntry.kCompressDeflated:
-	            if (!ZipUtils.inflateToBuffer(zipFile, buf, unlen, clen)) {
+	    try {
+	        switch (entry.getCompressionMethod()) {
+	            case ZipEntry.kCompressStored:
+	                if (!readFully(mChannel, offset, buf)) {
+	                    return null;
+	                }
+	                break;
+	            case ZipEntry.kCompressDeflated:
+	                /* streams through a pooled inflater straight into "buf" */
+	                Object event = ZipEvents.begin(ZipEvents.kInflate);
+	                if (!ZipUtils.inflateToBuffer(mChannel, offset, buf, unlen, clen)) {
+	                    System.err.println("inflate of '" + entry.getFileName() + "' failed");
+	                    return null;
+	                }
+	                if (event != null) {
+	                    ZipEvents.endInflate(event, entry);
+	                }
+	                break;
+	            default:
 	                return null;
-	            }
-	            break;
-	        default:
-	            return null;
-	    } // end switch
+	        } // end switch
+	    } catch (IOException e) {
+	        System.err.println("Error reading '" + entry.getFileName() + "'");
+	        e.printStackTrace();
+	        return null;
+	    }
 	    return buf;
 	}
+
+	/*
+	 * Open the uncompressed data of an entry as a stream.  Memory use is
+	 * fixed whatever the entry size, and the CRC is checked on the way:
+	 * reading to the end of a damaged entry throws a ZipException.  Any
+	 * number of streams may be open at once, on any threads.
+	 *
+	 * Returns null if the entry can't be located or isn't stored or
+	 * deflated.
+	 */
+	public InputStream openEntry(ZipEntry entry) {
+	    int method = entry.getCompressionMethod();
+	    if (method != ZipEntry.kCompressStored && method != ZipEntry.kCompressDeflated) {
+	        System.err.println("'" + entry.getFileName() + "' uses unknown method " + method);
+	        return null;
+	    }
+	    long offset = entry.getFileOffset();
+	    if (offset < 0) {
+	        return null;
+	    }
+	    return new EntryInputStream(mChannel, entry, offset);
+	}
+
+	/*
+	 * Uncompress an entry into "out", a bounded buffer at a time, checking
+	 * the CRC.  Returns false on failure, in which case some data may
+	 * already have been written.
+	 */
+	public boolean uncompress(ZipEntry entry, WritableByteChannel out) {
+	    InputStream in = openEntry(entry);
+	    if (in == null) {
+	        return false;
+	    }
+
+	    byte[] buf = new byte[kStreamBufSize];
+	    try {
+	        int count;
+	        while ((count = in.read(buf)) > 0) {
+	            ByteBuffer bb = ByteBuffer.wrap(buf, 0, count);
+	            while (bb.hasRemaining()) {
+	                out.write(bb);
+	            }
+	        }
+	    } catch (IOException e) {
+	        System.err.println("Error uncompressing '" + entry.getFileName() + "': " + e.getMessage());
+	        return false;
+	    } finally {
+	        try {
+	            in.close();
+	        } catch (IOException e) {
+	            /* nothing to release that matters */
+	        }
+	    }
+	    return true;
+	}
+
+	/*
+	 * Fill "buf" from "fc" at "posn" without moving the channel.
+	 */
+	private static boolean readFully(FileChannel fc, long posn, byte[] buf) throws IOException {
+	    ByteBuffer bb = ByteBuffer.wrap(buf);
+	    while (bb.hasRemaining()) {
+	        int count = fc.read(bb, posn);
+	        if (count <= 0) {     // error or unexpected EOF
+	            System.err.println("read of " + buf.length + " bytes at " + posn + " failed");
+	            return false;
+	        }
+	        posn += count;
+	    }
+	    return true;
+	}
 	
 	/*
-	 * Add an entry by copying it from another zip file, recompressing with
-	 * Zopfli if already compressed.
+	 * Add an entry by copying it from another zip file.  If "padding" is
+	 * nonzero, the specified number of bytes will be added to the "extra"
+	 * field in the header.
+	 *
+	 * Returns the new entry, or null on failure.
 	 */
-	public ZipEntry addRecompress(ZipFile sourceZip, ZipEntry sourceEntry) {
-		ZipEntry entry = new ZipEntry();
-		long lfhPosn, startPosn, endPosn, uncompressedLen;
-		
-		if (readOnly) {
+	public ZipEntry add(ZipFile sourceZip, ZipEntry sourceEntry, int padding) {
+	    ZipEntry entry = reserve(sourceZip, sourceEntry, padding);
+	    if (entry == null) {
 	        return null;
-		}
-		
-		/* make sure we're in a reasonable state */
-	    assert(zipFile != null);
-	    assert(mEntries.size() == mEOCD.mTotalNumEntries);
-	    
-	    if (!entry.initFromExternal(sourceZip, sourceEntry)) {
-	    	// TODO need error output??
-	    	return null;
 	    }
-	    	
-	    FileOutputStream fos = new FileOutputStream(zipFile);
-	    ZipFile.setFileOutputStreamPosition(fos, mEOCD.mCentralDirOffset);
-	    
-	    /*
-	     * From here on out, failures are more interesting.
-	     */
-	    needCDRewrite = true;
-	    
-	    /*
-	     * Write the LFH, even though it's still mostly blank.  We need it
-	     * as a place-holder.  In theory the LFH isn't necessary, but in
-	     * practice some utilities demand it.
-	     */
-	    lfhPosn = fos.getChannel().position();
-	    entry.mLFH.write(zipFile);
-	    startPosn = fos.getChannel().position();
-	    
-	    /*
-	     * Copy the data over.
-	     *
-	     * If the "has data descriptor" flag is set, we want to copy the DD
-	     * fields as well.  This is a fixed-size area immediately following
-	     * the data.
-	     */
-	    ZipFile.setFileInputStreamPosition(sourceZip.fis, sourceEntry.getFileOffset());
-	    
-	    uncompressedLen = sourceEntry.getUncompressedLen();
-	    
-	    if (sourceEntry.isCompressed()) {
-	    	sourceZip.uncompress(sourceEntry);
 
-	        byte[] buf = sourceZip.uncompress(sourceEntry);
-	        if (buf == null) {
-	            return null;
+	    try {
+	        /*
+	         * Write the LFH.  Since we're not recompressing the data, we already
+	         * have all of the fields filled out.
+	         */
+	        mHeaderBuf.clear();
+	        HeaderCodec.encodeLocal(mHeaderBuf, mTable, entry.mRow);
+	        mHeaderBuf.flip();
+	        mChannel.position(entry.getLFHOffset());
+	        while (mHeaderBuf.hasRemaining()) {
+	            mChannel.write(mHeaderBuf);
 	        }
-	        
-	        long startPosn2 = fis.getChannel().position();
-	        
-	        long crc = compressFpToFp(fos, null, buf, uncompressedLen);
-	    } // TODO <BL> remove this to continue....
-	        
-	        
-	        if (crc != NO_ERROR) {
-	            //ALOGW("recompress of '%s' failed\n", pEntry->mCDE.mFileName);
-	            result = UNKNOWN_ERROR;
-	            free(buf);
-	            goto bail;
-	        }
-	        long endPosn = ftell(mZipFp);
-	        pEntry->setDataInfo(uncompressedLen, endPosn - startPosn,
-	            pSourceEntry->getCRC32(), ZipEntry::kCompressDeflated);
-	        free(buf);
-	    } else {
-	        off_t copyLen;
-	        copyLen = pSourceEntry->getCompressedLen();
-	        if ((pSourceEntry->mLFH.mGPBitFlag & ZipEntry::kUsesDataDescr) != 0)
-	            copyLen += ZipEntry::kDataDescriptorLen;
 
-	        if (copyPartialFpToFp(mZipFp, pSourceZip->mZipFp, copyLen, NULL)
-	            != NO_ERROR)
-	        {
-	            //ALOGW("copy of '%s' failed\n", pEntry->mCDE.mFileName);
-	            result = UNKNOWN_ERROR;
-	            goto bail;
+	        /*
+	         * Copy the data over.
+	         *
+	         * If the "has data descriptor" flag is set, we want to copy the DD
+	         * fields as well.  This is a fixed-size area immediately following
+	         * the data.
+	         */
+	        if (!copyPartialChannelToChannel(mChannel, sourceZip.mChannel,
+	                sourceEntry.getFileOffset(), sourceEntry.getRawDataLen())) {
+	            System.err.println("copy of '" + entry.getFileName() + "' failed");
+	            return null;
 	        }
+	    } catch (IOException e) {
+	        System.err.println("Error adding '" + entry.getFileName() + "'");
+	        e.printStackTrace();
+	        return null;
 	    }
 
+	    return entry;
+	}
+
+	/*
+	 * Lay out an entry copied from another zip file without writing it.
+	 *
+	 * The entry goes exactly where add() would put it -- at the current
+	 * end of the entries, with "padding" bytes added to the LFH "extra"
+	 * field -- and the central directory offset moves past it.  This only
+	 * needs the source central directory, so a whole archive can be
+	 * planned up front and the bytes written later, in any order, with
+	 * writeReserved().
+	 *
+	 * Returns the new entry, or null on failure.
+	 */
+	ZipEntry reserve(ZipFile sourceZip, ZipEntry sourceEntry, int padding) {
+	    if (readOnly) {
+	        return null;
+	    }
+
+	    /* make sure we're in a reasonable state */
+	    assert(mChannel != null);
+	    assert(mTable.mCount == mEOCD.mTotalNumEntries);
+
+	    /* copy the CDE, rebuild the LFH from it and pad the LFH extra */
+	    int row = mTable.appendExternal(sourceZip.mTable, sourceEntry.mRow, padding);
+	    if (row < 0) {
+	        System.err.println("can't add '" + sourceEntry.getFileName() + "'");
+	        return null;
+	    }
+	    ZipEntry entry = new ZipEntry(mTable, row);
+
 	    /*
-	     * Update file offsets.
+	     * From here on out, failures are more interesting.
 	     */
-	    endPosn = ftell(mZipFp);
+	    needCDRewrite = true;
+
+	    long lfhPosn = mEOCD.mCentralDirOffset;
+	    long endPosn = lfhPosn + HeaderCodec.encodedLocalLength(mTable, row)
+	            + sourceEntry.getRawDataLen();
 
 	    /*
-	     * Success!  Fill out new values.
+	     * Fill out new values.
 	     */
-	    pEntry->setLFHOffset(lfhPosn);
+	    entry.setLFHOffset(lfhPosn);
 	    mEOCD.mNumEntries++;
 	    mEOCD.mTotalNumEntries++;
 	    mEOCD.mCentralDirSize = 0;      // mark invalid; set by flush()
 	    mEOCD.mCentralDirOffset = endPosn;
 
-	    /*
-	     * Go back and write the LFH.
-	     */
-	    if (fseek(mZipFp, lfhPosn, SEEK_SET) != 0) {
-	        result = UNKNOWN_ERROR;
-	        goto bail;
+	    if (mNameIndex != null) {
+	        mNameIndex.add(row);
 	    }
-	    pEntry->mLFH.write(mZipFp);
+	    return entry;
+	}
 
-	    /*
-	     * Add pEntry to the list.
-	     */
-	    mEntries.add(pEntry);
-	    if (ppEntry != NULL)
-	        *ppEntry = pEntry;
-	    pEntry = NULL;
+	/*
+	 * Write the LFH and raw data of an entry laid out by reserve().
+	 *
+	 * Everything is done with positional reads and writes, and the scratch
+	 * buffers belong to the caller, so several threads may write different
+	 * entries of the same archive at once.  "headerBuf" comes from
+	 * HeaderCodec.allocate(); "copyBuf" may be any size.
+	 */
+	boolean writeReserved(ZipFile sourceZip, ZipEntry sourceEntry, ZipEntry entry,
+	    ByteBuffer headerBuf, ByteBuffer copyBuf) {
+	    long lfhPosn = entry.getLFHOffset();
+
+	    try {
+	        headerBuf.clear();
+	        HeaderCodec.encodeLocal(headerBuf, mTable, entry.mRow);
+	        headerBuf.flip();
+	        long posn = lfhPosn;
+	        while (headerBuf.hasRemaining()) {
+	            posn += mChannel.write(headerBuf, posn);
+	        }
+
+	        if (!copyPartialPositional(mChannel, posn, sourceZip.mChannel,
+	                sourceEntry.getFileOffset(), sourceEntry.getRawDataLen(), copyBuf)) {
+	            System.err.println("copy of '" + entry.getFileName() + "' failed");
+	            return false;
+	        }
+	    } catch (IOException e) {
+	        System.err.println("Error writing '" + entry.getFileName() + "' at " + lfhPosn);
+	        e.printStackTrace();
+	        return false;
+	    }
 
-	    result = NO_ERROR;
+	    return true;
 	}
 
 	/*
-	 * Compress all of the data in "srcFp" and write it to "dstFp".
-	 *
-	 * On exit, "srcFp" will be seeked to the end of the file, and "dstFp"
-	 * will be seeked immediately past the compressed data.
+	 * True if the LFH of "entry", as writeReserved() would write it, is
+	 * byte for byte the one "otherEntry" already has on disk in "other",
+	 * which "window" reads.  With the same data behind it, the bytes
+	 * there can then be used as they are.
 	 */
-	private static long compressFpToFp(FileOutputStream dstFp, FileInputStream srcFp,
-	    byte[] data, long size) {
-	    final int kBufSize = 1024 * 1024;
-	    
-	    /*
-         * Create an input buffer and an output buffer.
-         */
-	    byte[] inBuf = new byte[kBufSize];
-	    byte[] outBuf = new byte[kBufSize]; // TODO <BL> is this correct size for outBuf? (check ZopfliDeflate)
-	    long outSize = 0;
-	    boolean atEof = false;     // no feof() available yet
-	    long crc;
-	    ZopfliOptions options;
-	    unsigned char bp = 0;
-	
-	    ZopfliInitOptions(options);
-	
-	    CRC32 crc32 = new CRC32();
-	
-	    if (data != null) {
-	    	crc32.update(data);
-	    	crc = crc32.getValue();
+	boolean sameLocalHeader(ZipEntry entry, ZipEntry otherEntry, ReadWindow window,
+	    ByteBuffer headerBuf) {
+	    long otherPosn = otherEntry.getLFHOffset();
+	    long otherLen = otherEntry.getFileOffset() - otherPosn;
+	    if (otherLen != HeaderCodec.encodedLocalLength(mTable, entry.mRow)) {
+	        return false;
+	    }
 
-	    	ZopfliDeflate(options, 2, true, data, size, &bp,
-	            &outBuf, &outSize);
-	    } else {
-	        /*
-	         * Loop while we have data.
-	         */
-	        do {
-	        	int getSize = srcFp.read(inBuf);
-	        	if (getSize < kBufSize) {
-	                //ALOGV("+++  got %d bytes, EOF reached\n",
-	                  //  (int)getSize);
-	                atEof = true;
-	            }
-	
-	        	crc32.update(inBuf);
-		    	crc = crc32.getValue();
-		    	
-	            ZopfliDeflate(options, 2, atEof, inBuf, getSize, &bp, &outBuf, &outSize);
-	        } while (!atEof);
+	    headerBuf.clear();
+	    HeaderCodec.encodeLocal(headerBuf, mTable, entry.mRow);
+	    headerBuf.flip();
+	    try {
+	        /* a view, so the window's own limit, and with it its extent, stays put */
+	        ByteBuffer other = window.at(otherPosn, (int) otherLen).duplicate();
+	        if (other.remaining() < otherLen) {
+	            return false;
+	        }
+	        other.limit(other.position() + (int) otherLen);
+	        return other.equals(headerBuf);
+	    } catch (IOException e) {
+	        /* can't compare, so can't reuse; the caller writes it afresh */
+	        return false;
 	    }
-	
-	    //ALOGV("+++ writing %d bytes\n", (int)outSize);
-	    dstFp.write(outBuf);
-	
-	    return crc;
 	}
-	
+
+	/*
+	 * Copy "length" bytes at "srcPosn" in "sourceZip" to "dstPosn" here,
+	 * as they are: a run of entries laid out with reserve() whose bytes
+	 * are already right in another archive.
+	 */
+	boolean copyRaw(ZipFile sourceZip, long srcPosn, long dstPosn, long length) {
+	    try {
+	        mChannel.position(dstPosn);
+	        if (!copyPartialChannelToChannel(mChannel, sourceZip.mChannel, srcPosn, length)) {
+	            System.err.println("copy of " + length + " bytes at " + srcPosn + " failed");
+	            return false;
+	        }
+	    } catch (IOException e) {
+	        System.err.println("Error copying " + length + " bytes to " + dstPosn);
+	        e.printStackTrace();
+	        return false;
+	    }
+	    return true;
+	}
+
+	/*
+	 * Forget every entry but leave the bytes on disk, so the archive can
+	 * be rewritten in place: entries are added from the start of the file
+	 * again, over the old ones, and flush() cuts off whatever is left past
+	 * the new central directory.
+	 */
+	boolean discardEntries() {
+	    if (readOnly) {
+	        return false;
+	    }
+	    mTable = new CentralDirTable(0, 0);
+	    mEOCD = new EndOfCentralDir();
+	    mNameIndex = null;
+	    needCDRewrite = true;
+	    return true;
+	}
+
+	/*
+	 * Add an entry by copying it from another zip file, recompressing with
+	 * Zopfli if already compressed.
+	 *
+	 * If Zopfli can't beat the original, the original compressed data is
+	 * copied instead.  Returns the new entry, or null on failure.
+	 */
+	public ZipEntry addRecompress(ZipFile sourceZip, ZipEntry sourceEntry) {
+	    if (mZopfli == null) {
+	        mZopfli = new ZopfliDeflater();
+	    }
+	    return addRecompress(sourceZip, sourceEntry, mZopfli);
+	}
+
 	/*
-     * Add a file to the end of the archive.  Specify whether you want the
-     * library to try to store it compressed.
-     *
-     * If "storageName" is specified, the archive will use that instead
-     * of "fileName".
-     *
-     * If there is already an entry with the same name, the call fails.
-     * Existing entries with the same name must be removed first.
-     *
-     * If "ppEntry" is non-NULL, a pointer to the new entry will be returned.
-     */
-    private ZipEntry add(String fileName, int compressionMethod) {
-        return add(fileName, fileName, compressionMethod);
-    }
-    
-    private ZipEntry add(String fileName, String storageName, int compressionMethod) {
-        return addCommon(fileName, null, 0, storageName,
-                         ZipEntry.kCompressStored,
-                         compressionMethod);
-    }
-    
-    /*
-     * Add a new file to the archive.
-     *
-     * This requires creating and populating a ZipEntry structure, and copying
-     * the data into the file at the appropriate position.  The "appropriate
-     * position" is the current location of the central directory, which we
-     * casually overwrite (we can put it back later).
-     *
-     * If we were concerned about safety, we would want to make all changes
-     * in a temp file and then overwrite the original after everything was
-     * safely written.  Not really a concern for us.
-     */
-    private ZipEntry addCommon(String fileName, byte[] data, int size,
-        String storageName, int sourceType, int compressionMethod) {
-        ZipEntry pEntry = new ZipEntry;
-        long lfhPosn, startPosn, endPosn, uncompressedLen;
-        FILE* inputFp = NULL;
-        long crc;
-        time_t modWhen;
-
-        if (readOnly)
-            return null;
-
-        assert(compressionMethod == ZipEntry.kCompressDeflated ||
-               compressionMethod == ZipEntry.kCompressStored);
-
-        /* make sure we're in a reasonable state */
-        assert(fis != null);
-        assert(mEntries.size() == mEOCD.mTotalNumEntries);
-
-        /* make sure it doesn't already exist */
-        if (getEntryByName(storageName) != null)
-            return null;
-
-        if (data == null) {
-            inputFp = fopen(fileName, FILE_OPEN_RO);
-            if (inputFp == null)
-                return errnoToStatus(errno);
-        }
-
-        ZipFile.setFilePointerPosition(fis, mEOCD.mCentralDirOffset);
-
-        pEntry.initNew(storageName, null);
-
-        /*
-         * From here on out, failures are more interesting.
-         */
-        needCDRewrite = true;
-
-        /*
-         * Write the LFH, even though it's still mostly blank.  We need it
-         * as a place-holder.  In theory the LFH isn't necessary, but in
-         * practice some utilities demand it.
-         */
-        lfhPosn = fis.getChannel().position();
-        pEntry.mLFH.write(fis);
-        startPosn = fis.getChannel().position();
-
-        /*
-         * Copy the data in, possibly compressing it as we go.
-         */
-        if (sourceType == ZipEntry.kCompressStored) {
-            if (compressionMethod == ZipEntry.kCompressDeflated) {
-                boolean failed = false;
-                if (compressFpToFp(mZipFp, inputFp, data, size, &crc) == null) {
-                    System.err.println("compression failed, storing");
-                    failed = true;
-                } else {
-                    /*
-                     * Make sure it has compressed "enough".  This probably ought
-                     * to be set through an API call, but I don't expect our
-                     * criteria to change over time.
-                     */
-                    long src = inputFp ? ftell(inputFp) : size;
-                    long dst = ftell(mZipFp) - startPosn;
-                    if (dst + (dst / 10) > src) {
-                        //ALOGD("insufficient compression (src=%ld dst=%ld), storing\n",
-                          //  src, dst);
-                        failed = true;
-                    }
-                }
-
-                if (failed) {
-                    compressionMethod = ZipEntry.kCompressStored;
-                    if (inputFp) rewind(inputFp);
-                    fseek(mZipFp, startPosn, SEEK_SET);
-                    /* fall through to kCompressStored case */
-                }
-            }
-            /* handle "no compression" request, or failed compression from above */
-            if (compressionMethod == ZipEntry.kCompressStored) {
-                if (inputFp) {
-                    result = copyFpToFp(mZipFp, inputFp, &crc);
-                } else {
-                    result = copyDataToFp(mZipFp, data, size, &crc);
-                }
-                if (result != NO_ERROR) {
-                    // don't need to truncate; happens in CDE rewrite
-                    cout << "failed copying data in\n";
-                    goto bail;
-                }
-            }
-
-            // currently seeked to end of file
-            uncompressedLen = inputFp ? ftell(inputFp) : size;
-        } else if (sourceType == ZipEntry.kCompressDeflated) {
-            /* we should support uncompressed-from-compressed, but it's not
-             * important right now */
-            assert(compressionMethod == ZipEntry.kCompressDeflated);
-
-            boolean scanResult;
-            int method;
-            long compressedLen;
-
-            scanResult = ZipUtils.examineGzip(inputFp, &method, &uncompressedLen,
-                            &compressedLen, &crc);
-            if (!scanResult || method != ZipEntry.kCompressDeflated) {
-               	System.err.println("this isn't a deflated gzip file?");
-                return null;
-            }
-
-            result = copyPartialFpToFp(mZipFp, inputFp, compressedLen, NULL);
-            if (result != NO_ERROR) {
-                cout << "failed copying gzip data in\n";
-                goto bail;
-            }
-        } else {
-        	System.err.println("Unexpected sourceType: " + sourceType);
-            return false;
-        }
-
-        /*
-         * We could write the "Data Descriptor", but there doesn't seem to
-         * be any point since we're going to go back and write the LFH.
-         *
-         * Update file offsets.
-         */
-        endPosn = ftell(mZipFp);            // seeked to end of compressed data
-
-        /*
-         * Success!  Fill out new values.
-         */
-        pEntry.setDataInfo(uncompressedLen, endPosn - startPosn, crc,
-            compressionMethod);
-        modWhen = getModTime(inputFp ? fileno(inputFp) : fileno(mZipFp));
-        pEntry.setModWhen(modWhen);
-        pEntry.setLFHOffset(lfhPosn);
-        mEOCD.mNumEntries++;
-        mEOCD.mTotalNumEntries++;
-        mEOCD.mCentralDirSize = 0;      // mark invalid; set by flush()
-        mEOCD.mCentralDirOffset = endPosn;
-
-        /*
-         * Go back and write the LFH.
-         */
-        ZipFile.setFilePointerPosition(mZipFp, lfhPosn);
-        pEntry.mLFH.write(mZipFp);
-
-        /*
-         * Add pEntry to the list.
-         */
-        mEntries.add(pEntry);
-        
-        // TODO why need to return this??
-        return pEntry;
-    }
+	 * As above, with the caller's deflater (they are not thread-safe).
+	 */
+	public ZipEntry addRecompress(ZipFile sourceZip, ZipEntry sourceEntry,
+	    ZopfliDeflater deflater) {
+	    if (sourceEntry.isCompressed()
+	            && sourceEntry.getUncompressedLen() > kMaxInMemoryRecompress) {
+	        return addRecompressStream(sourceZip, sourceEntry, deflater);
+	    }
+
+	    byte[] compressed = null;
+	    if (sourceEntry.isCompressed()) {
+	        compressed = sourceZip.recompress(sourceEntry, deflater);
+	        if (compressed == null) {
+	            return null;
+	        }
+	    }
+	    return addRecompressed(sourceZip, sourceEntry, compressed);
+	}
 
+	/*
+	 * Uncompress an entry of this archive and deflate it again with
+	 * "deflater".  Only reads the archive, so any number of threads may
+	 * call this at once, each with its own deflater.
+	 *
+	 * With a recompress cache set, data that has been through Zopfli
+	 * before (with the same options) is just looked up.
+	 *
+	 * Returns the new deflate stream, or null on failure.
+	 */
+	byte[] recompress(ZipEntry entry, ZopfliDeflater deflater) {
+	    Object event = ZipEvents.begin(ZipEvents.kRecompress);
+	    AlignStats.Span span = mStats != null ? mStats.begin(AlignStats.Phase.RECOMPRESS) : null;
+	    byte[] compressed = null;
+	    try {
+	        byte[] buf = uncompress(entry);
+	        if (buf == null) {
+	            System.err.println("recompress of '" + entry.getFileName() + "' failed");
+	            return null;
+	        }
+
+	        RecompressCache cache = mRecompressCache;
+	        if (cache == null) {
+	            compressed = deflater.deflate(buf);
+	            return compressed;
+	        }
+	        RecompressCache.Key key = new RecompressCache.Key(entry.getCRC32(), buf,
+	                deflater.getOptions());
+	        compressed = cache.get(key);
+	        if (compressed == null) {
+	            compressed = deflater.deflate(buf);
+	            cache.put(key, compressed);
+	        }
+	        return compressed;
+	    } finally {
+	        if (span != null) {
+	            span.end(entry.getUncompressedLen());
+	        }
+	        if (event != null) {
+	            ZipEvents.endRecompress(event, entry, compressed != null ? compressed.length : -1);
+	        }
+	    }
+	}
+
+	/*
+	 * Add an entry copied from another zip file with its data replaced by
+	 * "compressed", a deflate stream from recompress().  If that is null
+	 * or no smaller than the original, the original data is copied.
+	 *
+	 * Returns the new entry, or null on failure.
+	 */
+	ZipEntry addRecompressed(ZipFile sourceZip, ZipEntry sourceEntry, byte[] compressed) {
+	    if (readOnly) {
+	        return null;
+	    }
+
+	    /* make sure we're in a reasonable state */
+	    assert(mChannel != null);
+	    assert(mTable.mCount == mEOCD.mTotalNumEntries);
+
+	    if (compressed != null && compressed.length >= sourceEntry.getCompressedLen()) {
+	        compressed = null;      // no better; keep the original
+	    }
+
+	    int row = mTable.appendExternal(sourceZip.mTable, sourceEntry.mRow, 0);
+	    if (row < 0) {
+	        System.err.println("can't add '" + sourceEntry.getFileName() + "'");
+	        return null;
+	    }
+	    ZipEntry entry = new ZipEntry(mTable, row);
+	    if (compressed != null) {
+	        entry.setDataInfo(sourceEntry.getUncompressedLen(), compressed.length,
+	            sourceEntry.getCRC32(), ZipEntry.kCompressDeflated);
+	    }
+
+	    /*
+	     * From here on out, failures are more interesting.
+	     */
+	    needCDRewrite = true;
+
+	    long lfhPosn = mEOCD.mCentralDirOffset;
+	    long endPosn;
+
+	    try {
+	        /*
+	         * The sizes are known up front, so the LFH goes out complete;
+	         * no place-holder needs to be rewritten later.
+	         */
+	        mHeaderBuf.clear();
+	        HeaderCodec.encodeLocal(mHeaderBuf, mTable, row);
+	        mHeaderBuf.flip();
+	        mChannel.position(lfhPosn);
+	        while (mHeaderBuf.hasRemaining()) {
+	            mChannel.write(mHeaderBuf);
+	        }
+
+	        /* stored, or compressed no better: copy as-is, with any DD */
+	        if (compressed != null) {
+	            ByteBuffer data = ByteBuffer.wrap(compressed);
+	            while (data.hasRemaining()) {
+	                mChannel.write(data);
+	            }
+	        } else if (!copyPartialChannelToChannel(mChannel, sourceZip.mChannel,
+	                sourceEntry.getFileOffset(), sourceEntry.getRawDataLen())) {
+	            System.err.println("copy of '" + entry.getFileName() + "' failed");
+	            mTable.removeLastRow();
+	            return null;
+	        }
+	        endPosn = mChannel.position();
+	    } catch (IOException e) {
+	        System.err.println("Error adding '" + entry.getFileName() + "'");
+	        e.printStackTrace();
+	        mTable.removeLastRow();
+	        return null;
+	    }
+
+	    /*
+	     * Success!  Fill out new values.
+	     */
+	    entry.setLFHOffset(lfhPosn);
+	    mEOCD.mNumEntries++;
+	    mEOCD.mTotalNumEntries++;
+	    mEOCD.mCentralDirSize = 0;      // mark invalid; set by flush()
+	    mEOCD.mCentralDirOffset = endPosn;
+
+	    if (mNameIndex != null) {
+	        mNameIndex.add(row);
+	    }
+	    return entry;
+	}
+
+	/*
+	 * addRecompress() for entries too big to hold in memory: the data is
+	 * inflated from the source and deflated into place behind a
+	 * place-holder LFH, which is rewritten once the sizes are known, the
+	 * way the C++ version did every entry.  If the result is no smaller,
+	 * the original data is copied over it.  The recompress cache isn't
+	 * used here; it wants the whole entry at once.
+	 */
+	private ZipEntry addRecompressStream(ZipFile sourceZip, ZipEntry sourceEntry,
+	    ZopfliDeflater deflater) {
+	    if (readOnly) {
+	        return null;
+	    }
+
+	    /* make sure we're in a reasonable state */
+	    assert(mChannel != null);
+	    assert(mTable.mCount == mEOCD.mTotalNumEntries);
+
+	    int row = mTable.appendExternal(sourceZip.mTable, sourceEntry.mRow, 0);
+	    if (row < 0) {
+	        System.err.println("can't add '" + sourceEntry.getFileName() + "'");
+	        return null;
+	    }
+	    ZipEntry entry = new ZipEntry(mTable, row);
+
+	    /*
+	     * From here on out, failures are more interesting.
+	     */
+	    needCDRewrite = true;
+
+	    /*
+	     * The sizes only shrink, so a place-holder that needs a Zip64 block
+	     * keeps it; the LFH mustn't change length under the data.
+	     */
+	    if (HeaderCodec.needsLocalZip64(mTable, row)) {
+	        mTable.setFlag(row, CentralDirTable.kFlagLocalZip64);
+	    }
+	    long lfhPosn = mEOCD.mCentralDirOffset;
+	    long startPosn = lfhPosn + HeaderCodec.encodedLocalLength(mTable, row);
+	    long endPosn;
+
+	    InputStream in = sourceZip.openEntry(sourceEntry);
+	    if (in == null) {
+	        mTable.removeLastRow();
+	        return null;
+	    }
+	    try {
+	        mChannel.position(startPosn);
+	        Object event = ZipEvents.begin(ZipEvents.kRecompress);
+	        AlignStats.Span span = mStats != null ? mStats.begin(AlignStats.Phase.RECOMPRESS) : null;
+	        long compLen = -1;
+	        try {
+	            compLen = deflater.deflate(in, mChannel);
+	        } finally {
+	            if (span != null) {
+	                span.end(sourceEntry.getUncompressedLen());
+	            }
+	            if (event != null) {
+	                ZipEvents.endRecompress(event, sourceEntry, compLen);
+	            }
+	        }
+	        if (compLen < sourceEntry.getCompressedLen()) {
+	            entry.setDataInfo(sourceEntry.getUncompressedLen(), compLen,
+	                sourceEntry.getCRC32(), ZipEntry.kCompressDeflated);
+	        } else {
+	            /* no better; put the original back */
+	            mChannel.position(startPosn);
+	            if (!copyPartialChannelToChannel(mChannel, sourceZip.mChannel,
+	                    sourceEntry.getFileOffset(), sourceEntry.getRawDataLen())) {
+	                System.err.println("copy of '" + entry.getFileName() + "' failed");
+	                mTable.removeLastRow();
+	                return null;
+	            }
+	        }
+	        endPosn = mChannel.position();
+
+	        /*
+	         * Go back and write the LFH.
+	         */
+	        mHeaderBuf.clear();
+	        HeaderCodec.encodeLocal(mHeaderBuf, mTable, row);
+	        mHeaderBuf.flip();
+	        long posn = lfhPosn;
+	        while (mHeaderBuf.hasRemaining()) {
+	            posn += mChannel.write(mHeaderBuf, posn);
+	        }
+	    } catch (IOException e) {
+	        System.err.println("recompress of '" + entry.getFileName() + "' failed: " + e.getMessage());
+	        mTable.removeLastRow();
+	        return null;
+	    } finally {
+	        try {
+	            in.close();
+	        } catch (IOException e) {
+	            /* nothing to release that matters */
+	        }
+	    }
+
+	    /*
+	     * Success!  Fill out new values.
+	     */
+	    entry.setLFHOffset(lfhPosn);
+	    mEOCD.mNumEntries++;
+	    mEOCD.mTotalNumEntries++;
+	    mEOCD.mCentralDirSize = 0;      // mark invalid; set by flush()
+	    mEOCD.mCentralDirOffset = endPosn;
+
+	    if (mNameIndex != null) {
+	        mNameIndex.add(row);
+	    }
+	    return entry;
+	}
+
+	/*
+	 * Set the archive comment, written with the EOCD.  Returns false if the
+	 * archive is read-only or the comment is too long.
+	 */
+	boolean setComment(byte[] comment) {
+	    if (readOnly || comment.length > EndOfCentralDir.kMaxCommentLen) {
+	        return false;
+	    }
+	    mEOCD.mComment = comment.length == 0 ? null : comment.clone();
+	    mEOCD.mCommentLen = comment.length;
+	    needCDRewrite = true;
+	    return true;
+	}
+
+	/*
+	 * Add a new entry with its data read from "data", which must supply
+	 * exactly "size" bytes.  This is what ZipFile::addCommon() did for
+	 * in-memory data (the file and gzip sources aren't ported), streaming
+	 * rather than holding the data: it goes in behind a place-holder LFH
+	 * that is rewritten once the sizes and CRC are known.
+	 *
+	 * The data is stored, or deflated at "level", exactly as asked; there
+	 * is no falling back to stored when deflate doesn't pay.  "when" is
+	 * the modification time in milliseconds.  "extra" goes in both the LFH
+	 * and CDE extra fields and "comment" in the CDE; either may be null.
+	 * With "dataDescriptor", GP bit 3 is set and a data descriptor follows
+	 * the data (the LFH still carries the real sizes).
+	 *
+	 * Returns the new entry, or null on failure.
+	 */
+	ZipEntry addStream(String storageName, InputStream data, long size, int compressionMethod,
+	    int level, long when, byte[] extra, byte[] comment, boolean dataDescriptor) {
+	    if (readOnly) {
+	        return null;
+	    }
+
+	    /* make sure we're in a reasonable state */
+	    assert(mChannel != null);
+	    assert(mTable.mCount == mEOCD.mTotalNumEntries);
+	    assert(compressionMethod == ZipEntry.kCompressDeflated ||
+	           compressionMethod == ZipEntry.kCompressStored);
+
+	    byte[] name = storageName.getBytes(StandardCharsets.UTF_8);
+	    int extraLen = extra == null ? 0 : extra.length;
+	    int commentLen = comment == null ? 0 : comment.length;
+	    if (name.length == 0 || name.length > 0xffff || extraLen > 0xffff || commentLen > 0xffff) {
+	        System.err.println("can't add '" + storageName + "': bad name, extra or comment length");
+	        return null;
+	    }
+
+	    /* make sure it doesn't already exist */
+	    if (getEntryByName(name) != null) {
+	        System.err.println("can't add '" + storageName + "': already exists");
+	        return null;
+	    }
+
+	    int row = mTable.appendRow();
+	    mTable.mVersionMadeBy[row] = ZipEntry.kDefaultMadeBy;
+	    mTable.mVersionToExtract[row] = ZipEntry.kDefaultVersion;
+	    mTable.mExternalAttrs[row] = 0x81b60020;   // matches what WinZip does
+	    mTable.mFileNameLength[row] = (char) name.length;
+	    mTable.mExtraFieldLength[row] = (char) extraLen;
+	    mTable.mFileCommentLength[row] = (char) commentLen;
+	    int varOffset = mTable.allocVar(name.length + extraLen + commentLen);
+	    mTable.mVarOffset[row] = varOffset;
+	    System.arraycopy(name, 0, mTable.mVarArena, varOffset, name.length);
+	    if (extraLen > 0) {
+	        System.arraycopy(extra, 0, mTable.mVarArena, varOffset + name.length, extraLen);
+	    }
+	    if (commentLen > 0) {
+	        System.arraycopy(comment, 0, mTable.mVarArena, varOffset + name.length + extraLen,
+	            commentLen);
+	    }
+
+	    /* the LFH is the CDE, with its own copy of the extra field */
+	    mTable.mLFHFileNameLength[row] = (char) name.length;
+	    mTable.mLFHExtraFieldLength[row] = (char) extraLen;
+	    if (extraLen > 0) {
+	        int offset = mTable.allocLFHExtra(extraLen);
+	        System.arraycopy(extra, 0, mTable.mLFHArena, offset, extraLen);
+	        mTable.mLFHExtraOffset[row] = offset;
+	    }
+	    mTable.setFlag(row, CentralDirTable.kFlagLFHLoaded);
+
+	    ZipEntry entry = new ZipEntry(mTable, row);
+	    entry.setModWhen(when);
+
+	    /*
+	     * From here on out, failures are more interesting.
+	     */
+	    needCDRewrite = true;
+
+	    /*
+	     * The place-holder goes out before the sizes are known, and the LFH
+	     * mustn't change length under the data, so anything that might
+	     * come near 4GB (deflate can grow data a little) gets a Zip64
+	     * block now.
+	     */
+	    if (size + size / 64 + 1024 >= EndOfCentralDir.kMaxOffset) {
+	        mTable.setFlag(row, CentralDirTable.kFlagLocalZip64);
+	    }
+	    long lfhPosn = mEOCD.mCentralDirOffset;
+	    int lfhLen = HeaderCodec.encodedLocalLength(mTable, row);
+	    long startPosn = lfhPosn + lfhLen;
+	    long endPosn;
+
+	    Deflater deflater = null;
+	    if (compressionMethod == ZipEntry.kCompressDeflated) {
+	        if (mDeflater == null) {
+	            mDeflater = new Deflater(level, true);
+	        }
+	        deflater = mDeflater;
+	        deflater.setLevel(level);
+	    }
+	    try {
+	        mChannel.position(startPosn);
+	        CRC32 crc = new CRC32();
+	        byte[] in = new byte[(int) Math.min(kStreamBufSize, size + 1)];
+	        byte[] out = new byte[kStreamBufSize];
+	        long total = 0;
+
+	        while (true) {
+	            int count = data.read(in, 0, (int) Math.min(in.length, Math.max(1, size - total)));
+	            if (count < 0) {
+	                break;
+	            }
+	            total += count;
+	            if (total > size) {
+	                break;
+	            }
+	            crc.update(in, 0, count);
+	            if (deflater == null) {
+	                writeFully(mChannel, ByteBuffer.wrap(in, 0, count));
+	            } else {
+	                deflater.setInput(in, 0, count);
+	                while (!deflater.needsInput()) {
+	                    writeFully(mChannel, ByteBuffer.wrap(out, 0, deflater.deflate(out)));
+	                }
+	            }
+	        }
+	        if (total != size) {
+	            System.err.println("'" + storageName + "' supplied " + (total > size ? "more" : total)
+	                + " bytes, expected " + size);
+	            mTable.removeLastRow();
+	            return null;
+	        }
+	        if (deflater != null) {
+	            deflater.finish();
+	            while (!deflater.finished()) {
+	                writeFully(mChannel, ByteBuffer.wrap(out, 0, deflater.deflate(out)));
+	            }
+	        }
+
+	        long compLen = mChannel.position() - startPosn;
+	        entry.setDataInfo(size, compLen, (int) crc.getValue(), compressionMethod);
+	        if (HeaderCodec.encodedLocalLength(mTable, row) != lfhLen) {
+	            System.err.println("'" + storageName + "' outgrew its local header");
+	            mTable.removeLastRow();
+	            return null;
+	        }
+
+	        if (dataDescriptor) {
+	            mTable.mGPBitFlag[row] |= ZipEntry.kUsesDataDescr;
+	            mTable.mLFHGPBitFlag[row] |= ZipEntry.kUsesDataDescr;
+	            boolean zip64 = mTable.hasFlag(row, CentralDirTable.kFlagLocalZip64);
+	            ByteBuffer dd = ByteBuffer.allocate(ZipEntry.kZip64DataDescriptorLen)
+	                    .order(ByteOrder.LITTLE_ENDIAN);
+	            dd.putInt(ZipEntry.kDataDescriptorSignature);
+	            dd.putInt((int) crc.getValue());
+	            if (zip64) {
+	                dd.putLong(compLen);
+	                dd.putLong(size);
+	            } else {
+	                dd.putInt((int) compLen);
+	                dd.putInt((int) size);
+	            }
+	            dd.flip();
+	            writeFully(mChannel, dd);
+	        }
+	        endPosn = mChannel.position();
+
+	        /*
+	         * Go back and write the LFH.
+	         */
+	        mHeaderBuf.clear();
+	        HeaderCodec.encodeLocal(mHeaderBuf, mTable, row);
+	        mHeaderBuf.flip();
+	        long posn = lfhPosn;
+	        while (mHeaderBuf.hasRemaining()) {
+	            posn += mChannel.write(mHeaderBuf, posn);
+	        }
+	    } catch (IOException e) {
+	        System.err.println("Error adding '" + storageName + "': " + e.getMessage());
+	        mTable.removeLastRow();
+	        return null;
+	    } finally {
+	        if (deflater != null) {
+	            deflater.reset();   /* ready for the next entry */
+	        }
+	    }
+
+	    /*
+	     * Success!  Fill out new values.
+	     */
+	    entry.setLFHOffset(lfhPosn);
+	    mEOCD.mNumEntries++;
+	    mEOCD.mTotalNumEntries++;
+	    mEOCD.mCentralDirSize = 0;      // mark invalid; set by flush()
+	    mEOCD.mCentralDirOffset = endPosn;
+
+	    if (mNameIndex != null) {
+	        mNameIndex.add(row);
+	    }
+	    return entry;
+	}
+
+	private static void writeFully(FileChannel fc, ByteBuffer buf) throws IOException {
+	    while (buf.hasRemaining()) {
+	        fc.write(buf);
+	    }
+	}
+
+	/*
+	 * Copy some of the bytes in "srcFc" to "dstFc".
+	 *
+	 * This replaces the 32KB bounce-buffer loop of copyPartialFpToFp() with
+	 * FileChannel.transferTo(), which lets the kernel move the bytes itself
+	 * (sendfile or copy_file_range on Linux) without a trip through the
+	 * Java heap.
+	 *
+	 * The source is read at "srcPosn" and its position is not disturbed.
+	 * On exit, "dstFc" will be positioned immediately past the data just
+	 * written.
+	 */
+	static boolean copyPartialChannelToChannel(FileChannel dstFc, FileChannel srcFc,
+	    long srcPosn, long length) throws IOException {
+	    long dstPosn = dstFc.position();
+
+	    while (length > 0) {
+	        long count = srcFc.transferTo(srcPosn, length, dstFc);
+	        if (count <= 0) {
+	            /* transferTo() returns 0 rather than failing at EOF */
+	            if (srcPosn >= srcFc.size()) {
+	                System.err.println("transfer of " + length + " bytes at " + srcPosn + " hit EOF");
+	                return false;
+	            }
+	            continue;
+	        }
+
+	        srcPosn += count;
+	        dstPosn += count;
+	        length -= count;
+	    }
+
+	    dstFc.position(dstPosn);
+	    return true;
+	}
+
+	/*
+	 * Copy "length" bytes from "srcFc" at "srcPosn" to "dstFc" at "dstPosn"
+	 * through "buf".  Neither channel's position is touched, so this is
+	 * safe to call from several threads on the same channels.
+	 */
+	static boolean copyPartialPositional(FileChannel dstFc, long dstPosn,
+	    FileChannel srcFc, long srcPosn, long length, ByteBuffer buf) throws IOException {
+	    while (length > 0) {
+	        buf.clear();
+	        if (buf.remaining() > length) {
+	            buf.limit((int) length);
+	        }
+
+	        int count = srcFc.read(buf, srcPosn);
+	        if (count <= 0) {     // error or unexpected EOF
+	            System.err.println("read of " + buf.limit() + " bytes at " + srcPosn + " failed");
+	            return false;
+	        }
+	        buf.flip();
+	        while (buf.hasRemaining()) {
+	            dstPosn += dstFc.write(buf, dstPosn);
+	        }
+
+	        srcPosn += count;
+	        length -= count;
+	    }
+
+	    return true;
+	}
+
+	/*
+	 * Crunch deleted files out of an archive by shifting the later files down.
+	 *
+	 * Because we're not using a temp file, we do the operation inside the
+	 * current file.  Each entry's span runs to the next entry's LFH (or the
+	 * central directory), so gaps go with the entry in front of them.  The
+	 * original slid every entry down by itself through a 32K buffer; here
+	 * each run of surviving entries between two deleted ones is a single
+	 * filemove() through one large direct buffer, the new offsets are set
+	 * on the same pass, and the table drops the deleted rows in one more.
+	 * ZipEntry views taken before the crunch are stale after it.
+	 */
+	private boolean crunchArchive() {
+	    int count = mTable.mCount;
+	    int numDeleted = 0;
+	    for (int i = 0; i < count; i++) {
+	        if (mTable.hasFlag(i, CentralDirTable.kFlagDeleted)) {
+	            numDeleted++;
+	        }
+	    }
+	    if (numDeleted == 0) {
+	        return true;
+	    }
+
+	    Integer[] order = mTable.fileOrder();
+	    long[] offsets = mTable.mLocalHeaderRelOffset;
+	    ByteBuffer buf = null;
+	    long adjust = 0;
+	    long runStart = -1;     // survivors from here on still have to move down "adjust"
+	    long runEnd = -1;
+
+	    for (int i = 0; i < count; i++) {
+	        int row = order != null ? order[i] : i;
+	        long lfhPosn = offsets[row];
+	        long nextPosn = mEOCD.mCentralDirOffset;
+	        if (i + 1 < count) {
+	            nextPosn = offsets[order != null ? order[i + 1] : i + 1];
+	        }
+	        assert(nextPosn - lfhPosn >= LocalFileHeader.kLFHLen);
+
+	        if (mTable.hasFlag(row, CentralDirTable.kFlagDeleted)) {
+	            if (runStart >= 0) {
+	                if (buf == null) {
+	                    buf = ByteBuffer.allocateDirect(kCrunchBufSize);
+	                }
+	                if (!filemove(mChannel, runStart - adjust, runStart, runEnd - runStart, buf)) {
+	                    return false;
+	                }
+	                runStart = -1;
+	            }
+	            adjust += nextPosn - lfhPosn;
+	        } else if (adjust > 0) {
+	            if (runStart < 0) {
+	                runStart = lfhPosn;
+	            }
+	            runEnd = nextPosn;
+	            offsets[row] = lfhPosn - adjust;
+	        }
+	    }
+	    if (runStart >= 0) {
+	        if (buf == null) {
+	            buf = ByteBuffer.allocateDirect(kCrunchBufSize);
+	        }
+	        if (!filemove(mChannel, runStart - adjust, runStart, runEnd - runStart, buf)) {
+	            return false;
+	        }
+	    }
+
+	    /*
+	     * Fix EOCD info.  We have to wait until the end to do some of this
+	     * because we use mCentralDirOffset to determine "span" for the
+	     * last entry.
+	     */
+	    mTable.removeDeleted();
+	    mEOCD.mCentralDirOffset -= adjust;
+	    mEOCD.mNumEntries -= numDeleted;
+	    mEOCD.mTotalNumEntries -= numDeleted;
+	    mEOCD.mCentralDirSize = 0;  // mark invalid; set by flush()
+
+	    assert(mEOCD.mNumEntries == mEOCD.mTotalNumEntries);
+	    assert(mEOCD.mNumEntries == mTable.mCount);
+
+	    /* rows have been renumbered */
+	    if (mNameIndex != null) {
+	        mNameIndex = new NameIndex(mTable);
+	    }
+	    return true;
+	}
+
+	/*
+	 * Works like memmove(), but on pieces of a file, through "buf" and
+	 * with positional I/O, so the channel's position isn't touched.
+	 */
+	static boolean filemove(FileChannel fc, long dst, long src, long n, ByteBuffer buf) {
+	    if (dst == src || n <= 0)
+	        return true;
+
+	    try {
+	        if (dst < src) {
+	            /* shift stuff toward start of file; must read from start */
+	            while (n != 0) {
+	                int getSize = (int) Math.min(buf.capacity(), n);
+	                if (!readFully(fc, buf, src, getSize))
+	                    return false;
+	                writeFully(fc, buf, dst);
+	                src += getSize;
+	                dst += getSize;
+	                n -= getSize;
+	            }
+	        } else {
+	            /* shift stuff toward end of file; must read from end */
+	            while (n != 0) {
+	                int getSize = (int) Math.min(buf.capacity(), n);
+	                n -= getSize;
+	                if (!readFully(fc, buf, src + n, getSize))
+	                    return false;
+	                writeFully(fc, buf, dst + n);
+	            }
+	        }
+	    } catch (IOException e) {
+	        System.err.println("filemove of " + n + " bytes from " + src + " to " + dst + " failed");
+	        e.printStackTrace();
+	        return false;
+	    }
+
+	    return true;
+	}
+
+	/* read "len" bytes at "posn" into "buf", leaving it flipped */
+	private static boolean readFully(FileChannel fc, ByteBuffer buf, long posn, int len)
+	    throws IOException {
+	    buf.clear();
+	    buf.limit(len);
+	    while (buf.hasRemaining()) {
+	        if (fc.read(buf, posn + buf.position()) < 0) {
+	            System.err.println("read of " + len + " bytes at " + posn + " hit EOF");
+	            return false;
+	        }
+	    }
+	    buf.flip();
+	    return true;
+	}
+
+	private static void writeFully(FileChannel fc, ByteBuffer buf, long posn) throws IOException {
+	    while (buf.hasRemaining()) {
+	        posn += fc.write(buf, posn);
+	    }
+	}
+
+	/*
+	 * Flush any pending writes.
+	 *
+	 * In particular, this will crunch out deleted entries, and write the
+	 * Central Directory and EOCD if we have stomped on them.
+	 */
+	public boolean flush() {
+	    if (readOnly) {
+	        return false;
+	    }
+	    if (!needCDRewrite) {
+	        return true;
+	    }
+
+	    assert(mChannel != null);
+
+	    if (!crunchArchive()) {
+	        /* this is why you use a temp file */
+	        System.err.println("error during crunch - archive is toast");
+	        return false;
+	    }
+
+	    Object event = ZipEvents.begin(ZipEvents.kDirectory);
+	    AlignStats.Span span = mStats != null ? mStats.begin(AlignStats.Phase.CD_FLUSH) : null;
+	    try {
+	        mChannel.position(mEOCD.mCentralDirOffset);
+	        writeCentralDir(mChannel);
+
+	        /*
+	         * If we had some stuff bloat up during compression and get replaced
+	         * with plain files, or if we deleted some entries, there's a lot
+	         * of wasted space at the end of the file.  Remove it now.
+	         */
+	        mChannel.truncate(mChannel.position());
+	        if (event != null) {
+	            ZipEvents.endDirectory(event, zipFile.getPath(), true, mTable.mCount,
+	                    mEOCD.mCentralDirSize);
+	        }
+	    } catch (IOException e) {
+	        System.err.println("Error flushing central dir!");
+	        e.printStackTrace();
+	        return false;
+	    } finally {
+	        if (span != null) {
+	            span.end();
+	        }
+	    }
+
+	    /* should we clear the "newly added" flag in all entries now? */
+
+	    needCDRewrite = false;
+	    return true;
+	}
+
+	/*
+	 * The central directory and EOCD, as flush() would write them, for a
+	 * caller that has to keep them somewhere else first.  Returns null on
+	 * failure.
+	 */
+	byte[] encodeCentralDir() {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    try {
+	        writeCentralDir(Channels.newChannel(bytes));
+	    } catch (IOException e) {
+	        System.err.println("Error encoding central dir");
+	        e.printStackTrace();
+	        return null;
+	    }
+	    return bytes.toByteArray();
+	}
+
+	/*
+	 * Write the central directory, then the EOCD, to "out", which must be
+	 * at mCentralDirOffset in the archive.
+	 */
+	private void writeCentralDir(WritableByteChannel out) throws IOException {
+	    long cdPosn = mEOCD.mCentralDirOffset;
+	    long cdSize = 0;
+
+	    /*
+	     * Encode rows back to back into the header buffer and only hit
+	     * the channel when it fills up.
+	     */
+	    int count = mTable.mCount;
+	    mHeaderBuf.clear();
+	    for (int i = 0; i < count; i++) {
+	        if (mHeaderBuf.remaining() < HeaderCodec.encodedCentralLength(mTable, i)) {
+	            cdSize += drain(mHeaderBuf, out);
+	        }
+	        HeaderCodec.encodeCentral(mHeaderBuf, mTable, i);
+	    }
+	    cdSize += drain(mHeaderBuf, out);
+
+	    mEOCD.mCentralDirSize = cdSize;
+	    mEOCD.write(out, mHeaderBuf, cdPosn + cdSize);
+	}
+
+	/*
+	 * Write out everything encoded in "buf" at the channel position, and
+	 * clear it for more.
+	 */
+	private static int drain(ByteBuffer buf, WritableByteChannel out) throws IOException {
+	    buf.flip();
+	    int len = buf.remaining();
+	    while (buf.hasRemaining()) {
+	        out.write(buf);
+	    }
+	    buf.clear();
+	    return len;
+	}
+
+	/*
+	 * Release the file without writing anything, whatever has been added,
+	 * reserved or removed: for a ZipFile used only to plan a layout.
+	 */
+	void abandon() {
+	    needCDRewrite = false;
+	    close();
+	}
+
+	/*
+	 * Flush pending writes and release the file.
+	 */
+	public boolean close() {
+	    boolean result = readOnly || flush();
+
+	    if (mDeflater != null) {
+	        mDeflater.end();
+	        mDeflater = null;
+	    }
+
+	    try {
+	        if (mChannel != null) {
+	            mChannel.close();
+	        }
+	    } catch (IOException e) {
+	        System.err.println("Error closing " + zipFile + "; continuing.");
+	    }
+	    return result;
+	}
 }
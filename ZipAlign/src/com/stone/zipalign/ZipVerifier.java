@@ -0,0 +1,285 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Check the alignment of every entry in an archive, and optionally that
+ * each local file header agrees with its central dir entry.
+ *
+ * The entries are split into ranges on a work-stealing pool; every entry
+ * gets its own Result, in directory order.  A verifier holds no state
+ * between runs, so one instance (and its pool) can check any number of
+ * archives, from any number of threads.
+ */
+public final class ZipVerifier {
+
+	/* entries per leaf task; small enough to balance, big enough to batch I/O */
+	private static final int kLeafEntries = 256;
+	/* most read-ahead for header checks a leaf gets */
+	private static final int kWindowLen = 256 * 1024;
+
+	/*
+	 * What was found for one entry.
+	 */
+	public enum Status {
+		OK,                 // stored and aligned
+		COMPRESSED,         // compressed; alignment doesn't matter
+		BAD_ALIGNMENT,      // stored and not aligned
+		HEADER_MISMATCH,    // LFH disagrees with the CDE
+		READ_ERROR          // LFH couldn't be read
+	}
+
+	/*
+	 * The verdict on one entry.
+	 */
+	public static final class Result {
+		private final int mIndex;
+		private final String mFileName;
+		private final long mFileOffset;
+		private final int mAlignment;
+		private final Status mStatus;
+		private final String mDetail;
+
+		Result(int index, String fileName, long fileOffset, int alignment, Status status,
+				String detail) {
+			mIndex = index;
+			mFileName = fileName;
+			mFileOffset = fileOffset;
+			mAlignment = alignment;
+			mStatus = status;
+			mDetail = detail;
+		}
+
+		/* position in the central directory */
+		public int getIndex() { return mIndex; }
+		public String getFileName() { return mFileName; }
+		/* offset of the entry data, or -1 if the LFH couldn't be read */
+		public long getFileOffset() { return mFileOffset; }
+		/* alignment the entry was checked against; 0 for compressed entries */
+		public int getAlignment() { return mAlignment; }
+		public Status getStatus() { return mStatus; }
+		/* mismatched field for HEADER_MISMATCH, otherwise null */
+		public String getDetail() { return mDetail; }
+
+		public boolean isOk() {
+			return mStatus == Status.OK || mStatus == Status.COMPRESSED;
+		}
+	}
+
+	/*
+	 * The verdicts on a whole archive.
+	 */
+	public static final class Report {
+		private final List<Result> mResults;
+		private final int mNumBad;
+		private final boolean mReadable;
+
+		Report(Result[] results) {
+			int bad = 0;
+			for (Result r : results) {
+				if (!r.isOk()) {
+					bad++;
+				}
+			}
+			mResults = Collections.unmodifiableList(Arrays.asList(results));
+			mNumBad = bad;
+			mReadable = true;
+		}
+
+		/* for an archive that couldn't be opened at all */
+		private Report() {
+			mResults = Collections.emptyList();
+			mNumBad = 0;
+			mReadable = false;
+		}
+
+		/* one Result per entry, in directory order; empty if unreadable */
+		public List<Result> getResults() { return mResults; }
+		public int getNumBad() { return mNumBad; }
+		/* false if the archive couldn't be opened */
+		public boolean isReadable() { return mReadable; }
+		public boolean isOk() { return mReadable && mNumBad == 0; }
+	}
+
+	private final int mAlignment;
+	private final boolean mPageAlignSharedLibs;
+	private final boolean mCheckHeaders;
+	private final ForkJoinPool mPool;
+	/* each worker's window buffer, sliced to fit each leaf it checks */
+	private final ThreadLocal<ByteBuffer> mWindowBufs = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(kWindowLen);
+		}
+	};
+
+	/*
+	 * "pool" runs the checks; the caller owns it and shuts it down.
+	 */
+	public ZipVerifier(int alignment, boolean pageAlignSharedLibs, boolean checkHeaders,
+			ForkJoinPool pool) {
+		mAlignment = alignment;
+		mPageAlignSharedLibs = pageAlignSharedLibs;
+		mCheckHeaders = checkHeaders;
+		mPool = pool;
+	}
+
+	/*
+	 * Check every entry of an open archive.
+	 */
+	public Report verify(ZipFile zipFile) {
+		return verify(zipFile, null);
+	}
+
+	private Report verify(ZipFile zipFile, AlignStats stats) {
+		if (stats != null) {
+			/* as in ZipAligner, so the leaves don't count the LFH sweep */
+			AlignStats.Span span = stats.begin(AlignStats.Phase.LFH_READ);
+			zipFile.loadLocalHeaders();
+			span.end();
+		}
+		int numEntries = zipFile.getNumEntries();
+		Result[] results = new Result[numEntries];
+		mPool.invoke(new Range(zipFile, results, 0, numEntries, stats));
+		return new Report(results);
+	}
+
+	/*
+	 * Open "fileName" read-only and check it.  If it can't be opened the
+	 * report isn't readable (and isn't OK).
+	 */
+	public Report verify(String fileName) {
+		return verify(fileName, null);
+	}
+
+	/*
+	 * As above, timing the checks and counting their I/O in "stats", if
+	 * it isn't null.
+	 */
+	public Report verify(String fileName, AlignStats stats) {
+		ZipFile zipFile = new ZipFile();
+		zipFile.setStats(stats);
+		if (!zipFile.open(fileName, ZipFile.kOpenReadOnly)) {
+			System.err.println("Unable to open '" + fileName + "' for verification");
+			zipFile.close();
+			return new Report();
+		}
+		try {
+			return verify(zipFile, stats);
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	/*
+	 * Check entries [first, last), splitting until the range is small.
+	 */
+	private final class Range extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ZipFile mZipFile;
+		private final Result[] mResults;
+		private final int mFirst;
+		private final int mLast;
+		private final AlignStats mStats;    // may be null
+
+		Range(ZipFile zipFile, Result[] results, int first, int last, AlignStats stats) {
+			mZipFile = zipFile;
+			mResults = results;
+			mFirst = first;
+			mLast = last;
+			mStats = stats;
+		}
+
+		@Override
+		protected void compute() {
+			if (mLast - mFirst > kLeafEntries) {
+				int mid = (mFirst + mLast) >>> 1;
+				invokeAll(new Range(mZipFile, mResults, mFirst, mid, mStats),
+						new Range(mZipFile, mResults, mid, mLast, mStats));
+				return;
+			}
+
+			/* each leaf is one VERIFY call, on whichever thread runs it */
+			AlignStats.Span span = mStats != null ? mStats.begin(AlignStats.Phase.VERIFY) : null;
+
+			/*
+			 * Entries next to each other in the directory are normally next
+			 * to each other in the file, so one window serves the whole leaf.
+			 * It only needs to span the leaf's LFHs, whose lengths the sweep
+			 * has found.
+			 */
+			ReadWindow window = null;
+			LocalFileHeader lfh = null;
+			if (mCheckHeaders) {
+				long start = Long.MAX_VALUE;
+				long end = 0;
+				for (int i = mFirst; i < mLast; i++) {
+					ZipEntry entry = mZipFile.getEntryByIndex(i);
+					long offset = entry.getFileOffset();
+					if (offset >= 0) {
+						start = Math.min(start, entry.getLFHOffset());
+						end = Math.max(end, offset);
+					}
+				}
+				ByteBuffer buf = mWindowBufs.get();
+				buf.clear();
+				buf.limit((int) Math.max(0, Math.min(kWindowLen, end - start)));
+				window = new ReadWindow(mZipFile.getChannel(), buf.slice());
+				lfh = new LocalFileHeader();
+			}
+
+			for (int i = mFirst; i < mLast; i++) {
+				mResults[i] = check(mZipFile.getEntryByIndex(i), i, window, lfh);
+			}
+			if (span != null) {
+				span.end();
+			}
+		}
+	}
+
+	private Result check(ZipEntry entry, int index, ReadWindow window, LocalFileHeader lfh) {
+		String name = entry.getFileName();
+		long offset = entry.getFileOffset();
+		if (offset < 0) {
+			return new Result(index, name, offset, 0, Status.READ_ERROR, null);
+		}
+
+		if (window != null) {
+			try {
+				ByteBuffer buf = window.at(entry.getLFHOffset(), (int) (offset - entry.getLFHOffset()));
+				if (!HeaderCodec.decode(buf, lfh)) {
+					return new Result(index, name, offset, 0, Status.READ_ERROR, null);
+				}
+			} catch (IOException e) {
+				System.err.println("Error reading local file header of '" + name + "'");
+				return new Result(index, name, offset, 0, Status.READ_ERROR, null);
+			}
+
+			/*
+			 * With a data descriptor, the LFH CRC and sizes are zero; the
+			 * CDE values are the real ones, so there's nothing to compare.
+			 */
+			if ((lfh.mGPBitFlag & ZipEntry.kUsesDataDescr) == 0) {
+				String field = entry.compareHeaders(lfh);
+				if (field != null) {
+					return new Result(index, name, offset, 0, Status.HEADER_MISMATCH, field);
+				}
+			}
+		}
+
+		if (entry.isCompressed()) {
+			return new Result(index, name, offset, 0, Status.COMPRESSED, null);
+		}
+
+		int alignTo = ZipAligner.getAlignment(mPageAlignSharedLibs, mAlignment, entry);
+		Status status = (offset % alignTo) == 0 ? Status.OK : Status.BAD_ALIGNMENT;
+		return new Result(index, name, offset, alignTo, status, null);
+	}
+}
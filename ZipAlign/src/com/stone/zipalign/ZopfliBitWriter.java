@@ -0,0 +1,100 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/*
+ * Growable deflate bit stream.  Bits are packed LSB-first, as RFC 1951
+ * wants; Huffman codes are reversed on the way in.
+ */
+final class ZopfliBitWriter {
+
+	private byte[] mBuf = new byte[4096];
+	private int mLen;
+	private long mBits;
+	private int mNumBits;
+
+	void reset() {
+		mLen = 0;
+		mBits = 0;
+		mNumBits = 0;
+	}
+
+	/*
+	 * Append the low "n" bits of "value", least significant first.
+	 */
+	void addBits(int value, int n) {
+		mBits |= (value & ((1L << n) - 1)) << mNumBits;
+		mNumBits += n;
+		while (mNumBits >= 8) {
+			put((byte) mBits);
+			mBits >>>= 8;
+			mNumBits -= 8;
+		}
+	}
+
+	/*
+	 * Append a Huffman code, most significant bit first.
+	 */
+	void addHuffmanBits(int code, int len) {
+		if (len > 0) {
+			addBits(Integer.reverse(code) >>> (32 - len), len);
+		}
+	}
+
+	/*
+	 * Pad with zero bits up to the next byte boundary.
+	 */
+	void alignToByte() {
+		if (mNumBits > 0) {
+			put((byte) mBits);
+			mBits = 0;
+			mNumBits = 0;
+		}
+	}
+
+	/*
+	 * Append raw bytes; the stream must be byte-aligned.
+	 */
+	void addBytes(byte[] src, int off, int len) {
+		assert(mNumBits == 0);
+		ensure(len);
+		System.arraycopy(src, off, mBuf, mLen, len);
+		mLen += len;
+	}
+
+	/*
+	 * Return everything written so far, padding the last byte.
+	 */
+	byte[] toByteArray() {
+		alignToByte();
+		return Arrays.copyOf(mBuf, mLen);
+	}
+
+	/*
+	 * Write the complete bytes so far to "out" and drop them, keeping any
+	 * partial byte for later.  Returns the number of bytes written.
+	 */
+	int drainTo(WritableByteChannel out) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(mBuf, 0, mLen);
+		while (bb.hasRemaining()) {
+			out.write(bb);
+		}
+		int len = mLen;
+		mLen = 0;
+		return len;
+	}
+
+	private void put(byte b) {
+		ensure(1);
+		mBuf[mLen++] = b;
+	}
+
+	private void ensure(int len) {
+		if (mLen + len > mBuf.length) {
+			mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mLen + len));
+		}
+	}
+}
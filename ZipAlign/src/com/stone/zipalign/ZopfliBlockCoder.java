@@ -0,0 +1,322 @@
+package com.brooke.zipalign;
+
+import java.util.Arrays;
+
+/*
+ * Size estimation and output of deflate blocks for runs of an LZ77 store.
+ *
+ * Each run can go out stored, with the fixed tree, or with a dynamic tree
+ * built from its own symbol counts; blockSize() and writeBlock() pick
+ * whichever is smallest.  Sizes are exact, in bits, so the block splitter
+ * and the optimal parser see what the writer will actually produce.
+ */
+final class ZopfliBlockCoder {
+
+	private static final int kNumCodeLength = 19;
+
+	private static final int[] kFixedLitLenLengths = new int[ZopfliTables.kNumLitLen];
+	private static final int[] kFixedDistLengths = new int[ZopfliTables.kNumDist];
+
+	static {
+		for (int i = 0; i < ZopfliTables.kNumLitLen; i++) {
+			kFixedLitLenLengths[i] = i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8;
+		}
+		Arrays.fill(kFixedDistLengths, 5);
+	}
+
+	private final ZopfliHuffman mHuffman = new ZopfliHuffman();
+
+	private final int[] mLitLenCounts = new int[ZopfliTables.kNumLitLen];
+	private final int[] mDistCounts = new int[ZopfliTables.kNumDist];
+	private final int[] mLitLenLengths = new int[ZopfliTables.kNumLitLen];
+	private final int[] mDistLengths = new int[ZopfliTables.kNumDist];
+	private final int[] mLitLenCodes = new int[ZopfliTables.kNumLitLen];
+	private final int[] mDistCodes = new int[ZopfliTables.kNumDist];
+	private final int[] mFixedLitLenCodes = new int[ZopfliTables.kNumLitLen];
+	private final int[] mFixedDistCodes = new int[ZopfliTables.kNumDist];
+
+	/* run-length coded tree description */
+	private final int[] mLengths = new int[ZopfliTables.kNumLitLen + ZopfliTables.kNumDist];
+	private final int[] mRleSymbols = new int[ZopfliTables.kNumLitLen + ZopfliTables.kNumDist];
+	private final int[] mRleExtra = new int[ZopfliTables.kNumLitLen + ZopfliTables.kNumDist];
+	private final int[] mCodeLengthCounts = new int[kNumCodeLength];
+	private final int[] mCodeLengthLengths = new int[kNumCodeLength];
+	private final int[] mCodeLengthCodes = new int[kNumCodeLength];
+
+	ZopfliBlockCoder() {
+		mHuffman.lengthsToCodes(kFixedLitLenLengths, ZopfliTables.kNumLitLen, mFixedLitLenCodes);
+		mHuffman.lengthsToCodes(kFixedDistLengths, ZopfliTables.kNumDist, mFixedDistCodes);
+	}
+
+	/*
+	 * Count the symbols of store[from, to), plus one end-of-block.
+	 */
+	static void countSymbols(ZopfliStore store, int from, int to, int[] litLenCounts,
+			int[] distCounts) {
+		Arrays.fill(litLenCounts, 0);
+		Arrays.fill(distCounts, 0);
+		for (int i = from; i < to; i++) {
+			int dist = store.mDists[i];
+			if (dist == 0) {
+				litLenCounts[store.mLitLens[i]]++;
+			} else {
+				litLenCounts[ZopfliTables.kLengthSymbol[store.mLitLens[i]]]++;
+				distCounts[ZopfliTables.distSymbol(dist)]++;
+			}
+		}
+		litLenCounts[ZopfliTables.kEndOfBlock] = 1;
+	}
+
+	/*
+	 * Size in bits of store[from, to) as the cheapest block type.
+	 */
+	long blockSize(ZopfliStore store, int from, int to) {
+		long stored = storedBlockSize(store.byteEnd(from, to) - store.mPos[from]);
+		long fixed = fixedBlockSize(store, from, to);
+		long dynamic = dynamicBlockSize(store, from, to);
+		return Math.min(stored, Math.min(fixed, dynamic));
+	}
+
+	/*
+	 * Size in bits of store[from, to) as a dynamic-tree block.
+	 */
+	long dynamicBlockSize(ZopfliStore store, int from, int to) {
+		buildDynamicLengths(store, from, to);
+		return 3 + encodeTree(null)
+				+ dataSize(store, from, to, mLitLenLengths, mDistLengths);
+	}
+
+	long fixedBlockSize(ZopfliStore store, int from, int to) {
+		return 3 + dataSize(store, from, to, kFixedLitLenLengths, kFixedDistLengths);
+	}
+
+	/*
+	 * Stored blocks hold at most 65535 bytes each; every one costs a
+	 * header, up to a byte of alignment, and LEN/NLEN.
+	 */
+	static long storedBlockSize(int numBytes) {
+		long blocks = Math.max(1, (numBytes + 65534) / 65535);
+		return blocks * (3 + 7 + 32) + 8L * numBytes;
+	}
+
+	/*
+	 * Write store[from, to) as the cheapest block type.  "in" is the data
+	 * the store was built from; "last" sets BFINAL.
+	 */
+	void writeBlock(ZopfliStore store, int from, int to, byte[] in, boolean last,
+			ZopfliBitWriter out) {
+		int start = store.mPos[from];
+		int numBytes = store.byteEnd(from, to) - start;
+		long stored = storedBlockSize(numBytes);
+		long fixed = fixedBlockSize(store, from, to);
+		long dynamic = dynamicBlockSize(store, from, to);   // leaves the dynamic lengths set
+
+		if (stored < fixed && stored < dynamic) {
+			writeStored(in, start, numBytes, last, out);
+		} else if (fixed <= dynamic) {
+			out.addBits(last ? 1 : 0, 1);
+			out.addBits(1, 2);
+			writeData(store, from, to, kFixedLitLenLengths, mFixedLitLenCodes,
+					kFixedDistLengths, mFixedDistCodes, out);
+		} else {
+			out.addBits(last ? 1 : 0, 1);
+			out.addBits(2, 2);
+			encodeTree(out);
+			mHuffman.lengthsToCodes(mLitLenLengths, ZopfliTables.kNumLitLen, mLitLenCodes);
+			mHuffman.lengthsToCodes(mDistLengths, ZopfliTables.kNumDist, mDistCodes);
+			writeData(store, from, to, mLitLenLengths, mLitLenCodes, mDistLengths, mDistCodes, out);
+		}
+	}
+
+	/*
+	 * An empty final block, for empty input.
+	 */
+	void writeEmpty(ZopfliBitWriter out) {
+		out.addBits(1, 1);
+		out.addBits(1, 2);
+		out.addHuffmanBits(mFixedLitLenCodes[ZopfliTables.kEndOfBlock],
+				kFixedLitLenLengths[ZopfliTables.kEndOfBlock]);
+	}
+
+	private static void writeStored(byte[] in, int start, int numBytes, boolean last,
+			ZopfliBitWriter out) {
+		int pos = start;
+		int end = start + numBytes;
+		do {
+			int len = Math.min(65535, end - pos);
+			out.addBits(last && pos + len == end ? 1 : 0, 1);
+			out.addBits(0, 2);
+			out.alignToByte();
+			out.addBits(len, 16);
+			out.addBits(~len, 16);
+			out.addBytes(in, pos, len);
+			pos += len;
+		} while (pos < end);
+	}
+
+	private void buildDynamicLengths(ZopfliStore store, int from, int to) {
+		countSymbols(store, from, to, mLitLenCounts, mDistCounts);
+		mHuffman.lengthLimitedCodeLengths(mLitLenCounts, ZopfliTables.kNumLitLen,
+				ZopfliTables.kMaxBits, mLitLenLengths);
+		mHuffman.lengthLimitedCodeLengths(mDistCounts, ZopfliTables.kNumDist,
+				ZopfliTables.kMaxBits, mDistLengths);
+		patchDistanceCodes(mDistLengths);
+	}
+
+	/*
+	 * Some inflaters (old zlib among them) reject a distance tree with
+	 * fewer than two codes, so make sure there are at least two.
+	 */
+	private static void patchDistanceCodes(int[] distLengths) {
+		int used = 0;
+		for (int i = 0; i < 30; i++) {
+			if (distLengths[i] != 0) {
+				used++;
+			}
+		}
+		if (used == 0) {
+			distLengths[0] = distLengths[1] = 1;
+		} else if (used == 1) {
+			distLengths[distLengths[0] != 0 ? 1 : 0] = 1;
+		}
+	}
+
+	private static long dataSize(ZopfliStore store, int from, int to, int[] litLenLengths,
+			int[] distLengths) {
+		long bits = litLenLengths[ZopfliTables.kEndOfBlock];
+		for (int i = from; i < to; i++) {
+			int dist = store.mDists[i];
+			int litLen = store.mLitLens[i];
+			if (dist == 0) {
+				bits += litLenLengths[litLen];
+			} else {
+				int dsym = ZopfliTables.distSymbol(dist);
+				bits += litLenLengths[ZopfliTables.kLengthSymbol[litLen]]
+						+ ZopfliTables.kLengthExtraBits[litLen]
+						+ distLengths[dsym] + ZopfliTables.kDistExtraBits[dsym];
+			}
+		}
+		return bits;
+	}
+
+	private static void writeData(ZopfliStore store, int from, int to, int[] litLenLengths,
+			int[] litLenCodes, int[] distLengths, int[] distCodes, ZopfliBitWriter out) {
+		for (int i = from; i < to; i++) {
+			int dist = store.mDists[i];
+			int litLen = store.mLitLens[i];
+			if (dist == 0) {
+				out.addHuffmanBits(litLenCodes[litLen], litLenLengths[litLen]);
+			} else {
+				int lsym = ZopfliTables.kLengthSymbol[litLen];
+				out.addHuffmanBits(litLenCodes[lsym], litLenLengths[lsym]);
+				out.addBits(ZopfliTables.kLengthExtraValue[litLen],
+						ZopfliTables.kLengthExtraBits[litLen]);
+				int dsym = ZopfliTables.distSymbol(dist);
+				out.addHuffmanBits(distCodes[dsym], distLengths[dsym]);
+				out.addBits(ZopfliTables.distExtraValue(dist), ZopfliTables.kDistExtraBits[dsym]);
+			}
+		}
+		out.addHuffmanBits(litLenCodes[ZopfliTables.kEndOfBlock],
+				litLenLengths[ZopfliTables.kEndOfBlock]);
+	}
+
+	/*
+	 * Size in bits of the dynamic tree description for the current
+	 * lengths, writing it to "out" as well if that isn't null.
+	 */
+	private long encodeTree(ZopfliBitWriter out) {
+		int hlit = 29;
+		while (hlit > 0 && mLitLenLengths[257 + hlit - 1] == 0) {
+			hlit--;
+		}
+		int hdist = 29;
+		while (hdist > 0 && mDistLengths[1 + hdist - 1] == 0) {
+			hdist--;
+		}
+		int numLitLen = hlit + 257;
+		int numDist = hdist + 1;
+		int n = numLitLen + numDist;
+		System.arraycopy(mLitLenLengths, 0, mLengths, 0, numLitLen);
+		System.arraycopy(mDistLengths, 0, mLengths, numLitLen, numDist);
+
+		/* run-length code the lengths with symbols 16 (repeat), 17 and 18 (zeros) */
+		int numRle = 0;
+		for (int i = 0; i < n; ) {
+			int value = mLengths[i];
+			int run = 1;
+			while (i + run < n && mLengths[i + run] == value) {
+				run++;
+			}
+			i += run;
+			if (value == 0) {
+				while (run >= 11) {
+					int r = Math.min(run, 138);
+					mRleSymbols[numRle] = 18;
+					mRleExtra[numRle++] = r - 11;
+					run -= r;
+				}
+				if (run >= 3) {
+					mRleSymbols[numRle] = 17;
+					mRleExtra[numRle++] = run - 3;
+					run = 0;
+				}
+			} else {
+				mRleSymbols[numRle] = value;
+				mRleExtra[numRle++] = 0;
+				run--;
+				while (run >= 3) {
+					int r = Math.min(run, 6);
+					mRleSymbols[numRle] = 16;
+					mRleExtra[numRle++] = r - 3;
+					run -= r;
+				}
+			}
+			while (run > 0) {
+				mRleSymbols[numRle] = value;
+				mRleExtra[numRle++] = 0;
+				run--;
+			}
+		}
+
+		Arrays.fill(mCodeLengthCounts, 0);
+		for (int i = 0; i < numRle; i++) {
+			mCodeLengthCounts[mRleSymbols[i]]++;
+		}
+		mHuffman.lengthLimitedCodeLengths(mCodeLengthCounts, kNumCodeLength,
+				ZopfliTables.kMaxCodeLengthBits, mCodeLengthLengths);
+
+		int hclen = 15;
+		while (hclen > 0 && mCodeLengthLengths[ZopfliTables.kCodeLengthOrder[hclen + 4 - 1]] == 0) {
+			hclen--;
+		}
+		int numCodeLength = hclen + 4;
+
+		long bits = 5 + 5 + 4 + 3L * numCodeLength;
+		for (int i = 0; i < numRle; i++) {
+			int sym = mRleSymbols[i];
+			bits += mCodeLengthLengths[sym] + (sym == 16 ? 2 : sym == 17 ? 3 : sym == 18 ? 7 : 0);
+		}
+
+		if (out != null) {
+			mHuffman.lengthsToCodes(mCodeLengthLengths, kNumCodeLength, mCodeLengthCodes);
+			out.addBits(hlit, 5);
+			out.addBits(hdist, 5);
+			out.addBits(hclen, 4);
+			for (int i = 0; i < numCodeLength; i++) {
+				out.addBits(mCodeLengthLengths[ZopfliTables.kCodeLengthOrder[i]], 3);
+			}
+			for (int i = 0; i < numRle; i++) {
+				int sym = mRleSymbols[i];
+				out.addHuffmanBits(mCodeLengthCodes[sym], mCodeLengthLengths[sym]);
+				if (sym == 16) {
+					out.addBits(mRleExtra[i], 2);
+				} else if (sym == 17) {
+					out.addBits(mRleExtra[i], 3);
+				} else if (sym == 18) {
+					out.addBits(mRleExtra[i], 7);
+				}
+			}
+		}
+		return bits;
+	}
+}
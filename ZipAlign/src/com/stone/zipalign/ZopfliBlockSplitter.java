@@ -0,0 +1,152 @@
+package com.brooke.zipalign;
+
+import java.util.Arrays;
+
+/*
+ * Choose where to end deflate blocks, after Zopfli's blocksplitter.c.
+ *
+ * Splits are made in LZ77 symbol space: repeatedly take the largest block
+ * not yet known to be unsplittable, find the split point that minimizes
+ * the summed size of its two halves, and keep it if that beats the block
+ * as a whole.
+ */
+final class ZopfliBlockSplitter {
+
+	/* probes per round of the coarse minimum search */
+	private static final int kNumProbes = 9;
+
+	private final ZopfliBlockCoder mCoder;
+
+	private boolean[] mDone = new boolean[0];
+	private int[] mPoints = new int[0];
+	private int mNumPoints;
+	private final int[] mProbe = new int[kNumProbes];
+	private final long[] mProbeCost = new long[kNumProbes];
+
+	/* output of findMinimum() */
+	private long mSmallest;
+
+	ZopfliBlockSplitter(ZopfliBlockCoder coder) {
+		mCoder = coder;
+	}
+
+	/*
+	 * Split store[0, size) into at most "maxBlocks" blocks (0 for no
+	 * limit).  Returns the number of split points, which can then be read
+	 * back with getPoint() in increasing order.
+	 */
+	int split(ZopfliStore store, int maxBlocks) {
+		int size = store.mSize;
+		mNumPoints = 0;
+		if (size < 10) {
+			return 0;
+		}
+		if (mDone.length < size) {
+			mDone = new boolean[size];
+		} else {
+			Arrays.fill(mDone, 0, size, false);
+		}
+
+		int numBlocks = 1;
+		int lstart = 0;
+		int lend = size;
+		while (maxBlocks <= 0 || numBlocks < maxBlocks) {
+			int llpos = findMinimum(store, lstart, lend);
+			long origCost = mCoder.blockSize(store, lstart, lend);
+			if (mSmallest > origCost || llpos == lstart + 1 || llpos == lend) {
+				mDone[lstart] = true;
+			} else {
+				addSorted(llpos);
+				numBlocks++;
+			}
+
+			/* the largest block not yet done, or stop */
+			long longest = 0;
+			boolean found = false;
+			for (int i = 0; i <= mNumPoints; i++) {
+				int s = i == 0 ? 0 : mPoints[i - 1];
+				int e = i == mNumPoints ? size - 1 : mPoints[i];
+				if (!mDone[s] && e - s > longest) {
+					lstart = s;
+					lend = e;
+					longest = e - s;
+					found = true;
+				}
+			}
+			if (!found || lend - lstart < 10) {
+				break;
+			}
+		}
+		return mNumPoints;
+	}
+
+	int getPoint(int i) {
+		return mPoints[i];
+	}
+
+	/*
+	 * Split point in (lstart, lend) with the smallest total cost, leaving
+	 * that cost in mSmallest.  Small ranges are searched exhaustively,
+	 * large ones by repeatedly narrowing around the best of a few probes.
+	 */
+	private int findMinimum(ZopfliStore store, int lstart, int lend) {
+		int start = lstart + 1;
+		int end = lend;
+		if (end - start < 1024) {
+			long best = Long.MAX_VALUE;
+			int result = start;
+			for (int i = start; i < end; i++) {
+				long v = splitCost(store, lstart, i, lend);
+				if (v < best) {
+					best = v;
+					result = i;
+				}
+			}
+			mSmallest = best;
+			return result;
+		}
+
+		long lastBest = Long.MAX_VALUE;
+		int pos = start;
+		while (end - start > kNumProbes) {
+			for (int i = 0; i < kNumProbes; i++) {
+				mProbe[i] = start + (i + 1) * ((end - start) / (kNumProbes + 1));
+				mProbeCost[i] = splitCost(store, lstart, mProbe[i], lend);
+			}
+			int besti = 0;
+			long best = mProbeCost[0];
+			for (int i = 1; i < kNumProbes; i++) {
+				if (mProbeCost[i] < best) {
+					best = mProbeCost[i];
+					besti = i;
+				}
+			}
+			if (best > lastBest) {
+				break;
+			}
+			start = besti == 0 ? start : mProbe[besti - 1];
+			end = besti == kNumProbes - 1 ? end : mProbe[besti + 1];
+			pos = mProbe[besti];
+			lastBest = best;
+		}
+		mSmallest = lastBest;
+		return pos;
+	}
+
+	private long splitCost(ZopfliStore store, int lstart, int i, int lend) {
+		return mCoder.blockSize(store, lstart, i) + mCoder.blockSize(store, i, lend);
+	}
+
+	private void addSorted(int value) {
+		if (mNumPoints == mPoints.length) {
+			mPoints = Arrays.copyOf(mPoints, Math.max(8, mNumPoints * 2));
+		}
+		int i = mNumPoints;
+		while (i > 0 && mPoints[i - 1] > value) {
+			mPoints[i] = mPoints[i - 1];
+			i--;
+		}
+		mPoints[i] = value;
+		mNumPoints++;
+	}
+}
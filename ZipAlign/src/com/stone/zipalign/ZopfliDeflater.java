@@ -0,0 +1,191 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Pure-Java deflate encoder in the manner of Zopfli: slow, but typically
+ * 3-8% smaller than zlib at level 9.  The output is raw deflate (no zlib
+ * header), as stored in zip entries, and any inflater can read it.
+ *
+ * Input is taken a master block (1 MB) at a time.  For each, a greedy
+ * parse picks the initial block splits, every block gets its own
+ * iterated optimal parse, and the splits are then reconsidered against
+ * the optimal parse.
+ *
+ * An instance holds a few MB of scratch space and reuses it from call to
+ * call; it is not thread-safe, so use one per thread.
+ */
+public class ZopfliDeflater {
+
+	private static final int kMasterBlockSize = 1000000;
+
+	private final ZopfliOptions mOptions;
+	private final ZopfliBlockCoder mCoder = new ZopfliBlockCoder();
+	private final ZopfliMatchFinder mMatches = new ZopfliMatchFinder();
+	private final ZopfliSqueeze mSqueeze = new ZopfliSqueeze(mCoder);
+	private final ZopfliBlockSplitter mSplitter = new ZopfliBlockSplitter(mCoder);
+	private final ZopfliBitWriter mOut = new ZopfliBitWriter();
+
+	private final ZopfliStore mGreedy = new ZopfliStore();
+	private final ZopfliStore mOptimal = new ZopfliStore();
+
+	/* block boundaries in input bytes, then in mOptimal symbols */
+	private int[] mByteSplits = new int[16];
+	private int[] mSplits = new int[16];
+	private int[] mSplits2 = new int[16];
+
+	public ZopfliDeflater() {
+		this(new ZopfliOptions());
+	}
+
+	public ZopfliDeflater(ZopfliOptions options) {
+		mOptions = options;
+	}
+
+	public ZopfliOptions getOptions() {
+		return mOptions;
+	}
+
+	public byte[] deflate(byte[] in) {
+		return deflate(in, 0, in.length);
+	}
+
+	/*
+	 * Compress in[off, off + len) to a complete raw deflate stream.
+	 */
+	public byte[] deflate(byte[] in, int off, int len) {
+		mOut.reset();
+		if (len == 0) {
+			mCoder.writeEmpty(mOut);
+			return mOut.toByteArray();
+		}
+		int end = off + len;
+		for (int start = off; start < end; start += kMasterBlockSize) {
+			int blockEnd = (int) Math.min((long) start + kMasterBlockSize, end);
+			deflatePart(in, off, start, blockEnd, blockEnd == end);
+		}
+		return mOut.toByteArray();
+	}
+
+	/*
+	 * Compress all of "in" to "out" as a raw deflate stream, holding only
+	 * a window and one master block in memory, so entries of any size can
+	 * be recompressed.  The output is the same as deflate(byte[]) gives
+	 * for the same data.  Returns the number of bytes written.
+	 */
+	public long deflate(InputStream in, WritableByteChannel out) throws IOException {
+		mOut.reset();
+		byte[] buf = new byte[ZopfliTables.kWindowSize + kMasterBlockSize + 1];
+		int windowLen = 0;
+		long written = 0;
+
+		/* one byte of lookahead tells us which block is the last */
+		int have = readFully(in, buf, 0, kMasterBlockSize + 1);
+		if (have == 0) {
+			mCoder.writeEmpty(mOut);
+			written += mOut.drainTo(out);
+		}
+		while (have > 0) {
+			int len = Math.min(have, kMasterBlockSize);
+			boolean last = have <= kMasterBlockSize;
+			deflatePart(buf, 0, windowLen, windowLen + len, last);
+			written += mOut.drainTo(out);
+			if (last) {
+				break;
+			}
+
+			/* slide the tail down as the next window, then refill */
+			int end = windowLen + len;
+			int newWindow = Math.min(ZopfliTables.kWindowSize, end);
+			System.arraycopy(buf, end - newWindow, buf, 0, newWindow + 1);
+			windowLen = newWindow;
+			have = 1 + readFully(in, buf, windowLen + 1, kMasterBlockSize);
+		}
+
+		mOut.alignToByte();
+		written += mOut.drainTo(out);
+		return written;
+	}
+
+	private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int count = in.read(b, off + total, len - total);
+			if (count < 0) {
+				break;
+			}
+			total += count;
+		}
+		return total;
+	}
+
+	/*
+	 * Compress one master block, in[start, end).  Matches may reach back
+	 * to "windowStart".
+	 */
+	private void deflatePart(byte[] in, int windowStart, int start, int end, boolean last) {
+		int numByteSplits = 0;
+		if (mOptions.getBlockSplitting()) {
+			mMatches.fill(in, windowStart, start, end);
+			mGreedy.clear();
+			mMatches.greedy(start, end, mGreedy);
+			numByteSplits = mSplitter.split(mGreedy, mOptions.getBlockSplittingMax());
+			mByteSplits = ensure(mByteSplits, numByteSplits);
+			for (int i = 0; i < numByteSplits; i++) {
+				mByteSplits[i] = mGreedy.mPos[mSplitter.getPoint(i)];
+			}
+		}
+
+		/* optimal parse of each block, all into one store */
+		mOptimal.clear();
+		mSplits = ensure(mSplits, numByteSplits);
+		long totalCost = 0;
+		for (int i = 0; i <= numByteSplits; i++) {
+			int s = i == 0 ? start : mByteSplits[i - 1];
+			int e = i == numByteSplits ? end : mByteSplits[i];
+			int from = mOptimal.mSize;
+			mMatches.fill(in, windowStart, s, e);
+			mSqueeze.optimal(in, s, e, mOptions.getNumIterations(), mMatches, mOptimal);
+			totalCost += mCoder.blockSize(mOptimal, from, mOptimal.mSize);
+			if (i < numByteSplits) {
+				mSplits[i] = mOptimal.mSize;
+			}
+		}
+		int[] splits = mSplits;
+		int numSplits = numByteSplits;
+
+		/*
+		 * The splits came from the greedy parse; see if splitting the
+		 * optimal parse afresh does better.
+		 */
+		if (mOptions.getBlockSplitting() && numByteSplits > 1) {
+			int numSplits2 = mSplitter.split(mOptimal, mOptions.getBlockSplittingMax());
+			mSplits2 = ensure(mSplits2, numSplits2);
+			long totalCost2 = 0;
+			for (int i = 0; i <= numSplits2; i++) {
+				if (i < numSplits2) {
+					mSplits2[i] = mSplitter.getPoint(i);
+				}
+				int from = i == 0 ? 0 : mSplits2[i - 1];
+				int to = i == numSplits2 ? mOptimal.mSize : mSplits2[i];
+				totalCost2 += mCoder.blockSize(mOptimal, from, to);
+			}
+			if (totalCost2 < totalCost) {
+				splits = mSplits2;
+				numSplits = numSplits2;
+			}
+		}
+
+		for (int i = 0; i <= numSplits; i++) {
+			int from = i == 0 ? 0 : splits[i - 1];
+			int to = i == numSplits ? mOptimal.mSize : splits[i];
+			mCoder.writeBlock(mOptimal, from, to, in, last && i == numSplits, mOut);
+		}
+	}
+
+	private static int[] ensure(int[] a, int n) {
+		return a.length >= n ? a : new int[Math.max(n, a.length * 2)];
+	}
+}
@@ -0,0 +1,123 @@
+package com.brooke.zipalign;
+
+import java.util.Arrays;
+
+/*
+ * Optimal length-limited Huffman code lengths (package-merge), and
+ * canonical codes from lengths.
+ *
+ * Each list entry keeps a chain back to the list below it, as in
+ * Katajainen's boundary package-merge, so the code lengths fall out of one
+ * walk down the chain.  All scratch space is allocated up front for the
+ * largest deflate alphabet; an instance is reused for every tree.
+ */
+final class ZopfliHuffman {
+
+	private static final int kMaxSymbols = ZopfliTables.kNumLitLen;
+	private static final int kMaxBits = ZopfliTables.kMaxBits;
+
+	/* (frequency << 9) | symbol, sorted */
+	private final long[] mLeaves = new long[kMaxSymbols];
+	private final long[][] mWeight = new long[kMaxBits][2 * kMaxSymbols];
+	private final int[][] mCount = new int[kMaxBits][2 * kMaxSymbols];
+	private final int[][] mTail = new int[kMaxBits][2 * kMaxSymbols];
+	private final int[] mBlCount = new int[kMaxBits + 1];
+	private final int[] mNextCode = new int[kMaxBits + 1];
+
+	/*
+	 * Compute code lengths of at most "maxBits" for freqs[0..n).  Symbols
+	 * with zero frequency get length 0.
+	 */
+	void lengthLimitedCodeLengths(int[] freqs, int n, int maxBits, int[] lengths) {
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			lengths[i] = 0;
+			if (freqs[i] > 0) {
+				mLeaves[m++] = ((long) freqs[i] << 9) | i;
+			}
+		}
+		if (m == 0) {
+			return;
+		}
+		if (m == 1) {
+			lengths[(int) (mLeaves[0] & 0x1ff)] = 1;
+			return;
+		}
+		assert((1 << maxBits) >= m);
+		Arrays.sort(mLeaves, 0, m);
+
+		/*
+		 * List j holds the cheapest items of depth j: leaves, and packages
+		 * of two items from list j-1.  We need 2m-2 items from the top
+		 * list; no list ever needs more.
+		 */
+		int items = 2 * m - 2;
+		for (int k = 0; k < m; k++) {
+			mWeight[0][k] = mLeaves[k] >>> 9;
+			mCount[0][k] = k + 1;
+			mTail[0][k] = -1;
+		}
+		int prevSize = m;
+
+		for (int j = 1; j < maxBits; j++) {
+			long[] prevWeight = mWeight[j - 1];
+			long[] weight = mWeight[j];
+			int[] count = mCount[j];
+			int[] tail = mTail[j];
+			int packages = prevSize / 2;
+			int leaf = 0;
+			int pkg = 0;
+			int lastTail = -1;
+			int k = 0;
+			while (k < items && (leaf < m || pkg < packages)) {
+				long pw = pkg < packages
+						? prevWeight[2 * pkg] + prevWeight[2 * pkg + 1] : Long.MAX_VALUE;
+				if (leaf < m && (mLeaves[leaf] >>> 9) <= pw) {
+					weight[k] = mLeaves[leaf] >>> 9;
+					leaf++;
+				} else {
+					weight[k] = pw;
+					lastTail = 2 * pkg + 1;
+					pkg++;
+				}
+				count[k] = leaf;
+				tail[k] = lastTail;
+				k++;
+			}
+			prevSize = k;
+		}
+
+		/*
+		 * Every leaf counted by an item on the chain is one level deeper.
+		 */
+		int idx = items - 1;
+		for (int j = maxBits - 1; j >= 0 && idx >= 0; j--) {
+			int c = mCount[j][idx];
+			for (int i = 0; i < c; i++) {
+				lengths[(int) (mLeaves[i] & 0x1ff)]++;
+			}
+			idx = mTail[j][idx];
+		}
+	}
+
+	/*
+	 * Assign canonical codes (RFC 1951 3.2.2) to lengths[0..n).
+	 */
+	void lengthsToCodes(int[] lengths, int n, int[] codes) {
+		Arrays.fill(mBlCount, 0);
+		for (int i = 0; i < n; i++) {
+			mBlCount[lengths[i]]++;
+		}
+		mBlCount[0] = 0;
+
+		int code = 0;
+		for (int bits = 1; bits <= kMaxBits; bits++) {
+			code = (code + mBlCount[bits - 1]) << 1;
+			mNextCode[bits] = code;
+		}
+		for (int i = 0; i < n; i++) {
+			int len = lengths[i];
+			codes[i] = len != 0 ? mNextCode[len]++ : 0;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package com.brooke.zipalign;
+
+import java.util.Arrays;
+
+/*
+ * LZ77 match search for the Zopfli encoder.
+ *
+ * fill() walks hash chains once over a block and records, for every
+ * position, the shortest distance at which each match length can be had.
+ * Those "breakpoints" -- (length, distance) pairs with increasing length,
+ * where distance d serves every length above the previous breakpoint up
+ * to its own -- are all the optimal parser needs, so the chains are never
+ * walked again however many iterations run.
+ */
+final class ZopfliMatchFinder {
+
+	private static final int kHashBits = 15;
+	private static final int kHashShift = 32 - kHashBits;
+	private static final int kWindowMask = ZopfliTables.kWindowSize - 1;
+	private static final int kMaxChainHits = 8192;
+
+	private final int[] mHead = new int[1 << kHashBits];
+	private final int[] mPrev = new int[ZopfliTables.kWindowSize];
+
+	/* breakpoints of position i are mPool[mBpStart[i - mStart] .. mBpStart[i - mStart + 1]) */
+	private int[] mBpStart = new int[1];
+	private int[] mPool = new int[1024];
+	private int mPoolUsed;
+
+	private byte[] mIn;
+	private int mStart;
+	private int mEnd;
+
+	/* result of findLongest() */
+	int mLength;
+	int mDist;
+
+	/*
+	 * Find the matches at every position of in[start, end).  Matches may
+	 * reach back as far as "windowStart" but never past "end".
+	 */
+	void fill(byte[] in, int windowStart, int start, int end) {
+		mIn = in;
+		mStart = start;
+		mEnd = end;
+		mPoolUsed = 0;
+		if (mBpStart.length < end - start + 1) {
+			mBpStart = new int[end - start + 1];
+		}
+		Arrays.fill(mHead, -1);
+
+		for (int p = Math.max(windowStart, start - ZopfliTables.kWindowSize); p < start; p++) {
+			insert(p);
+		}
+		for (int i = start; i < end; i++) {
+			mBpStart[i - start] = mPoolUsed;
+			if (end - i >= ZopfliTables.kMinMatch) {
+				search(i);
+			}
+			insert(i);
+		}
+		mBpStart[end - start] = mPoolUsed;
+	}
+
+	/*
+	 * Set mLength / mDist to the longest match at "i" no longer than
+	 * "limit", or to 0 if there is none of at least kMinMatch.
+	 */
+	void findLongest(int i, int limit) {
+		int b = bpBegin(i);
+		int e = bpEnd(i);
+		mLength = 0;
+		mDist = 0;
+		if (b == e || limit < ZopfliTables.kMinMatch) {
+			return;
+		}
+		for (int k = b; k < e; k++) {
+			int len = bpLength(mPool[k]);
+			if (len >= limit || k == e - 1) {
+				mLength = Math.min(len, limit);
+				mDist = bpDist(mPool[k]);
+				return;
+			}
+		}
+	}
+
+	int bpBegin(int i) {
+		return mBpStart[i - mStart];
+	}
+
+	int bpEnd(int i) {
+		return mBpStart[i - mStart + 1];
+	}
+
+	int bpAt(int k) {
+		return mPool[k];
+	}
+
+	static int bpLength(int bp) {
+		return bp >>> 16;
+	}
+
+	static int bpDist(int bp) {
+		return bp & 0xffff;
+	}
+
+	/*
+	 * Greedy parse of in[start, end) with one step of lazy matching, as
+	 * ZopfliLZ77Greedy() does.  Used for block splitting and to seed the
+	 * optimal parser's statistics.
+	 */
+	void greedy(int start, int end, ZopfliStore store) {
+		int prevLength = 0;
+		int prevDist = 0;
+		boolean matchAvailable = false;
+
+		for (int i = start; i < end; i++) {
+			findLongest(i, end - i);
+			int length = mLength;
+			int dist = mDist;
+			int lengthScore = score(length, dist);
+			int prevScore = score(prevLength, prevDist);
+
+			if (matchAvailable) {
+				matchAvailable = false;
+				if (lengthScore > prevScore + 1) {
+					store.append(mIn[i - 1] & 0xff, 0, i - 1);
+					if (lengthScore >= ZopfliTables.kMinMatch && length < ZopfliTables.kMaxMatch) {
+						matchAvailable = true;
+						prevLength = length;
+						prevDist = dist;
+						continue;
+					}
+				} else {
+					/* the match one byte back wins */
+					store.append(prevLength, prevDist, i - 1);
+					i += prevLength - 2;
+					continue;
+				}
+			} else if (lengthScore >= ZopfliTables.kMinMatch && length < ZopfliTables.kMaxMatch) {
+				matchAvailable = true;
+				prevLength = length;
+				prevDist = dist;
+				continue;
+			}
+
+			if (lengthScore >= ZopfliTables.kMinMatch) {
+				store.append(length, dist, i);
+				i += length - 1;
+			} else {
+				store.append(mIn[i] & 0xff, 0, i);
+			}
+		}
+	}
+
+	/*
+	 * Short matches a long way back cost about as much as literals.
+	 */
+	private static int score(int length, int dist) {
+		return dist > 1024 ? length - 1 : length;
+	}
+
+	private int hash(int p) {
+		int v = ((mIn[p] & 0xff) << 16) | ((mIn[p + 1] & 0xff) << 8) | (mIn[p + 2] & 0xff);
+		return (v * 0x9e3779b1) >>> kHashShift;
+	}
+
+	private void insert(int p) {
+		if (p + 2 >= mEnd) {
+			return;
+		}
+		int h = hash(p);
+		mPrev[p & kWindowMask] = mHead[h];
+		mHead[h] = p;
+	}
+
+	/*
+	 * Walk the chain for "i", nearest candidates first, recording a
+	 * breakpoint each time a longer match turns up.
+	 */
+	private void search(int i) {
+		byte[] in = mIn;
+		int limit = Math.min(ZopfliTables.kMaxMatch, mEnd - i);
+		int best = ZopfliTables.kMinMatch - 1;
+		int hits = 0;
+
+		int p = mHead[hash(i)];
+		while (p >= 0 && i - p <= ZopfliTables.kWindowSize && hits++ < kMaxChainHits) {
+			if (in[p + best] == in[i + best]) {
+				int len = 0;
+				while (len < limit && in[p + len] == in[i + len]) {
+					len++;
+				}
+				if (len > best) {
+					addBreakpoint(len, i - p);
+					best = len;
+					if (len == limit) {
+						break;
+					}
+				}
+			}
+			int next = mPrev[p & kWindowMask];
+			if (next >= p) {
+				break;
+			}
+			p = next;
+		}
+	}
+
+	private void addBreakpoint(int length, int dist) {
+		if (mPoolUsed == mPool.length) {
+			mPool = Arrays.copyOf(mPool, mPool.length * 2);
+		}
+		mPool[mPoolUsed++] = (length << 16) | dist;
+	}
+}
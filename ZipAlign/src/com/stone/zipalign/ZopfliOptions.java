@@ -0,0 +1,48 @@
+package com.brooke.zipalign;
+
+/*
+ * Knobs for ZopfliDeflater.  The defaults match zopfli's own.
+ */
+public class ZopfliOptions {
+
+	private int mNumIterations = 15;
+	private boolean mBlockSplitting = true;
+	private int mBlockSplittingMax = 15;
+
+	public ZopfliOptions() {
+	}
+
+	/*
+	 * Rounds of optimal parsing per block.  More is slower and (a little)
+	 * smaller.
+	 */
+	public int getNumIterations() {
+		return mNumIterations;
+	}
+
+	public ZopfliOptions setNumIterations(int numIterations) {
+		mNumIterations = Math.max(1, numIterations);
+		return this;
+	}
+
+	public boolean getBlockSplitting() {
+		return mBlockSplitting;
+	}
+
+	public ZopfliOptions setBlockSplitting(boolean blockSplitting) {
+		mBlockSplitting = blockSplitting;
+		return this;
+	}
+
+	/*
+	 * Most blocks per master block; 0 means no limit.
+	 */
+	public int getBlockSplittingMax() {
+		return mBlockSplittingMax;
+	}
+
+	public ZopfliOptions setBlockSplittingMax(int blockSplittingMax) {
+		mBlockSplittingMax = Math.max(0, blockSplittingMax);
+		return this;
+	}
+}
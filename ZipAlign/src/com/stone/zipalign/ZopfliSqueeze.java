@@ -0,0 +1,263 @@
+package com.brooke.zipalign;
+
+import java.util.Arrays;
+
+/*
+ * Iterated optimal parsing, after Zopfli's squeeze.c.
+ *
+ * Each iteration finds the cheapest path through the block under a cost
+ * model taken from the symbol statistics of the previous path, then
+ * measures the real dynamic block size of what it found.  When the cost
+ * stops moving the statistics are shaken up a little, since the search
+ * otherwise settles into a local minimum.
+ *
+ * All arrays are sized on first use and kept; nothing is allocated
+ * inside the iteration loop.
+ */
+final class ZopfliSqueeze {
+
+	private static final double kInvLog2 = 1.4426950408889634;
+	private static final float kLargeFloat = 1e30f;
+
+	private final ZopfliBlockCoder mCoder;
+
+	/* symbol statistics: current, previous iteration, and best so far */
+	private final int[] mLitLens = new int[ZopfliTables.kNumLitLen];
+	private final int[] mDists = new int[ZopfliTables.kNumDist];
+	private final int[] mLastLitLens = new int[ZopfliTables.kNumLitLen];
+	private final int[] mLastDists = new int[ZopfliTables.kNumDist];
+	private final int[] mBestLitLens = new int[ZopfliTables.kNumLitLen];
+	private final int[] mBestDists = new int[ZopfliTables.kNumDist];
+
+	/* cost model, in bits, derived from the statistics */
+	private final double[] mLitLenBits = new double[ZopfliTables.kNumLitLen];
+	private final double[] mDistBits = new double[ZopfliTables.kNumDist];
+	private final double[] mLengthCost = new double[ZopfliTables.kMaxMatch + 1];
+	private final double[] mDistSymbolCost = new double[ZopfliTables.kNumDist];
+
+	private float[] mCosts = new float[0];
+	private char[] mLengthArray = new char[0];
+	private char[] mPath = new char[0];
+	private int[] mSame = new int[0];
+
+	private final ZopfliStore mCurrent = new ZopfliStore();
+	private final ZopfliStore mBest = new ZopfliStore();
+
+	private int mRandW;
+	private int mRandZ;
+
+	ZopfliSqueeze(ZopfliBlockCoder coder) {
+		mCoder = coder;
+	}
+
+	/*
+	 * Append the best parse of in[start, end) found in "iterations"
+	 * rounds to "out".  "matches" must already be filled for exactly
+	 * that range.
+	 */
+	void optimal(byte[] in, int start, int end, int iterations, ZopfliMatchFinder matches,
+			ZopfliStore out) {
+		int n = end - start;
+		if (mCosts.length < n + 1) {
+			mCosts = new float[n + 1];
+			mLengthArray = new char[n + 1];
+			mPath = new char[n + 1];
+			mSame = new int[n];
+		}
+		fillSame(in, start, end);
+		mRandW = 1;
+		mRandZ = 2;
+
+		mCurrent.clear();
+		matches.greedy(start, end, mCurrent);
+		getStatistics(mCurrent);
+
+		long bestCost = Long.MAX_VALUE;
+		long lastCost = 0;
+		boolean randomized = false;
+		mBest.clear();
+
+		for (int i = 0; i < iterations; i++) {
+			mCurrent.clear();
+			optimalRun(in, start, end, matches);
+			long cost = mCoder.dynamicBlockSize(mCurrent, 0, mCurrent.mSize);
+			if (cost < bestCost) {
+				mBest.copyFrom(mCurrent);
+				System.arraycopy(mLitLens, 0, mBestLitLens, 0, mLitLens.length);
+				System.arraycopy(mDists, 0, mBestDists, 0, mDists.length);
+				bestCost = cost;
+			}
+			System.arraycopy(mLitLens, 0, mLastLitLens, 0, mLitLens.length);
+			System.arraycopy(mDists, 0, mLastDists, 0, mDists.length);
+			getStatistics(mCurrent);
+			if (randomized) {
+				/* converges more slowly but better; only once the randomness has kicked in */
+				for (int k = 0; k < mLitLens.length; k++) {
+					mLitLens[k] = (int) (mLitLens[k] + 0.5 * mLastLitLens[k]);
+				}
+				for (int k = 0; k < mDists.length; k++) {
+					mDists[k] = (int) (mDists[k] + 0.5 * mLastDists[k]);
+				}
+				mLitLens[ZopfliTables.kEndOfBlock] = 1;
+				calculateStatistics();
+			}
+			if (i > 5 && cost == lastCost) {
+				System.arraycopy(mBestLitLens, 0, mLitLens, 0, mLitLens.length);
+				System.arraycopy(mBestDists, 0, mDists, 0, mDists.length);
+				randomizeFreqs(mLitLens);
+				randomizeFreqs(mDists);
+				mLitLens[ZopfliTables.kEndOfBlock] = 1;
+				calculateStatistics();
+				randomized = true;
+			}
+			lastCost = cost;
+		}
+
+		out.appendAll(iterations > 0 ? mBest : mCurrent);
+	}
+
+	/*
+	 * One shortest-path search under the current cost model, appended to
+	 * mCurrent.
+	 */
+	private void optimalRun(byte[] in, int start, int end, ZopfliMatchFinder matches) {
+		int n = end - start;
+		float[] costs = mCosts;
+		char[] lengthArray = mLengthArray;
+		double[] litLenBits = mLitLenBits;
+		double[] lengthCost = mLengthCost;
+		double[] distSymbolCost = mDistSymbolCost;
+
+		Arrays.fill(costs, 0, n + 1, kLargeFloat);
+		costs[0] = 0;
+		lengthArray[0] = 0;
+
+		for (int j = 0; j < n; j++) {
+			int i = start + j;
+
+			/*
+			 * In a long run of one byte the answer is always a maximal
+			 * match at distance 1, so step over it quickly.
+			 */
+			if (mSame[j] > ZopfliTables.kMaxMatch * 2
+					&& j > ZopfliTables.kMaxMatch + 1
+					&& j + ZopfliTables.kMaxMatch * 2 + 1 < n
+					&& mSame[j - ZopfliTables.kMaxMatch] > ZopfliTables.kMaxMatch) {
+				float symbolCost = (float) (lengthCost[ZopfliTables.kMaxMatch] + distSymbolCost[0]);
+				for (int k = 0; k < ZopfliTables.kMaxMatch; k++) {
+					costs[j + ZopfliTables.kMaxMatch] = costs[j] + symbolCost;
+					lengthArray[j + ZopfliTables.kMaxMatch] = (char) ZopfliTables.kMaxMatch;
+					j++;
+				}
+				i = start + j;
+			}
+
+			float base = costs[j];
+			float c = base + (float) litLenBits[in[i] & 0xff];
+			if (c < costs[j + 1]) {
+				costs[j + 1] = c;
+				lengthArray[j + 1] = 1;
+			}
+
+			int remaining = n - j;
+			int prev = ZopfliTables.kMinMatch - 1;
+			for (int k = matches.bpBegin(i), e = matches.bpEnd(i); k < e && prev < remaining; k++) {
+				int bp = matches.bpAt(k);
+				int len = Math.min(ZopfliMatchFinder.bpLength(bp), remaining);
+				double dcost = distSymbolCost[ZopfliTables.distSymbol(ZopfliMatchFinder.bpDist(bp))];
+				for (int l = prev + 1; l <= len; l++) {
+					c = base + (float) (lengthCost[l] + dcost);
+					if (c < costs[j + l]) {
+						costs[j + l] = c;
+						lengthArray[j + l] = (char) l;
+					}
+				}
+				prev = len;
+			}
+		}
+
+		/* trace the path back from the end, then replay it forwards */
+		int pathLen = 0;
+		for (int j = n; j > 0; j -= lengthArray[j]) {
+			mPath[pathLen++] = lengthArray[j];
+		}
+		int pos = start;
+		for (int p = pathLen - 1; p >= 0; p--) {
+			int len = mPath[p];
+			if (len == 1) {
+				mCurrent.append(in[pos] & 0xff, 0, pos);
+			} else {
+				matches.findLongest(pos, len);
+				mCurrent.append(len, matches.mDist, pos);
+			}
+			pos += len;
+		}
+	}
+
+	/*
+	 * mSame[j]: how many bytes from start + j on equal in[start + j].
+	 */
+	private void fillSame(byte[] in, int start, int end) {
+		int n = end - start;
+		for (int j = n - 1; j >= 0; j--) {
+			mSame[j] = j + 1 < n && in[start + j] == in[start + j + 1] ? mSame[j + 1] + 1 : 1;
+		}
+	}
+
+	private void getStatistics(ZopfliStore store) {
+		ZopfliBlockCoder.countSymbols(store, 0, store.mSize, mLitLens, mDists);
+		calculateStatistics();
+	}
+
+	/*
+	 * Turn the counts into entropy bit costs, and those into per-length
+	 * and per-distance-symbol match costs.
+	 */
+	private void calculateStatistics() {
+		calculateEntropy(mLitLens, mLitLenBits);
+		calculateEntropy(mDists, mDistBits);
+		for (int l = ZopfliTables.kMinMatch; l <= ZopfliTables.kMaxMatch; l++) {
+			mLengthCost[l] = mLitLenBits[ZopfliTables.kLengthSymbol[l]]
+					+ ZopfliTables.kLengthExtraBits[l];
+		}
+		for (int s = 0; s < ZopfliTables.kNumDist; s++) {
+			mDistSymbolCost[s] = mDistBits[s] + ZopfliTables.kDistExtraBits[s];
+		}
+	}
+
+	private static void calculateEntropy(int[] counts, double[] bits) {
+		long sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			sum += counts[i];
+		}
+		double log2sum = Math.log(sum == 0 ? counts.length : sum) * kInvLog2;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0) {
+				bits[i] = log2sum;
+			} else {
+				bits[i] = log2sum - Math.log(counts[i]) * kInvLog2;
+			}
+			if (bits[i] < 0 && bits[i] > -1e-5) {
+				bits[i] = 0;
+			}
+		}
+	}
+
+	private void randomizeFreqs(int[] freqs) {
+		int n = freqs.length;
+		for (int i = 0; i < n; i++) {
+			if (((random() >>> 4) & 0xffffffffL) % 3 == 0) {
+				freqs[i] = freqs[(int) ((random() & 0xffffffffL) % n)];
+			}
+		}
+	}
+
+	/*
+	 * Zopfli's multiply-with-carry generator, so runs are repeatable.
+	 */
+	private int random() {
+		mRandZ = 36969 * (mRandZ & 65535) + (mRandZ >>> 16);
+		mRandW = 18000 * (mRandW & 65535) + (mRandW >>> 16);
+		return (mRandZ << 16) + mRandW;
+	}
+}
@@ -0,0 +1,70 @@
+package com.brooke.zipalign;
+
+import java.util.Arrays;
+
+/*
+ * A run of LZ77 symbols: for each, a literal byte (dist 0) or a match
+ * length and distance, plus the input position it starts at.
+ */
+final class ZopfliStore {
+
+	char[] mLitLens = new char[0];
+	char[] mDists = new char[0];
+	int[] mPos = new int[0];
+	int mSize;
+
+	void clear() {
+		mSize = 0;
+	}
+
+	/*
+	 * Make room for "n" symbols in total without reallocating.
+	 */
+	void ensureCapacity(int n) {
+		if (n > mPos.length) {
+			mLitLens = Arrays.copyOf(mLitLens, n);
+			mDists = Arrays.copyOf(mDists, n);
+			mPos = Arrays.copyOf(mPos, n);
+		}
+	}
+
+	void append(int litLen, int dist, int pos) {
+		if (mSize == mPos.length) {
+			ensureCapacity(Math.max(16, mSize * 2));
+		}
+		mLitLens[mSize] = (char) litLen;
+		mDists[mSize] = (char) dist;
+		mPos[mSize] = pos;
+		mSize++;
+	}
+
+	/*
+	 * Append all of "src".
+	 */
+	void appendAll(ZopfliStore src) {
+		ensureCapacity(mSize + src.mSize);
+		System.arraycopy(src.mLitLens, 0, mLitLens, mSize, src.mSize);
+		System.arraycopy(src.mDists, 0, mDists, mSize, src.mSize);
+		System.arraycopy(src.mPos, 0, mPos, mSize, src.mSize);
+		mSize += src.mSize;
+	}
+
+	void copyFrom(ZopfliStore src) {
+		mSize = 0;
+		appendAll(src);
+	}
+
+	/*
+	 * Number of input bytes symbol "i" covers.
+	 */
+	int byteLength(int i) {
+		return mDists[i] == 0 ? 1 : mLitLens[i];
+	}
+
+	/*
+	 * Input position just past symbols [from, to).
+	 */
+	int byteEnd(int from, int to) {
+		return to > from ? mPos[to - 1] + byteLength(to - 1) : (from < mSize ? mPos[from] : 0);
+	}
+}
@@ -0,0 +1,75 @@
+package com.brooke.zipalign;
+
+/*
+ * Deflate (RFC 1951) constants and symbol tables shared by the Zopfli
+ * encoder classes.
+ */
+final class ZopfliTables {
+
+	static final int kNumLitLen = 288;      // literal/length alphabet, incl. unused 286-287
+	static final int kNumDist = 32;         // distance alphabet, incl. unused 30-31
+	static final int kEndOfBlock = 256;
+	static final int kMinMatch = 3;
+	static final int kMaxMatch = 258;
+	static final int kWindowSize = 32768;
+	static final int kMaxBits = 15;         // longest lit/len or dist code
+	static final int kMaxCodeLengthBits = 7; // longest code-length code
+
+	/* order the code-length code lengths are sent in */
+	static final int[] kCodeLengthOrder = {
+		16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+	};
+
+	private static final int[] kLengthBase = {
+		3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+		35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+	};
+	private static final int[] kLengthExtra = {
+		0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+		3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+	};
+	private static final int[] kDistBase = {
+		1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+		257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577
+	};
+	static final int[] kDistExtraBits = {
+		0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+		7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13, 0, 0
+	};
+
+	/* indexed by match length, 3..258 */
+	static final int[] kLengthSymbol = new int[kMaxMatch + 1];
+	static final int[] kLengthExtraBits = new int[kMaxMatch + 1];
+	static final int[] kLengthExtraValue = new int[kMaxMatch + 1];
+
+	/* indexed by distance, 1..32768 */
+	private static final byte[] kDistSymbol = new byte[kWindowSize + 1];
+
+	static {
+		for (int s = 0; s < kLengthBase.length; s++) {
+			int last = s == kLengthBase.length - 1 ? kMaxMatch : kLengthBase[s + 1] - 1;
+			for (int len = kLengthBase[s]; len <= last; len++) {
+				kLengthSymbol[len] = 257 + s;
+				kLengthExtraBits[len] = kLengthExtra[s];
+				kLengthExtraValue[len] = len - kLengthBase[s];
+			}
+		}
+		for (int s = 0; s < kDistBase.length; s++) {
+			int last = kDistBase[s] + (1 << kDistExtraBits[s]) - 1;
+			for (int d = kDistBase[s]; d <= last && d <= kWindowSize; d++) {
+				kDistSymbol[d] = (byte) s;
+			}
+		}
+	}
+
+	private ZopfliTables() {
+	}
+
+	static int distSymbol(int dist) {
+		return kDistSymbol[dist];
+	}
+
+	static int distExtraValue(int dist) {
+		return dist - kDistBase[kDistSymbol[dist]];
+	}
+}
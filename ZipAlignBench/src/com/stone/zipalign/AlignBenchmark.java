@@ -0,0 +1,73 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * A whole align, i.e. copyAndAlign() (or its parallel twin) plus opening
+ * and closing both archives, on 2000 entries of up to 64K.  "stored"
+ * exercises padding and the copy path; "deflated" copies compressed data
+ * through unchanged.  Zopfli is far too slow to measure like this.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AlignBenchmark {
+
+	static final int kNumEntries = 2000;
+
+	@Param({ "stored", "deflated" })
+	public String mKind;
+
+	@Param({ "1", "4" })
+	public int mNumThreads;
+
+	private ZipAligner mAligner;
+	private Path mIn;
+	private Path mOut;
+
+	@Setup
+	public void setup() throws IOException {
+		mIn = BenchArchives.get(mKind, kNumEntries);
+		mOut = Files.createTempFile("zipalign-bench", ".zip");
+		mAligner = new ZipAligner(new ZipAlignOptions.Builder()
+				.setAlignment(4)
+				.setPageAlignSharedLibs(true)
+				.setForce(true)
+				.setNumThreads(mNumThreads)
+				.build());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mAligner.close();
+		Files.deleteIfExists(mOut);
+	}
+
+	@Benchmark
+	public ZipAligner.Status align() {
+		ZipAligner.Result result = mAligner.align(mIn, mOut);
+		if (!result.isOk()) {
+			throw new IllegalStateException(result.getMessage());
+		}
+		return result.getStatus();
+	}
+}
@@ -0,0 +1,53 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/*
+ * Archives for the benchmarks, made once by the CorpusGenerator and kept
+ * in the temp dir, since the million-entry one takes a while.  The
+ * contents depend only on the kind and entry count, so every fork and
+ * every run sees the same bytes.
+ *
+ *   "tiny"     - stored entries of 0-100 bytes; the directory is most of the file
+ *   "stored"   - stored entries of up to 64K, a tenth of them .so files
+ *   "deflated" - deflated text-like entries of up to 64K
+ */
+final class BenchArchives {
+
+	private static final long kSeed = 0x5a1f0a11L;
+
+	private BenchArchives() {
+	}
+
+	static Path get(String kind, int numEntries) throws IOException {
+		Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "zipalign-bench");
+		Path path = dir.resolve(kind + "-" + numEntries + ".zip");
+		if (Files.exists(path)) {
+			return path;
+		}
+
+		CorpusGenerator gen = new CorpusGenerator().setSeed(kSeed).setNumEntries(numEntries);
+		if (kind.equals("tiny")) {
+			gen.setSizes(0, 40, 100, 1.0).setStoredShare(1).setSharedLibShare(0);
+		} else if (kind.equals("stored")) {
+			gen.setSizes(0, 16 * 1024, 64 * 1024, 1.0).setStoredShare(1).setSharedLibShare(0.1);
+		} else if (kind.equals("deflated")) {
+			gen.setSizes(0, 16 * 1024, 64 * 1024, 1.0).setStoredShare(0).setSharedLibShare(0);
+		} else {
+			throw new IllegalArgumentException("no such bench archive: " + kind);
+		}
+
+		Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, kind, ".tmp");
+		if (!gen.generate(tmp.toString())) {
+			Files.deleteIfExists(tmp);
+			throw new IOException("unable to generate " + path);
+		}
+		Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+		return path;
+	}
+}
@@ -0,0 +1,28 @@
+package com.brooke.zipalign;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Run the benchmarks with the GC profiler, so every result comes with its
+ * allocation rate (gc.alloc.rate.norm is bytes per operation).
+ *
+ *   java -cp <classpath> com.brooke.zipalign.BenchMain [<regexp>]
+ *
+ * The regexp picks benchmarks by name, e.g. "Header" or "Align.*stored";
+ * the default runs them all.  The first run builds the test archives in
+ * the temp dir, which for the million-entry one takes a minute or so.
+ */
+public class BenchMain {
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(args.length > 0 ? args[0] : "com\\.brooke\\.zipalign\\..*Benchmark")
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,50 @@
+package com.brooke.zipalign;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The backwards search for the EOCD signature through the largest tail
+ * readCentralDir() maps.  With no comment the signature is found at once;
+ * a 1K comment means 128 words to test; with the longest comment
+ * allowed, the whole tail is scanned.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EocdBenchmark {
+
+	@Param({ "0", "1024", "65535" })
+	public int mCommentLen;
+
+	private ByteBuffer mTail;
+	private int mTailLen;
+
+	@Setup
+	public void setup() {
+		mTailLen = EndOfCentralDir.kMaxEOCDSearch;
+		mTail = ByteBuffer.allocate(mTailLen).order(ByteOrder.LITTLE_ENDIAN);
+		mTail.putInt(mTailLen - EndOfCentralDir.kEOCDLen - mCommentLen, EndOfCentralDir.kSignature);
+	}
+
+	@Benchmark
+	public int findSignature() {
+		return EndOfCentralDir.findSignature(mTail, mTailLen);
+	}
+}
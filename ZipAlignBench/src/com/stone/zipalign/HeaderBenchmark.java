@@ -0,0 +1,117 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * The header codecs on their own, without any I/O: decoding and encoding
+ * CDEs and LFHs.  Throughput is in entries per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderBenchmark {
+
+	static final int kNumEntries = 1000;
+
+	private ByteBuffer mCentralDir;      // the CDEs of a 1000-entry archive
+	private int mCentralDirVarLen;
+	private CentralDirTable mTable;      // the same, decoded, LFH columns too
+	private ByteBuffer mLocalHeaders;    // their LFHs, back to back
+	private int[] mLocalOffsets;
+	private LocalFileHeader mLFH = new LocalFileHeader();
+	private ByteBuffer mOut;
+
+	@Setup
+	public void setup() throws IOException {
+		ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(BenchArchives.get("tiny", kNumEntries)))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		int eocdPosn = EndOfCentralDir.findSignature(file, file.limit());
+		EndOfCentralDir eocd = new EndOfCentralDir();
+		file.position(eocdPosn);
+		if (!HeaderCodec.decode(file, eocd)) {
+			throw new IOException("bad bench archive");
+		}
+
+		int cdOffset = (int) eocd.mCentralDirOffset;
+		int cdLen = (int) eocd.getCentralDirSize();
+		mCentralDir = ByteBuffer.wrap(file.array(), cdOffset, cdLen).slice()
+				.order(ByteOrder.LITTLE_ENDIAN);
+		mCentralDirVarLen = cdLen - kNumEntries * CentralDirEntry.kCDELen;
+
+		mTable = new CentralDirTable(kNumEntries, mCentralDirVarLen);
+		mLocalOffsets = new int[kNumEntries];
+		ByteBuffer lfhs = ByteBuffer.allocate(cdOffset).order(ByteOrder.LITTLE_ENDIAN);
+		for (int row = 0; row < kNumEntries; row++) {
+			HeaderCodec.decodeCentral(mCentralDir, mTable);
+			file.position((int) mTable.mLocalHeaderRelOffset[row]);
+			HeaderCodec.decodeLocal(file, mTable, row);
+			mLocalOffsets[row] = lfhs.position();
+			HeaderCodec.encodeLocal(lfhs, mTable, row);
+		}
+		mCentralDir.rewind();
+		lfhs.flip();
+		mLocalHeaders = lfhs;
+
+		mOut = ByteBuffer.allocate(2 * Math.max(cdLen, cdOffset));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(kNumEntries)
+	public CentralDirTable decodeCentral() {
+		ByteBuffer cd = mCentralDir.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		CentralDirTable table = new CentralDirTable(kNumEntries, mCentralDirVarLen);
+		for (int i = 0; i < kNumEntries; i++) {
+			HeaderCodec.decodeCentral(cd, table);
+		}
+		return table;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(kNumEntries)
+	public ByteBuffer encodeCentral() {
+		mOut.clear();
+		for (int row = 0; row < kNumEntries; row++) {
+			HeaderCodec.encodeCentral(mOut, mTable, row);
+		}
+		return mOut;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(kNumEntries)
+	public void decodeLocal(Blackhole bh) {
+		for (int row = 0; row < kNumEntries; row++) {
+			mLocalHeaders.position(mLocalOffsets[row]);
+			bh.consume(HeaderCodec.decode(mLocalHeaders, mLFH));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(kNumEntries)
+	public ByteBuffer encodeLocal() {
+		mOut.clear();
+		for (int row = 0; row < kNumEntries; row++) {
+			HeaderCodec.encodeLocal(mOut, mTable, row);
+		}
+		return mOut;
+	}
+}
@@ -0,0 +1,71 @@
+package com.brooke.zipalign;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stone.ziputil.ZipUtils;
+
+/*
+ * ZipUtils.inflateToBuffer() on text-like data from memory: a heap buffer
+ * goes to the inflater in one piece, a direct one through the read
+ * buffer a chunk at a time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InflateBenchmark {
+
+	@Param({ "4096", "1048576" })
+	public int mSize;
+
+	@Param({ "heap", "direct" })
+	public String mBuffer;
+
+	private ByteBuffer mCompressed;
+	private int mCompressedLen;
+	private byte[] mOut;
+
+	@Setup
+	public void setup() {
+		byte[] data = new byte[mSize];
+		Random rnd = new Random(mSize);
+		for (int i = 0; i < data.length; i++) {
+			/* skewed, so it compresses about as well as code does */
+			data[i] = (byte) ('a' + (int) Math.abs(rnd.nextGaussian() * 6));
+		}
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] buf = new byte[mSize * 2 + 64];
+		mCompressedLen = deflater.deflate(buf);
+		deflater.end();
+
+		mCompressed = mBuffer.equals("heap") ? ByteBuffer.allocate(mCompressedLen)
+				: ByteBuffer.allocateDirect(mCompressedLen);
+		mCompressed.put(buf, 0, mCompressedLen).flip();
+		mOut = new byte[mSize];
+	}
+
+	@Benchmark
+	public boolean inflateToBuffer() {
+		return ZipUtils.inflateToBuffer(mCompressed, mOut, mSize, mCompressedLen);
+	}
+}
@@ -0,0 +1,117 @@
+package com.brooke.zipalign;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Opening an archive: the EOCD search and the central directory read,
+ * which is all open() does now that LFHs load lazily.  The file is in the
+ * page cache after the first iteration, so this is CPU and mapping cost,
+ * not disk.  readCentralDirStream() is the same work done the way open()
+ * used to, through a FileInputStream into heap arrays.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ReadCentralDirBenchmark {
+
+	@Param({ "1000", "100000", "1000000" })
+	public int mNumEntries;
+
+	private String mPath;
+
+	@Setup
+	public void setup() throws IOException {
+		mPath = BenchArchives.get("tiny", mNumEntries).toString();
+	}
+
+	@Benchmark
+	public int readCentralDir() {
+		ZipFile zipFile = new ZipFile();
+		if (!zipFile.open(mPath, ZipFile.kOpenReadOnly)) {
+			throw new IllegalStateException("unable to open " + mPath);
+		}
+		int numEntries = zipFile.getNumEntries();
+		zipFile.close();
+		return numEntries;
+	}
+
+	/*
+	 * The stream baseline for readCentralDir().  The old per-field parsing
+	 * (String and Integer.decode per field) is long gone, so this feeds the
+	 * current decoder and only the I/O differs: a read into a heap copy of
+	 * the tail and of the directory rather than two mappings.
+	 */
+	@Benchmark
+	public int readCentralDirStream() throws IOException {
+		FileInputStream fis = new FileInputStream(mPath);
+		try {
+			DataInputStream in = new DataInputStream(fis);
+			long fileLength = fis.getChannel().size();
+			int tailLen = (int) Math.min(fileLength, EndOfCentralDir.kMaxEOCDSearch);
+			byte[] tail = new byte[tailLen];
+			ZipFile.setFileInputStreamPosition(fis, fileLength - tailLen);
+			in.readFully(tail);
+
+			ByteBuffer tailBuf = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+			int i = EndOfCentralDir.findSignature(tailBuf, tailLen);
+			if (i < 0) {
+				throw new IllegalStateException("no EOCD in " + mPath);
+			}
+			EndOfCentralDir eocd = new EndOfCentralDir();
+			tailBuf.position(i);
+			if (!eocd.readBuf(tailBuf)) {
+				throw new IllegalStateException("bad EOCD in " + mPath);
+			}
+			if (i >= EndOfCentralDir.kZip64LocatorLen) {
+				tailBuf.position(i - EndOfCentralDir.kZip64LocatorLen);
+				eocd.readZip64Locator(tailBuf);
+			}
+			if (eocd.mZip64EOCDOffset >= 0) {
+				byte[] zip64 = new byte[EndOfCentralDir.kZip64EOCDLen];
+				ZipFile.setFileInputStreamPosition(fis, eocd.mZip64EOCDOffset);
+				in.readFully(zip64);
+				if (!HeaderCodec.decodeZip64(ByteBuffer.wrap(zip64), eocd)) {
+					throw new IllegalStateException("bad Zip64 EOCD in " + mPath);
+				}
+			}
+
+			int numEntries = (int) eocd.mTotalNumEntries;
+			int cdSize = (int) eocd.getCentralDirSize();
+			byte[] cd = new byte[cdSize];
+			ZipFile.setFileInputStreamPosition(fis, eocd.mCentralDirOffset);
+			in.readFully(cd);
+
+			ByteBuffer cdBuf = ByteBuffer.wrap(cd);
+			CentralDirTable table = new CentralDirTable(numEntries,
+					Math.max(0, cdSize - numEntries * CentralDirEntry.kCDELen));
+			for (int entryIndex = 0; entryIndex < numEntries; entryIndex++) {
+				if (HeaderCodec.decodeCentral(cdBuf, table) < 0) {
+					throw new IllegalStateException("CDE read failed in " + mPath);
+				}
+			}
+			return numEntries;
+		} finally {
+			fis.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.brooke.zipalign;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Verifying an aligned archive of 100000 small entries, with and without
+ * the LFH-against-CDE check.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VerifyBenchmark {
+
+	static final int kNumEntries = 100000;
+
+	@Param({ "false", "true" })
+	public boolean mCheckHeaders;
+
+	@Param({ "1", "4" })
+	public int mNumThreads;
+
+	private ZipAligner mAligner;
+	private Path mAligned;
+
+	@Setup
+	public void setup() throws IOException {
+		mAligned = Files.createTempFile("zipalign-bench", ".zip");
+		mAligner = new ZipAligner(new ZipAlignOptions.Builder()
+				.setAlignment(4)
+				.setForce(true)
+				.setCheckHeaders(mCheckHeaders)
+				.setNumThreads(mNumThreads)
+				.build());
+		ZipAligner.Result result = mAligner.align(BenchArchives.get("tiny", kNumEntries), mAligned);
+		if (!result.isOk()) {
+			throw new IOException(result.getMessage());
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mAligner.close();
+		Files.deleteIfExists(mAligned);
+	}
+
+	@Benchmark
+	public boolean verify() {
+		ZipVerifier.Report report = mAligner.verify(mAligned);
+		if (!report.isOk()) {
+			throw new IllegalStateException("verification failed");
+		}
+		return report.isOk();
+	}
+}
@@ -0,0 +1,182 @@
+package com.brooke.zipalign;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * The Flight Recorder events behind ZipEvents.  Needs Java 11 or later;
+ * put this module on the class path next to ZipAlign and the hooks find
+ * it on their own.
+ *
+ * Every event is off by default.  Turn them on with the settings file
+ * that comes with this module, on top of the usual ones:
+ *
+ *   java -XX:StartFlightRecording=settings=default,settings=ZipAlignJfr/zipalign.jfc,filename=align.jfr ...
+ *
+ * or against a running JVM with "jcmd <pid> JFR.start settings=...".
+ * JMC then shows them under "ZipAlign", one lane per thread, so which
+ * entries or phases dominate a slow run is plain from the timeline.
+ */
+final class JfrEvents implements ZipEvents.Sink {
+
+	@Name("com.brooke.zipalign.Entry")
+	@Label("Entry Copy")
+	@Description("One entry copied to the output, with any padding or recompression")
+	@Category("ZipAlign")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class EntryEvent extends Event {
+		@Label("Name")
+		String name;
+		@Label("Method")
+		int method;
+		@Label("Size")
+		@DataAmount
+		long size;
+		@Label("Compressed Size")
+		@DataAmount
+		long compressedSize;
+		@Label("Padding")
+		@DataAmount
+		int padding;
+	}
+
+	@Name("com.brooke.zipalign.Recompress")
+	@Label("Recompress")
+	@Description("One entry inflated and deflated again with Zopfli")
+	@Category("ZipAlign")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class RecompressEvent extends Event {
+		@Label("Name")
+		String name;
+		@Label("Size")
+		@DataAmount
+		long size;
+		@Label("Compressed Size")
+		@DataAmount
+		long compressedSize;
+		@Label("Recompressed Size")
+		@Description("-1 if recompression failed")
+		@DataAmount
+		long recompressedSize;
+	}
+
+	@Name("com.brooke.zipalign.Inflate")
+	@Label("Inflate")
+	@Description("One entry inflated")
+	@Category("ZipAlign")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class InflateEvent extends Event {
+		@Label("Name")
+		String name;
+		@Label("Size")
+		@DataAmount
+		long size;
+		@Label("Compressed Size")
+		@DataAmount
+		long compressedSize;
+	}
+
+	@Name("com.brooke.zipalign.CentralDirectory")
+	@Label("Central Directory")
+	@Description("A central directory loaded or flushed")
+	@Category("ZipAlign")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class DirectoryEvent extends Event {
+		@Label("Archive")
+		String archive;
+		@Label("Flush")
+		@Description("true when written, false when loaded")
+		boolean flush;
+		@Label("Entries")
+		int numEntries;
+		@Label("Directory Size")
+		@DataAmount
+		long cdSize;
+	}
+
+	@Override
+	public Object begin(int kind) {
+		Event event;
+		switch (kind) {
+			case ZipEvents.kEntry:
+				event = new EntryEvent();
+				break;
+			case ZipEvents.kRecompress:
+				event = new RecompressEvent();
+				break;
+			case ZipEvents.kInflate:
+				event = new InflateEvent();
+				break;
+			default:
+				event = new DirectoryEvent();
+				break;
+		}
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endEntry(Object o, ZipEntry entry, int padding) {
+		EntryEvent event = (EntryEvent) o;
+		event.end();
+		if (event.shouldCommit()) {
+			event.name = entry.getFileName();
+			event.method = entry.getCompressionMethod();
+			event.size = entry.getUncompressedLen();
+			event.compressedSize = entry.getCompressedLen();
+			event.padding = padding;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void endRecompress(Object o, ZipEntry entry, long newCompressedLen) {
+		RecompressEvent event = (RecompressEvent) o;
+		event.end();
+		if (event.shouldCommit()) {
+			event.name = entry.getFileName();
+			event.size = entry.getUncompressedLen();
+			event.compressedSize = entry.getCompressedLen();
+			event.recompressedSize = newCompressedLen;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void endInflate(Object o, ZipEntry entry) {
+		InflateEvent event = (InflateEvent) o;
+		event.end();
+		if (event.shouldCommit()) {
+			event.name = entry.getFileName();
+			event.size = entry.getUncompressedLen();
+			event.compressedSize = entry.getCompressedLen();
+			event.commit();
+		}
+	}
+
+	@Override
+	public void endDirectory(Object o, String archive, boolean flush, int numEntries, long cdSize) {
+		DirectoryEvent event = (DirectoryEvent) o;
+		event.end();
+		if (event.shouldCommit()) {
+			event.archive = archive;
+			event.flush = flush;
+			event.numEntries = numEntries;
+			event.cdSize = cdSize;
+			event.commit();
+		}
+	}
+}
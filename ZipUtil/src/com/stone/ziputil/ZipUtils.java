@@ -2,126 +2,232 @@ package com.stone.ziputil;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 public class ZipUtils {
 
 	private static final int kReadBufSize = 32768;
-	
+
+	/*
+	 * One Inflater and one read buffer per thread, reset between uses.
+	 * An Inflater holds native zlib state that is only released by end(),
+	 * so making a new one per entry is far from free.
+	 */
+	private static final ThreadLocal<Inflater> sInflater = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true); // param is "nowrap"
+		}
+	};
+	private static final ThreadLocal<byte[]> sReadBuf = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[kReadBufSize];
+		}
+	};
+
+	private ZipUtils() {
+	}
+
+	/*
+	 * Where the compressed bytes come from; the FileReader, FdReader and
+	 * BufferReader of the C++ version.  read() returns the number of bytes
+	 * now available at mBuf[mOffset], which is less than asked for only at
+	 * the end of the input.
+	 */
+	private static abstract class Reader {
+		byte[] mBuf;
+		int mOffset;
+
+		abstract int read(int readSize) throws IOException;
+	}
+
+	/* reads from the stream's current position */
+	private static final class StreamReader extends Reader {
+		private final FileInputStream mFis;
+
+		StreamReader(FileInputStream fis) {
+			mFis = fis;
+			mBuf = sReadBuf.get();
+		}
+
+		@Override
+		int read(int readSize) throws IOException {
+			int total = 0;
+			while (total < readSize) {
+				int count = mFis.read(mBuf, total, readSize - total);
+				if (count < 0) {
+					break;
+				}
+				total += count;
+			}
+			return total;
+		}
+	}
+
+	/* positional reads; the channel's own position is untouched */
+	private static final class ChannelReader extends Reader {
+		private final FileChannel mChannel;
+		private long mPosn;
+
+		ChannelReader(FileChannel fc, long posn) {
+			mChannel = fc;
+			mPosn = posn;
+			mBuf = sReadBuf.get();
+		}
+
+		@Override
+		int read(int readSize) throws IOException {
+			ByteBuffer bb = ByteBuffer.wrap(mBuf, 0, readSize);
+			while (bb.hasRemaining()) {
+				int count = mChannel.read(bb, mPosn);
+				if (count < 0) {
+					break;
+				}
+				mPosn += count;
+			}
+			return bb.position();
+		}
+	}
+
+	/*
+	 * Heap buffers are handed to the inflater in place, in one piece.
+	 * Direct (e.g. mapped) buffers have no array behind them, and the
+	 * Inflater only takes arrays, so they are copied through the read
+	 * buffer a chunk at a time.
+	 */
+	private static final class BufferReader extends Reader {
+		private final ByteBuffer mInput;
+
+		BufferReader(ByteBuffer input) {
+			mInput = input.duplicate();
+			if (!mInput.hasArray()) {
+				mBuf = sReadBuf.get();
+			}
+		}
+
+		@Override
+		int read(int readSize) {
+			if (mInput.hasArray()) {
+				/* all of it at once, whatever was asked for */
+				int len = mInput.remaining();
+				mBuf = mInput.array();
+				mOffset = mInput.arrayOffset() + mInput.position();
+				mInput.position(mInput.limit());
+				return len;
+			}
+			int len = Math.min(readSize, mInput.remaining());
+			mInput.get(mBuf, 0, len);
+			return len;
+		}
+	}
+
 	/*
 	 * Utility function that expands zip/gzip "deflate" compressed data
 	 * into a buffer.
 	 *
-	 * (This is a clone of the previous function, but it takes a FILE* instead
-	 * of an fd.  We could pass fileno(fd) to the above, but we can run into
-	 * trouble when "fp" has a different notion of what fd's file position is.)
-	 *
-	 * "fp" is an open file positioned at the start of the "deflate" data
+	 * "fis" is an open file positioned at the start of the "deflate" data.
 	 * "buf" must hold at least "uncompressedLen" bytes.
 	 */
-	/*static*/ boolean inflateToBuffer(FileInputStream fis, byte[] buf,
-	    long uncompressedLen, int compressedLen) throws DataFormatException, IOException {
+	public static boolean inflateToBuffer(FileInputStream fis, byte[] buf,
+	    long uncompressedLen, long compressedLen) {
+		return inflateToBuffer(new StreamReader(fis), buf, uncompressedLen, compressedLen);
+	}
+
+	/*
+	 * As above, reading the "deflate" data at "posn" in "fc" without
+	 * moving the channel, so threads can share it.
+	 */
+	public static boolean inflateToBuffer(FileChannel fc, long posn, byte[] buf,
+	    long uncompressedLen, long compressedLen) {
+		return inflateToBuffer(new ChannelReader(fc, posn), buf, uncompressedLen, compressedLen);
+	}
 
-//	    z_stream zstream;
-//	    int zerr;
-	    int compRemaining;
+	/*
+	 * As above, with the "deflate" data in memory: the remaining bytes of
+	 * "in", which may be a slice of a mapped file.  "in" itself is not
+	 * changed.
+	 */
+	public static boolean inflateToBuffer(ByteBuffer in, byte[] buf,
+	    long uncompressedLen, long compressedLen) {
+		if (in.remaining() < compressedLen) {
+			System.err.println("inflate input too short (" + in.remaining() + " vs " + compressedLen + ")");
+			return false;
+		}
+		ByteBuffer slice = in.duplicate();
+		slice.limit(slice.position() + (int) compressedLen);
+		return inflateToBuffer(new BufferReader(slice), buf, uncompressedLen, compressedLen);
+	}
 
+	private static boolean inflateToBuffer(Reader reader, byte[] buf,
+	    long uncompressedLen, long compressedLen) {
 	    assert(uncompressedLen >= 0);
 	    assert(compressedLen >= 0);
 
-	    compRemaining = compressedLen;
-
-	    /*
-	     * Initialize the zlib stream.
-	     */
-	    Inflater decompresser = new Inflater(true); // param is "nowrap"
-		
-//	    memset(&zstream, 0, sizeof(zstream));
-//	    zstream.zalloc = Z_NULL;
-//	    zstream.zfree = Z_NULL;
-//	    zstream.opaque = Z_NULL;
-//	    zstream.next_in = NULL;
-//	    zstream.avail_in = 0;
-//	    zstream.next_out = (Bytef*) buf;
-//	    zstream.avail_out = uncompressedLen;
-//	    zstream.data_type = Z_UNKNOWN;
-
-	    /*
-	     * Use the undocumented "negative window bits" feature to tell zlib
-	     * that there's no zlib header waiting for it.
-	     */
-	    // TODO need to do this, or covered by nowrap param??
-	    /*zerr = inflateInit2(zstream, -MAX_WBITS);
-	    if (zerr != Z_OK) {
-	        if (zerr == Z_VERSION_ERROR) {
-	            System.err.println("Installed zlib is not compatible with linked version (" + ZLIB_VERSION + ")");
-	        } else {
-	        	System.err.println("Call to inflateInit2 failed (zerr=" + zerr + ")");
-	        }
-	        return false;
-	    }*/
-
-	    /*
-	     * Loop while we have data.
-	     */
-	    do {
-	        int getSize;
-		    
-	        try {
-	        /* read as much as we can */
-//	        if (zstream.avail_in == 0) {
-	            getSize = (compRemaining > kReadBufSize) ? kReadBufSize : compRemaining;
-	            System.out.println("+++ reading " + getSize + " bytes (" + compRemaining + " left)");
-
-	            byte[] nextBuffer = new byte[getSize];
-	            int nextSize = fis.read(nextBuffer, 0, getSize);
-				
-	            if (nextSize < getSize) {
-	                System.err.println("inflate read failed (" + nextSize + " vs " + getSize + ")");
-	                decompresser.end();
-	                return false;
-	            }
-	            
-	            compRemaining -= nextSize;
-
-//	            zstream.next_in = nextBuffer;
-//	            zstream.avail_in = nextSize;
-//	        }
-
-	        /* uncompress the data */
-	        decompresser.setInput(nextBuffer, 0, nextSize);
-    		byte[] result = new byte[1024]; // TODO size matter??
-    		int resultLength = decompresser.inflate(result);
-    		
-//	        zerr = inflate(zstream, Z_NO_FLUSH);
-//	        if (zerr != Z_OK && zerr != Z_STREAM_END) {
-//	            System.err.println("zlib inflate call failed (zerr=" + zerr + ")");
-//                return false;
-//	        }
-
-	        /* output buffer holds all, so no need to write the output */
-	    	} finally {
-	    		decompresser.end();
+	    if (uncompressedLen > buf.length) {
+	    	System.err.println("inflate buffer too small (" + buf.length + " vs " + uncompressedLen + ")");
+	    	return false;
+	    }
+
+	    Inflater inflater = sInflater.get();
+	    long compRemaining = compressedLen;
+	    int outLen = (int) uncompressedLen;
+	    int total = 0;
+
+	    try {
+	    	/*
+	    	 * Loop while we have data.  The output goes straight into "buf";
+	    	 * it holds all of it, so there's nothing to write out.
+	    	 */
+	    	while (!inflater.finished()) {
+	    		/* read as much as we can */
+	    		if (inflater.needsInput()) {
+	    			if (compRemaining == 0) {
+	    				System.err.println("inflate ran out of input at " + total + " of " + outLen);
+	    				return false;
+	    			}
+	    			int getSize = (int) Math.min(compRemaining, kReadBufSize);
+	    			int nextSize = reader.read(getSize);
+	    			if (nextSize < getSize) {
+	    				System.err.println("inflate read failed (" + nextSize + " vs " + getSize + ")");
+	    				return false;
+	    			}
+	    			compRemaining -= nextSize;
+	    			inflater.setInput(reader.mBuf, reader.mOffset, nextSize);
+	    		}
+
+	    		/* uncompress the data */
+	    		int count = inflater.inflate(buf, total, outLen - total);
+	    		total += count;
+	    		if (count == 0 && total == outLen && !inflater.finished() && !inflater.needsInput()) {
+	    			/* output full, but the stream goes on */
+	    			System.err.println("Size mismatch on inflated file (more than " + outLen + ")");
+	    			return false;
+	    		}
+	    		if (inflater.needsDictionary()) {
+	    			System.err.println("zlib inflate wants a dictionary");
+	    			return false;
+	    		}
 	    	}
-	    } while (compRemaining > 0);
 
-	    decompresser.end();
-	    
-//	    assert(zerr == Z_STREAM_END);       /* other errors should've been caught */
+	    	if (total != outLen) {
+	    		System.err.println("Size mismatch on inflated file (" + total + " vs " + outLen + ")");
+	    		return false;
+	    	}
 
-	    if (decompresser.getBytesRead() != compressedLen) { // TODO is this right?
-	    	System.err.println("Size mismatch on inflated file (" + decompresser.getBytesRead() + " vs " + compressedLen + ")");
-            return false;
+	    	// success!
+	    	return true;
+	    } catch (DataFormatException e) {
+	    	System.err.println("zlib inflate call failed (" + e.getMessage() + ")");
+	    	return false;
+	    } catch (IOException e) {
+	    	System.err.println("inflate read failed (" + e.getMessage() + ")");
+	    	return false;
+	    } finally {
+	    	inflater.reset();        /* ready for the next entry on this thread */
 	    }
-
-	    // success!
-	    return true;
-
-//	z_bail:
-//	    inflateEnd(&zstream);        /* free up any allocated structures */
-//
-//	bail:
-//	    return result;
 	}
 }